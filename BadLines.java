@@ -0,0 +1,222 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+
+/**
+ * Input lines that can't be converted, and what to do about them: fail
+ * the run at the first one, skip them, or skip them and write them to a
+ * reject file (quarantine them), with where they were and why. Skipping
+ * has a limit: a run with more than the allowed share of bad lines
+ * fails, as that is more likely a file in the wrong format than a few
+ * corrupt lines.
+ *
+ * Workers check lines as they parse them, without exceptions, and mark
+ * the bad ones with a reason; the writer, which sees them in input
+ * order, hands them here. Only used by the writer stage.
+ */
+class BadLines implements Closeable {
+
+    // What to do with bad lines.
+    static final String FAIL = "fail";
+    static final String SKIP = "skip";
+    static final String QUARANTINE = "quarantine";
+
+    // Why a line is bad; OK for a good line.
+    static final int OK = 0;
+    static final int TOO_FEW_FIELDS = 1;
+    static final int BAD_TIME = 2;
+    static final int BAD_PREVIOUS_P_KNOWN = 3;
+    static final int BAD_NEW_P_KNOWN = 4;
+    static final int BAD_STUDENT_ID = 5;
+
+    // Fields are named as in the input's header, so that reject files can
+    // be checked against the input.
+    private static final String[] REASONS = {
+        "",
+        "too few fields",
+        "servertime is not a whole number",
+        "skillpreviouspknown is not a number",
+        "skillnewpknown is not a number",
+        "no student ID in ctcontextid"
+    };
+
+    static final String HEADERS = "File\tLine\tByte Offset\tReason\tText";
+
+    // The share of bad lines is counted over at least this many lines,
+    // so a bad line near the start doesn't fail the run.
+    static final long MIN_LINES = 1000L;
+
+    private final String policy;
+    private final double maxRate;
+    private final File rejectFile;
+    private final OutputSink rejects;
+    private final StringBuilder line = new StringBuilder();
+
+    private final long[] counts = new long[REASONS.length];
+    private long bad = 0L;
+
+    /**
+     * @param policy FAIL, SKIP or QUARANTINE
+     * @param maxRate most bad lines to skip, as a share of the lines so far
+     * @param rejectFile where to write bad lines if QUARANTINE
+     */
+    BadLines(String policy, double maxRate, File rejectFile)
+        throws IOException
+    {
+        this.policy = policy;
+        this.maxRate = maxRate;
+        this.rejectFile = policy.equals(QUARANTINE) ? rejectFile : null;
+        this.rejects = policy.equals(QUARANTINE) ? new OutputSink(rejectFile) : null;
+        if (rejects != null) { rejects.write(HEADERS + "\r\n"); }
+    }
+
+    /**
+     * @return where a bad line is and why it is bad, for a message
+     */
+    static String describe(File file, long lineNum, long offset, int reason) {
+        return "line " + lineNum + " of " + file + ((offset >= 0L) ? " (byte " + offset + ")" : "") + ": "
+            + REASONS[reason];
+    }
+
+    /**
+     * A bad line, in input order.
+     * @param file the input file
+     * @param lineNum its line number
+     * @param offset where it starts in the file, uncompressed; -1 if not known
+     * @param reason why it is bad
+     * @param fields its fields, null if not known
+     * @param linesSoFar number of lines so far, this one included
+     * @throws IOException if the run is to fail, or the line can't be written
+     */
+    void add(File file, long lineNum, long offset, int reason, String[] fields, long linesSoFar)
+        throws IOException
+    {
+        bad++;
+        counts[reason]++;
+        if (policy.equals(FAIL)) {
+            throw new IOException("Bad input at " + describe(file, lineNum, offset, reason) + ".");
+        }
+        if (bad > maxRate * Math.max(linesSoFar, MIN_LINES)) {
+            throw new IOException("Too many bad lines: " + bad + " of the first " + linesSoFar
+                                  + ", more than the " + BigDecimal.valueOf(maxRate).toPlainString()
+                                  + " allowed; the last was at "
+                                  + describe(file, lineNum, offset, reason) + ".");
+        }
+        if (rejects == null) { return; }
+
+        line.setLength(0);
+        line.append(file).append('\t').append(lineNum).append('\t');
+        if (offset >= 0L) { line.append(offset); }
+        line.append('\t').append(REASONS[reason]).append('\t');
+        for (int f = 0; (fields != null) && (f < fields.length); f++) {
+            if (f > 0) { line.append(','); }
+            appendField(fields[f]);
+        }
+        line.append("\r\n");
+        rejects.write(line.toString());
+    }
+
+    /**
+     * Append a field as CSV, quoted if it needs to be, with its tabs and
+     * line breaks escaped so the line stays one line of the reject file.
+     */
+    private void appendField(String field) {
+        boolean quote = (field.indexOf(',') >= 0) || (field.indexOf('"') >= 0);
+        if (quote) { line.append('"'); }
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            switch (c) {
+            case '"': line.append("\"\""); break;
+            case '\t': line.append("\\t"); break;
+            case '\r': line.append("\\r"); break;
+            case '\n': line.append("\\n"); break;
+            default: line.append(c); break;
+            }
+        }
+        if (quote) { line.append('"'); }
+    }
+
+    /**
+     * @return number of bad lines
+     */
+    long getCount() {
+        return bad;
+    }
+
+    /**
+     * @return a line for the run summary
+     */
+    String getStats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(policy.equals(QUARANTINE) ? "Quarantined " : "Skipped ").append(bad).append(" bad line(s)");
+        String sep = ": ";
+        for (int r = 1; r < REASONS.length; r++) {
+            if (counts[r] == 0L) { continue; }
+            sb.append(sep).append(counts[r]).append(' ').append(REASONS[r]);
+            sep = ", ";
+        }
+        if (rejectFile != null) { sb.append("; wrote them to ").append(rejectFile); }
+        return sb.append('.').toString();
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        if (rejects != null) { rejects.close(); }
+    }
+
+    /**
+     * @return whether a value is a whole number that Long.parseLong()
+     *         takes, without trying it: an optional sign and up to 18 digits
+     */
+    static boolean isWholeNumber(String value) {
+        int n = value.length();
+        int i = ((n > 0) && ((value.charAt(0) == '-') || (value.charAt(0) == '+'))) ? 1 : 0;
+        if ((i == n) || (n - i > 18)) { return false; }
+        for (; i < n; i++) {
+            char c = value.charAt(i);
+            if ((c < '0') || (c > '9')) { return false; }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether a value is a decimal number that Double.parseDouble()
+     *         takes, without trying it: e.g. "0.25", "-1", ".5e-3", "NaN",
+     *         with blanks around it allowed
+     */
+    static boolean isNumber(String value) {
+        int n = value.length();
+        while ((n > 0) && (value.charAt(n - 1) <= ' ')) { n--; }
+        int i = 0;
+        while ((i < n) && (value.charAt(i) <= ' ')) { i++; }
+        if ((i < n) && ((value.charAt(i) == '-') || (value.charAt(i) == '+'))) { i++; }
+        if (value.startsWith("NaN", i) || value.startsWith("Infinity", i)) {
+            return i + (value.charAt(i) == 'N' ? 3 : 8) == n;
+        }
+
+        int digits = 0;
+        while ((i < n) && isDigit(value.charAt(i))) { i++; digits++; }
+        if ((i < n) && (value.charAt(i) == '.')) {
+            i++;
+            while ((i < n) && isDigit(value.charAt(i))) { i++; digits++; }
+        }
+        if (digits == 0) { return false; }
+        if ((i < n) && ((value.charAt(i) == 'e') || (value.charAt(i) == 'E'))) {
+            i++;
+            if ((i < n) && ((value.charAt(i) == '-') || (value.charAt(i) == '+'))) { i++; }
+            int exponent = 0;
+            while ((i < n) && isDigit(value.charAt(i))) { i++; exponent++; }
+            if (exponent == 0) { return false; }
+        }
+        // A type suffix, as Java allows.
+        if ((i < n) && ("fFdD".indexOf(value.charAt(i)) >= 0)) { i++; }
+        return i == n;
+    }
+
+    private static boolean isDigit(char c) {
+        return (c >= '0') && (c <= '9');
+    }
+}
@@ -0,0 +1,168 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * How far a conversion got: the input read up to a record boundary, the
+ * output written for it, and the skill index at that point. Written at
+ * batch boundaries, so a failed or killed run can be resumed from the
+ * last one instead of starting over.
+ *
+ * With several input files, the checkpoint is in one of them and the
+ * ones before it are done. The file is identified by its path, size and
+ * modification time, and the checkpoint is only good for the same,
+ * unchanged list of inputs.
+ */
+class Checkpoint {
+
+    // File format: "PL2C", version, the fields below, a CRC32 of them,
+    // then a SkillIndex snapshot, which has its own CRC32.
+    private static final int MAGIC = 0x504c3243;
+    private static final int VERSION = 2;
+
+    // Which of the input files the checkpoint is in.
+    final int fileIndex;
+    final int fileCount;
+
+    final String inputPath;
+    final long inputSize;
+    final long inputModified;
+
+    // Byte offset in the input file where the next record starts.
+    final long inputOffset;
+    // Records and lines of the input file read so far, including the header.
+    final long recordsRead;
+    final long linesRead;
+
+    // Length of the output so far, and the lines in it, without the header.
+    final long outputOffset;
+    final long rowsWritten;
+
+    Checkpoint(int fileIndex, int fileCount, File input, long inputOffset, long recordsRead, long linesRead,
+               long outputOffset, long rowsWritten)
+    {
+        this(fileIndex, fileCount, input.getAbsolutePath(), input.length(), input.lastModified(),
+             inputOffset, recordsRead, linesRead, outputOffset, rowsWritten);
+    }
+
+    private Checkpoint(int fileIndex, int fileCount, String inputPath, long inputSize, long inputModified,
+                       long inputOffset, long recordsRead, long linesRead,
+                       long outputOffset, long rowsWritten)
+    {
+        this.fileIndex = fileIndex;
+        this.fileCount = fileCount;
+        this.inputPath = inputPath;
+        this.inputSize = inputSize;
+        this.inputModified = inputModified;
+        this.inputOffset = inputOffset;
+        this.recordsRead = recordsRead;
+        this.linesRead = linesRead;
+        this.outputOffset = outputOffset;
+        this.rowsWritten = rowsWritten;
+    }
+
+    /**
+     * @param inputs the input files
+     * @return whether the checkpoint was made for these inputs, unchanged since
+     */
+    boolean matches(List<File> inputs) {
+        if ((fileCount != inputs.size()) || (fileIndex < 0) || (fileIndex >= fileCount)) { return false; }
+        File input = inputs.get(fileIndex);
+        return inputPath.equals(input.getAbsolutePath())
+            && (inputSize == input.length())
+            && (inputModified == input.lastModified());
+    }
+
+    /**
+     * Write the checkpoint, replacing the file only once it is complete
+     * and on disk.
+     * @param file the checkpoint file
+     * @param skillIndex the skill index as of the checkpoint
+     */
+    void save(File file, SkillIndex skillIndex)
+        throws IOException
+    {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            BufferedOutputStream out = new BufferedOutputStream(fos);
+            CRC32 crc = new CRC32();
+            DataOutputStream data = new DataOutputStream(new CheckedOutputStream(out, crc));
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeInt(fileIndex);
+            data.writeInt(fileCount);
+            data.writeUTF(inputPath);
+            data.writeLong(inputSize);
+            data.writeLong(inputModified);
+            data.writeLong(inputOffset);
+            data.writeLong(recordsRead);
+            data.writeLong(linesRead);
+            data.writeLong(outputOffset);
+            data.writeLong(rowsWritten);
+            data.flush();
+            data.writeInt((int)crc.getValue());
+
+            skillIndex.write(out);
+            out.flush();
+            fos.getFD().sync();
+        }
+
+        try {
+            Files.move(tmp.toPath(), file.toPath(),
+                       StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Read a checkpoint written by save().
+     * @param file the checkpoint file
+     * @param skillIndex the index to add the checkpoint's skills to
+     * @return the checkpoint
+     */
+    static Checkpoint load(File file, SkillIndex skillIndex)
+        throws IOException
+    {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            CRC32 crc = new CRC32();
+            DataInputStream data = new DataInputStream(new CheckedInputStream(in, crc));
+            if (data.readInt() != MAGIC) {
+                throw new IOException("Checkpoint " + file + " is corrupt: not in checkpoint format.");
+            }
+            int version = data.readInt();
+            if (version != VERSION) {
+                throw new IOException("Checkpoint " + file + " has version " + version
+                                      + "; expected " + VERSION + ".");
+            }
+
+            Checkpoint result = new Checkpoint(data.readInt(), data.readInt(),
+                                               data.readUTF(), data.readLong(), data.readLong(),
+                                               data.readLong(), data.readLong(), data.readLong(),
+                                               data.readLong(), data.readLong());
+            long expected = crc.getValue();
+            if ((data.readInt() & 0xffffffffL) != expected) {
+                throw new IOException("Checkpoint " + file + " is corrupt: checksum mismatch.");
+            }
+
+            skillIndex.read(in, file.length(), "Skill index in checkpoint " + file);
+            return result;
+        } catch (EOFException e) {
+            throw new IOException("Checkpoint " + file + " is truncated.");
+        }
+    }
+}
@@ -0,0 +1,207 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A budget of memory for the chunks of lines between reading and
+ * writing. Readers cut chunks to a share of the budget, and take each
+ * chunk's size out of it before handing the chunk on; the writer puts
+ * it back once the chunk is written. A reader that would go over the
+ * budget waits, so reading can't get more than the budget ahead of
+ * writing.
+ *
+ * A chunk's size is an estimate of the heap it takes up on its way
+ * through: the tokenized fields, the parsed lines and the encoded
+ * output, from its number of lines and fields and its bytes of CSV.
+ * Lines are cut to a number of bytes as well as a number of lines, so
+ * a file of long lines gets chunks of fewer lines.
+ *
+ * Each reader can always have one chunk out, even over the budget.
+ * Otherwise readers a file ahead could fill the budget while the
+ * writer waits on the file before.
+ */
+class ChunkBudget {
+
+    // Smallest budget allowed.
+    static final long MIN_BUDGET = 16L * 1024 * 1024;
+
+    // Most lines to cut a chunk to, however short they are.
+    static final int MAX_CHUNK_ROWS = 50000;
+
+    // Largest size to cut a chunk to, however big the budget: bigger
+    // chunks only take longer to get the workers going and to finish.
+    private static final long MAX_CHUNK_BYTES = 8L * 1024 * 1024;
+
+    // Estimated heap per line (its array of fields, its slots in the
+    // parsed and encoded chunk), per field (a String), and per byte of
+    // CSV (the field's chars, the copy of the chunk, the output line).
+    private static final int ROW_BYTES = 256;
+    private static final int FIELD_BYTES = 48;
+    private static final int CSV_BYTE_BYTES = 3;
+
+    private final long budget;
+    // Size to cut chunks to.
+    private final long chunkBytes;
+
+    // All guarded by this.
+    private long used = 0L;
+    private long peak = 0L;
+    private long waitNanos = 0L;
+    private long chunks = 0L;
+    private long rows = 0L;
+    private long bytes = 0L;
+    private int maxRows = 0;
+    private long maxBytes = 0L;
+
+    /**
+     * @param budget most bytes of chunks to have out at once
+     * @param chunksInFlight number of chunks there should be room for, to
+     * keep the workers and the writer busy
+     */
+    ChunkBudget(long budget, int chunksInFlight) {
+        this.budget = budget;
+        this.chunkBytes = Math.min(budget / Math.max(chunksInFlight, 1), MAX_CHUNK_BYTES);
+    }
+
+    /**
+     * @param rows number of lines
+     * @param fields number of fields per line
+     * @param csvBytes bytes of CSV the lines were read from
+     * @return estimated heap the lines take up from reading to writing
+     */
+    static long estimate(long rows, int fields, long csvBytes) {
+        return rows * (ROW_BYTES + (long)fields * FIELD_BYTES) + csvBytes * CSV_BYTE_BYTES;
+    }
+
+    /**
+     * @return size to cut a chunk to, in bytes of CSV, counting each line
+     * as getLineCsvBytes() more than its length; a chunk always has at
+     * least one line
+     */
+    long getChunkCsvBytes() {
+        return Math.max(chunkBytes / CSV_BYTE_BYTES, 1L);
+    }
+
+    /**
+     * @param fields number of fields per line
+     * @return what a line costs over its length, in bytes of CSV
+     */
+    int getLineCsvBytes(int fields) {
+        return (ROW_BYTES + fields * FIELD_BYTES) / CSV_BYTE_BYTES;
+    }
+
+    /**
+     * @return size to cut a chunk to, as estimate()d
+     */
+    long getChunkBytes() {
+        return chunkBytes;
+    }
+
+    /**
+     * @return a share of the budget for one reader
+     */
+    Account open() {
+        return new Account();
+    }
+
+    long getBudget() {
+        return budget;
+    }
+
+    synchronized long getPeak() {
+        return peak;
+    }
+
+    synchronized double getWaitSeconds() {
+        return waitNanos / 1e9;
+    }
+
+    synchronized long getChunks() {
+        return chunks;
+    }
+
+    synchronized double getMeanRows() {
+        return (chunks == 0L) ? 0.0 : (double)rows / chunks;
+    }
+
+    synchronized int getMaxRows() {
+        return maxRows;
+    }
+
+    synchronized double getMeanBytes() {
+        return (chunks == 0L) ? 0.0 : (double)bytes / chunks;
+    }
+
+    synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return a line for the run summary
+     */
+    synchronized String getStats() {
+        return String.format("Parsed %d chunk(s) of %.0f line(s) (%.1f MB) on average, %d line(s) (%.1f MB)"
+                             + " at most; peak %.1f MB of the %.1f MB memory budget in use;"
+                             + " reading waited %.2f s for memory.",
+                             chunks, getMeanRows(), getMeanBytes() / (1024.0 * 1024.0),
+                             maxRows, maxBytes / (1024.0 * 1024.0),
+                             peak / (1024.0 * 1024.0), budget / (1024.0 * 1024.0), getWaitSeconds());
+    }
+
+    /**
+     * The chunks one reader has out.
+     */
+    class Account {
+        // Number of chunks out; guarded by the budget.
+        private int out = 0;
+
+        ChunkBudget getBudget() {
+            return ChunkBudget.this;
+        }
+
+        /**
+         * Take a chunk's size out of the budget, waiting for room if there
+         * isn't any, unless this reader has no chunks out.
+         * @param rows number of lines in the chunk
+         * @param size the chunk's size, as estimate()d
+         * @param timeoutMillis most time to wait
+         * @return whether the chunk was taken; false if the wait timed out
+         */
+        boolean acquire(int rows, long size, long timeoutMillis)
+            throws InterruptedException
+        {
+            synchronized (ChunkBudget.this) {
+                long start = System.nanoTime();
+                long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                try {
+                    while ((out > 0) && (used + size > budget)) {
+                        long left = deadline - System.nanoTime();
+                        if (left <= 0L) { return false; }
+                        TimeUnit.NANOSECONDS.timedWait(ChunkBudget.this, left);
+                    }
+                } finally {
+                    waitNanos += System.nanoTime() - start;
+                }
+                out++;
+                used += size;
+                peak = Math.max(peak, used);
+                chunks++;
+                ChunkBudget.this.rows += rows;
+                bytes += size;
+                maxRows = Math.max(maxRows, rows);
+                maxBytes = Math.max(maxBytes, size);
+                return true;
+            }
+        }
+
+        /**
+         * Put a chunk's size back in the budget, once it is written.
+         * @param size what acquire() took for it
+         */
+        void release(long size) {
+            synchronized (ChunkBudget.this) {
+                out--;
+                used -= size;
+                ChunkBudget.this.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,455 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * What an -incremental run wrote, chunk by chunk, so the next run can
+ * keep the output of the input that hasn't changed and convert just the
+ * rest.
+ *
+ * The input is cut into chunks of whole records where its content says
+ * (see CsvChunkReader.cutAtContent()), so an edit changes the chunks it
+ * is in and leaves the others cut as they were. For each chunk, the
+ * manifest has a SHA-256 of its bytes, after those of its file's header,
+ * where its lines are in the output, the skill index digest before it,
+ * and the changes it made to the skill index. A line's "MATHia New"
+ * skill depends on the lines before it, so a chunk's output is only
+ * reused if the chunk has the same bytes and the skill index has the
+ * same digest before it; its changes are then made to the index as if
+ * it had been converted.
+ *
+ * A manifest is only good for the output file it was written with,
+ * unchanged since, and for the same options: it has the output's length
+ * and modification time, and the options that change the lines.
+ */
+class ChunkManifest implements Closeable {
+
+    // File format: "PL2M", version, the options; per chunk, 1 and the
+    // chunk; then 0, the output's length and modification time, and a
+    // CRC32 of all of it. Strings are varint indices, the first use of
+    // each followed by its length and UTF-8 bytes.
+    private static final int MAGIC = 0x504c324d;
+    private static final int VERSION = 1;
+
+    private static final int HASH_BYTES = 32;
+
+    /**
+     * A chunk of input and the output made from it.
+     */
+    static final class Chunk {
+        final byte[] hash;
+        final int records;
+        // Lines it wrote, without the header.
+        final long rows;
+        final long outputStart;
+        final long outputLength;
+        // The skill index digest before the chunk, and the changes the
+        // chunk made to it: (section, problem, goal, skill) per change.
+        final long skillDigest;
+        final String[] skillChanges;
+
+        Chunk(byte[] hash, int records, long rows, long outputStart, long outputLength, long skillDigest,
+              String[] skillChanges)
+        {
+            this.hash = hash;
+            this.records = records;
+            this.rows = rows;
+            this.outputStart = outputStart;
+            this.outputLength = outputLength;
+            this.skillDigest = skillDigest;
+            this.skillChanges = skillChanges;
+        }
+
+        /**
+         * Make the chunk's changes to a skill index.
+         */
+        void redoSkillChanges(SkillIndex skillIndex) {
+            for (int c = 0; c < skillChanges.length; c += 4) {
+                skillIndex.put(skillChanges[c], skillChanges[c + 1], skillChanges[c + 2], skillChanges[c + 3]);
+            }
+        }
+    }
+
+    private final File output;
+    private final FileChannel channel;
+    private final Map<ByteBuffer, List<Chunk>> chunks = new HashMap<ByteBuffer, List<Chunk>>();
+    private final int count;
+    // Cleared once the skill index is no longer what it was in the last run.
+    private volatile boolean reusing = true;
+
+    private ChunkManifest(File output, List<Chunk> read)
+        throws IOException
+    {
+        this.output = output;
+        this.count = read.size();
+        for (Chunk c : read) {
+            chunks.computeIfAbsent(ByteBuffer.wrap(c.hash), h -> new ArrayList<Chunk>(1)).add(c);
+        }
+        this.channel = FileChannel.open(output.toPath(), StandardOpenOption.READ);
+    }
+
+    /**
+     * Read a manifest written by Writer, and open its output file to
+     * copy from.
+     * @param file the manifest
+     * @param options the options of this run, as from Writer
+     * @param output the output file
+     * @return the manifest
+     * @throws IOException if it can't be read, or isn't for this output and these options
+     */
+    static ChunkManifest load(File file, String options, File output)
+        throws IOException
+    {
+        List<Chunk> read = new ArrayList<Chunk>();
+        long outputLength;
+        long outputModified;
+        String written;
+        long maxLength = file.length();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            CRC32 crc = new CRC32();
+            DataInputStream data = new DataInputStream(new CheckedInputStream(in, crc));
+            String source = "Manifest " + file;
+            if (data.readInt() != MAGIC) {
+                throw new IOException(source + " is corrupt: not in manifest format.");
+            }
+            int version = data.readInt();
+            if (version != VERSION) {
+                throw new IOException(source + " has version " + version + "; expected " + VERSION + ".");
+            }
+            written = data.readUTF();
+
+            List<String> strings = new ArrayList<String>();
+            while (data.readUnsignedByte() == 1) {
+                byte[] hash = new byte[HASH_BYTES];
+                data.readFully(hash);
+                int records = SkillIndex.readVarInt(data, source);
+                long rows = data.readLong();
+                long outputStart = data.readLong();
+                long length = data.readLong();
+                long skillDigest = data.readLong();
+                int changes = SkillIndex.readVarInt(data, source);
+                // Every change takes at least four bytes.
+                if ((changes < 0) || (changes > maxLength / 4)) {
+                    throw new IOException(source + " is corrupt: bad count.");
+                }
+                String[] skillChanges = new String[changes * 4];
+                for (int c = 0; c < skillChanges.length; c++) {
+                    skillChanges[c] = readString(data, strings, maxLength, source);
+                }
+                read.add(new Chunk(hash, records, rows, outputStart, length, skillDigest, skillChanges));
+            }
+            outputLength = data.readLong();
+            outputModified = data.readLong();
+
+            long expected = crc.getValue();
+            if ((data.readInt() & 0xffffffffL) != expected) {
+                throw new IOException(source + " is corrupt: checksum mismatch.");
+            }
+        } catch (EOFException e) {
+            throw new IOException("Manifest " + file + " is truncated.");
+        }
+
+        if (!written.equals(options)) {
+            throw new IOException("Manifest " + file + " is for other options (" + written + ").");
+        }
+        if ((output.length() != outputLength) || (output.lastModified() != outputModified)) {
+            throw new IOException("Output file " + output + " has changed since manifest " + file + " was written.");
+        }
+        return new ChunkManifest(output, read);
+    }
+
+    private static String readString(DataInputStream in, List<String> strings, long maxLength, String source)
+        throws IOException
+    {
+        int index = SkillIndex.readVarInt(in, source);
+        if ((index >= 0) && (index < strings.size())) { return strings.get(index); }
+        int length = SkillIndex.readVarInt(in, source);
+        if ((index != strings.size()) || (length < 0) || (length > maxLength)) {
+            throw new IOException(source + " is corrupt: bad string.");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        String s = new String(bytes, StandardCharsets.UTF_8);
+        strings.add(s);
+        return s;
+    }
+
+    /**
+     * @param prefix bytes to hash first, e.g. the hash of the file's header
+     * @param chunk a chunk of input
+     * @return the SHA-256 of the prefix and the chunk's bytes
+     */
+    static byte[] hash(byte[] prefix, CsvChunkReader.Chunk chunk)
+        throws IOException
+    {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-256.
+            throw new IllegalStateException(e);
+        }
+        digest.update(prefix);
+        chunk.digest(digest);
+        return digest.digest();
+    }
+
+    /**
+     * @return number of chunks in the manifest
+     */
+    int getChunks() {
+        return count;
+    }
+
+    /**
+     * @param hash the hash of a chunk of input, from hash()
+     * @return the last run's chunks with that hash, null if none, or if
+     *         stopReusing() has been called
+     */
+    List<Chunk> find(byte[] hash) {
+        return reusing ? chunks.get(ByteBuffer.wrap(hash)) : null;
+    }
+
+    /**
+     * @param found chunks from find()
+     * @param skillDigest the skill index digest now
+     * @return the one whose output can be reused, with the skill index as it is now; null if none
+     */
+    static Chunk match(List<Chunk> found, long skillDigest) {
+        for (Chunk c : found) {
+            if (c.skillDigest == skillDigest) { return c; }
+        }
+        return null;
+    }
+
+    /**
+     * Stop finding chunks to reuse, as the skill index is no longer what
+     * it was in the last run, so neither is the output of what follows.
+     */
+    void stopReusing() {
+        reusing = false;
+    }
+
+    /**
+     * Copy a chunk's output from the last run's output file.
+     * @param chunk the chunk
+     * @param sink where to copy it to
+     */
+    void copy(Chunk chunk, OutputSink sink)
+        throws IOException
+    {
+        try {
+            sink.write(channel, chunk.outputStart, chunk.outputLength);
+        } catch (IOException e) {
+            throw new IOException("Failed to copy output from " + output + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        channel.close();
+    }
+
+    /**
+     * Writes the output of an -incremental run, and its manifest. Both are
+     * written to temporary files, which replace the output file and the
+     * manifest once commit() has been called.
+     */
+    static class Writer implements Closeable {
+        private final File file;
+        private final File tmp;
+        private final File output;
+        private final File tmpOutput;
+        private final FileOutputStream fos;
+        private final CRC32 crc = new CRC32();
+        private final DataOutputStream out;
+        private final Map<String, Integer> strings = new HashMap<String, Integer>();
+        private int chunks = 0;
+        private int reused = 0;
+        private boolean committed = false;
+
+        /**
+         * @param file the manifest
+         * @param options what the lines of the output depend on besides the input
+         * @param output the output file
+         */
+        Writer(File file, String options, File output)
+            throws IOException
+        {
+            this.file = file;
+            this.tmp = new File(file.getPath() + ".tmp");
+            this.output = output;
+            this.tmpOutput = new File(output.getPath() + ".tmp");
+            this.fos = new FileOutputStream(tmp);
+            this.out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(fos), crc));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(options);
+        }
+
+        /**
+         * @return where to write the output, until commit()
+         */
+        File getOutput() {
+            return tmpOutput;
+        }
+
+        /**
+         * Add a chunk that was converted.
+         * @param hash its hash, from hash()
+         * @param records number of records in it
+         * @param rows lines it wrote
+         * @param outputStart where its lines start in the output
+         * @param outputLength bytes of them
+         * @param skillDigest the skill index digest before it
+         * @param skillChanges the changes it made to the skill index, from SkillIndex.takeChanges()
+         */
+        void add(byte[] hash, int records, long rows, long outputStart, long outputLength, long skillDigest,
+                 Map<SkillIndex.Tuple, String> skillChanges)
+            throws IOException
+        {
+            writeChunk(hash, records, rows, outputStart, outputLength, skillDigest, skillChanges.size());
+            for (Map.Entry<SkillIndex.Tuple, String> e : skillChanges.entrySet()) {
+                SkillIndex.Tuple t = e.getKey();
+                writeString(t.section);
+                writeString(t.problem);
+                writeString(t.goal);
+                writeString(e.getValue());
+            }
+        }
+
+        /**
+         * Add a chunk whose output was copied from the last run's.
+         * @param chunk the last run's chunk
+         * @param outputStart where its lines start in this output
+         */
+        void add(Chunk chunk, long outputStart)
+            throws IOException
+        {
+            writeChunk(chunk.hash, chunk.records, chunk.rows, outputStart, chunk.outputLength, chunk.skillDigest,
+                       chunk.skillChanges.length / 4);
+            for (String s : chunk.skillChanges) {
+                writeString(s);
+            }
+            reused++;
+        }
+
+        private void writeChunk(byte[] hash, int records, long rows, long outputStart, long outputLength,
+                                long skillDigest, int changes)
+            throws IOException
+        {
+            out.writeByte(1);
+            out.write(hash);
+            SkillIndex.writeVarInt(out, records);
+            out.writeLong(rows);
+            out.writeLong(outputStart);
+            out.writeLong(outputLength);
+            out.writeLong(skillDigest);
+            SkillIndex.writeVarInt(out, changes);
+            chunks++;
+        }
+
+        private void writeString(String s)
+            throws IOException
+        {
+            Integer index = strings.get(s);
+            if (index != null) {
+                SkillIndex.writeVarInt(out, index);
+                return;
+            }
+            SkillIndex.writeVarInt(out, strings.size());
+            strings.put(s, strings.size());
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            SkillIndex.writeVarInt(out, bytes.length);
+            out.write(bytes);
+        }
+
+        /**
+         * @return number of chunks added
+         */
+        int getChunks() {
+            return chunks;
+        }
+
+        /**
+         * @return number of chunks added whose output was copied from the last run's
+         */
+        int getReused() {
+            return reused;
+        }
+
+        /**
+         * Put the output, which must be closed, in place of the output file,
+         * then finish the manifest and put it in place. A manifest left
+         * from before is then for a different output, so won't be used.
+         */
+        void commit()
+            throws IOException
+        {
+            move(tmpOutput, output);
+            out.writeByte(0);
+            out.writeLong(output.length());
+            out.writeLong(output.lastModified());
+            out.flush();
+            out.writeInt((int)crc.getValue());
+            out.flush();
+            fos.getFD().sync();
+            out.close();
+            move(tmp, file);
+            committed = true;
+        }
+
+        private static void move(File from, File to)
+            throws IOException
+        {
+            try {
+                Files.move(from.toPath(), to.toPath(),
+                           StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        /**
+         * Close the manifest, deleting it and the output if they weren't committed.
+         */
+        @Override
+        public void close()
+            throws IOException
+        {
+            if (committed) { return; }
+            try {
+                out.close();
+            } finally {
+                tmp.delete();
+                tmpOutput.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,666 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * A columnar binary copy of the parsed input, so the output can be made
+ * again (with other options, or after a fix) without tokenizing the CSV.
+ *
+ * The file has a header naming the input files it was made from and its
+ * columns, then blocks of rows, then a footer. Each block has a segment
+ * per column, with its length and a CRC32, so a reader can skip the
+ * columns it doesn't need. Values are typed: ints and longs are varints
+ * (longs as deltas, for timestamps), doubles are 8 bytes, and
+ * low-cardinality strings are coded against a dictionary local to the
+ * block. All of them can be null.
+ *
+ * Blocks are encoded by whichever thread has the rows (see Block.Builder)
+ * and written in order by one thread.
+ */
+class ColumnCache {
+
+    // File format: "PL2K", version, the inputs, the columns, a CRC32 of
+    // the header; blocks; -1, rows, blocks, "PL2E".
+    private static final int MAGIC = 0x504c324b;
+    private static final int VERSION = 1;
+    private static final int FOOTER_MAGIC = 0x504c3245;
+    private static final int FOOTER_SIZE = 4 + 8 + 8 + 4;
+
+    enum Type { INT, LONG, DOUBLE, STRING, DICTIONARY }
+
+    /**
+     * A column: its name and the type of its values.
+     */
+    static final class Column {
+        final String name;
+        final Type type;
+
+        Column(String name, Type type) {
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    private ColumnCache() {}
+
+    /**
+     * Writes a cache file. It is written to a temporary file, which only
+     * replaces the cache file once commit() has been called.
+     */
+    static class Writer implements Closeable {
+        private final File file;
+        private final File tmp;
+        private final FileOutputStream fos;
+        private final DataOutputStream out;
+        private long rows = 0L;
+        private long blocks = 0L;
+        private boolean committed = false;
+
+        /**
+         * @param file the cache file
+         * @param inputs the input files the cache is made from
+         * @param columns the columns
+         */
+        Writer(File file, List<File> inputs, List<Column> columns)
+            throws IOException
+        {
+            this.file = file;
+            this.tmp = new File(file.getPath() + ".tmp");
+            this.fos = new FileOutputStream(tmp);
+            this.out = new DataOutputStream(new BufferedOutputStream(fos, 1024 * 1024));
+
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(header);
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeInt(inputs.size());
+            for (File f : inputs) {
+                data.writeUTF(f.getAbsolutePath());
+                data.writeLong(f.length());
+                data.writeLong(f.lastModified());
+            }
+            data.writeInt(columns.size());
+            for (Column c : columns) {
+                data.writeUTF(c.name);
+                data.writeByte(c.type.ordinal());
+            }
+            out.write(header.toByteArray());
+            out.writeInt(crc(header.toByteArray(), 0, header.size()));
+        }
+
+        /**
+         * @param block a block from Block.Builder.toBytes()
+         */
+        void write(byte[] block)
+            throws IOException
+        {
+            out.write(block);
+            rows += ByteBuffer.wrap(block).getInt();
+            blocks++;
+        }
+
+        /**
+         * Finish the file and put it in place of the cache file.
+         */
+        void commit()
+            throws IOException
+        {
+            out.writeInt(-1);
+            out.writeLong(rows);
+            out.writeLong(blocks);
+            out.writeInt(FOOTER_MAGIC);
+            out.flush();
+            fos.getFD().sync();
+            out.close();
+            try {
+                Files.move(tmp.toPath(), file.toPath(),
+                           StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            committed = true;
+        }
+
+        /**
+         * Close the file, deleting it if it wasn't committed.
+         */
+        @Override
+        public void close()
+            throws IOException
+        {
+            if (committed) { return; }
+            try {
+                out.close();
+            } finally {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Reads a cache file, one block at a time, reading only the wanted columns.
+     */
+    static class Reader implements Closeable {
+        private final File file;
+        private final FileChannel channel;
+        private final List<Column> columns;
+        private final boolean[] wanted;
+        private final List<String> inputPaths = new ArrayList<String>();
+        private final List<Long> inputSizes = new ArrayList<Long>();
+        private final List<Long> inputModified = new ArrayList<Long>();
+        private final long length;
+        private final long rows;
+        private final ByteBuffer head = ByteBuffer.allocate(8);
+        private long position;
+
+        /**
+         * Open a cache file and check its header and footer.
+         * @param file the cache file
+         * @param expected the columns the cache should have
+         * @param wanted names of the columns to read
+         */
+        Reader(File file, List<Column> expected, Set<String> wanted)
+            throws IOException
+        {
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                length = channel.size();
+                int headerLength = (int)Math.min(length, 1024 * 1024);
+                ByteBuffer header = ByteBuffer.allocate(headerLength);
+                readFully(header, 0L);
+                DataInputStream data = new DataInputStream(new ByteArrayInputStream(header.array()));
+                if (data.readInt() != MAGIC) {
+                    throw new IOException("Cache " + file + " is corrupt: not in cache format.");
+                }
+                int version = data.readInt();
+                if (version != VERSION) {
+                    throw new IOException("Cache " + file + " has version " + version + "; expected " + VERSION + ".");
+                }
+                int inputCount = data.readInt();
+                if ((inputCount < 0) || (inputCount > headerLength)) {
+                    throw new IOException("Cache " + file + " is corrupt: bad count.");
+                }
+                for (int i = 0; i < inputCount; i++) {
+                    inputPaths.add(data.readUTF());
+                    inputSizes.add(data.readLong());
+                    inputModified.add(data.readLong());
+                }
+                int columnCount = data.readInt();
+                if (columnCount != expected.size()) {
+                    throw new IOException("Cache " + file + " has different columns; expected " + expected.size()
+                                          + ", found " + columnCount + ".");
+                }
+                for (Column c : expected) {
+                    String name = data.readUTF();
+                    int type = data.readUnsignedByte();
+                    if (!name.equals(c.name) || (type != c.type.ordinal())) {
+                        throw new IOException("Cache " + file + " has different columns; expected " + c.name
+                                              + ", found " + name + ".");
+                    }
+                }
+                int headerEnd = headerLength - data.available();
+                if (data.readInt() != crc(header.array(), 0, headerEnd)) {
+                    throw new IOException("Cache " + file + " is corrupt: checksum mismatch.");
+                }
+                position = headerEnd + 4;
+
+                if (length < position + FOOTER_SIZE) {
+                    throw new IOException("Cache " + file + " is truncated.");
+                }
+                ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+                readFully(footer, length - FOOTER_SIZE);
+                footer.flip();
+                if ((footer.getInt() != -1) || (footer.getInt(FOOTER_SIZE - 4) != FOOTER_MAGIC)) {
+                    throw new IOException("Cache " + file + " is truncated.");
+                }
+                rows = footer.getLong();
+            } catch (EOFException e) {
+                channel.close();
+                throw new IOException("Cache " + file + " is truncated.");
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+
+            this.columns = expected;
+            this.wanted = new boolean[expected.size()];
+            for (int i = 0; i < expected.size(); i++) {
+                this.wanted[i] = wanted.contains(expected.get(i).name);
+            }
+        }
+
+        /**
+         * @param inputs the input files
+         * @return whether the cache was made from these inputs, unchanged since
+         */
+        boolean matches(List<File> inputs) {
+            if (inputs.size() != inputPaths.size()) { return false; }
+            for (int i = 0; i < inputs.size(); i++) {
+                File f = inputs.get(i);
+                if (!inputPaths.get(i).equals(f.getAbsolutePath())
+                    || (inputSizes.get(i) != f.length())
+                    || (inputModified.get(i) != f.lastModified())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return number of rows in the cache
+         */
+        long getRows() {
+            return rows;
+        }
+
+        /**
+         * @return the next block, with segments for the wanted columns
+         *         only, or null at the end
+         */
+        Block next()
+            throws IOException
+        {
+            head.clear().limit(4);
+            readFully(head, position);
+            int rowCount = head.getInt(0);
+            if (rowCount < 0) { return null; }
+            position += 4;
+
+            Block block = new Block(file, columns, rowCount);
+            for (int i = 0; i < columns.size(); i++) {
+                head.clear();
+                readFully(head, position);
+                int length = head.getInt(0);
+                if ((length < 0) || (position + 8 + length > this.length - FOOTER_SIZE)) {
+                    throw new IOException("Cache " + file + " is corrupt: bad segment length.");
+                }
+                position += 8;
+                if (wanted[i]) {
+                    ByteBuffer segment = ByteBuffer.allocate(length);
+                    readFully(segment, position);
+                    block.setSegment(i, segment.array(), head.getInt(4));
+                }
+                block.bytes += 8 + length;
+                position += length;
+            }
+            return block;
+        }
+
+        private void readFully(ByteBuffer buffer, long at)
+            throws IOException
+        {
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, at);
+                if (n < 0) { throw new EOFException(); }
+                at += n;
+            }
+        }
+
+        @Override
+        public void close()
+            throws IOException
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * A block of rows read from a cache. Its segments are checked and
+     * decoded when first asked for, by whichever thread does that.
+     */
+    static class Block {
+        private final File file;
+        private final List<Column> columns;
+        final int rows;
+        // Bytes the block takes in the file, skipped columns included.
+        long bytes = 4L;
+
+        private final byte[][] segments;
+        private final int[] crcs;
+        private final Object[] values;
+
+        Block(File file, List<Column> columns, int rows) {
+            this.file = file;
+            this.columns = columns;
+            this.rows = rows;
+            this.segments = new byte[columns.size()][];
+            this.crcs = new int[columns.size()];
+            this.values = new Object[columns.size()];
+        }
+
+        private void setSegment(int column, byte[] segment, int crc) {
+            segments[column] = segment;
+            crcs[column] = crc;
+        }
+
+        /**
+         * @return the values of an INT column; 0 for null
+         */
+        int[] ints(int column)
+            throws IOException
+        {
+            return (int[])decode(column, Type.INT);
+        }
+
+        /**
+         * @return the values of a LONG column; 0 for null
+         */
+        long[] longs(int column)
+            throws IOException
+        {
+            return (long[])decode(column, Type.LONG);
+        }
+
+        Double[] doubles(int column)
+            throws IOException
+        {
+            return (Double[])decode(column, Type.DOUBLE);
+        }
+
+        /**
+         * @return the values of a STRING or DICTIONARY column; values from
+         *         the same dictionary entry are the same String
+         */
+        String[] strings(int column)
+            throws IOException
+        {
+            Type type = columns.get(column).type;
+            return (String[])decode(column, (type == Type.DICTIONARY) ? Type.DICTIONARY : Type.STRING);
+        }
+
+        private Object decode(int column, Type type)
+            throws IOException
+        {
+            if (values[column] != null) { return values[column]; }
+            Column c = columns.get(column);
+            byte[] segment = segments[column];
+            if (c.type != type) { throw new IllegalArgumentException(c.name + " is a " + c.type + " column"); }
+            if (segment == null) { throw new IllegalStateException(c.name + " was not read from the cache"); }
+            if (crc(segment, 0, segment.length) != crcs[column]) {
+                throw new IOException("Cache " + file + " is corrupt: checksum mismatch in column " + c.name
+                                      + "; delete it to rebuild it.");
+            }
+
+            Segment in = new Segment(segment);
+            Object result;
+            try {
+                switch (type) {
+                case INT: {
+                    int[] v = new int[rows];
+                    for (int i = 0; i < rows; i++) { v[i] = (int)in.readZigZag(); }
+                    result = v;
+                    break;
+                }
+                case LONG: {
+                    long[] v = new long[rows];
+                    long previous = 0L;
+                    for (int i = 0; i < rows; i++) { v[i] = previous += in.readZigZag(); }
+                    result = v;
+                    break;
+                }
+                case DOUBLE: {
+                    Double[] v = new Double[rows];
+                    for (int i = 0; i < rows; i++) {
+                        if (in.readByte() != 0) { v[i] = Double.longBitsToDouble(in.readLong()); }
+                    }
+                    result = v;
+                    break;
+                }
+                case STRING: {
+                    String[] v = new String[rows];
+                    for (int i = 0; i < rows; i++) { v[i] = in.readString(); }
+                    result = v;
+                    break;
+                }
+                default: {
+                    String[] v = new String[rows];
+                    List<String> dictionary = new ArrayList<String>();
+                    for (int i = 0; i < rows; i++) {
+                        int index = (int)in.readVarLong();
+                        if (index == dictionary.size() + 1) {
+                            dictionary.add(in.readString());
+                        } else if (index > dictionary.size() + 1) {
+                            throw new IOException("Cache " + file + " is corrupt: bad dictionary index in column "
+                                                  + c.name + ".");
+                        }
+                        v[i] = (index == 0) ? null : dictionary.get(index - 1);
+                    }
+                    result = v;
+                    break;
+                }
+                }
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Cache " + file + " is corrupt: short segment in column " + c.name + ".");
+            }
+            segments[column] = null;
+            values[column] = result;
+            return result;
+        }
+
+        /**
+         * Encodes a block of rows: set the values of a row, end it, and
+         * so on, then get the block with toBytes(). Values not set are null.
+         */
+        static class Builder {
+            private final List<Column> columns;
+            private final Segment[] segments;
+            private final boolean[] set;
+            // Per LONG column, the last value, which the next is written as a delta from.
+            private final long[] previous;
+            private final List<Map<String, Integer>> dictionaries;
+            private int rows = 0;
+
+            Builder(List<Column> columns) {
+                this.columns = columns;
+                this.segments = new Segment[columns.size()];
+                this.set = new boolean[columns.size()];
+                this.previous = new long[columns.size()];
+                this.dictionaries = new ArrayList<Map<String, Integer>>(columns.size());
+                for (int i = 0; i < columns.size(); i++) {
+                    segments[i] = new Segment(new byte[256]);
+                    dictionaries.add((columns.get(i).type == Type.DICTIONARY)
+                                     ? new HashMap<String, Integer>() : null);
+                }
+            }
+
+            void setInt(int column, int value) {
+                check(column, Type.INT);
+                segments[column].writeZigZag(value);
+                set[column] = true;
+            }
+
+            void setLong(int column, long value) {
+                check(column, Type.LONG);
+                segments[column].writeZigZag(value - previous[column]);
+                previous[column] = value;
+                set[column] = true;
+            }
+
+            void setDouble(int column, Double value) {
+                check(column, Type.DOUBLE);
+                Segment s = segments[column];
+                if (value == null) {
+                    s.writeByte(0);
+                } else {
+                    s.writeByte(1);
+                    s.writeLong(Double.doubleToRawLongBits(value));
+                }
+                set[column] = true;
+            }
+
+            void setString(int column, String value) {
+                Type type = columns.get(column).type;
+                if ((type != Type.STRING) && (type != Type.DICTIONARY)) { check(column, Type.STRING); }
+                Segment s = segments[column];
+                if (type == Type.STRING) {
+                    s.writeString(value);
+                } else if (value == null) {
+                    s.writeVarLong(0);
+                } else {
+                    Map<String, Integer> dictionary = dictionaries.get(column);
+                    Integer index = dictionary.get(value);
+                    if (index != null) {
+                        s.writeVarLong(index);
+                    } else {
+                        // A new entry: the next index, then the value.
+                        index = dictionary.size() + 1;
+                        dictionary.put(value, index);
+                        s.writeVarLong(index);
+                        s.writeString(value);
+                    }
+                }
+                set[column] = true;
+            }
+
+            /**
+             * End the current row, making any values not set null.
+             */
+            void endRow() {
+                for (int i = 0; i < columns.size(); i++) {
+                    if (!set[i]) {
+                        switch (columns.get(i).type) {
+                        case INT: segments[i].writeZigZag(0); break;
+                        case LONG: segments[i].writeZigZag(0); break;
+                        case DOUBLE: segments[i].writeByte(0); break;
+                        case STRING: segments[i].writeString(null); break;
+                        default: segments[i].writeVarLong(0); break;
+                        }
+                    }
+                    set[i] = false;
+                }
+                rows++;
+            }
+
+            /**
+             * @return the block, as Writer.write() takes it
+             */
+            byte[] toBytes() {
+                int length = 4;
+                for (Segment s : segments) { length += 8 + s.position; }
+                ByteBuffer result = ByteBuffer.allocate(length);
+                result.putInt(rows);
+                for (Segment s : segments) {
+                    result.putInt(s.position);
+                    result.putInt(crc(s.bytes, 0, s.position));
+                    result.put(s.bytes, 0, s.position);
+                }
+                return result.array();
+            }
+
+            private void check(int column, Type type) {
+                Column c = columns.get(column);
+                if (c.type != type) { throw new IllegalArgumentException(c.name + " is a " + c.type + " column"); }
+            }
+        }
+    }
+
+    private static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int)crc.getValue();
+    }
+
+    /**
+     * A growable byte array with varint, long and string reads and writes.
+     */
+    private static final class Segment {
+        byte[] bytes;
+        int position = 0;
+
+        Segment(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        void writeByte(int b) {
+            if (position == bytes.length) { bytes = Arrays.copyOf(bytes, bytes.length * 2); }
+            bytes[position++] = (byte)b;
+        }
+
+        void writeVarLong(long value) {
+            while ((value & ~0x7fL) != 0) {
+                writeByte((int)(value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            writeByte((int)value);
+        }
+
+        void writeZigZag(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        void writeLong(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) { writeByte((int)(value >>> shift)); }
+        }
+
+        // Length + 1, then the UTF-8 bytes; 0 for null.
+        void writeString(String value) {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(utf8.length + 1L);
+            if (position + utf8.length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, position + utf8.length));
+            }
+            System.arraycopy(utf8, 0, bytes, position, utf8.length);
+            position += utf8.length;
+        }
+
+        int readByte() {
+            return bytes[position++] & 0xff;
+        }
+
+        long readVarLong() {
+            long value = 0L;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long)(b & 0x7f) << shift;
+                if ((b & 0x80) == 0) { return value; }
+            }
+            throw new ArrayIndexOutOfBoundsException("varint too long");
+        }
+
+        long readZigZag() {
+            long v = readVarLong();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        long readLong() {
+            long value = 0L;
+            for (int i = 0; i < 8; i++) { value = (value << 8) | readByte(); }
+            return value;
+        }
+
+        String readString() {
+            long length = readVarLong() - 1;
+            if (length < 0) { return null; }
+            if (length > bytes.length - position) { throw new ArrayIndexOutOfBoundsException("string too long"); }
+            String result = new String(bytes, position, (int)length, StandardCharsets.UTF_8);
+            position += (int)length;
+            return result;
+        }
+    }
+}
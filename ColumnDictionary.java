@@ -0,0 +1,111 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Maps the distinct values of one input column to small int codes,
+ * keeping one canonical String and its UTF-8 bytes per value. Meant
+ * for columns with few distinct values compared to the number of rows.
+ *
+ * Safe to use from several threads. To bound memory, the dictionary
+ * stops taking new values once it is full; code() then returns NO_CODE
+ * and the caller has to keep the String itself.
+ */
+class ColumnDictionary {
+
+    /** Returned by code() for values that didn't fit in the dictionary. */
+    static final int NO_CODE = -1;
+
+    private final String name;
+    private final int maxEntries;
+    private final long maxBytes;
+
+    private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<String, Integer>();
+
+    // Indexed by code. Replaced, never changed in place, when they grow;
+    // written under the lock and read without it.
+    private volatile String[] values = new String[64];
+    private volatile byte[][] bytes = new byte[64][];
+
+    private int size = 0;
+    private long totalBytes = 0L;
+    private volatile boolean full = false;
+    private final AtomicLong notCoded = new AtomicLong();
+
+    /**
+     * @param name name of the column, for the stats
+     * @param maxEntries most distinct values to code
+     * @param maxBytes most bytes of values to keep
+     */
+    ColumnDictionary(String name, int maxEntries, long maxBytes) {
+        this.name = name;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Get the code for a value, adding it if there is room.
+     * @param value the value, not null
+     * @return the code, or NO_CODE if the value isn't in the dictionary and it is full
+     */
+    int code(String value) {
+        Integer code = codes.get(value);
+        if (code != null) { return code.intValue(); }
+
+        if (!full) {
+            synchronized (this) {
+                code = codes.get(value);
+                if (code != null) { return code.intValue(); }
+
+                byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+                if ((size < maxEntries) && (totalBytes + encoded.length <= maxBytes)) {
+                    if (size == values.length) {
+                        bytes = Arrays.copyOf(bytes, size * 2);
+                        values = Arrays.copyOf(values, size * 2);
+                    }
+                    bytes[size] = encoded;
+                    values[size] = value;
+                    totalBytes += encoded.length;
+                    // Published last, so anyone who gets the code can see the value.
+                    codes.put(value, size);
+                    return size++;
+                }
+                full = true;
+            }
+        }
+
+        notCoded.incrementAndGet();
+        return NO_CODE;
+    }
+
+    /**
+     * @param code a code returned by code()
+     * @return the canonical String for the code
+     */
+    String value(int code) {
+        return values[code];
+    }
+
+    /**
+     * @param code a code returned by code()
+     * @return the value as UTF-8; not to be modified
+     */
+    byte[] bytes(int code) {
+        return bytes[code];
+    }
+
+    /**
+     * @return a line for the run summary: distinct values, size and overflow
+     */
+    synchronized String getStats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Dictionary '").append(name).append("': ");
+        sb.append(size).append(" distinct value(s), ");
+        sb.append(totalBytes).append(" byte(s)");
+        if (full) {
+            sb.append(", full; ").append(notCoded.get()).append(" value(s) not coded");
+        }
+        return sb.toString();
+    }
+}
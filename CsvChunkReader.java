@@ -0,0 +1,584 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads a UTF-8 CSV file in chunks of whole records.
+ *
+ * The file is cut into chunks by a quick scan that only tracks quoting,
+ * and each chunk can then be tokenized on its own thread. Fields come
+ * out exactly as from the OpenCSV CSVReader that ParseMATHia used to
+ * read with: ',' separator, '"' quotes, '\\' escape, leading white space
+ * ignored, and line breaks inside quotes read as "\n". That includes
+ * OpenCSV's quirks, e.g. a quote in the middle of an unquoted field is
+ * kept but still starts a quoted section. Fields that aren't wanted can
+ * be skipped: they are scanned for quotes and line breaks, but not
+ * decoded, and come out as null.
+ *
+ * Chunks can also be cut where the content says, rather than by size
+ * alone, so that a change to part of a file moves only the chunks
+ * around it: see cutAtContent().
+ *
+ * Subclasses supply the bytes: MappedCsvReader maps a plain file and
+ * GzipCsvReader decompresses a gzip file, or reads a stream, as it goes.
+ */
+abstract class CsvChunkReader implements Closeable {
+
+    private static final int SEPARATOR = ',';
+    private static final int QUOTE = '"';
+    private static final int ESCAPE = '\\';
+
+    // Bytes that can end a field or record or change quoting; the scan for
+    // record boundaries passes over runs of other bytes.
+    private static final boolean[] SPECIAL = new boolean[256];
+    static {
+        for (int b : new int[] { SEPARATOR, QUOTE, ESCAPE, '\n', '\r' }) { SPECIAL[b] = true; }
+    }
+
+    private static final ThreadLocal<Tokenizer> TOKENIZER = ThreadLocal.withInitial(Tokenizer::new);
+
+    protected final File file;
+
+    // Start of the next chunk; the bytes before it are no longer needed.
+    protected long position = 0L;
+    private long recordsRead = 0L;
+    private long linesRead = 0L;
+
+    // For cutAtContent(): the fewest bytes to put in a chunk, and the share
+    // of record hashes per byte of record that end one, out of 2^32; 0 if
+    // chunks are cut by size.
+    private long minCutBytes = 0L;
+    private long cutScale = 0L;
+
+    /**
+     * @param file the CSV file
+     */
+    protected CsvChunkReader(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Open a CSV file, decompressing it if it is gzipped.
+     * @param file the CSV file
+     * @return the reader
+     */
+    static CsvChunkReader open(File file)
+        throws IOException
+    {
+        return InputFiles.isGzip(file) ? new GzipCsvReader(file) : new MappedCsvReader(file);
+    }
+
+    /**
+     * Read CSV from a stream, decompressing it if it is gzipped.
+     * @param in the stream, which is closed with the reader
+     * @param name what to call the input in error messages
+     * @return the reader
+     */
+    static CsvChunkReader open(InputStream in, File name)
+        throws IOException
+    {
+        return new GzipCsvReader(name, InputFiles.open(in, name.toString(), GzipCsvReader.READ_SIZE));
+    }
+
+    /**
+     * @return number of lines read so far, counting each line of a multi-line record
+     */
+    long getLinesRead() {
+        return linesRead;
+    }
+
+    /**
+     * Carry on reading from a record boundary found by an earlier run.
+     * @param position byte offset of the next record
+     * @param records number of records before it
+     * @param lines number of lines before it
+     */
+    void seek(long position, long records, long lines)
+        throws IOException
+    {
+        if ((position < 0) || ((position > 0) && !has(position - 1))) {
+            throw new IOException("Can't continue reading " + file + " at byte " + position
+                                  + "; it isn't that long.");
+        }
+        this.position = position;
+        this.recordsRead = records;
+        this.linesRead = lines;
+    }
+
+    /**
+     * End chunks after a record whose hash, of all of its bytes, falls in
+     * a share of the hash values that goes up with its length, so that a
+     * chunk ends after meanBytes of records on average, wherever it
+     * started. The records around an edit then end chunks as they did
+     * before it. The limits given to nextChunk() still hold, but they
+     * should be well over meanBytes, or chunks are cut where they were
+     * cut before a change rather than where the content says.
+     * @param minBytes the fewest bytes to put in a chunk, unless the file ends first
+     * @param meanBytes bytes a chunk should have past minBytes, on average
+     */
+    void cutAtContent(long minBytes, long meanBytes) {
+        this.minCutBytes = minBytes;
+        this.cutScale = Math.max((1L << 32) / Math.max(meanBytes, 1L), 1L);
+    }
+
+    /**
+     * Find the next chunk of records.
+     * @param maxRecords the most records to put in the chunk
+     * @return the chunk, or null at the end of the file
+     */
+    Chunk nextChunk(int maxRecords)
+        throws IOException
+    {
+        return nextChunk(maxRecords, Long.MAX_VALUE, 0);
+    }
+
+    /**
+     * Find the next chunk of records, ending it at the first record that
+     * takes it to maxBytes or over.
+     * @param maxRecords the most records to put in the chunk
+     * @param maxBytes the most bytes to put in the chunk, unless its first record is longer
+     * @param recordBytes bytes to count each record as over its length
+     * @return the chunk, or null at the end of the file
+     */
+    Chunk nextChunk(int maxRecords, long maxBytes, int recordBytes)
+        throws IOException
+    {
+        if (!has(position)) { return null; }
+
+        long start = position;
+        long p = position;
+        long lineStart = position;
+        long recordStart = position;
+        int records = 0;
+        boolean inQuotes = false;
+        boolean inField = false;
+
+        while ((records < maxRecords)
+               && ((p - start + (long)records * recordBytes < maxBytes) || inQuotes || (p > lineStart))
+               && has(p)) {
+            int b = byteAt(p);
+
+            if ((b == '\n') || (b == '\r')) {
+                linesRead++;
+                p += ((b == '\r') && has(p + 1) && (byteAt(p + 1) == '\n')) ? 2 : 1;
+                lineStart = p;
+                if (!inQuotes) {
+                    // End of the record; otherwise the field goes on to the next line.
+                    inField = false;
+                    records++;
+                    if ((cutScale > 0L) && (p - start >= minCutBytes) && isCut(recordStart, p)) { break; }
+                    recordStart = p;
+                }
+                continue;
+            }
+
+            if (b == ESCAPE) {
+                int next = has(p + 1) ? byteAt(p + 1) : -1;
+                if ((inQuotes || inField) && ((next == QUOTE) || (next == ESCAPE))) { p++; }
+            } else if (b == QUOTE) {
+                int next = has(p + 1) ? byteAt(p + 1) : -1;
+                if ((inQuotes || inField) && (next == QUOTE)) {
+                    p++;
+                } else {
+                    inQuotes = !inQuotes;
+                }
+                inField = !inField;
+            } else if ((b == SEPARATOR) && !inQuotes) {
+                inField = false;
+            } else {
+                inField = true;
+                // The rest of a run of plain bytes changes nothing, and can't end the record.
+                p = skipPlain(p + 1);
+                continue;
+            }
+            p++;
+        }
+
+        if ((records < maxRecords) && !has(p)) {
+            // The last line has no line break, or a quoted field was never closed.
+            if (p > lineStart) { linesRead++; }
+            if (inQuotes) {
+                throw new IOException("Unterminated quoted field at end of " + file
+                                      + ", in record " + (recordsRead + records + 1));
+            }
+            if (p > lineStart) { records++; }
+        }
+
+        position = p;
+        if (records == 0) { return null; }
+
+        Chunk result = new Chunk(start, p, records, recordsRead, linesRead);
+        recordsRead += records;
+        found(result);
+        return result;
+    }
+
+    /**
+     * @return whether the record from..to, line break included, ends a chunk, for cutAtContent()
+     */
+    private boolean isCut(long from, long to)
+        throws IOException
+    {
+        long h = 0xcbf29ce484222325L;
+        for (long q = from; q < to; q++) { h = (h ^ byteAt(q)) * 0x100000001b3L; }
+        // Murmur3 finalizer, so the top bits depend on all of the record.
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (h >>> 32) < (to - from) * cutScale;
+    }
+
+    /**
+     * @param b a byte
+     * @return whether it can't end a field or record or change quoting
+     */
+    protected static boolean isPlain(int b) {
+        return !SPECIAL[b & 0xff];
+    }
+
+    /**
+     * Pass over a run of plain bytes. Subclasses can do this faster than
+     * a byteAt() per byte.
+     * @param p a byte offset in the (decompressed) file, at or after position
+     * @return the offset of the first byte from p on that isn't isPlain(),
+     *         or of the end of the file
+     */
+    protected long skipPlain(long p)
+        throws IOException
+    {
+        while (has(p) && isPlain(byteAt(p))) { p++; }
+        return p;
+    }
+
+    /**
+     * Called for each chunk nextChunk() finds, before it reads on.
+     * @param chunk the chunk
+     */
+    protected void found(Chunk chunk)
+        throws IOException
+    {
+    }
+
+    /**
+     * @param p a byte offset in the (decompressed) file, at or after position
+     * @return whether the file has a byte there
+     */
+    protected abstract boolean has(long p)
+        throws IOException;
+
+    /**
+     * @param p a byte offset in the (decompressed) file, at or after position
+     * @return the byte there; has(p) must be true
+     */
+    protected abstract int byteAt(long p)
+        throws IOException;
+
+    /**
+     * Get the bytes of a chunk found by nextChunk(). Called on the chunk's
+     * tokenizing thread.
+     * @param chunk the chunk
+     * @return the bytes from chunk.start to chunk.end
+     */
+    protected abstract ByteBuffer bytes(Chunk chunk)
+        throws IOException;
+
+    /**
+     * A run of whole records in the file. Offsets are in the file as
+     * decompressed.
+     */
+    class Chunk {
+        final long start;
+        final long end;
+        final int records;
+        // Number of records in the file before this chunk.
+        final long firstRecord;
+        // Number of lines in the file up to the end of this chunk.
+        final long linesToEnd;
+        // The bytes, for readers that have to copy them out before reading on.
+        ByteBuffer data = null;
+        // Where each record starts, from the start of the chunk, once tokenized.
+        int[] recordStarts = null;
+        // Bytes of skipped fields, once tokenized.
+        long skippedBytes = 0L;
+        // A hash of the bytes, if the chunk is to be compared with an earlier run's.
+        byte[] hash = null;
+
+        Chunk(long start, long end, int records, long firstRecord, long linesToEnd) {
+            this.start = start;
+            this.end = end;
+            this.records = records;
+            this.firstRecord = firstRecord;
+            this.linesToEnd = linesToEnd;
+        }
+
+        /**
+         * Add the chunk's bytes to a digest. Safe to call from any thread.
+         * @param digest the digest
+         */
+        void digest(MessageDigest digest)
+            throws IOException
+        {
+            // From the start, as tokenizing may have read the buffer already.
+            ByteBuffer bytes = bytes(this).duplicate();
+            bytes.rewind();
+            digest.update(bytes);
+        }
+
+        /**
+         * Split the chunk into records and fields. Safe to call from any
+         * thread.
+         * @return the records, each an array of fields
+         */
+        List<String[]> tokenize()
+            throws IOException
+        {
+            return tokenize(null);
+        }
+
+        /**
+         * Split the chunk into records and fields, skipping the fields that
+         * aren't wanted. Safe to call from any thread.
+         * @param columns which fields to keep, by index; fields past its end
+         *        are skipped too. Null to keep them all.
+         * @return the records, each an array of fields, null where skipped
+         */
+        List<String[]> tokenize(boolean[] columns)
+            throws IOException
+        {
+            long length = end - start;
+            if (length > Integer.MAX_VALUE - 8) {
+                throw new IOException("Records " + (firstRecord + 1) + " to " + (firstRecord + records)
+                                      + " of " + file + " are too long to read as one chunk.");
+            }
+
+            recordStarts = new int[records];
+            Tokenizer tokenizer = TOKENIZER.get();
+            List<String[]> result = tokenizer.tokenize(bytes(this), (int)length, records, recordStarts, columns);
+            skippedBytes = tokenizer.skippedBytes;
+            return result;
+        }
+    }
+
+    /**
+     * Splits records into fields. Keeps its buffers from one chunk to
+     * the next, so there is one per thread.
+     */
+    private static class Tokenizer {
+        private byte[] buf = new byte[0];
+
+        // The field so far: the bytes [fieldStart, fieldEnd) of buf while
+        // they are contiguous, otherwise scratch[0, scratchLen).
+        private int fieldStart = 0;
+        private int fieldEnd = 0;
+        private boolean inScratch = false;
+        private byte[] scratch = new byte[256];
+        private int scratchLen = 0;
+
+        private final List<String> fields = new ArrayList<String>();
+
+        // Fields to keep, null for all; whether the current field is
+        // skipped; and the bytes of skipped fields in this chunk.
+        private boolean[] columns = null;
+        private boolean skipping = false;
+        private long skippedBytes = 0L;
+
+        /**
+         * @param starts where to put the start of each record
+         * @param columns which fields to keep, null for all
+         */
+        List<String[]> tokenize(ByteBuffer bytes, int length, int records, int[] starts, boolean[] columns) {
+            if (buf.length < length) { buf = new byte[Math.max(length, buf.length * 2)]; }
+            bytes.get(buf, 0, length);
+            this.columns = columns;
+            skippedBytes = 0L;
+
+            List<String[]> result = new ArrayList<String[]>(records);
+            int p = 0;
+            while (p < length) {
+                if (result.size() < starts.length) { starts[result.size()] = p; }
+                p = tokenizeRecord(p, length, result);
+            }
+            return result;
+        }
+
+        /**
+         * Split one record into fields.
+         * @return where the next record starts
+         */
+        private int tokenizeRecord(int p, int n, List<String[]> result) {
+            byte[] b = buf;
+            boolean inQuotes = false;
+            boolean inField = false;
+            // Index of the current char in its line, as OpenCSV counts it.
+            int lineIndex = 0;
+            // Where the current field starts, and where the record ends.
+            int fieldFrom = p;
+            int recordEnd = n;
+
+            fields.clear();
+            clearField();
+            skipping = isSkipped(0);
+
+            while (p < n) {
+                if (skipping) {
+                    // Nothing of a skipped field is kept, so pass over bytes
+                    // that can't end it or change quoting.
+                    while (p < n) {
+                        int c = b[p];
+                        if ((c == '\n') || (c == '\r') || (c == QUOTE) || (c == ESCAPE)
+                            || ((c == SEPARATOR) && !inQuotes)) {
+                            break;
+                        }
+                        if ((c & 0xc0) != 0x80) { lineIndex += ((c & 0xf8) == 0xf0) ? 2 : 1; }
+                        inField = true;
+                        p++;
+                    }
+                    if (p == n) { break; }
+                }
+
+                int c = b[p] & 0xff;
+
+                if ((c == '\n') || (c == '\r')) {
+                    if (!inQuotes) { recordEnd = p; }
+                    p += ((c == '\r') && (p + 1 < n) && (b[p + 1] == '\n')) ? 2 : 1;
+                    if (!inQuotes) { break; }
+                    appendByte((byte)'\n');
+                    lineIndex = 0;
+                    continue;
+                }
+
+                int next = (p + 1 < n) ? (b[p + 1] & 0xff) : -1;
+                boolean nextInLine = (next >= 0) && (next != '\n') && (next != '\r');
+
+                if (c == ESCAPE) {
+                    // A '\' before a quote or '\' is dropped, as is one before anything else.
+                    if ((inQuotes || inField) && ((next == QUOTE) || (next == ESCAPE))) {
+                        append(p + 1);
+                        p += 2;
+                        lineIndex += 2;
+                    } else {
+                        p++;
+                        lineIndex++;
+                    }
+                    continue;
+                }
+
+                if (c == QUOTE) {
+                    if ((inQuotes || inField) && (next == QUOTE)) {
+                        append(p + 1);
+                        p += 2;
+                        lineIndex += 2;
+                    } else {
+                        inQuotes = !inQuotes;
+                        if ((lineIndex > 2) && (b[p - 1] != SEPARATOR) && nextInLine && (next != SEPARATOR)) {
+                            // Quote in the middle of a field.
+                            if (!isFieldEmpty() && isFieldWhitespace()) {
+                                clearField();
+                            } else {
+                                append(p);
+                            }
+                        }
+                        p++;
+                        lineIndex++;
+                    }
+                    inField = !inField;
+                    continue;
+                }
+
+                if ((c == SEPARATOR) && !inQuotes) {
+                    if (skipping) { skippedBytes += p - fieldFrom; }
+                    fields.add(takeField());
+                    skipping = isSkipped(fields.size());
+                    fieldFrom = p + 1;
+                    inField = false;
+                } else {
+                    append(p);
+                    inField = true;
+                }
+                p++;
+                // Continuation bytes don't start a char; 4-byte sequences are two chars.
+                if ((c & 0xc0) != 0x80) { lineIndex += ((c & 0xf8) == 0xf0) ? 2 : 1; }
+            }
+
+            if (skipping) { skippedBytes += Math.min(p, recordEnd) - fieldFrom; }
+            fields.add(takeField());
+            result.add(fields.toArray(new String[fields.size()]));
+            return p;
+        }
+
+        private boolean isSkipped(int field) {
+            return (columns != null) && ((field >= columns.length) || !columns[field]);
+        }
+
+        private void append(int at) {
+            if (skipping) { return; }
+            if (!inScratch) {
+                if (fieldStart == fieldEnd) {
+                    fieldStart = at;
+                    fieldEnd = at + 1;
+                    return;
+                }
+                if (fieldEnd == at) {
+                    fieldEnd++;
+                    return;
+                }
+                toScratch();
+            }
+            appendByte(buf[at]);
+        }
+
+        private void appendByte(byte c) {
+            if (skipping) { return; }
+            if (!inScratch) { toScratch(); }
+            if (scratchLen == scratch.length) { scratch = Arrays.copyOf(scratch, scratch.length * 2); }
+            scratch[scratchLen++] = c;
+        }
+
+        private void toScratch() {
+            int len = fieldEnd - fieldStart;
+            if (scratch.length < len + 1) { scratch = Arrays.copyOf(scratch, Math.max(len + 1, scratch.length * 2)); }
+            System.arraycopy(buf, fieldStart, scratch, 0, len);
+            scratchLen = len;
+            inScratch = true;
+        }
+
+        private boolean isFieldEmpty() {
+            return inScratch ? (scratchLen == 0) : (fieldStart == fieldEnd);
+        }
+
+        private boolean isFieldWhitespace() {
+            String s = peekField();
+            for (int i = 0; i < s.length(); i++) {
+                if (!Character.isWhitespace(s.charAt(i))) { return false; }
+            }
+            return true;
+        }
+
+        private String peekField() {
+            if (inScratch) { return new String(scratch, 0, scratchLen, StandardCharsets.UTF_8); }
+            if (fieldStart == fieldEnd) { return ""; }
+            return new String(buf, fieldStart, fieldEnd - fieldStart, StandardCharsets.UTF_8);
+        }
+
+        private String takeField() {
+            if (skipping) { return null; }
+            String result = peekField();
+            clearField();
+            return result;
+        }
+
+        private void clearField() {
+            fieldStart = 0;
+            fieldEnd = 0;
+            inScratch = false;
+            scratchLen = 0;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Debugging log, appended to by a background thread so callers never
+ * wait on the disk. Whatever messages have queued up since the last
+ * write are written together.
+ */
+class DebugLog implements Closeable {
+
+    private static final String NEW_LINE = "\r\n";
+
+    // Queued by close(); compared by identity.
+    private static final String CLOSE = new String("close");
+
+    private final File file;
+    private final FileChannel channel;
+    private final BlockingQueue<String> queue = new LinkedBlockingQueue<String>();
+    private final Thread thread;
+    private volatile IOException failure = null;
+
+    /**
+     * Open the log file for appending, creating it if necessary.
+     * @param file the log file
+     */
+    DebugLog(File file)
+        throws IOException
+    {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(),
+                                        StandardOpenOption.CREATE,
+                                        StandardOpenOption.WRITE,
+                                        StandardOpenOption.APPEND);
+        this.thread = new Thread(this::run, "debug-log");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queue a message for the log.
+     * @param msg the message
+     */
+    void log(String msg) {
+        queue.add(msg);
+    }
+
+    /**
+     * Write any queued messages and close the file.
+     */
+    public void close()
+        throws IOException
+    {
+        queue.add(CLOSE);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if (failure != null) { throw failure; }
+    }
+
+    private void run() {
+        List<String> batch = new ArrayList<String>();
+        StringBuilder sb = new StringBuilder();
+        boolean closing = false;
+
+        while (!closing) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch);
+
+            for (String msg : batch) {
+                if (msg == CLOSE) {
+                    closing = true;
+                    break;
+                }
+                sb.append(msg).append(NEW_LINE);
+            }
+            batch.clear();
+
+            if ((sb.length() > 0) && (failure == null)) {
+                try {
+                    ByteBuffer bytes = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+                    while (bytes.hasRemaining()) { channel.write(bytes); }
+                } catch (IOException e) {
+                    failure = new IOException("Failed to write debugging file " + file + ": " + e.getMessage(), e);
+                }
+            }
+            sb.setLength(0);
+        }
+    }
+}
@@ -0,0 +1,365 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The events seen so far, to drop duplicates. An event is a 128-bit key,
+ * made of a hash of its semanticeventid and a hash of the rest of the
+ * line, so a re-exported line is a duplicate but a line that reuses an
+ * ID for something else isn't.
+ *
+ * Hundreds of millions of keys would be a lot of garbage for the
+ * collector to trace as Java objects, so they are kept off the heap,
+ * in direct buffers: a number of open-addressing hash tables (shards),
+ * each picked by the top bits of a key and each growing by doubling,
+ * up to its share of the memory budget. A full shard is sorted in place
+ * and spilled to a temporary file, which is memory-mapped and binary
+ * searched from then on.
+ *
+ * Once shards have spilled, checking a new key means searching their
+ * files too. An optional Bloom filter in front, sized for the number of
+ * events expected, answers "definitely new" for most new keys without
+ * that search; only duplicates and its rare false positives need it.
+ * Only used by the writer stage.
+ */
+class DuplicateFilter implements Closeable {
+
+    private static final int SHARD_BITS = 4;
+    private static final int SHARDS = 1 << SHARD_BITS;
+
+    // Bytes per key: two longs.
+    private static final int ENTRY_SIZE = 16;
+
+    private static final int MIN_CAPACITY = 1 << 10;
+    // The most entries a direct buffer can hold, as a power of 2.
+    private static final int MAX_CAPACITY = 1 << 26;
+
+    // Grow (or spill) shards when they are this full.
+    private static final double MAX_LOAD = 0.75;
+
+    // Bloom filter bits per expected key, and bits set per key; about 1% false positives.
+    private static final int BLOOM_BITS_PER_KEY = 10;
+    private static final int BLOOM_HASHES = 7;
+    // Each key's bits are in one 512-bit block, so one cache line.
+    private static final int BLOOM_BLOCK_BITS = 512;
+
+    // Start of a hash, to add values to with hash() and end with finish().
+    static final long SEED = 0x2545f4914f6cdd1dL;
+
+    private final File tempDir;
+    private final int maxCapacity;
+    private final Shard[] shards = new Shard[SHARDS];
+
+    private final ByteBuffer bloom;
+    private final long bloomBlocks;
+
+    private long keys = 0L;
+    private long spills = 0L;
+    private long bloomFalsePositives = 0L;
+
+    /**
+     * @param memoryBudget most bytes of hash tables to hold in memory
+     * @param expectedKeys number of keys to size a Bloom filter for, 0 for none
+     * @param tempDir where to spill full shards, null for the system's temporary directory
+     */
+    DuplicateFilter(long memoryBudget, long expectedKeys, File tempDir) {
+        this.tempDir = tempDir;
+        long perShard = memoryBudget / ENTRY_SIZE / SHARDS;
+        int capacity = MIN_CAPACITY;
+        while ((capacity < MAX_CAPACITY) && (capacity * 2L <= perShard)) { capacity *= 2; }
+        this.maxCapacity = capacity;
+        for (int i = 0; i < SHARDS; i++) { shards[i] = new Shard(); }
+
+        if (expectedKeys > 0) {
+            long blocks = (expectedKeys * BLOOM_BITS_PER_KEY + BLOOM_BLOCK_BITS - 1) / BLOOM_BLOCK_BITS;
+            long bytes = blocks * (BLOOM_BLOCK_BITS / 8);
+            if (bytes > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("A Bloom filter for " + expectedKeys + " events is too big.");
+            }
+            this.bloom = ByteBuffer.allocateDirect((int)bytes);
+            this.bloomBlocks = blocks;
+        } else {
+            this.bloom = null;
+            this.bloomBlocks = 0L;
+        }
+    }
+
+    /**
+     * Add a key, if it hasn't been seen.
+     * @param hi the first half of the key
+     * @param lo the second half of the key
+     * @return true if the key is new, false if it is a duplicate
+     */
+    boolean add(long hi, long lo)
+        throws IOException
+    {
+        // The all-zero key marks an empty slot.
+        if ((hi == 0L) && (lo == 0L)) { lo = 1L; }
+        Shard shard = shards[(int)(hi >>> (64 - SHARD_BITS))];
+
+        boolean maybeSeen = (bloom == null) || addToBloom(hi, lo);
+        if (maybeSeen) {
+            if (shard.contains(hi, lo) || shard.spilledContains(hi, lo)) { return false; }
+            if (bloom != null) { bloomFalsePositives++; }
+        }
+        shard.insert(hi, lo);
+        keys++;
+        return true;
+    }
+
+    /**
+     * @return number of distinct keys
+     */
+    long getKeys() {
+        return keys;
+    }
+
+    /**
+     * @return number of times a shard was spilled to disk
+     */
+    long getSpills() {
+        return spills;
+    }
+
+    /**
+     * @return number of new keys the Bloom filter took for possible duplicates
+     */
+    long getBloomFalsePositives() {
+        return bloomFalsePositives;
+    }
+
+    /**
+     * Delete the spilled files. The direct buffers are freed once they
+     * are garbage collected.
+     */
+    @Override
+    public void close() {
+        for (Shard shard : shards) { shard.close(); }
+    }
+
+    /**
+     * Set the key's bits in the Bloom filter.
+     * @return true if they were all set already
+     */
+    private boolean addToBloom(long hi, long lo) {
+        int block = (int)Long.remainderUnsigned(hi, bloomBlocks) * (BLOOM_BLOCK_BITS / 8);
+        long bits = lo ^ Long.rotateLeft(hi, 32);
+        boolean seen = true;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            int bit = (int)(bits & (BLOOM_BLOCK_BITS - 1));
+            bits >>>= 9;
+            int at = block + (bit >>> 6) * 8;
+            long word = bloom.getLong(at);
+            long mask = 1L << (bit & 63);
+            if ((word & mask) == 0L) {
+                seen = false;
+                bloom.putLong(at, word | mask);
+            }
+        }
+        return seen;
+    }
+
+    /**
+     * @return the hash h with s added; null and "" hash differently
+     */
+    static long hash(long h, String s) {
+        if (s == null) { return hash(h, -1L); }
+        int len = s.length();
+        for (int i = 0; i < len; i++) { h = (h ^ s.charAt(i)) * 0x100000001b3L; }
+        return hash(h, len);
+    }
+
+    /**
+     * @return the hash h with v added
+     */
+    static long hash(long h, long v) {
+        h = (h ^ v) * 0x9e3779b97f4a7c15L;
+        return h ^ (h >>> 32);
+    }
+
+    /**
+     * @return the hash h, with its bits mixed so they all depend on every value added
+     */
+    static long finish(long h) {
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    private static int compare(long hi1, long lo1, long hi2, long lo2) {
+        int result = Long.compareUnsigned(hi1, hi2);
+        return (result != 0) ? result : Long.compareUnsigned(lo1, lo2);
+    }
+
+    /**
+     * One hash table, with linear probing, and the files it has spilled to.
+     */
+    private class Shard {
+        private ByteBuffer table = ByteBuffer.allocateDirect(MIN_CAPACITY * ENTRY_SIZE);
+        private int capacity = MIN_CAPACITY;
+        private int size = 0;
+        private final List<File> spilledFiles = new ArrayList<File>();
+        private final List<MappedByteBuffer> spilled = new ArrayList<MappedByteBuffer>();
+
+        boolean contains(long hi, long lo) {
+            int mask = capacity - 1;
+            for (int i = slot(hi, lo, mask); ; i = (i + 1) & mask) {
+                long h = table.getLong(i * ENTRY_SIZE);
+                long l = table.getLong(i * ENTRY_SIZE + 8);
+                if ((h == hi) && (l == lo)) { return true; }
+                if ((h == 0L) && (l == 0L)) { return false; }
+            }
+        }
+
+        boolean spilledContains(long hi, long lo) {
+            for (MappedByteBuffer run : spilled) {
+                int low = 0;
+                int high = run.capacity() / ENTRY_SIZE - 1;
+                while (low <= high) {
+                    int mid = (low + high) >>> 1;
+                    int c = compare(run.getLong(mid * ENTRY_SIZE), run.getLong(mid * ENTRY_SIZE + 8), hi, lo);
+                    if (c == 0) { return true; }
+                    if (c < 0) {
+                        low = mid + 1;
+                    } else {
+                        high = mid - 1;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Add a key that isn't in the shard.
+         */
+        void insert(long hi, long lo)
+            throws IOException
+        {
+            if (size + 1 > capacity * MAX_LOAD) {
+                if (capacity < maxCapacity) {
+                    try {
+                        resize(capacity * 2);
+                    } catch (OutOfMemoryError e) {
+                        // Out of direct memory, so make do with the table as it is.
+                        spill();
+                    }
+                } else {
+                    spill();
+                }
+            }
+            put(table, capacity - 1, hi, lo);
+            size++;
+        }
+
+        private void resize(int newCapacity) {
+            ByteBuffer old = table;
+            int oldCapacity = capacity;
+            table = ByteBuffer.allocateDirect(newCapacity * ENTRY_SIZE);
+            capacity = newCapacity;
+            for (int i = 0; i < oldCapacity; i++) {
+                long h = old.getLong(i * ENTRY_SIZE);
+                long l = old.getLong(i * ENTRY_SIZE + 8);
+                if ((h != 0L) || (l != 0L)) { put(table, newCapacity - 1, h, l); }
+            }
+        }
+
+        /**
+         * Sort the keys, in the table, write them to a file and empty the table.
+         */
+        private void spill()
+            throws IOException
+        {
+            int n = 0;
+            for (int i = 0; i < capacity; i++) {
+                long h = table.getLong(i * ENTRY_SIZE);
+                long l = table.getLong(i * ENTRY_SIZE + 8);
+                if ((h != 0L) || (l != 0L)) {
+                    table.putLong(n * ENTRY_SIZE, h);
+                    table.putLong(n * ENTRY_SIZE + 8, l);
+                    n++;
+                }
+            }
+            sort(0, n - 1);
+
+            File file = File.createTempFile("events", ".keys", tempDir);
+            file.deleteOnExit();
+            spilledFiles.add(file);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                FileChannel channel = raf.getChannel();
+                ByteBuffer keys = table.duplicate();
+                keys.position(0).limit(n * ENTRY_SIZE);
+                while (keys.hasRemaining()) { channel.write(keys); }
+                spilled.add(channel.map(FileChannel.MapMode.READ_ONLY, 0, n * ENTRY_SIZE));
+            }
+
+            for (int i = 0; i < capacity * ENTRY_SIZE; i += 8) { table.putLong(i, 0L); }
+            size = 0;
+            spills++;
+        }
+
+        /**
+         * Quicksort the entries from lo to hi, inclusive.
+         */
+        private void sort(int lo, int hi) {
+            while (hi - lo > 0) {
+                int mid = (lo + hi) >>> 1;
+                long ph = table.getLong(mid * ENTRY_SIZE);
+                long pl = table.getLong(mid * ENTRY_SIZE + 8);
+                int i = lo;
+                int j = hi;
+                while (i <= j) {
+                    while (compare(table.getLong(i * ENTRY_SIZE), table.getLong(i * ENTRY_SIZE + 8), ph, pl) < 0) {
+                        i++;
+                    }
+                    while (compare(table.getLong(j * ENTRY_SIZE), table.getLong(j * ENTRY_SIZE + 8), ph, pl) > 0) {
+                        j--;
+                    }
+                    if (i <= j) { swap(i++, j--); }
+                }
+                // Recurse on the smaller side, loop on the larger.
+                if (j - lo < hi - i) {
+                    sort(lo, j);
+                    lo = i;
+                } else {
+                    sort(i, hi);
+                    hi = j;
+                }
+            }
+        }
+
+        private void swap(int i, int j) {
+            long h = table.getLong(i * ENTRY_SIZE);
+            long l = table.getLong(i * ENTRY_SIZE + 8);
+            table.putLong(i * ENTRY_SIZE, table.getLong(j * ENTRY_SIZE));
+            table.putLong(i * ENTRY_SIZE + 8, table.getLong(j * ENTRY_SIZE + 8));
+            table.putLong(j * ENTRY_SIZE, h);
+            table.putLong(j * ENTRY_SIZE + 8, l);
+        }
+
+        void close() {
+            spilled.clear();
+            for (File file : spilledFiles) { file.delete(); }
+            spilledFiles.clear();
+        }
+    }
+
+    private static void put(ByteBuffer table, int mask, long hi, long lo) {
+        int i = slot(hi, lo, mask);
+        while ((table.getLong(i * ENTRY_SIZE) != 0L) || (table.getLong(i * ENTRY_SIZE + 8) != 0L)) {
+            i = (i + 1) & mask;
+        }
+        table.putLong(i * ENTRY_SIZE, hi);
+        table.putLong(i * ENTRY_SIZE + 8, lo);
+    }
+
+    private static int slot(long hi, long lo, int mask) {
+        // The top bits of hi pick the shard, so use the others.
+        return (int)(lo ^ (hi * 0x9e3779b97f4a7c15L >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,118 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads a gzipped UTF-8 CSV file, decompressing it as it goes, or any
+ * stream of CSV. Only the bytes from the start of the current chunk on
+ * are kept; each chunk is copied out when it is found, for its
+ * tokenizing thread.
+ */
+class GzipCsvReader extends CsvChunkReader {
+
+    static final int READ_SIZE = 1024 * 1024;
+
+    private final InputStream in;
+
+    // Decompressed bytes [bufStart, bufStart + bufLen) of the file.
+    private byte[] buf = new byte[4 * READ_SIZE];
+    private long bufStart = 0L;
+    private int bufLen = 0;
+    private boolean eof = false;
+
+    /**
+     * @param file the gzipped CSV file; concatenated gzip members are read as one
+     */
+    GzipCsvReader(File file)
+        throws IOException
+    {
+        super(file);
+        this.in = InputFiles.open(file, READ_SIZE);
+    }
+
+    /**
+     * @param name what to call the input in error messages
+     * @param in the CSV, already decompressed
+     */
+    GzipCsvReader(File name, InputStream in) {
+        super(name);
+        this.in = in;
+    }
+
+    public void close()
+        throws IOException
+    {
+        in.close();
+    }
+
+    protected boolean has(long p)
+        throws IOException
+    {
+        while (p >= bufStart + bufLen) {
+            if (eof) { return false; }
+            fill(p);
+        }
+        return true;
+    }
+
+    protected int byteAt(long p)
+        throws IOException
+    {
+        if (!has(p)) { throw new IOException("Read past the end of " + file); }
+        return buf[(int)(p - bufStart)] & 0xff;
+    }
+
+    protected long skipPlain(long p)
+        throws IOException
+    {
+        while (has(p)) {
+            int i = (int)(p - bufStart);
+            while ((i < bufLen) && isPlain(buf[i])) { i++; }
+            p = bufStart + i;
+            if (i < bufLen) { break; }
+        }
+        return p;
+    }
+
+    protected void found(Chunk chunk) {
+        int from = (int)(chunk.start - bufStart);
+        chunk.data = ByteBuffer.wrap(Arrays.copyOfRange(buf, from, from + (int)(chunk.end - chunk.start)));
+    }
+
+    protected ByteBuffer bytes(Chunk chunk) {
+        return chunk.data;
+    }
+
+    /**
+     * Decompress more of the file, dropping what is before the current
+     * chunk (or p, after a seek) to make room.
+     */
+    private void fill(long p)
+        throws IOException
+    {
+        int drop = (int)Math.max(0L, Math.min(Math.min(position, p) - bufStart, (long)bufLen));
+        if (drop > 0) {
+            System.arraycopy(buf, drop, buf, 0, bufLen - drop);
+            bufStart += drop;
+            bufLen -= drop;
+        }
+        if (buf.length - bufLen < READ_SIZE) {
+            // A chunk longer than the buffer.
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+
+        int n;
+        try {
+            n = in.read(buf, bufLen, buf.length - bufLen);
+        } catch (IOException e) {
+            throw new IOException("Failed to decompress input " + file + ": " + e.getMessage(), e);
+        }
+        if (n < 0) {
+            eof = true;
+        } else {
+            bufLen += n;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Expands the '-i' arg into the list of input files: a single file, the
+ * CSV files in a directory, or the files matching a glob such as
+ * "exports/2024-*.csv". Files come back sorted by name, which is the
+ * order they are converted and merged in.
+ *
+ * Any of the files can be gzipped; that is told by its first bytes, not
+ * its name.
+ */
+class InputFiles {
+
+    // Files taken from a directory.
+    private static final String DIRECTORY_GLOB = "glob:*.{csv,CSV,csv.gz,CSV.GZ}";
+
+    // First two bytes of a gzip member.
+    private static final int GZIP_MAGIC_1 = 0x1f;
+    private static final int GZIP_MAGIC_2 = 0x8b;
+
+    private InputFiles() {}
+
+    /**
+     * @param spec a file, directory or glob
+     * @return the input files, sorted by name
+     */
+    static List<File> expand(String spec)
+        throws IOException
+    {
+        File file = new File(spec);
+        if (file.isDirectory()) {
+            return list(file.toPath(), DIRECTORY_GLOB, spec);
+        }
+        if (file.exists() || !isGlob(spec)) {
+            return Collections.singletonList(file);
+        }
+
+        // Only the last part of the path can have wildcards.
+        Path path = Paths.get(spec);
+        Path dir = path.getParent();
+        if ((dir != null) && isGlob(dir.toString())) {
+            throw new IOException("Only the file name can have wildcards in input " + spec);
+        }
+        return list((dir == null) ? Paths.get(".") : dir, "glob:" + path.getFileName(), spec);
+    }
+
+    /**
+     * @param file an input file
+     * @return whether the file starts like a gzip file
+     */
+    static boolean isGzip(File file)
+        throws IOException
+    {
+        try (InputStream in = new FileInputStream(file)) {
+            return (in.read() == GZIP_MAGIC_1) && (in.read() == GZIP_MAGIC_2);
+        }
+    }
+
+    /**
+     * Open an input file for reading as a stream, decompressing it if it
+     * is gzipped.
+     * @param file the input file
+     * @param bufferSize size of the buffer to read it through
+     * @return the stream
+     */
+    static InputStream open(File file, int bufferSize)
+        throws IOException
+    {
+        boolean gzip = isGzip(file);
+        InputStream in = new BufferedInputStream(new FileInputStream(file), bufferSize);
+        if (!gzip) { return in; }
+        try {
+            return new GZIPInputStream(in, 64 * 1024);
+        } catch (IOException e) {
+            in.close();
+            throw new IOException("Failed to read gzipped input " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Read a stream, decompressing it if it is gzipped.
+     * @param stream the input
+     * @param name what to call the input in error messages
+     * @param bufferSize size of the buffer to read it through
+     * @return the stream
+     */
+    static InputStream open(InputStream stream, String name, int bufferSize)
+        throws IOException
+    {
+        InputStream in = new BufferedInputStream(stream, bufferSize);
+        in.mark(2);
+        boolean gzip = (in.read() == GZIP_MAGIC_1) && (in.read() == GZIP_MAGIC_2);
+        in.reset();
+        if (!gzip) { return in; }
+        try {
+            return new GZIPInputStream(in, 64 * 1024);
+        } catch (IOException e) {
+            throw new IOException("Failed to read gzipped input " + name + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static List<File> list(Path dir, String pattern, String spec)
+        throws IOException
+    {
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher(pattern);
+        List<File> result = new ArrayList<File>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path p : entries) {
+                if (Files.isRegularFile(p) && matcher.matches(p.getFileName())) {
+                    result.add(p.toFile());
+                }
+            }
+        }
+        if (result.isEmpty()) {
+            throw new IOException("No input files found for " + spec);
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private static boolean isGlob(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c == '*') || (c == '?') || (c == '[') || (c == '{')) { return true; }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,84 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a plain UTF-8 CSV file through memory-mapped buffers. Each
+ * chunk is mapped on its own by the thread that tokenizes it.
+ */
+class MappedCsvReader extends CsvChunkReader {
+
+    // Size of the buffers the scan for record boundaries maps at a time.
+    private static final int SCAN_WINDOW = 64 * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long size;
+
+    private MappedByteBuffer window = null;
+    private long windowStart = 0L;
+
+    /**
+     * @param file the CSV file
+     */
+    MappedCsvReader(File file)
+        throws IOException
+    {
+        super(file);
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.size = channel.size();
+    }
+
+    public void close()
+        throws IOException
+    {
+        window = null;
+        channel.close();
+    }
+
+    protected boolean has(long p) {
+        return p < size;
+    }
+
+    protected int byteAt(long p)
+        throws IOException
+    {
+        mapWindow(p);
+        return window.get((int)(p - windowStart)) & 0xff;
+    }
+
+    protected long skipPlain(long p)
+        throws IOException
+    {
+        while (p < size) {
+            mapWindow(p);
+            MappedByteBuffer w = window;
+            int i = (int)(p - windowStart);
+            int end = w.limit();
+            while ((i < end) && isPlain(w.get(i))) { i++; }
+            p = windowStart + i;
+            if (i < end) { break; }
+        }
+        return p;
+    }
+
+    /**
+     * Map the scan window over p, unless it already is.
+     */
+    private void mapWindow(long p)
+        throws IOException
+    {
+        if ((window == null) || (p < windowStart) || (p >= windowStart + window.limit())) {
+            windowStart = p;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, p, Math.min(SCAN_WINDOW, size - p));
+        }
+    }
+
+    protected ByteBuffer bytes(Chunk chunk)
+        throws IOException
+    {
+        return channel.map(FileChannel.MapMode.READ_ONLY, chunk.start, chunk.end - chunk.start);
+    }
+}
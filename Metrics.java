@@ -0,0 +1,576 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for a conversion: rows and bytes in
+ * and out, and how long each stage takes per chunk. Stages record once
+ * per chunk, not per row, so this is cheap enough to leave on.
+ *
+ * The numbers can be printed as a progress line every few seconds, are
+ * written as JSON at the end, and can be watched over JMX while the
+ * conversion runs.
+ */
+class Metrics implements MetricsMXBean {
+
+    static final String OBJECT_NAME = "PL2:type=ParseMATHia";
+
+    // Finding chunks of records in the input (and, with OpenCSV, tokenizing them).
+    final Histogram read = new Histogram("read");
+    // Tokenizing and parsing the lines of a chunk.
+    final Histogram parse = new Histogram("parse");
+    // Formatting the output lines of a chunk.
+    final Histogram encode = new Histogram("encode");
+    // Filling in the "MATHia New" skill of a chunk.
+    final Histogram skill = new Histogram("skill");
+    // Writing a chunk to the output file.
+    final Histogram write = new Histogram("write");
+
+    private final Histogram[] stages = { read, parse, encode, skill, write };
+
+    private final LongAdder rowsRead = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesSkipped = new LongAdder();
+
+    // Only set by the writer.
+    private volatile long rowsWritten = 0L;
+    private volatile long bytesWritten = 0L;
+    private volatile long skillMappings = 0L;
+    private volatile long duplicatesDropped = 0L;
+    private volatile long linesRejected = 0L;
+
+    // The skill pre-scan, if there was one.
+    private volatile long prescanBytes = 0L;
+    private volatile double prescanSeconds = 0.0;
+    private volatile long prescanSkills = 0L;
+
+    // For -incremental: whether the run is, and the chunks, lines and
+    // bytes of output it kept from the last run. Only set by the writer.
+    private volatile boolean incremental = false;
+    private volatile long chunksReused = 0L;
+    private volatile long rowsReused = 0L;
+    private volatile long bytesReused = 0L;
+
+    // The memory budget the chunks are cut to, once the run has one.
+    private volatile ChunkBudget chunkBudget = null;
+
+    private final IntSupplier badIds;
+    private final long startNanos = System.nanoTime();
+
+    private ScheduledExecutorService progress = null;
+    // What the numbers are registered as over JMX, if they are.
+    private String objectName = null;
+    private long lastNanos = startNanos;
+    private long lastRows = 0L;
+    private long lastBytes = 0L;
+
+    /**
+     * @param badIds number of bad IDs found so far
+     */
+    Metrics(IntSupplier badIds) {
+        this.badIds = badIds;
+    }
+
+    /**
+     * A chunk of input records has been found.
+     */
+    void addRead(long rows, long bytes) {
+        rowsRead.add(rows);
+        bytesRead.add(bytes);
+    }
+
+    /**
+     * Fields of a chunk weren't needed, so were passed over without being
+     * decoded.
+     * @param bytes their length in the input
+     */
+    void addSkipped(long bytes) {
+        bytesSkipped.add(bytes);
+    }
+
+    /**
+     * The writer has written more lines. Only called by the writer.
+     * @param rows number of lines written
+     * @param outputBytes length of the output so far
+     * @param skills size of the skill index
+     */
+    void addWritten(long rows, long outputBytes, long skills) {
+        rowsWritten += rows;
+        bytesWritten = outputBytes;
+        skillMappings = skills;
+    }
+
+    /**
+     * @param budget the memory budget the run's chunks are cut to
+     */
+    void setChunkBudget(ChunkBudget budget) {
+        chunkBudget = budget;
+    }
+
+    /**
+     * The writer has dropped lines it had already written. Only called by the writer.
+     * @param rows number of lines dropped
+     */
+    void addDuplicates(long rows) {
+        duplicatesDropped += rows;
+    }
+
+    /**
+     * The writer has skipped bad lines. Only called by the writer.
+     * @param rows number of lines skipped
+     */
+    void addRejected(long rows) {
+        linesRejected += rows;
+    }
+
+    /**
+     * The skill pre-scan is done.
+     * @param bytes bytes of input it read
+     * @param seconds how long it took
+     * @param skills number of tuples it gave a skill
+     */
+    void setPrescan(long bytes, double seconds, long skills) {
+        prescanBytes = bytes;
+        prescanSeconds = seconds;
+        prescanSkills = skills;
+    }
+
+    /**
+     * The run is -incremental, so it says how much output it reused.
+     */
+    void setIncremental() {
+        incremental = true;
+    }
+
+    /**
+     * The writer has copied a chunk's lines from the last run's output.
+     * Only called by the writer.
+     * @param rows number of lines
+     * @param bytes their length
+     */
+    void addReused(long rows, long bytes) {
+        chunksReused++;
+        rowsReused += rows;
+        bytesReused += bytes;
+    }
+
+    /**
+     * @param in an input stream
+     * @return the stream, counting the bytes read from it as input read
+     */
+    InputStream countBytes(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) { bytesRead.increment(); }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) { bytesRead.add(n); }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Print a progress line every few seconds until stop() is called.
+     * @param out where to print it
+     * @param seconds how often, 0 for never
+     */
+    void start(PrintStream out, int seconds) {
+        if (seconds <= 0) { return; }
+        progress = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "progress");
+                t.setDaemon(true);
+                return t;
+            });
+        progress.scheduleAtFixedRate(() -> out.println(getProgress()), seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    void stop() {
+        if (progress != null) { progress.shutdownNow(); }
+        progress = null;
+    }
+
+    /**
+     * Make the metrics visible over JMX, replacing any already registered
+     * under the same name, e.g. those of an earlier run.
+     * @param objectName the JMX object name, e.g. OBJECT_NAME
+     */
+    void register(String objectName) {
+        this.objectName = objectName;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(objectName);
+            if (server.isRegistered(name)) { server.unregisterMBean(name); }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            System.err.println("Failed to register metrics with JMX: " + e.toString());
+        }
+    }
+
+    void unregister() {
+        if (objectName == null) { return; }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(objectName);
+            if (server.isRegistered(name)) { server.unregisterMBean(name); }
+        } catch (JMException e) {
+            System.err.println("Failed to unregister metrics from JMX: " + e.toString());
+        }
+    }
+
+    /**
+     * @return a line with the rows and bytes done, the rates since the last
+     *         line and overall, and the skill index, bad IDs and heap
+     */
+    synchronized String getProgress() {
+        long now = System.nanoTime();
+        long rows = rowsWritten;
+        long bytes = bytesRead.sum();
+        double seconds = Math.max(1e-9, (now - lastNanos) / 1e9);
+        String result = String.format(Locale.ROOT,
+                                      "%.0f s: %d line(s) written, %.1f MB read; %.0f lines/s, %.1f MB/s"
+                                      + " (overall %.0f lines/s, %.1f MB/s); %d skill mapping(s),"
+                                      + " %d bad ID(s), heap %d/%d MB",
+                                      getElapsedSeconds(), rows, bytes / 1e6,
+                                      (rows - lastRows) / seconds, (bytes - lastBytes) / 1e6 / seconds,
+                                      getRowsPerSecond(), getMegabytesPerSecond(), skillMappings,
+                                      getBadIds(), getHeapUsed() >> 20, getHeapMax() >> 20);
+        lastNanos = now;
+        lastRows = rows;
+        lastBytes = bytes;
+        return result;
+    }
+
+    /**
+     * @param input the input, as given
+     * @param output the output file
+     * @param threads number of worker threads
+     * @return all of the numbers, as a JSON object
+     */
+    String toJson(String input, String output, int threads) {
+        StringBuilder sb = new StringBuilder(2048);
+        sb.append("{\n");
+        sb.append("  \"input\": ").append(quote(input)).append(",\n");
+        sb.append("  \"output\": ").append(quote(output)).append(",\n");
+        sb.append("  \"threads\": ").append(threads).append(",\n");
+        field(sb, "elapsedSeconds", getElapsedSeconds());
+        field(sb, "rowsRead", getRowsRead());
+        field(sb, "rowsWritten", getRowsWritten());
+        field(sb, "bytesRead", getBytesRead());
+        field(sb, "bytesSkipped", getBytesSkipped());
+        field(sb, "bytesWritten", getBytesWritten());
+        field(sb, "rowsPerSecond", getRowsPerSecond());
+        field(sb, "megabytesPerSecond", getMegabytesPerSecond());
+        field(sb, "skillMappings", getSkillMappings());
+        field(sb, "badIds", getBadIds());
+        field(sb, "duplicatesDropped", getDuplicatesDropped());
+        field(sb, "linesRejected", getLinesRejected());
+        if (prescanBytes > 0L) {
+            field(sb, "prescanSeconds", getPrescanSeconds());
+            field(sb, "prescanMegabytesPerSecond", prescanBytes / 1e6 / Math.max(1e-9, prescanSeconds));
+            field(sb, "prescanSkillMappings", getPrescanSkillMappings());
+        }
+        if (incremental) {
+            field(sb, "chunksReused", getChunksReused());
+            field(sb, "rowsReused", getRowsReused());
+            field(sb, "bytesReused", getBytesReused());
+        }
+        field(sb, "heapUsedBytes", getHeapUsed());
+        field(sb, "heapPeakBytes", getHeapPeak());
+        field(sb, "heapMaxBytes", getHeapMax());
+        ChunkBudget budget = chunkBudget;
+        if (budget != null) {
+            field(sb, "memoryBudgetBytes", budget.getBudget());
+            field(sb, "memoryBudgetPeakBytes", budget.getPeak());
+            field(sb, "memoryWaitSeconds", budget.getWaitSeconds());
+            field(sb, "chunks", budget.getChunks());
+            field(sb, "chunkRowsMean", budget.getMeanRows());
+            field(sb, "chunkRowsMax", budget.getMaxRows());
+            field(sb, "chunkBytesMean", budget.getMeanBytes());
+            field(sb, "chunkBytesMax", budget.getMaxBytes());
+        }
+        sb.append("  \"stages\": {");
+        for (int i = 0; i < stages.length; i++) {
+            Histogram h = stages[i];
+            sb.append((i == 0) ? "\n" : ",\n");
+            sb.append("    ").append(quote(h.name)).append(": { ");
+            sb.append(String.format(Locale.ROOT,
+                                    "\"chunks\": %d, \"busySeconds\": %.3f, \"meanMillis\": %.3f,"
+                                    + " \"p50Millis\": %.3f, \"p90Millis\": %.3f, \"p99Millis\": %.3f,"
+                                    + " \"maxMillis\": %.3f }",
+                                    h.getCount(), h.getTotal() / 1e9, h.getMean() / 1e6,
+                                    h.getPercentile(0.5) / 1e6, h.getPercentile(0.9) / 1e6,
+                                    h.getPercentile(0.99) / 1e6, h.getMax() / 1e6));
+        }
+        sb.append("\n  }\n}\n");
+        return sb.toString();
+    }
+
+    @Override
+    public double getElapsedSeconds() {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    @Override
+    public long getRowsRead() {
+        return rowsRead.sum();
+    }
+
+    @Override
+    public long getRowsWritten() {
+        return rowsWritten;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesSkipped() {
+        return bytesSkipped.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public double getRowsPerSecond() {
+        return rowsWritten / Math.max(1e-9, getElapsedSeconds());
+    }
+
+    @Override
+    public double getMegabytesPerSecond() {
+        return bytesRead.sum() / 1e6 / Math.max(1e-9, getElapsedSeconds());
+    }
+
+    @Override
+    public long getSkillMappings() {
+        return skillMappings;
+    }
+
+    @Override
+    public int getBadIds() {
+        return badIds.getAsInt();
+    }
+
+    @Override
+    public long getDuplicatesDropped() {
+        return duplicatesDropped;
+    }
+
+    @Override
+    public long getLinesRejected() {
+        return linesRejected;
+    }
+
+    @Override
+    public double getPrescanSeconds() {
+        return prescanSeconds;
+    }
+
+    @Override
+    public long getPrescanSkillMappings() {
+        return prescanSkills;
+    }
+
+    @Override
+    public long getChunksReused() {
+        return chunksReused;
+    }
+
+    @Override
+    public long getRowsReused() {
+        return rowsReused;
+    }
+
+    @Override
+    public long getBytesReused() {
+        return bytesReused;
+    }
+
+    @Override
+    public long getHeapUsed() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    @Override
+    public long getHeapMax() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getMax();
+    }
+
+    /**
+     * @return most heap in use at once since the JVM started
+     */
+    long getHeapPeak() {
+        long result = 0L;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage peak = pool.getPeakUsage();
+            if ((pool.getType() == MemoryType.HEAP) && (peak != null)) { result += peak.getUsed(); }
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getStageCounts() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Histogram h : stages) { result.put(h.name, h.getCount()); }
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getStageBusySeconds() {
+        Map<String, Double> result = new LinkedHashMap<String, Double>();
+        for (Histogram h : stages) { result.put(h.name, h.getTotal() / 1e9); }
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getStageMeanMillis() {
+        Map<String, Double> result = new LinkedHashMap<String, Double>();
+        for (Histogram h : stages) { result.put(h.name, h.getMean() / 1e6); }
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getStageP99Millis() {
+        Map<String, Double> result = new LinkedHashMap<String, Double>();
+        for (Histogram h : stages) { result.put(h.name, h.getPercentile(0.99) / 1e6); }
+        return result;
+    }
+
+    private static void field(StringBuilder sb, String name, long value) {
+        sb.append("  ").append(quote(name)).append(": ").append(value).append(",\n");
+    }
+
+    private static void field(StringBuilder sb, String name, double value) {
+        sb.append("  ").append(quote(name)).append(": ").append(String.format(Locale.ROOT, "%.3f", value))
+            .append(",\n");
+    }
+
+    static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c == '"') || (c == '\\')) {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int)c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Latencies in nanoseconds, in log-linear buckets: 8 buckets for each
+     * power of two, so a percentile is within 12.5% of the real value.
+     * Safe to record from several threads.
+     */
+    static class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        final String name;
+        private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @param startNanos when the work started, from System.nanoTime()
+         * @return the time now, to start the next piece of work from
+         */
+        long recordSince(long startNanos) {
+            long now = System.nanoTime();
+            record(now - startNanos);
+            return now;
+        }
+
+        void record(long nanos) {
+            if (nanos < 0) { nanos = 0; }
+            buckets.incrementAndGet(bucket(nanos));
+            count.increment();
+            total.add(nanos);
+            max.accumulateAndGet(nanos, Math::max);
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        long getTotal() {
+            return total.sum();
+        }
+
+        long getMax() {
+            return max.get();
+        }
+
+        double getMean() {
+            long n = count.sum();
+            return (n == 0) ? 0.0 : (double)total.sum() / n;
+        }
+
+        /**
+         * @param p the fraction of latencies to be at or below the result
+         * @return upper bound of the bucket holding the percentile
+         */
+        long getPercentile(double p) {
+            long n = count.sum();
+            if (n == 0) { return 0L; }
+            long rank = (long)Math.ceil(p * n);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= Math.max(1, rank)) { return Math.min(lowerBound(i + 1) - 1, max.get()); }
+            }
+            return max.get();
+        }
+
+        private static int bucket(long v) {
+            if (v < SUB_BUCKETS) { return (int)v; }
+            int msb = 63 - Long.numberOfLeadingZeros(v);
+            return (msb - SUB_BITS + 1) * SUB_BUCKETS + (int)((v >>> (msb - SUB_BITS)) & (SUB_BUCKETS - 1));
+        }
+
+        private static long lowerBound(int bucket) {
+            if (bucket < SUB_BUCKETS) { return bucket; }
+            int msb = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            if (msb >= 63) { return Long.MAX_VALUE; }
+            return (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << (msb - SUB_BITS);
+        }
+    }
+}
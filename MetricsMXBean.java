@@ -0,0 +1,60 @@
+import java.util.Map;
+
+/**
+ * The live numbers of a conversion, as seen over JMX (e.g. in jconsole,
+ * under "PL2:type=ParseMATHia"). Stage maps are keyed on the stage name:
+ * read, parse, encode, skill or write.
+ */
+public interface MetricsMXBean {
+
+    double getElapsedSeconds();
+
+    long getRowsRead();
+
+    long getRowsWritten();
+
+    long getBytesRead();
+
+    // Bytes of fields the output doesn't need, passed over without decoding.
+    long getBytesSkipped();
+
+    long getBytesWritten();
+
+    double getRowsPerSecond();
+
+    double getMegabytesPerSecond();
+
+    long getSkillMappings();
+
+    int getBadIds();
+
+    long getDuplicatesDropped();
+
+    long getLinesRejected();
+
+    // Time taken by the skill pre-scan, and the steps it found a skill for.
+    double getPrescanSeconds();
+
+    long getPrescanSkillMappings();
+
+    // Chunks, lines and bytes of output an -incremental run kept from the last run.
+    long getChunksReused();
+
+    long getRowsReused();
+
+    long getBytesReused();
+
+    long getHeapUsed();
+
+    long getHeapMax();
+
+    // Chunks each stage has done.
+    Map<String, Long> getStageCounts();
+
+    // Total time spent in each stage, over all of its threads.
+    Map<String, Double> getStageBusySeconds();
+
+    Map<String, Double> getStageMeanMillis();
+
+    Map<String, Double> getStageP99Millis();
+}
@@ -0,0 +1,354 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The output file, opened once per run. Text is encoded as UTF-8
+ * straight into a large direct buffer, which is written to the
+ * FileChannel whenever it fills up. The output can also go to a
+ * channel of the caller's, which is then left open.
+ *
+ * The output can also be gzipped. Each full buffer is then compressed
+ * on its own, on a pool of threads, into a separate gzip member, and the
+ * members are written in order. A file of concatenated members is a
+ * valid gzip file, and gunzip reads it as one stream.
+ */
+class OutputSink implements Closeable {
+
+    // Size of the direct buffer in front of the channel, and of the
+    // blocks that are compressed.
+    private static final int BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private final File file;
+    private final WritableByteChannel channel;
+    // Whether the channel is this sink's own, to close on close.
+    private final boolean ownChannel;
+    private final ByteBuffer buffer;
+    private long bytesWritten = 0L;
+
+    // Only set when gzipping: the compressing threads, and the members
+    // being compressed, in output order.
+    private final ExecutorService compressors;
+    private final ArrayDeque<Future<byte[]>> members = new ArrayDeque<Future<byte[]>>();
+    private final int maxMembers;
+    // Whether the threads are this sink's own, to shut down on close.
+    private final boolean ownCompressors;
+
+    /**
+     * Create the output file, replacing any old one.
+     * @param file the output file
+     */
+    OutputSink(File file)
+        throws IOException
+    {
+        this(file, 0L, 0);
+    }
+
+    /**
+     * Open the output file to carry on writing it from an earlier run:
+     * anything after the first resumeAt bytes is cut off.
+     * @param file the output file
+     * @param resumeAt length of the output to keep
+     */
+    OutputSink(File file, long resumeAt)
+        throws IOException
+    {
+        this(file, resumeAt, 0);
+    }
+
+    /**
+     * Open the output file, gzipped if gzipThreads isn't 0. When resuming
+     * a gzipped file, resumeAt must be the end of a gzip member, as it is
+     * after sync().
+     * @param file the output file
+     * @param resumeAt length of the output to keep, 0 to replace the file
+     * @param gzipThreads number of threads to compress on, 0 not to compress
+     */
+    OutputSink(File file, long resumeAt, int gzipThreads)
+        throws IOException
+    {
+        // Enough members to keep every thread busy while the oldest is written.
+        this(file, resumeAt, BUFFER_SIZE, newCompressors(gzipThreads), gzipThreads * 2, true);
+    }
+
+    /**
+     * Open an output file that shares its compressing threads with others,
+     * as the files of a partitioned output do.
+     * @param file the output file
+     * @param resumeAt length of the output to keep, 0 to replace the file
+     * @param bufferSize size of the buffer, and of the blocks that are compressed
+     * @param compressors the threads to compress on, from newCompressors(); null not to compress
+     * @param maxMembers most members to have waiting to be written
+     */
+    OutputSink(File file, long resumeAt, int bufferSize, ExecutorService compressors, int maxMembers)
+        throws IOException
+    {
+        this(file, resumeAt, bufferSize, compressors, maxMembers, false);
+    }
+
+    private OutputSink(File file, long resumeAt, int bufferSize, ExecutorService compressors, int maxMembers,
+                       boolean ownCompressors)
+        throws IOException
+    {
+        this.file = file;
+        this.compressors = compressors;
+        this.maxMembers = (compressors == null) ? 0 : maxMembers;
+        this.ownCompressors = ownCompressors;
+        this.ownChannel = true;
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file.toPath(),
+                                       StandardOpenOption.CREATE,
+                                       StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            if (ownCompressors && (compressors != null)) { compressors.shutdownNow(); }
+            throw e;
+        }
+        this.channel = channel;
+        try {
+            if (channel.size() < resumeAt) {
+                throw new IOException("Output file " + file + " is shorter (" + channel.size()
+                                      + " bytes) than the " + resumeAt + " bytes to resume from.");
+            }
+            channel.truncate(resumeAt);
+            channel.position(resumeAt);
+        } catch (IOException e) {
+            channel.close();
+            if (ownCompressors && (compressors != null)) { compressors.shutdownNow(); }
+            throw e;
+        }
+        this.bytesWritten = resumeAt;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Write to a channel, e.g. a socket or a pipe, rather than a file.
+     * The channel isn't closed on close().
+     * @param channel where to write
+     * @param name what to call the output in error messages
+     * @param gzipThreads number of threads to compress on, 0 not to compress
+     */
+    OutputSink(WritableByteChannel channel, String name, int gzipThreads) {
+        this.file = new File(name);
+        this.channel = channel;
+        this.ownChannel = false;
+        this.compressors = newCompressors(gzipThreads);
+        this.maxMembers = gzipThreads * 2;
+        this.ownCompressors = true;
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    /**
+     * @param threads number of threads to compress on
+     * @return a pool of daemon threads for compressing output, null if threads is 0
+     */
+    static ExecutorService newCompressors(int threads) {
+        if (threads <= 0) { return null; }
+        return Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "gzip-output");
+                t.setDaemon(true);
+                return t;
+            });
+    }
+
+    /**
+     * Write a String, encoded as UTF-8. Unpaired surrogates are written as '?'.
+     * @param s the String
+     */
+    void write(String s)
+        throws IOException
+    {
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            if (buffer.remaining() < 4) { drain(); }
+
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte)c);
+            } else if (c < 0x800) {
+                buffer.put((byte)(0xc0 | (c >> 6)));
+                buffer.put((byte)(0x80 | (c & 0x3f)));
+            } else if (!Character.isSurrogate(c)) {
+                buffer.put((byte)(0xe0 | (c >> 12)));
+                buffer.put((byte)(0x80 | ((c >> 6) & 0x3f)));
+                buffer.put((byte)(0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && (i + 1 < len)
+                       && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buffer.put((byte)(0xf0 | (cp >> 18)));
+                buffer.put((byte)(0x80 | ((cp >> 12) & 0x3f)));
+                buffer.put((byte)(0x80 | ((cp >> 6) & 0x3f)));
+                buffer.put((byte)(0x80 | (cp & 0x3f)));
+            } else {
+                buffer.put((byte)'?');
+            }
+        }
+    }
+
+    /**
+     * Write bytes, which must already be UTF-8.
+     * @param bytes the bytes
+     * @param offset where in bytes to start
+     * @param length number of bytes
+     */
+    void write(byte[] bytes, int offset, int length)
+        throws IOException
+    {
+        while (length > 0) {
+            if (!buffer.hasRemaining()) { drain(); }
+            int n = Math.min(length, buffer.remaining());
+            buffer.put(bytes, offset, n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Copy bytes of another file, which must already be UTF-8, e.g. lines
+     * an earlier run wrote.
+     * @param from the file
+     * @param position where in it to start
+     * @param length number of bytes
+     */
+    void write(FileChannel from, long position, long length)
+        throws IOException
+    {
+        while (length > 0) {
+            if (!buffer.hasRemaining()) { drain(); }
+            ByteBuffer into = buffer.slice();
+            if (into.remaining() > length) { into.limit((int)length); }
+            int n = from.read(into, position);
+            if (n < 0) {
+                throw new IOException("Can't copy to output file " + file + ": the file copied from ends at byte "
+                                      + position + ".");
+            }
+            buffer.position(buffer.position() + n);
+            position += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Write everything buffered so far to the file.
+     */
+    void flush()
+        throws IOException
+    {
+        drain();
+        writeMembers(true);
+    }
+
+    /**
+     * Write everything buffered so far to the file and wait until it is
+     * on the disk (if it is going to a file).
+     */
+    void sync()
+        throws IOException
+    {
+        flush();
+        if (!(channel instanceof FileChannel)) { return; }
+        try {
+            ((FileChannel)channel).force(false);
+        } catch (IOException e) {
+            throw new IOException("Failed to write output file " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return number of bytes in the file so far, including the buffer;
+     * when gzipping, just what is in the file, which is all of it after sync()
+     */
+    long getBytesWritten() {
+        return (compressors == null) ? bytesWritten + buffer.position() : bytesWritten;
+    }
+
+    /**
+     * Flush and close the file.
+     */
+    public void close()
+        throws IOException
+    {
+        try {
+            flush();
+        } finally {
+            if (ownCompressors && (compressors != null)) { compressors.shutdownNow(); }
+            if (ownChannel) { channel.close(); }
+        }
+    }
+
+    /**
+     * Empty the buffer: write it to the file, or hand it off to be
+     * compressed.
+     */
+    private void drain()
+        throws IOException
+    {
+        buffer.flip();
+        if (compressors == null) {
+            writeFully(buffer);
+        } else if (buffer.hasRemaining()) {
+            final byte[] block = new byte[buffer.remaining()];
+            buffer.get(block);
+            members.add(compressors.submit(() -> gzip(block)));
+            writeMembers(false);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Write the compressed members that are done, in order.
+     * @param all whether to wait for all of them; otherwise only for as
+     * many as it takes to get back under maxMembers
+     */
+    private void writeMembers(boolean all)
+        throws IOException
+    {
+        while (!members.isEmpty()
+               && (all || (members.size() > maxMembers) || members.peek().isDone())) {
+            byte[] member;
+            try {
+                member = members.peek().get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted compressing output file " + file);
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to compress output file " + file + ": " + e.getCause(), e);
+            }
+            members.poll();
+            writeFully(ByteBuffer.wrap(member));
+        }
+    }
+
+    private void writeFully(ByteBuffer bytes)
+        throws IOException
+    {
+        try {
+            while (bytes.hasRemaining()) {
+                bytesWritten += channel.write(bytes);
+            }
+        } catch (IOException e) {
+            throw new IOException("Failed to write output file " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static byte[] gzip(byte[] block)
+        throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(block.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out, 64 * 1024)) {
+            gzip.write(block);
+        }
+        return out.toByteArray();
+    }
+}
@@ -1,21 +1,45 @@
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import com.opencsv.CSVParser;
 import com.opencsv.CSVParserBuilder;
@@ -24,186 +48,2739 @@ import com.opencsv.CSVReaderBuilder;
 
 import java.text.SimpleDateFormat;
 
+/**
+ * Converts MATHia CSV exports to DataShop tab-delimited transactions.
+ *
+ * A converter is made with a Builder and holds all of the state of its
+ * conversions: the options, the column dictionaries, the skill index,
+ * the bad IDs and the metrics. Converters share nothing, so any number
+ * can run at once in one JVM, each with its own threads. A converter
+ * runs one conversion at a time, and its skill index carries over from
+ * one to the next, as it does between runs with -skill-index.
+ *
+ * There are three ways to run a conversion:
+ *   convert()                            the input files to the output file(s), as main() does
+ *   convert(InputStream, channel)        a CSV stream to DataShop lines on a channel (push)
+ *   parse(InputStream)                   an Iterator of the parsed lines (pull)
+ *
+ * main() is the command line: it only turns the args into a Builder.
+ */
 public class ParseMATHia {
 
     /** Constant for the format of dates. */
     public static final SimpleDateFormat DATE_FMT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
-    private static String inputFileName = null;
-    private static String outputFileName = null;
-    private static File debugFile = null;
+    private final String inputFileName;
+    private final String outputFileName;
+
+    // Where to log debugging messages, null for nowhere.
+    private final File debugLogFile;
+    private DebugLog debugLog = null;
 
     // In the first iteration, we had to parse ctContextId for the student id
-    private static Boolean origStudentId = false;
+    private final boolean origStudentId;
+
+    // Include ProblemStartTime. Don't do this. It's the same as the TransactionTime
+    // so it results in zero student hours being computed.
+    private final boolean includePST;
+
+    // Number of parse/format workers.
+    private final int numThreads;
+
+    // Read the input with OpenCSV rather than the memory-mapped tokenizer.
+    private final boolean useOpenCsv;
+
+    // Added to by the parse workers, so access must be synchronized.
+    private final Set<String> badIds = Collections.synchronizedSet(new TreeSet<String>());
+
+    // Carry on from the checkpoint of an earlier run that didn't finish.
+    private final boolean resume;
+
+    // Keep the output of the input that hasn't changed since the last run,
+    // and convert just the rest.
+    private final boolean incremental;
+
+    // Snapshots of the skill index to load before, and save after, the run.
+    private final String skillIndexInFileName;
+    private final String skillIndexOutFileName;
+    // Whether to find the first skill of each step in the input before
+    // converting it, so steps are tagged from later lines too.
+    private final boolean skillPrescan;
+
+    // Where to print progress lines, and seconds between them, 0 for none.
+    private final PrintStream progressOut;
+    private final int progressSeconds;
+
+    // Where to write the metrics of the run as JSON, besides debug.log.
+    private final String metricsFileName;
+
+    // Name to register the metrics under with JMX, null not to.
+    private final String jmxName;
+
+    // Counters and stage latencies of the current run.
+    private volatile Metrics metrics = new Metrics(badIds::size);
+
+    // Columnar cache of the parsed input: made from, or used instead of, the input.
+    private final String cacheFileName;
+
+    // Whether the workers encode cache blocks for the writer to save.
+    private volatile boolean buildingCache = false;
+
+    // Whether the last conversion failed part way, leaving a checkpoint to resume from.
+    private volatile boolean resumable = false;
+
+    // Column to split the output into a file per value of, null for one output file.
+    private final String partitionBy;
+    // With student-hash:N, the number of files to spread students over.
+    private final int studentBuckets;
+    // Most partition files to have open at once.
+    private final int maxOpenFiles;
+
+    // Longest a student can be idle and still be in the same session, 0 for everything in "session1".
+    private final long sessionGapMillis;
+    // Most memory to sort lines by student and time in, for sessions, before spilling them to disk.
+    private final long sortMemory;
+
+    // Whether to drop lines whose semanticeventid and content have already been written.
+    private final boolean dedupe;
+    // Most memory for the events seen so far, before spilling them to disk.
+    private final long dedupeMemory;
+    // Number of events to size a Bloom filter in front of them for, 0 for none.
+    private final long dedupeBloom;
+
+    // Most memory for the chunks of lines between reading and writing.
+    private final long memBudget;
+
+    // Where to write a student-step rollup of the output, null for nowhere.
+    private final String rollupFileName;
+    // Most memory for the steps of the rollup, before spilling them to disk.
+    private final long rollupMemory;
+
+    // What to do with lines that can't be converted: BadLines.FAIL, SKIP or QUARANTINE.
+    private final String onError;
+    // Where to write them if quarantined, null for next to the output file.
+    private final String rejectFileName;
+    // Most bad lines to skip, as a share of the lines, before failing anyway.
+    private final double maxErrorRate;
+
+    // Most values, and bytes of values, to keep in each column dictionary.
+    // Larger codes can't be packed into a SkillIndex key.
+    private static final int DICTIONARY_MAX_ENTRIES = 1 << 20;
+    private static final long DICTIONARY_MAX_BYTES = 64L * 1024 * 1024;
+
+    // Columns with few distinct values compared to the number of rows.
+    private final ColumnDictionary studentIds = newDictionary("ctcontextid");
+    private final ColumnDictionary assignments = newDictionary("assignmentid");
+    private final ColumnDictionary sections = newDictionary("sectionname");
+    private final ColumnDictionary problems = newDictionary("problemid");
+    private final ColumnDictionary goals = newDictionary("goalnodeid");
+    private final ColumnDictionary skills = newDictionary("skillid");
+    private final ColumnDictionary rules = newDictionary("ruleid");
+
+    private final ColumnDictionary[] dictionaries =
+        { studentIds, assignments, sections, problems, goals, skills, rules };
+
+    private static ColumnDictionary newDictionary(String column) {
+        return new ColumnDictionary(column, DICTIONARY_MAX_ENTRIES, DICTIONARY_MAX_BYTES);
+    }
+
+    // Keep track of skill mappings: (section, problem, goal)-tuple to skill.
+    private final SkillIndex skillIndex = new SkillIndex(sections, problems, goals);
+
+    // Chunks the writer is done with, so their buffers can be reused.
+    private final Queue<ParsedChunk> freeChunks = new ConcurrentLinkedQueue<ParsedChunk>();
+
+    private ParseMATHia(Builder builder) {
+        this.inputFileName = builder.inputFileName;
+        this.outputFileName = builder.outputFileName;
+        this.debugLogFile = builder.debugLogFile;
+        this.origStudentId = builder.origStudentId;
+        this.includePST = builder.includePST;
+        this.numThreads = builder.numThreads;
+        this.useOpenCsv = builder.useOpenCsv;
+        this.resume = builder.resume;
+        this.incremental = builder.incremental;
+        this.skillIndexInFileName = builder.skillIndexInFileName;
+        this.skillIndexOutFileName = builder.skillIndexOutFileName;
+        this.skillPrescan = builder.skillPrescan;
+        this.progressOut = builder.progressOut;
+        this.progressSeconds = builder.progressSeconds;
+        this.metricsFileName = builder.metricsFileName;
+        this.jmxName = builder.jmxName;
+        this.cacheFileName = builder.cacheFileName;
+        this.partitionBy = builder.partitionBy;
+        this.studentBuckets = builder.studentBuckets;
+        this.maxOpenFiles = builder.maxOpenFiles;
+        this.sessionGapMillis = builder.sessionGapMillis;
+        this.sortMemory = builder.sortMemory;
+        this.dedupe = builder.dedupe;
+        this.dedupeMemory = builder.dedupeMemory;
+        this.dedupeBloom = builder.dedupeBloom;
+        this.memBudget = builder.memBudget;
+        this.rollupFileName = builder.rollupFileName;
+        this.rollupMemory = builder.rollupMemory;
+        this.onError = builder.onError;
+        this.rejectFileName = builder.rejectFileName;
+        this.maxErrorRate = builder.maxErrorRate;
+        // Before anything is put in it, so the digest covers all of it.
+        if (incremental) { skillIndex.trackChanges(); }
+    }
+
+    /**
+     * @return a Builder for a converter, with the defaults of the command line
+     *         except that there is no debug log, progress line or JMX
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static void main(String[] args) {
+
+        Builder builder = builder()
+            .debugLog(new File("debug.log"))
+            .progress(System.err, 10)
+            .jmxName(Metrics.OBJECT_NAME);
+        ParseMATHia converter = null;
+        try {
+            List<String> unrecognized = new ArrayList<String>();
+            parseArgs(builder, args, unrecognized);
+            for (String arg : unrecognized) {
+                System.out.println("Unrecognized argument: " + arg);
+            }
+
+            if (builder.inputFileName == null) {
+                System.err.println("The input file name must be specified, using the '-i' arg.");
+                System.exit(-1);
+            }
+            if (builder.outputFileName == null) {
+                System.out.println("Using outputFileName of 'output.txt'.");
+                builder.output("output.txt");
+            }
+            converter = builder.build();
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(-1);
+        }
+
+        try {
+            converter.convert();
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            if (converter.canResume()) {
+                System.err.println("Rerun with '-resume' to continue from the last checkpoint.");
+            }
+            System.exit(-1);
+        }
+    }
+
+    /**
+     * Set the options given by command-line args.
+     * @param builder the options to set
+     * @param args the args
+     * @param unrecognized where to add any args that aren't options
+     * @throws IllegalArgumentException if an option is missing its value or the value can't be used
+     */
+    static void parseArgs(Builder builder, String[] args, List<String> unrecognized) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i].trim().toLowerCase();
+
+            if (arg.equals("-i") || arg.equals("-input")) {
+                if (++i < args.length) {
+                    builder.input(args[i]);
+                } else {
+                    throw new IllegalArgumentException("A file name must be specified with this arg.");
+                }
+            } else if (arg.equals("-o") || arg.equals("-output")) {
+                if (++i < args.length) {
+                    builder.output(args[i]);
+                } else {
+                    throw new IllegalArgumentException("A file name must be specified with this arg.");
+                }
+            } else if (arg.equals("-threads")) {
+                if (++i < args.length) {
+                    builder.threads((int)parseCount(args[i]));
+                } else {
+                    throw new IllegalArgumentException("A thread count must be specified with this arg.");
+                }
+            } else if (arg.equals("-tokenizer")) {
+                if (++i < args.length) {
+                    String tokenizer = args[i].trim().toLowerCase();
+                    if (tokenizer.equals("opencsv")) {
+                        builder.openCsv(true);
+                    } else if (tokenizer.equals("mapped")) {
+                        builder.openCsv(false);
+                    } else {
+                        throw new IllegalArgumentException("The tokenizer must be one of: mapped, opencsv.");
+                    }
+                } else {
+                    throw new IllegalArgumentException("A tokenizer must be specified with this arg.");
+                }
+            } else if (arg.equals("-resume")) {
+                builder.resume(true);
+            } else if (arg.equals("-incremental")) {
+                builder.incremental(true);
+            } else if (arg.equals("-skill-index") || arg.equals("-skill-index-in")
+                       || arg.equals("-skill-index-out")) {
+                if (++i < args.length) {
+                    if (!arg.equals("-skill-index-out")) { builder.skillIndexIn(args[i]); }
+                    if (!arg.equals("-skill-index-in")) { builder.skillIndexOut(args[i]); }
+                } else {
+                    throw new IllegalArgumentException("A file name must be specified with this arg.");
+                }
+            } else if (arg.equals("-skill-prescan")) {
+                builder.skillPrescan(true);
+            } else if (arg.equals("-progress")) {
+                if (++i < args.length) {
+                    builder.progress(System.err, (int)parseCount(args[i]));
+                } else {
+                    throw new IllegalArgumentException("A number of seconds must be specified with this arg.");
+                }
+            } else if (arg.equals("-partition-by")) {
+                if (++i < args.length) {
+                    builder.partitionBy(args[i]);
+                } else {
+                    throw new IllegalArgumentException("A partitioning must be specified with this arg.");
+                }
+            } else if (arg.equals("-session-gap")) {
+                if (++i < args.length) {
+                    double minutes;
+                    try {
+                        minutes = Double.parseDouble(args[i]);
+                    } catch (NumberFormatException e) {
+                        minutes = -1;
+                    }
+                    builder.sessionGap(Math.round(minutes * 60 * 1000));
+                } else {
+                    throw new IllegalArgumentException("A number of minutes must be specified with this arg.");
+                }
+            } else if (arg.equals("-sort-memory")) {
+                if (++i < args.length) {
+                    builder.sortMemory(parseSize(args[i]));
+                } else {
+                    throw new IllegalArgumentException("A size must be specified with this arg.");
+                }
+            } else if (arg.equals("-dedupe")) {
+                builder.dedupe(true);
+            } else if (arg.equals("-dedupe-memory")) {
+                if (++i < args.length) {
+                    builder.dedupeMemory(parseSize(args[i]));
+                } else {
+                    throw new IllegalArgumentException("A size must be specified with this arg.");
+                }
+            } else if (arg.equals("-mem-budget")) {
+                if (++i < args.length) {
+                    builder.memBudget(parseSize(args[i]));
+                } else {
+                    throw new IllegalArgumentException("A size must be specified with this arg.");
+                }
+            } else if (arg.equals("-rollup")) {
+                if (++i < args.length) {
+                    builder.rollup(args[i]);
+                } else {
+                    throw new IllegalArgumentException("A file name must be specified with this arg.");
+                }
+            } else if (arg.equals("-rollup-memory")) {
+                if (++i < args.length) {
+                    builder.rollupMemory(parseSize(args[i]));
+                } else {
+                    throw new IllegalArgumentException("A size must be specified with this arg.");
+                }
+            } else if (arg.equals("-on-error")) {
+                if (++i < args.length) {
+                    builder.onError(args[i]);
+                } else {
+                    throw new IllegalArgumentException("What to do on error must be specified with this arg.");
+                }
+            } else if (arg.equals("-reject-file")) {
+                if (++i < args.length) {
+                    builder.rejectFile(args[i]);
+                } else {
+                    throw new IllegalArgumentException("A file name must be specified with this arg.");
+                }
+            } else if (arg.equals("-max-error-rate")) {
+                double rate = -1.0;
+                if (++i < args.length) {
+                    try {
+                        rate = Double.parseDouble(args[i]);
+                    } catch (NumberFormatException e) {
+                        // Caught by maxErrorRate().
+                    }
+                    builder.maxErrorRate(rate);
+                } else {
+                    throw new IllegalArgumentException("A share of the lines must be specified with this arg.");
+                }
+            } else if (arg.equals("-dedupe-bloom")) {
+                if (++i < args.length) {
+                    builder.dedupeBloom(parseCount(args[i]));
+                } else {
+                    throw new IllegalArgumentException("A number of events must be specified with this arg.");
+                }
+            } else if (arg.equals("-max-open-files")) {
+                if (++i < args.length) {
+                    builder.maxOpenFiles((int)parseCount(args[i]));
+                } else {
+                    throw new IllegalArgumentException("A number of files must be specified with this arg.");
+                }
+            } else if (arg.equals("-cache")) {
+                if (++i < args.length) {
+                    builder.cache(args[i]);
+                } else {
+                    throw new IllegalArgumentException("A file name must be specified with this arg.");
+                }
+            } else if (arg.equals("-metrics")) {
+                if (++i < args.length) {
+                    builder.metrics(args[i]);
+                } else {
+                    throw new IllegalArgumentException("A file name must be specified with this arg.");
+                }
+            } else {
+                unrecognized.add(args[i]);
+            }
+        }
+    }
+
+    /**
+     * Convert the input files to the output file, or files if partitioned.
+     * @return number of lines read
+     * @throws IllegalStateException if no input or output file name was given
+     * @throws Exception if the conversion failed; the message says what failed
+     */
+    public long convert()
+        throws Exception
+    {
+        if (inputFileName == null) {
+            throw new IllegalStateException("The input file name must be specified.");
+        }
+        if (outputFileName == null) {
+            throw new IllegalStateException("The output file name must be specified.");
+        }
+
+        openDebugLog();
+        try {
+            debug("Starting... " + new Date());
+
+            List<File> inputFiles = null;
+            try {
+                inputFiles = InputFiles.expand(inputFileName);
+            } catch (IOException e) {
+                throw new IOException("Failed to find input files: " + e.toString(), e);
+            }
+            if (inputFiles.size() > 1) {
+                debug("Converting " + inputFiles.size() + " input files, in this order:");
+                for (File f : inputFiles) {
+                    debug(f.toString());
+                }
+            }
+
+            File checkpointFile = getCheckpointFile();
+            Checkpoint resumeFrom = null;
+            if (resume) {
+                if (checkpointFile.exists()) {
+                    try {
+                        resumeFrom = Checkpoint.load(checkpointFile, skillIndex);
+                    } catch (IOException e) {
+                        throw new IOException("Failed to load checkpoint: " + e.toString(), e);
+                    }
+                    if (!resumeFrom.matches(inputFiles)) {
+                        throw new IOException("Checkpoint " + checkpointFile + " is for different or changed input"
+                                              + " files; delete it to start over.");
+                    }
+                    debug("Resuming after line " + resumeFrom.linesRead + " of " + resumeFrom.inputPath + ", "
+                          + resumeFrom.rowsWritten + " line(s) already written.");
+                } else {
+                    debug("No checkpoint to resume from; starting from the beginning.");
+                }
+            }
+
+            // The skill index in a checkpoint already has anything loaded at the start.
+            if (resumeFrom == null) { loadSkillIndex(); }
+
+            // A cache made from these inputs is read instead of them; otherwise one is made.
+            ColumnCache.Reader cacheIn = null;
+            ColumnCache.Writer cacheOut = null;
+            if (cacheFileName != null) {
+                File cacheFile = new File(cacheFileName);
+                if (resumeFrom != null) {
+                    debug("Resuming from a checkpoint, so not using or making cache " + cacheFileName);
+                } else {
+                    if (cacheFile.exists()) {
+                        try {
+                            Set<String> columns = new HashSet<String>(OUTPUT_CACHE_COLUMNS);
+                            if (dedupe) { columns.add(SEMANTIC_EVENT_ID); }
+                            cacheIn = new ColumnCache.Reader(cacheFile, CACHE_COLUMNS, columns);
+                            if (!cacheIn.matches(inputFiles)) {
+                                debug("Cache " + cacheFileName
+                                      + " is for different or changed input files; rebuilding it.");
+                                cacheIn.close();
+                                cacheIn = null;
+                            }
+                        } catch (IOException e) {
+                            debug(e.getMessage() + " Rebuilding it.");
+                        }
+                    }
+                    if (cacheIn != null) {
+                        debug("Reading " + cacheIn.getRows() + " line(s) from cache " + cacheFileName);
+                    } else {
+                        try {
+                            cacheOut = new ColumnCache.Writer(cacheFile, inputFiles, CACHE_COLUMNS);
+                        } catch (IOException e) {
+                            throw new IOException("Failed to create cache: " + e.toString(), e);
+                        }
+                    }
+                }
+            }
+
+            // The last -incremental run's output is kept for the input that hasn't changed since.
+            ChunkManifest manifestIn = null;
+            ChunkManifest.Writer manifestOut = null;
+            if (incremental) {
+                File manifestFile = new File(outputFileName + MANIFEST_SUFFIX);
+                if (manifestFile.exists()) {
+                    try {
+                        manifestIn = ChunkManifest.load(manifestFile, getIncrementalOptions(),
+                                                        new File(outputFileName));
+                        debug("Found " + manifestIn.getChunks() + " chunk(s) of output from the last run in"
+                              + " manifest " + manifestFile);
+                    } catch (IOException e) {
+                        debug(e.getMessage() + " Converting all of the input.");
+                    }
+                } else {
+                    debug("No manifest " + manifestFile + " from an earlier run; converting all of the input.");
+                }
+                try {
+                    manifestOut = new ChunkManifest.Writer(manifestFile, getIncrementalOptions(),
+                                                           new File(outputFileName));
+                } catch (IOException e) {
+                    if (manifestIn != null) { manifestIn.close(); }
+                    throw new IOException("Failed to create manifest: " + e.toString(), e);
+                }
+            }
+
+            long numLines = run(inputFiles, checkpointFile, resumeFrom, cacheIn, cacheOut, manifestIn, manifestOut,
+                                null, null);
+
+            debug("Finished parsing " + numLines + " lines at: " + new Date());
+
+            saveSkillIndex();
+
+            // The run is complete, so there is nothing to resume.
+            if ((checkpointFile != null) && checkpointFile.exists() && !checkpointFile.delete()) {
+                debug("Failed to delete checkpoint " + checkpointFile);
+            }
+
+            report(inputFileName, outputFileName);
+            return numLines;
+        } finally {
+            closeDebugLog();
+        }
+    }
+
+    /**
+     * Convert CSV from a stream, which may be gzipped, and write the
+     * DataShop lines, with the header, to a channel; neither is closed.
+     * There are no checkpoints, cache or partitions, but sessions and
+     * dropping duplicates work as they do for files.
+     * @param in the MATHia export
+     * @param out where to write the output
+     * @return number of lines read
+     * @throws IllegalStateException if the output is partitioned, skills are pre-scanned, the run is
+     *         incremental, or bad lines are quarantined without a reject file name
+     * @throws Exception if the conversion failed; the message says what failed
+     */
+    public long convert(InputStream in, WritableByteChannel out)
+        throws Exception
+    {
+        if (partitionBy != null) {
+            throw new IllegalStateException("Partitioned output needs an output file name.");
+        }
+        if (skillPrescan) {
+            throw new IllegalStateException("Pre-scanning skills needs input files, which can be read twice.");
+        }
+        if (incremental) {
+            throw new IllegalStateException("An incremental run needs an output file, to keep output from.");
+        }
+        if (onError.equals(BadLines.QUARANTINE) && (rejectFileName == null)) {
+            throw new IllegalStateException("Quarantining bad lines needs a reject file name when the output"
+                                            + " isn't a file.");
+        }
+
+        openDebugLog();
+        try {
+            debug("Starting... " + new Date());
+            loadSkillIndex();
+            long numLines = run(Collections.singletonList(new File(STREAM_NAME)), null, null, null, null, null, null,
+                                unclosable(in), out);
+            debug("Finished parsing " + numLines + " lines at: " + new Date());
+            saveSkillIndex();
+            report(STREAM_NAME, STREAM_NAME);
+            return numLines;
+        } finally {
+            closeDebugLog();
+        }
+    }
+
+    /**
+     * Parse CSV from a stream, which may be gzipped, a chunk of lines at a
+     * time as the Iterator is advanced, on the caller's thread. Each line
+     * has its "MATHia New" skill, which depends on the lines before it,
+     * so the lines should all be taken, in order. There are no sessions,
+     * and duplicates aren't dropped. Bad lines are skipped, with no reject
+     * file, unless they fail the run, as they do by default. The stream
+     * isn't closed.
+     * @param in the MATHia export
+     * @return the parsed lines; hasNext() and next() throw UncheckedIOException if the input can't be read
+     *         or, unless skipping them, when they get to a bad line
+     * @throws IllegalStateException if skills are pre-scanned or the run is incremental
+     */
+    public Iterator<DataShopTxnData> parse(InputStream in)
+        throws IOException
+    {
+        if (skillPrescan) {
+            throw new IllegalStateException("Pre-scanning skills needs input files, which can be read twice.");
+        }
+        if (incremental) {
+            throw new IllegalStateException("An incremental run needs an output file, to keep output from.");
+        }
+        CsvChunkReader reader = CsvChunkReader.open(unclosable(in), new File(STREAM_NAME));
+        CsvChunkReader.Chunk header = reader.nextChunk(1);
+        String[] headers = (header == null) ? new String[0] : header.tokenize().get(0);
+        final Map<String, Integer> colIndexMap = (header == null) ? Collections.emptyMap() : parseHeader(headers);
+        final int fieldsNeeded = fieldsNeeded(colIndexMap);
+        final boolean[] columns = columnsNeeded(colIndexMap, true);
+        // Only one chunk is parsed at a time.
+        ChunkBudget budget = new ChunkBudget(memBudget, 1);
+        final long maxBytes = budget.getChunkCsvBytes();
+        final int lineBytes = budget.getLineCsvBytes(headers.length);
+
+        return new Iterator<DataShopTxnData>() {
+            // The lines of the current chunk, parsed, with their skill keys.
+            private final ParsedChunk parsed = new ParsedChunk();
+            private int next = 0;
+            private boolean done = (header == null);
+
+            @Override
+            public boolean hasNext() {
+                try {
+                    while (!done) {
+                        // Bad lines are skipped, unless they are to fail the run.
+                        while ((next < parsed.size) && (parsed.errors[next] != BadLines.OK)) {
+                            if (onError.equals(BadLines.FAIL)) {
+                                throw new IOException("Bad input at "
+                                                      + BadLines.describe(parsed.file, parsed.firstLineNum + next,
+                                                                          parsed.offset(next), parsed.errors[next])
+                                                      + ".");
+                            }
+                            next++;
+                        }
+                        if (next < parsed.size) { break; }
+
+                        CsvChunkReader.Chunk chunk = reader.nextChunk(ChunkBudget.MAX_CHUNK_ROWS, maxBytes, lineBytes);
+                        if (chunk == null) {
+                            done = true;
+                            reader.close();
+                        } else {
+                            List<String[]> rows = chunk.tokenize(columns);
+                            parsed.reset(rows.size());
+                            parsed.source = chunk;
+                            parsed.file = new File(STREAM_NAME);
+                            // The header is the first record.
+                            parsed.firstLineNum = chunk.firstRecord + 1;
+                            for (int i = 0; i < rows.size(); i++) {
+                                int error = parseLine(rows.get(i), colIndexMap, fieldsNeeded, parsed.lines, i);
+                                if (error == BadLines.OK) {
+                                    setSkillKey(parsed, i);
+                                } else {
+                                    parsed.reject(i, error, null);
+                                }
+                            }
+                            next = 0;
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return !done;
+            }
+
+            @Override
+            public DataShopTxnData next() {
+                if (!hasNext()) { throw new NoSuchElementException(); }
+                int i = next++;
+                DataShopTxnData o = toTransaction(parsed.lines, i);
+                if (parsed.skillKeys[i] != NO_SKILL_KEY) {
+                    o.setMathiaNewSkill(computeMathiaNewSkill(parsed.skillKeys[i], parsed.uncodedSkillKeys[i],
+                                                              parsed.skills[i]));
+                }
+                return o;
+            }
+        };
+    }
+
+    /**
+     * Format a parsed line as an output line, without the line break.
+     * @param o the line, with its "MATHia New" skill, as from parse()
+     * @return the DataShop line
+     */
+    public String format(DataShopTxnData o) {
+        TransactionBatch line = new TransactionBatch();
+        line.reset(1);
+        fromTransaction(o, line, 0);
+        RowEncoder encoder = new RowEncoder(DATE_FMT, 1024);
+        encodeOutputHead(line, 0, encoder);
+        if (o.getMathiaNewSkill() != null) { encoder.append(o.getMathiaNewSkill()); }
+        encodeOutputTail(line, 0, encoder);
+        return new String(encoder.array(), 0, encoder.position() - NEW_LINE_BYTES.length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return a line of a batch as an object of its own, without its "MATHia New" skill
+     */
+    DataShopTxnData toTransaction(TransactionBatch lines, int i) {
+        DataShopTxnData o = new DataShopTxnData();
+        o.anonStudentIdCode = lines.studentCodes[i];
+        o.anonStudentId = lines.students[i];
+        o.sessionId = lines.sessions[i];
+        o.transactionTime = (lines.times[i] == TransactionBatch.NO_TIME) ? null : new Date(lines.times[i]);
+        o.assignmentLevelCode = lines.assignmentCodes[i];
+        o.assignmentLevel = lines.assignments[i];
+        o.sectionLevelCode = lines.sectionCodes[i];
+        o.sectionLevel = lines.sections[i];
+        o.problemNameCode = lines.problemCodes[i];
+        o.problemName = lines.problems[i];
+        o.selection = lines.selections[i];
+        o.action = lines.actions[i];
+        o.input = lines.inputs[i];
+        o.problemStartTime = (lines.problemStartTimes[i] == TransactionBatch.NO_TIME)
+            ? null : new Date(lines.problemStartTimes[i]);
+        o.stepNameCode = lines.stepCodes[i];
+        o.stepName = lines.steps[i];
+        o.outcome = lines.outcomes[i];
+        o.studentResponseType = lines.studentResponseTypes[i];
+        o.mathiaSkillCode = lines.skillCodes[i];
+        o.mathiaSkill = lines.skills[i];
+        o.ruleIdCode = lines.ruleCodes[i];
+        o.ruleId = lines.rules[i];
+        o.skillPreviousPKnown = lines.getPreviousPKnown(i);
+        o.skillNewPKnown = lines.getNewPKnown(i);
+        o.sectionProgressStatus = lines.progressStatuses[i];
+        o.schoolId = lines.schoolIds[i];
+        o.attemptAtStep = lines.attempts[i];
+        o.helpLevel = lines.helpLevels[i];
+        o.semanticEventId = lines.eventIds[i];
+        return o;
+    }
+
+    /**
+     * Put a line into a batch, as parseLine() would have.
+     */
+    private static void fromTransaction(DataShopTxnData o, TransactionBatch lines, int i) {
+        lines.studentCodes[i] = o.anonStudentIdCode;
+        lines.students[i] = o.anonStudentId;
+        lines.sessions[i] = o.sessionId;
+        lines.times[i] = (o.transactionTime == null) ? TransactionBatch.NO_TIME : o.transactionTime.getTime();
+        lines.assignmentCodes[i] = o.assignmentLevelCode;
+        lines.assignments[i] = o.assignmentLevel;
+        lines.sectionCodes[i] = o.sectionLevelCode;
+        lines.sections[i] = o.sectionLevel;
+        lines.problemCodes[i] = o.problemNameCode;
+        lines.problems[i] = o.problemName;
+        lines.selections[i] = o.selection;
+        lines.actions[i] = o.action;
+        lines.inputs[i] = o.input;
+        lines.problemStartTimes[i] = (o.problemStartTime == null)
+            ? TransactionBatch.NO_TIME : o.problemStartTime.getTime();
+        lines.stepCodes[i] = o.stepNameCode;
+        lines.steps[i] = o.stepName;
+        lines.outcomes[i] = o.outcome;
+        lines.studentResponseTypes[i] = o.studentResponseType;
+        lines.skillCodes[i] = o.mathiaSkillCode;
+        lines.skills[i] = o.mathiaSkill;
+        lines.ruleCodes[i] = o.ruleIdCode;
+        lines.rules[i] = o.ruleId;
+        lines.setPreviousPKnown(i, o.skillPreviousPKnown);
+        lines.setNewPKnown(i, o.skillNewPKnown);
+        lines.progressStatuses[i] = o.sectionProgressStatus;
+        lines.schoolIds[i] = o.schoolId;
+        lines.attempts[i] = o.attemptAtStep;
+        lines.helpLevels[i] = o.helpLevel;
+        lines.eventIds[i] = o.semanticEventId;
+    }
+
+    /**
+     * @return the numbers of the current or last conversion
+     */
+    public MetricsMXBean getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the numbers of the current or last conversion, as JSON
+     */
+    String getMetricsJson() {
+        return metrics.toJson(String.valueOf(inputFileName), String.valueOf(outputFileName), numThreads);
+    }
+
+    /**
+     * @return the input file name, directory or glob, null if not given
+     */
+    String getInputFileName() {
+        return inputFileName;
+    }
+
+    /**
+     * @return the output file name, null if not given
+     */
+    String getOutputFileName() {
+        return outputFileName;
+    }
+
+    /**
+     * @return whether a conversion that failed left a checkpoint to resume from
+     */
+    public boolean canResume() {
+        return resumable;
+    }
+
+    /**
+     * Checkpoints need byte offsets in the input, which OpenCSV doesn't give,
+     * and a single output file, written in input order. The events seen so
+     * far, for dropping duplicates, and the steps of a rollup aren't saved
+     * in them. An -incremental run only replaces the output at the end, so
+     * has nothing to resume.
+     * @return where to save checkpoints, null for nowhere
+     */
+    private File getCheckpointFile() {
+        if (useOpenCsv || (partitionBy != null) || (sessionGapMillis > 0) || dedupe || (rollupFileName != null)
+            || incremental || (outputFileName == null)) {
+            return null;
+        }
+        return new File(outputFileName + CHECKPOINT_SUFFIX);
+    }
+
+    /**
+     * @return where to write quarantined lines: the reject file, or the
+     *         output file with ".rejects"; null if neither was given
+     */
+    private File getRejectFile() {
+        if (rejectFileName != null) { return new File(rejectFileName); }
+        return (outputFileName == null) ? null : new File(outputFileName + REJECTS_SUFFIX);
+    }
+
+    /**
+     * @return what the output's lines depend on besides the input and the
+     *         skill index, for an -incremental run to check it has the same
+     */
+    private String getIncrementalOptions() {
+        return "origStudentId=" + origStudentId + ",includePST=" + includePST
+            + ",timeZone=" + DATE_FMT.getTimeZone().getID();
+    }
+
+    /**
+     * Run the conversion, with its metrics.
+     * @param stream input to read instead of the input file, null to read the file
+     * @param channel where to write the output instead of the output file, null to write the file
+     * @return number of lines read
+     */
+    private long run(List<File> inputFiles, File checkpointFile, Checkpoint resumeFrom,
+                     ColumnCache.Reader cacheIn, ColumnCache.Writer cacheOut,
+                     ChunkManifest manifestIn, ChunkManifest.Writer manifestOut,
+                     InputStream stream, WritableByteChannel channel)
+        throws Exception
+    {
+        badIds.clear();
+        resumable = false;
+        metrics = new Metrics(badIds::size);
+        if (jmxName != null) { metrics.register(jmxName); }
+        if (progressOut != null) { metrics.start(progressOut, progressSeconds); }
+        try {
+            // A checkpoint's skill index already has what the pre-scan found.
+            if (skillPrescan && (resumeFrom == null)) { prescanSkills(inputFiles); }
+            return parseInputFiles(inputFiles, checkpointFile, resumeFrom, cacheIn, cacheOut, manifestIn, manifestOut,
+                                   stream, channel);
+        } catch (Exception e) {
+            resumable = (checkpointFile != null) && checkpointFile.exists();
+            throw new IOException("Failed to parse input file: " + e.toString(), e);
+        } finally {
+            metrics.stop();
+            metrics.unregister();
+        }
+    }
+
+    private void loadSkillIndex()
+        throws IOException
+    {
+        if (skillIndexInFileName == null) { return; }
+        File skillIndexIn = new File(skillIndexInFileName);
+        // With -skill-index, the first run starts without a snapshot.
+        if (skillIndexIn.exists() || !skillIndexInFileName.equals(skillIndexOutFileName)) {
+            try {
+                skillIndex.load(skillIndexIn);
+            } catch (IOException e) {
+                throw new IOException("Failed to load skill index: " + e.toString(), e);
+            }
+            debug("Loaded " + skillIndex.size() + " skill mapping(s) from " + skillIndexInFileName);
+        }
+    }
+
+    private void saveSkillIndex()
+        throws IOException
+    {
+        if (skillIndexOutFileName == null) { return; }
+        try {
+            skillIndex.save(new File(skillIndexOutFileName));
+        } catch (IOException e) {
+            throw new IOException("Failed to save skill index: " + e.toString(), e);
+        }
+        debug("Saved " + skillIndex.size() + " skill mapping(s) to " + skillIndexOutFileName);
+    }
+
+    /**
+     * The first pass of -skill-prescan: read just the section, problem,
+     * goal and skill columns of the input files, and give each tuple with
+     * no skill in the index yet the first skill it has in the input. The
+     * conversion then tags lines as it always does, so an untagged step
+     * before its tuple's first skill gets that skill, and one after gets
+     * the last skill before it.
+     *
+     * Chunks are tokenized on numThreads threads, each finding the first
+     * skill of each tuple in its chunk, and merged into the index in input
+     * order. Lines are only checked for having all of the columns, so a
+     * line skipped as bad later on can still give a tuple its skill.
+     * @param inputFiles the input files, in order
+     * @return number of tuples given a skill
+     */
+    int prescanSkills(List<File> inputFiles)
+        throws Exception
+    {
+        long start = System.nanoTime();
+        long lines = 0L;
+        long bytes = 0L;
+        int added = 0;
+        // Room for a chunk on each worker and one waiting behind it.
+        int inFlight = numThreads * 2;
+        ChunkBudget budget = new ChunkBudget(memBudget, inFlight);
+        ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+        try {
+            for (File file : inputFiles) {
+                try (CsvChunkReader reader = CsvChunkReader.open(file)) {
+                    CsvChunkReader.Chunk header = reader.nextChunk(1);
+                    if (header == null) { continue; }
+                    bytes += header.end - header.start;
+                    String[] headers = header.tokenize().get(0);
+                    Map<String, Integer> colIndexMap = parseHeader(headers);
+                    final int fieldsNeeded = fieldsNeeded(colIndexMap);
+                    final int[] index = new int[4];
+                    final String[] names = { SECTION_NAME, PROBLEM_ID, GOAL_NODE_ID, SKILL_ID };
+                    boolean[] columns = new boolean[fieldsNeeded];
+                    for (int c = 0; c < names.length; c++) {
+                        Integer i = colIndexMap.get(names[c]);
+                        if (i == null) {
+                            throw new IOException(file + " has no " + names[c] + " column.");
+                        }
+                        index[c] = i;
+                        columns[i] = true;
+                    }
+
+                    long maxBytes = budget.getChunkCsvBytes();
+                    int lineBytes = budget.getLineCsvBytes(headers.length);
+                    Queue<Future<Map<SkillIndex.Tuple, String>>> pending =
+                        new ArrayDeque<Future<Map<SkillIndex.Tuple, String>>>();
+                    CsvChunkReader.Chunk chunk;
+                    while ((chunk = reader.nextChunk(ChunkBudget.MAX_CHUNK_ROWS, maxBytes, lineBytes)) != null) {
+                        final CsvChunkReader.Chunk rows = chunk;
+                        pending.add(workers.submit(() -> firstSkills(rows.tokenize(columns), index, fieldsNeeded)));
+                        lines += chunk.records;
+                        bytes += chunk.end - chunk.start;
+                        if (pending.size() >= inFlight) { added += mergeSkills(pending.remove().get()); }
+                    }
+                    while (!pending.isEmpty()) { added += mergeSkills(pending.remove().get()); }
+                }
+            }
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof Exception) ? (Exception)e.getCause() : e;
+        } finally {
+            workers.shutdownNow();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        metrics.setPrescan(bytes, seconds, added);
+        debug(String.format("Pre-scanned %d line(s), %.1f MB, for skills in %.2f s (%.1f MB/s): found the first"
+                            + " skill of %d step(s).",
+                            lines, bytes / (1024.0 * 1024.0), seconds,
+                            bytes / (1024.0 * 1024.0) / Math.max(seconds, 1e-9), added));
+        return added;
+    }
+
+    /**
+     * @param rows tokenized lines
+     * @param index indices of the section, problem, goal and skill columns
+     * @param fieldsNeeded number of fields a line needs, from fieldsNeeded()
+     * @return the first skill of each tuple in the lines, in the order found
+     */
+    private static Map<SkillIndex.Tuple, String> firstSkills(List<String[]> rows, int[] index, int fieldsNeeded) {
+        Map<SkillIndex.Tuple, String> result = new LinkedHashMap<SkillIndex.Tuple, String>();
+        for (String[] st : rows) {
+            if ((st.length < 17) || (st.length < fieldsNeeded)) { continue; }
+            String skill = st[index[3]];
+            if (skill.trim().equals("")) { continue; }
+            result.putIfAbsent(new SkillIndex.Tuple(st[index[0]], st[index[1]], st[index[2]]), skill);
+        }
+        return result;
+    }
+
+    /**
+     * Add skills from firstSkills() to the index, for tuples without one.
+     * @return number of tuples given a skill
+     */
+    private int mergeSkills(Map<SkillIndex.Tuple, String> skills) {
+        int added = 0;
+        for (Map.Entry<SkillIndex.Tuple, String> e : skills.entrySet()) {
+            SkillIndex.Tuple t = e.getKey();
+            if (skillIndex.putIfAbsent(t.section, t.problem, t.goal, e.getValue())) { added++; }
+        }
+        return added;
+    }
+
+    /**
+     * Log the dictionaries, bad IDs and metrics of the run, and write the
+     * metrics to the metrics file.
+     */
+    private void report(String input, String output) {
+        for (ColumnDictionary d : dictionaries) {
+            debug(d.getStats());
+        }
+
+        synchronized (badIds) {
+            if (badIds.size() > 0) { debug("Found " + badIds.size() + " bad ID(s):"); }
+            for (String s : badIds) {
+                debug(s);
+            }
+        }
+
+        String summary = metrics.toJson(input, output, numThreads);
+        debug("Metrics: " + summary);
+        if (metricsFileName != null) {
+            try {
+                Files.write(Paths.get(metricsFileName), summary.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                System.err.println("Failed to write metrics: " + e.toString());
+            }
+        }
+    }
+
+    /**
+     * @return the stream, except that closing it does nothing
+     */
+    private static InputStream unclosable(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public void close() { }
+        };
+    }
+
+    /**
+     * @return the number, -1 if it isn't a whole number
+     */
+    private static long parseCount(String count) {
+        try {
+            return Long.parseLong(count.trim());
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    private void openDebugLog() {
+        if (debugLogFile == null) { return; }
+        try {
+            debugLog = new DebugLog(debugLogFile);
+        } catch (IOException e) {
+            System.err.println("Failed to create debugging file: " + e.toString());
+            debugLog = null;
+        }
+    }
+
+    /**
+     * Options for a converter. The defaults are those of the command line,
+     * except that there is no debug log, progress line or JMX. Setters
+     * throw IllegalArgumentException for values that can't be used.
+     */
+    public static class Builder {
+
+        private String inputFileName = null;
+        private String outputFileName = null;
+        private File debugLogFile = null;
+        private boolean origStudentId = false;
+        private boolean includePST = false;
+        private int numThreads = Runtime.getRuntime().availableProcessors();
+        private boolean useOpenCsv = false;
+        private boolean resume = false;
+        private boolean incremental = false;
+        private String skillIndexInFileName = null;
+        private String skillIndexOutFileName = null;
+        private boolean skillPrescan = false;
+        private PrintStream progressOut = null;
+        private int progressSeconds = 0;
+        private String metricsFileName = null;
+        private String jmxName = null;
+        private String cacheFileName = null;
+        private String partitionBy = null;
+        private int studentBuckets = 0;
+        private int maxOpenFiles = 64;
+        private long sessionGapMillis = 0L;
+        private long sortMemory = 256L * 1024 * 1024;
+        private boolean dedupe = false;
+        private long dedupeMemory = 512L * 1024 * 1024;
+        private long dedupeBloom = 0L;
+        // A quarter of the heap, up to 256m.
+        private long memBudget = Math.max(ChunkBudget.MIN_BUDGET,
+                                          Math.min(256L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 4));
+        private String rollupFileName = null;
+        private long rollupMemory = 256L * 1024 * 1024;
+        private String onError = BadLines.FAIL;
+        private String rejectFileName = null;
+        private double maxErrorRate = 0.01;
+
+        private Builder() { }
+
+        /**
+         * @param fileName input file, directory or glob, as for '-i'
+         */
+        public Builder input(String fileName) {
+            this.inputFileName = fileName;
+            return this;
+        }
+
+        /**
+         * @param fileName output file; a ".gz" name gets gzipped output
+         */
+        public Builder output(String fileName) {
+            this.outputFileName = fileName;
+            return this;
+        }
+
+        /**
+         * @param threads number of parse/format workers
+         */
+        public Builder threads(int threads) {
+            if (threads < 1) {
+                throw new IllegalArgumentException("The number of threads must be a positive integer.");
+            }
+            this.numThreads = threads;
+            return this;
+        }
+
+        /**
+         * @param openCsv whether to read the input with OpenCSV rather than the memory-mapped tokenizer
+         */
+        public Builder openCsv(boolean openCsv) {
+            this.useOpenCsv = openCsv;
+            return this;
+        }
+
+        /**
+         * @param resume whether to carry on from the checkpoint of an earlier run that didn't finish
+         */
+        public Builder resume(boolean resume) {
+            this.resume = resume;
+            return this;
+        }
+
+        /**
+         * @param incremental whether to keep the output of the input that hasn't changed since the last
+         *        incremental run, and convert just the rest
+         */
+        public Builder incremental(boolean incremental) {
+            this.incremental = incremental;
+            return this;
+        }
+
+        /**
+         * @param fileName skill index snapshot to load before converting, null for none
+         */
+        public Builder skillIndexIn(String fileName) {
+            this.skillIndexInFileName = fileName;
+            return this;
+        }
+
+        /**
+         * @param fileName where to save the skill index after converting, null for nowhere
+         */
+        public Builder skillIndexOut(String fileName) {
+            this.skillIndexOutFileName = fileName;
+            return this;
+        }
+
+        /**
+         * @param prescan whether to read the skills of all of the input before converting it, so that
+         *        untagged steps before a step's first skill are tagged too; needs input files, not a stream
+         */
+        public Builder skillPrescan(boolean prescan) {
+            this.skillPrescan = prescan;
+            return this;
+        }
+
+        /**
+         * @param out where to print progress lines, null for nowhere
+         * @param seconds seconds between them, 0 for none
+         */
+        public Builder progress(PrintStream out, int seconds) {
+            if (seconds < 0) {
+                throw new IllegalArgumentException("The progress interval must be a number of seconds, 0 for none.");
+            }
+            this.progressOut = out;
+            this.progressSeconds = seconds;
+            return this;
+        }
+
+        /**
+         * @param fileName where to write the metrics of each conversion as JSON, null for nowhere
+         */
+        public Builder metrics(String fileName) {
+            this.metricsFileName = fileName;
+            return this;
+        }
+
+        /**
+         * @param name JMX name to register the metrics of each conversion under, null not to;
+         *        converters running at once need different names
+         */
+        public Builder jmxName(String name) {
+            this.jmxName = name;
+            return this;
+        }
+
+        /**
+         * @param fileName columnar cache to read instead of the input, or to make from it; null for none
+         */
+        public Builder cache(String fileName) {
+            this.cacheFileName = fileName;
+            return this;
+        }
+
+        /**
+         * @param by "schoolid", "assignmentid" or "student-hash:N", null for one output file
+         */
+        public Builder partitionBy(String by) {
+            if (by == null) {
+                this.partitionBy = null;
+                return this;
+            }
+            by = by.trim().toLowerCase();
+            if (by.equals(SCHOOL_ID) || by.equals(ASSIGNMENT_ID)) {
+                this.partitionBy = by;
+            } else if (by.startsWith(STUDENT_HASH)) {
+                int buckets = (int)parseCount(by.substring(STUDENT_HASH.length()));
+                if (buckets < 1) {
+                    throw new IllegalArgumentException("The number of student files must be a positive integer.");
+                }
+                this.partitionBy = STUDENT_HASH;
+                this.studentBuckets = buckets;
+            } else {
+                throw new IllegalArgumentException("The partitioning must be one of: schoolid, assignmentid,"
+                                                   + " student-hash:N.");
+            }
+            return this;
+        }
+
+        /**
+         * @param files most partition files to have open at once
+         */
+        public Builder maxOpenFiles(int files) {
+            if (files < 1) {
+                throw new IllegalArgumentException("The number of open files must be a positive integer.");
+            }
+            this.maxOpenFiles = files;
+            return this;
+        }
+
+        /**
+         * @param millis longest a student can be idle and still be in the same session
+         */
+        public Builder sessionGap(long millis) {
+            if (millis <= 0) {
+                throw new IllegalArgumentException("The session gap must be a positive number of minutes.");
+            }
+            this.sessionGapMillis = millis;
+            return this;
+        }
+
+        /**
+         * @param bytes most memory to sort lines for sessions in before spilling them to disk
+         */
+        public Builder sortMemory(long bytes) {
+            if (bytes < SessionSorter.MIN_MEMORY) {
+                throw new IllegalArgumentException("The sort memory must be a size of at least "
+                                                   + (SessionSorter.MIN_MEMORY >> 20) + "m, e.g. 256m or 2g.");
+            }
+            this.sortMemory = bytes;
+            return this;
+        }
+
+        /**
+         * @param dedupe whether to drop lines whose semanticeventid and content have already been written
+         */
+        public Builder dedupe(boolean dedupe) {
+            this.dedupe = dedupe;
+            return this;
+        }
+
+        /**
+         * @param bytes most memory for the events seen so far before spilling them to disk
+         */
+        public Builder dedupeMemory(long bytes) {
+            if (bytes < 1) {
+                throw new IllegalArgumentException("The dedupe memory must be a size, e.g. 512m or 2g.");
+            }
+            this.dedupeMemory = bytes;
+            return this;
+        }
+
+        /**
+         * Drop duplicates, with a Bloom filter in front of the events seen.
+         * @param events number of events to size the filter for
+         */
+        public Builder dedupeBloom(long events) {
+            if (events < 1) {
+                throw new IllegalArgumentException("The number of events expected must be a positive integer.");
+            }
+            this.dedupeBloom = events;
+            this.dedupe = true;
+            return this;
+        }
+
+        /**
+         * @param bytes most memory for the chunks of lines between reading and writing
+         */
+        public Builder memBudget(long bytes) {
+            if (bytes < ChunkBudget.MIN_BUDGET) {
+                throw new IllegalArgumentException("The memory budget must be a size of at least "
+                                                   + (ChunkBudget.MIN_BUDGET >> 20) + "m, e.g. 512m or 2g.");
+            }
+            this.memBudget = bytes;
+            return this;
+        }
+
+        /**
+         * @param fileName where to write a student-step rollup of the output, null for nowhere
+         */
+        public Builder rollup(String fileName) {
+            this.rollupFileName = fileName;
+            return this;
+        }
+
+        /**
+         * @param bytes most memory for the steps of the rollup before spilling them to disk
+         */
+        public Builder rollupMemory(long bytes) {
+            if (bytes < StepRollup.MIN_MEMORY) {
+                throw new IllegalArgumentException("The rollup memory must be a size of at least "
+                                                   + (StepRollup.MIN_MEMORY >> 20) + "m, e.g. 256m or 2g.");
+            }
+            this.rollupMemory = bytes;
+            return this;
+        }
+
+        /**
+         * @param policy what to do with lines that can't be converted: "fail" the run,
+         *        "skip" them, or "quarantine" them, skipping them and writing them to the reject file
+         */
+        public Builder onError(String policy) {
+            String p = (policy == null) ? "" : policy.trim().toLowerCase();
+            if (!p.equals(BadLines.FAIL) && !p.equals(BadLines.SKIP) && !p.equals(BadLines.QUARANTINE)) {
+                throw new IllegalArgumentException("What to do on error must be one of: skip, quarantine, fail.");
+            }
+            this.onError = p;
+            return this;
+        }
+
+        /**
+         * @param fileName where to write quarantined lines, null for the output file name with ".rejects"
+         */
+        public Builder rejectFile(String fileName) {
+            this.rejectFileName = fileName;
+            return this;
+        }
+
+        /**
+         * @param rate most bad lines to skip or quarantine, as a share of the lines read, before
+         *        failing anyway; e.g. 0.01 for 1%
+         */
+        public Builder maxErrorRate(double rate) {
+            if (!(rate >= 0.0) || (rate > 1.0)) {
+                throw new IllegalArgumentException("The error rate must be a share of the lines from 0 to 1,"
+                                                   + " e.g. 0.01 for 1%.");
+            }
+            this.maxErrorRate = rate;
+            return this;
+        }
+
+        /**
+         * @param orig whether to parse the student id out of ctContextId, as the first exports needed
+         */
+        public Builder origStudentId(boolean orig) {
+            this.origStudentId = orig;
+            return this;
+        }
+
+        /**
+         * @param include whether to output ProblemStartTime, which is the same as the
+         *        TransactionTime, so don't
+         */
+        public Builder includeProblemStartTime(boolean include) {
+            this.includePST = include;
+            return this;
+        }
+
+        /**
+         * @param file where to log debugging messages, null for nowhere
+         */
+        public Builder debugLog(File file) {
+            this.debugLogFile = file;
+            return this;
+        }
+
+        /**
+         * @return a converter with these options
+         * @throws IllegalArgumentException if the options can't be used together
+         */
+        public ParseMATHia build() {
+            if (resume && useOpenCsv) {
+                throw new IllegalArgumentException("The '-resume' arg can't be used with '-tokenizer opencsv'.");
+            }
+            if (resume && (partitionBy != null)) {
+                throw new IllegalArgumentException("The '-resume' arg can't be used with '-partition-by'.");
+            }
+            if (resume && (sessionGapMillis > 0)) {
+                throw new IllegalArgumentException("The '-resume' arg can't be used with '-session-gap'.");
+            }
+            if (resume && dedupe) {
+                throw new IllegalArgumentException("The '-resume' arg can't be used with '-dedupe'.");
+            }
+            if (resume && (rollupFileName != null)) {
+                throw new IllegalArgumentException("The '-resume' arg can't be used with '-rollup'.");
+            }
+            if (resume && onError.equals(BadLines.QUARANTINE)) {
+                throw new IllegalArgumentException("The '-resume' arg can't be used with '-on-error quarantine'.");
+            }
+            if ((partitionBy != null) && (sessionGapMillis > 0)) {
+                throw new IllegalArgumentException("The '-partition-by' arg can't be used with '-session-gap'.");
+            }
+            if (incremental && resume) {
+                throw new IllegalArgumentException("The '-incremental' arg can't be used with '-resume'.");
+            }
+            if (incremental && useOpenCsv) {
+                throw new IllegalArgumentException("The '-incremental' arg can't be used with '-tokenizer opencsv'.");
+            }
+            if (incremental && (partitionBy != null)) {
+                throw new IllegalArgumentException("The '-incremental' arg can't be used with '-partition-by'.");
+            }
+            if (incremental && (sessionGapMillis > 0)) {
+                throw new IllegalArgumentException("The '-incremental' arg can't be used with '-session-gap'.");
+            }
+            if (incremental && dedupe) {
+                throw new IllegalArgumentException("The '-incremental' arg can't be used with '-dedupe'.");
+            }
+            if (incremental && (rollupFileName != null)) {
+                throw new IllegalArgumentException("The '-incremental' arg can't be used with '-rollup'.");
+            }
+            if (incremental && (cacheFileName != null)) {
+                throw new IllegalArgumentException("The '-incremental' arg can't be used with '-cache'.");
+            }
+            if (incremental && (outputFileName != null) && outputFileName.toLowerCase().endsWith(GZIP_SUFFIX)) {
+                throw new IllegalArgumentException("The '-incremental' arg can't be used with gzipped output.");
+            }
+            return new ParseMATHia(this);
+        }
+    }
+
+    private static final String TAB = "\t";
+    private static final String NEW_LINE = "\r\n";
+    private static final char TAB_CHAR = '\t';
+    private static final byte[] NEW_LINE_BYTES = { '\r', '\n' };
+    // Session of every line, unless split into sessions by -session-gap.
+    private static final String FIRST_SESSION = "session1";
+
+    // Headers for incoming data
+    private static final String ASSIGNMENT_ID = "assignmentid";
+    private static final String CT_CONTEXT_ID = "ctcontextid";
+    private static final String SEMANTIC_EVENT_ID = "semanticeventid";
+    private static final String SKILL_ID = "skillid";
+    private static final String RULE_ID = "ruleid";
+    private static final String GOAL_NODE_ID = "goalnodeid";
+    private static final String SERVER_TIME = "servertime";
+    private static final String ATTEMPT = "attempt";
+    private static final String ACTION = "action";
+    private static final String TUTOR_OUTCOME = "tutoroutcome";
+    private static final String HELP_LEVEL = "helplevel";
+    private static final String INPUT = "input";
+    private static final String SKILL_PREV_P_KNOWN = "skillpreviouspknown";
+    private static final String SKILL_NEW_P_KNOWN = "skillnewpknown";
+    private static final String SECTION_NAME = "sectionname";
+    private static final String SECTION_PROGRESS_STATUS = "sectionprogressstatus";
+    private static final String PROBLEM_ID = "problemid";
+    private static final String SCHOOL_ID = "schoolid";
+
+    private static final String[] HEADERS = { ASSIGNMENT_ID,
+                                              CT_CONTEXT_ID,
+                                              SEMANTIC_EVENT_ID,
+                                              SKILL_ID,
+                                              RULE_ID,
+                                              GOAL_NODE_ID,
+                                              SERVER_TIME,
+                                              ATTEMPT,
+                                              ACTION,
+                                              TUTOR_OUTCOME,
+                                              HELP_LEVEL,
+                                              INPUT,
+                                              SKILL_PREV_P_KNOWN,
+                                              SKILL_NEW_P_KNOWN,
+                                              SECTION_NAME,
+                                              SECTION_PROGRESS_STATUS,
+                                              PROBLEM_ID,
+                                              SCHOOL_ID};
+
+    // Columns of the cache: the number of fields in the line (minus why
+    // it is bad, for a bad line), then the input columns, typed.
+    private static final int CACHE_FIELDS = 0;
+    private static final List<ColumnCache.Column> CACHE_COLUMNS = new ArrayList<ColumnCache.Column>();
+    private static final Map<String, Integer> CACHE_INDEX_MAP = new HashMap<String, Integer>();
+    static {
+        CACHE_COLUMNS.add(new ColumnCache.Column("fields", ColumnCache.Type.INT));
+        for (String h : HEADERS) {
+            ColumnCache.Type type = ColumnCache.Type.DICTIONARY;
+            if (h.equals(SERVER_TIME)) {
+                type = ColumnCache.Type.LONG;
+            } else if (h.equals(SKILL_PREV_P_KNOWN) || h.equals(SKILL_NEW_P_KNOWN)) {
+                type = ColumnCache.Type.DOUBLE;
+            } else if (h.equals(SEMANTIC_EVENT_ID) || h.equals(INPUT)) {
+                type = ColumnCache.Type.STRING;
+            }
+            CACHE_INDEX_MAP.put(h, CACHE_COLUMNS.size());
+            CACHE_COLUMNS.add(new ColumnCache.Column(h, type));
+        }
+    }
+
+    // Cache columns the output is made from.
+    private static final Set<String> OUTPUT_CACHE_COLUMNS = new HashSet<String>(CACHE_INDEX_MAP.keySet());
+    static {
+        OUTPUT_CACHE_COLUMNS.add("fields");
+        OUTPUT_CACHE_COLUMNS.remove(SEMANTIC_EVENT_ID);
+    }
+
+    // Number of lines between checkpoints, and between progress lines in the debug log.
+    private static final int CHECKPOINT_LINES = 100000;
+
+    // Output files with this suffix are gzipped.
+    private static final String GZIP_SUFFIX = ".gz";
+
+    // Added to the output file name for the checkpoint file.
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+    // Added to the output file name for the reject file, if not given.
+    private static final String REJECTS_SUFFIX = ".rejects";
+
+    // Added to the output file name for the manifest of an -incremental run.
+    private static final String MANIFEST_SUFFIX = ".manifest";
+
+    // For -incremental, the input is cut into chunks where its content
+    // says, of at least this many bytes and this many more on average;
+    // smaller chunks keep more output around a change, but take more
+    // room in the manifest. Chunks are still cut to the memory budget,
+    // which has room for a few times as much.
+    private static final long INCREMENTAL_MIN_BYTES = 64L * 1024;
+    private static final long INCREMENTAL_MEAN_BYTES = 192L * 1024;
+
+    // What to call a caller's input or output stream in messages.
+    private static final String STREAM_NAME = "<stream>";
+
+    // -partition-by value for spreading students over N files.
+    private static final String STUDENT_HASH = "student-hash:";
+
+    // Size of the buffer in front of the input when reading with OpenCSV.
+    private static final int INPUT_BUFFER_SIZE = 1024 * 1024;
+
+    // Marks the end of the input for the writer stage.
+    private static final Future<ParsedChunk> END_OF_INPUT = CompletableFuture.completedFuture(null);
+
+    /**
+     * Parse the input files and create the output file.
+     *
+     * The work is split into three stages: reader threads read the input
+     * files and cut them into chunks, a pool of numThreads workers parses
+     * and formats the chunks, and a single writer takes the formatted
+     * chunks in input order, one file after another. The writer also
+     * resolves the "MATHia New" skill, since the skill index carry-forward
+     * depends on the order of the input.
+     *
+     * Up to numThreads files are read at a time, each into its own bounded
+     * queue, so the next files are already being parsed while the writer
+     * finishes the one before.
+     *
+     * Chunks are cut to fit memBudget, and a reader waits for the writer
+     * rather than have more than that out at once.
+     *
+     * Every CHECKPOINT_LINES lines or so, the writer saves a checkpoint, which
+     * a later run can resume from.
+     *
+     * With a cache of the input, its blocks are read instead of the input
+     * files, and there are no checkpoints. Without one, the workers can
+     * encode cache blocks as they go, for the writer to save.
+     *
+     * An -incremental run writes the output next to the output file, and
+     * puts it in place at the end. Readers hash each chunk, and don't hand
+     * a chunk the last run had to the workers; the writer copies its
+     * output from the last run's instead, unless the skill index isn't
+     * what it was before the chunk then. From there on, all of the chunks
+     * are converted.
+     * @param inputFiles the input files, in the order to write them
+     * @param checkpointFile where to save checkpoints, null for none
+     * @param resumeFrom checkpoint to carry on from, null to start at the beginning
+     * @param cacheIn cache to read instead of the input files, null for none; closed when done
+     * @param cacheOut cache to save the input to, null for none; closed when done
+     * @param manifestIn the last -incremental run's manifest, null for none; closed when done
+     * @param manifestOut manifest of this -incremental run, null if it isn't one; closed when done
+     * @return number of lines read
+     */
+    private Long parseInputFiles(List<File> inputFiles, File checkpointFile, Checkpoint resumeFrom,
+                                 ColumnCache.Reader cacheIn, ColumnCache.Writer cacheOut,
+                                 ChunkManifest manifestIn, ChunkManifest.Writer manifestOut,
+                                 InputStream stream, WritableByteChannel channel)
+        throws Exception
+    {
+        Long result = 0L;
+        int firstFile = (resumeFrom == null) ? 0 : resumeFrom.fileIndex;
+        List<InputFile> inputs = new ArrayList<InputFile>();
+        if (cacheIn != null) {
+            InputFile input = new InputFile(0, new File(cacheFileName));
+            input.cache = cacheIn;
+            inputs.add(input);
+            // Checkpoints are positions in the input files.
+            checkpointFile = null;
+        } else {
+            for (int i = firstFile; i < inputFiles.size(); i++) {
+                inputs.add(new InputFile(i, inputFiles.get(i)));
+            }
+            if (stream != null) { inputs.get(0).stream = stream; }
+        }
+        final File checkpoints = checkpointFile;
+        buildingCache = (cacheOut != null);
+
+        // Room for a chunk on each worker and one waiting behind it, and for the reader and the writer.
+        final ChunkBudget budget = new ChunkBudget(memBudget, numThreads * 2 + 2);
+        for (InputFile input : inputs) {
+            input.budget = budget.open();
+        }
+        metrics.setChunkBudget(budget);
+        if (manifestOut != null) { metrics.setIncremental(); }
+
+        ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+        ExecutorService readers = Executors.newFixedThreadPool(Math.min(numThreads, inputs.size()));
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        OutputSink sink = null;
+        PartitionedOutput partitioned = null;
+        SessionSorter sorter = null;
+        DuplicateFilter seen = null;
+        StepRollup stepRollup = null;
+        BadLines rejects = null;
+        try {
+
+            // Spill files go next to the output, where there should be room for another
+            // copy of it, or in the temporary directory if the output is the caller's.
+            File outputDir = (channel == null) ? new File(outputFileName).getAbsoluteFile().getParentFile() : null;
+            // A ".gz" output file is gzipped, on as many threads as parse.
+            int gzipThreads = ((channel == null) && outputFileName.toLowerCase().endsWith(GZIP_SUFFIX))
+                ? numThreads : 0;
+
+            // Opened once, and only written to by this thread and then the writer stage.
+            final OutputSink outputSink;
+            final PartitionedOutput partitions;
+            if (channel != null) {
+                partitions = null;
+                outputSink = sink = new OutputSink(channel, STREAM_NAME, 0);
+                writeHeaders(outputSink);
+            } else if (partitionBy != null) {
+                outputSink = null;
+                partitions = partitioned =
+                    new PartitionedOutput(outputFileName, getHeaders() + NEW_LINE, maxOpenFiles, gzipThreads);
+            } else if (resumeFrom == null) {
+                partitions = null;
+                File outputFile = (manifestOut != null) ? manifestOut.getOutput() : new File(outputFileName);
+                outputSink = sink = new OutputSink(outputFile, 0L, gzipThreads);
+                writeHeaders(outputSink);
+            } else {
+                partitions = null;
+                outputSink = sink = new OutputSink(new File(outputFileName), resumeFrom.outputOffset, gzipThreads);
+            }
+            final long rowsWritten = (resumeFrom == null) ? 0L : resumeFrom.rowsWritten;
+            final SessionSorter sessions = (sessionGapMillis > 0)
+                ? sorter = new SessionSorter(sortMemory, outputDir) : null;
+            final DuplicateFilter duplicates = dedupe
+                ? seen = new DuplicateFilter(dedupeMemory, dedupeBloom, outputDir) : null;
+            final StepRollup rollup = (rollupFileName != null)
+                ? stepRollup = new StepRollup(rollupMemory, outputDir,
+                                              new ColumnDictionary[] { studentIds, assignments, sections, problems,
+                                                                       goals },
+                                              DATE_FMT)
+                : null;
+            final BadLines badLines = rejects = new BadLines(onError, maxErrorRate, getRejectFile());
+
+            Future<Long> written = writer.submit(() -> writeChunks(inputs, inputFiles.size(), outputSink, partitions,
+                                                                   sessions, duplicates, rollup, badLines,
+                                                                   rowsWritten, checkpoints, cacheOut,
+                                                                   manifestIn, manifestOut));
+
+            // The pool takes them in order, so the file the writer is on is always being read.
+            for (InputFile input : inputs) {
+                final Checkpoint from = (input.index == firstFile) ? resumeFrom : null;
+                readers.submit(() -> readInputFile(input, workers, written, from, manifestIn));
+            }
+
+            written.get();
+
+            // Whatever was still buffered or being compressed is on disk once closed.
+            if (partitions != null) {
+                partitioned = null;
+                partitions.close();
+                metrics.addWritten(0L, partitions.getBytesWritten(), skillIndex.size());
+                debug("Wrote " + partitions.getPartitions() + " partition file(s), by " + partitionBy
+                      + (partitionBy.equals(STUDENT_HASH) ? String.valueOf(studentBuckets) : "")
+                      + "; reopened files " + partitions.getReopened() + " time(s) to stay under "
+                      + maxOpenFiles + " open.");
+            } else {
+                sink = null;
+                // The manifest says the output is complete, so it has to be on disk first.
+                if (manifestOut != null) { outputSink.sync(); }
+                outputSink.close();
+                metrics.addWritten(0L, outputSink.getBytesWritten(), skillIndex.size());
+            }
+
+            if (duplicates != null) {
+                debug("Dropped " + metrics.getDuplicatesDropped() + " duplicate line(s) of "
+                      + duplicates.getKeys() + " distinct event(s); spilled events to disk "
+                      + duplicates.getSpills() + " time(s)"
+                      + ((dedupeBloom > 0)
+                         ? "; " + duplicates.getBloomFalsePositives() + " Bloom filter false positive(s)." : "."));
+            }
+
+            if (badLines.getCount() > 0) { debug(badLines.getStats()); }
+
+            if (cacheOut != null) {
+                cacheOut.commit();
+                debug("Saved cache " + cacheFileName);
+            }
+
+            if (manifestOut != null) {
+                // Done copying from the old output, which the new one replaces.
+                if (manifestIn != null) { manifestIn.close(); }
+                manifestOut.commit();
+                debug(String.format("Reused the output of %d of %d chunk(s) from the last run, %d line(s)"
+                                    + " (%.1f MB); converted the rest.",
+                                    manifestOut.getReused(), manifestOut.getChunks(), metrics.getRowsReused(),
+                                    metrics.getBytesReused() / (1024.0 * 1024.0)));
+            }
+
+        } catch (ExecutionException e) {
+            // The failing stage has already reported the line.
+            Throwable cause = e.getCause();
+            while (cause instanceof ExecutionException) { cause = cause.getCause(); }
+            if (cause instanceof Exception) { throw (Exception)cause; }
+            throw e;
+        } finally {
+            workers.shutdownNow();
+            readers.shutdownNow();
+            writer.shutdownNow();
+            try {
+                // Only still set if something has already failed.
+                if (sink != null) { sink.close(); }
+                if (partitioned != null) { partitioned.close(); }
+            } catch (IOException exception) {
+                System.err.println("IOException occurred closing output file" + exception.toString());
+            }
+            // Deletes any runs left.
+            if (sorter != null) { sorter.close(); }
+            if (seen != null) { seen.close(); }
+            if (stepRollup != null) { stepRollup.close(); }
+            try {
+                if (rejects != null) { rejects.close(); }
+            } catch (IOException exception) {
+                System.err.println("IOException occurred closing reject file" + exception.toString());
+            }
+            for (InputFile input : inputs) {
+                input.close();
+            }
+            buildingCache = false;
+            try {
+                if (cacheIn != null) { cacheIn.close(); }
+                // Deletes the cache if it wasn't finished.
+                if (cacheOut != null) { cacheOut.close(); }
+            } catch (IOException exception) {
+                System.err.println("IOException occurred closing cache " + exception.toString());
+            }
+            try {
+                if (manifestIn != null) { manifestIn.close(); }
+                // Deletes the new output and manifest if they weren't finished, leaving the old ones.
+                if (manifestOut != null) { manifestOut.close(); }
+            } catch (IOException exception) {
+                System.err.println("IOException occurred closing manifest " + exception.toString());
+            }
+        }
+
+        for (InputFile input : inputs) {
+            result += input.linesRead;
+            debug(input.getStats());
+        }
+        debug(budget.getStats());
+        return result;
+    }
+
+    /**
+     * Reader stage for one input file: read it and hand its chunks to the
+     * workers and then the writer, ending with END_OF_INPUT.
+     * @param input the input file
+     * @param workers the worker pool
+     * @param written the writer stage
+     * @param resumeFrom checkpoint in this file to carry on from, null to start at the beginning
+     * @param lastRun the last -incremental run's manifest, to find chunks in, null for none
+     */
+    private Void readInputFile(InputFile input, ExecutorService workers, Future<Long> written,
+                               Checkpoint resumeFrom, ChunkManifest lastRun)
+        throws Exception
+    {
+        try {
+            if (input.cache != null) {
+                input.linesRead = readCache(input, workers, written);
+            } else if (useOpenCsv) {
+                input.linesRead = readWithOpenCsv(input, workers, written);
+            } else {
+                input.csvReader = (input.stream != null)
+                    ? CsvChunkReader.open(input.stream, input.file) : CsvChunkReader.open(input.file);
+                input.linesRead = readChunks(input, workers, written, resumeFrom, lastRun);
+            }
+            enqueue(input.chunks, END_OF_INPUT, written);
+        } catch (ExecutionException e) {
+            // The writer has failed; it has nothing more to take.
+            throw e;
+        } catch (Exception e) {
+            // The writer stops at this when it gets to the file.
+            enqueue(input.chunks, CompletableFuture.failedFuture(e), written);
+            throw e;
+        }
+        return null;
+    }
+
+    /**
+     * Reader stage using the chunked tokenizer, which memory-maps plain
+     * files and decompresses gzipped ones: find chunks of whole records
+     * and leave the workers to tokenize them.
+     *
+     * An -incremental run cuts chunks where the content says and hashes
+     * them. A chunk the last run had isn't tokenized, but left for the
+     * writer to reuse the output of, or to have converted if it can't.
+     * @param input the input file, with its reader open
+     * @param workers the worker pool
+     * @param written the writer stage
+     * @param resumeFrom checkpoint in this file to carry on from, null to start at the beginning
+     * @param lastRun the last -incremental run's manifest, to find chunks in, null for none
+     * @return number of lines read
+     */
+    private Long readChunks(InputFile input, ExecutorService workers, Future<Long> written,
+                            Checkpoint resumeFrom, ChunkManifest lastRun)
+        throws Exception
+    {
+        CsvChunkReader reader = input.csvReader;
+        int lineNum = 1;
+        try {
+            CsvChunkReader.Chunk header = reader.nextChunk(1);
+            String[] line = (header == null) ? null : header.tokenize().get(0);
+            final Map<String, Integer> columnIndexMap = parseHeader(line);
+            if (header != null) { metrics.addRead(0L, header.end - header.start); }
+            // Other columns are skipped, unless bad lines are to be written out whole.
+            final boolean[] columns = onError.equals(BadLines.QUARANTINE)
+                ? null : columnsNeeded(columnIndexMap, dedupe || buildingCache);
+
+            if (resumeFrom != null) {
+                reader.seek(resumeFrom.inputOffset, resumeFrom.recordsRead, resumeFrom.linesRead);
+                lineNum = (int)resumeFrom.recordsRead;
+            }
+
+            // A chunk's lines depend on the header as well as its own bytes.
+            byte[] headerHash = null;
+            if (incremental) {
+                headerHash = (header == null) ? new byte[0] : ChunkManifest.hash(new byte[0], header);
+                reader.cutAtContent(INCREMENTAL_MIN_BYTES, INCREMENTAL_MEAN_BYTES);
+            }
+
+            int fields = (line == null) ? 0 : line.length;
+            long maxBytes = input.budget.getBudget().getChunkCsvBytes();
+            int lineBytes = input.budget.getBudget().getLineCsvBytes(fields);
+            CsvChunkReader.Chunk chunk;
+            long start = System.nanoTime();
+            while ((chunk = reader.nextChunk(ChunkBudget.MAX_CHUNK_ROWS, maxBytes, lineBytes)) != null) {
+                metrics.read.recordSince(start);
+                metrics.addRead(chunk.records, chunk.end - chunk.start);
+                long size = ChunkBudget.estimate(chunk.records, fields, chunk.end - chunk.start);
+                reserve(input, chunk.records, size, written);
+                final CsvChunkReader.Chunk rows = chunk;
+                final int firstLineNum = lineNum + 1;
+                List<ChunkManifest.Chunk> reusable = null;
+                if (incremental) {
+                    chunk.hash = ChunkManifest.hash(headerHash, chunk);
+                    reusable = (lastRun == null) ? null : lastRun.find(chunk.hash);
+                }
+                if (reusable != null) {
+                    ParsedChunk parsed = freeChunks.poll();
+                    if (parsed == null) { parsed = new ParsedChunk(); }
+                    parsed.reset(0);
+                    parsed.source = chunk;
+                    parsed.budgeted = size;
+                    parsed.reusable = reusable;
+                    parsed.convert = () -> submitChunk(workers, () -> rows.tokenize(columns), rows, input.file,
+                                                       firstLineNum, columnIndexMap, size).get();
+                    enqueue(input.chunks, CompletableFuture.completedFuture(parsed), written);
+                } else {
+                    enqueue(input.chunks,
+                            submitChunk(workers, () -> rows.tokenize(columns), rows, input.file, firstLineNum,
+                                        columnIndexMap, size),
+                            written);
+                }
+                lineNum += chunk.records;
+                start = System.nanoTime();
+            }
+            return reader.getLinesRead();
+
+        } catch (ExecutionException e) {
+            throw e;
+        } catch (Exception e) {
+            // If the writer is done, the run has already failed somewhere else.
+            if (!written.isDone()) {
+                System.err.println("Failed to process line (" + (lineNum + 1) + ") of " + input.file);
+                e.printStackTrace();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Reader stage using OpenCSV, which reads and tokenizes every line
+     * on the reader thread.
+     * @param input the input file
+     * @param workers the worker pool
+     * @param written the writer stage
+     * @return number of lines read
+     */
+    private Long readWithOpenCsv(InputFile input, ExecutorService workers, Future<Long> written)
+        throws Exception
+    {
+        CSVReader reader = null;
+        int lineNum = 1;
+        String[] line = null;
+        try {
+
+            CSVParser parser = new CSVParserBuilder()
+                .withSeparator(',')
+                .withIgnoreQuotations(false)
+                .build();
+            InputStream stream = (input.stream != null)
+                ? InputFiles.open(input.stream, input.file.toString(), INPUT_BUFFER_SIZE)
+                : InputFiles.open(input.file, INPUT_BUFFER_SIZE);
+            Reader in = new InputStreamReader(metrics.countBytes(stream), StandardCharsets.UTF_8);
+            reader = new CSVReaderBuilder(new BufferedReader(in, INPUT_BUFFER_SIZE))
+                .withCSVParser(parser)
+                .build();
+
+            //            reader = new CSVReader(new FileReader(inputFile), ',');
+            line = reader.readNext();
+            final Map<String, Integer> columnIndexMap = parseHeader(line);
+
+            // OpenCSV doesn't say how many bytes a line was, so it is taken
+            // to be its fields and the commas between them.
+            ChunkBudget budget = input.budget.getBudget();
+            int fields = (line == null) ? 0 : line.length;
+            List<String[]> rows = new ArrayList<String[]>();
+            long bytes = 0L;
+            int firstLineNum = lineNum + 1;
+
+            Iterator<String[]> iterator = reader.iterator();
+            long start = System.nanoTime();
+            while (iterator.hasNext()) {
+                line = iterator.next();
+                lineNum++;
+                if (line != null) {
+                    rows.add(line);
+                    for (String field : line) {
+                        bytes += field.length() + 1;
+                    }
+                }
+                if ((rows.size() == ChunkBudget.MAX_CHUNK_ROWS)
+                    || (ChunkBudget.estimate(rows.size(), fields, bytes) >= budget.getChunkBytes())) {
+                    metrics.read.recordSince(start);
+                    metrics.addRead(rows.size(), 0L);
+                    long size = ChunkBudget.estimate(rows.size(), fields, bytes);
+                    reserve(input, rows.size(), size, written);
+                    final List<String[]> full = rows;
+                    enqueue(input.chunks,
+                            submitChunk(workers, () -> full, null, input.file, firstLineNum, columnIndexMap, size),
+                            written);
+                    rows = new ArrayList<String[]>();
+                    bytes = 0L;
+                    firstLineNum = lineNum + 1;
+                    start = System.nanoTime();
+                }
+            }
+            if (rows.size() > 0) {
+                metrics.read.recordSince(start);
+                metrics.addRead(rows.size(), 0L);
+                long size = ChunkBudget.estimate(rows.size(), fields, bytes);
+                reserve(input, rows.size(), size, written);
+                final List<String[]> last = rows;
+                enqueue(input.chunks,
+                        submitChunk(workers, () -> last, null, input.file, firstLineNum, columnIndexMap, size),
+                        written);
+            }
+
+        } catch (ExecutionException e) {
+            throw e;
+        } catch (Exception e) {
+            // If the writer is done, the run has already failed somewhere else.
+            if (!written.isDone()) {
+                System.err.println("Failed to process line (" + lineNum + ") of " + input.file + ": " + line);
+                e.printStackTrace();
+            }
+            throw e;
+        } finally {
+            try {
+                if (reader != null) { reader.close(); }
+            } catch (IOException exception) {
+                System.err.println("IOException occurred closing BufferedReader" + exception.toString());
+            }
+        }
+
+        return reader.getLinesRead();
+    }
+
+    /**
+     * Reader stage for a cache of the input: read its blocks, with just
+     * the columns the output needs, and leave the workers to decode them.
+     * @param input the cache, with its reader open
+     * @param workers the worker pool
+     * @param written the writer stage
+     * @return number of lines read
+     */
+    private Long readCache(InputFile input, ExecutorService workers, Future<Long> written)
+        throws Exception
+    {
+        ColumnCache.Reader reader = input.cache;
+        long lines = 0L;
+        try {
+            ColumnCache.Block block;
+            long start = System.nanoTime();
+            while ((block = reader.next()) != null) {
+                metrics.read.recordSince(start);
+                metrics.addRead(block.rows, block.bytes);
+                // Blocks were cut to the budget when the cache was made.
+                final long size = ChunkBudget.estimate(block.rows, OUTPUT_CACHE_COLUMNS.size(), block.bytes);
+                reserve(input, block.rows, size, written);
+                final ColumnCache.Block rows = block;
+                final long firstLineNum = lines + 1;
+                enqueue(input.chunks,
+                        workers.submit(() -> {
+                                ParsedChunk parsed = parseCachedChunk(rows, input.file, firstLineNum,
+                                                                      System.nanoTime());
+                                parsed.budgeted = size;
+                                return parsed;
+                            }),
+                        written);
+                lines += block.rows;
+                start = System.nanoTime();
+            }
+            return lines;
+
+        } catch (ExecutionException e) {
+            throw e;
+        } catch (Exception e) {
+            // If the writer is done, the run has already failed somewhere else.
+            if (!written.isDone()) {
+                System.err.println("Failed to read line (" + (lines + 1) + ") of cache " + input.file);
+                e.printStackTrace();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Hand a chunk to the writer stage, waiting if it is too far behind.
+     * @param chunks queue of chunks for the writer, in input order
+     * @param chunk the chunk to add
+     * @param written the writer stage, checked for failure while waiting
+     */
+    private static void enqueue(BlockingQueue<Future<ParsedChunk>> chunks,
+                                Future<ParsedChunk> chunk, Future<Long> written)
+        throws Exception
+    {
+        while (!chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+            // If the writer has died, this throws its exception.
+            if (written.isDone()) { written.get(); }
+        }
+    }
+
+    /**
+     * Take a chunk's size out of the memory budget, waiting for the writer
+     * if there isn't room.
+     * @param input the file the chunk is from
+     * @param rows number of lines in the chunk
+     * @param size the chunk's size, as ChunkBudget.estimate()d
+     * @param written the writer stage, checked for failure while waiting
+     */
+    private static void reserve(InputFile input, int rows, long size, Future<Long> written)
+        throws Exception
+    {
+        while (!input.budget.acquire(rows, size, 100)) {
+            // If the writer has died, this throws its exception.
+            if (written.isDone()) { written.get(); }
+        }
+    }
+
+    /**
+     * Submit a chunk of input lines to the parse workers.
+     * @param workers the worker pool
+     * @param rows the input lines, tokenized by the worker if not already
+     * @param source where the lines are in the input, null if not known
+     * @param file the input file, for error reporting
+     * @param firstLineNum line number of the first row, for error reporting
+     * @param colIndexMap map of column names to indices
+     * @param budgeted what the chunk took out of the memory budget
+     * @return the parsed chunk, once the worker is done
+     */
+    private Future<ParsedChunk> submitChunk(ExecutorService workers,
+                                            final Callable<List<String[]>> rows,
+                                            final CsvChunkReader.Chunk source,
+                                            final File file,
+                                            final int firstLineNum,
+                                            final Map<String, Integer> colIndexMap,
+                                            final long budgeted) {
+        return workers.submit(() -> {
+                long start = System.nanoTime();
+                ParsedChunk parsed = parseChunk(rows.call(), file, firstLineNum, colIndexMap, start);
+                if (source != null) { metrics.addSkipped(source.skippedBytes); }
+                parsed.source = source;
+                parsed.budgeted = budgeted;
+                return parsed;
+            });
+    }
+
+    /**
+     * Parse and encode a chunk of input lines. Everything except the
+     * "MATHia New" skill is encoded here; that column is left for
+     * the writer, which sees the rows in input order.
+     * @param rows the input lines
+     * @param file the input file, for error reporting
+     * @param firstLineNum line number of the first row, for error reporting
+     * @param colIndexMap map of column names to indices
+     * @param startNanos when work on the chunk started, including tokenizing it
+     * @return ParsedChunk
+     */
+    private ParsedChunk parseChunk(List<String[]> rows, File file, int firstLineNum,
+                                   Map<String, Integer> colIndexMap, long startNanos)
+        throws Exception
+    {
+        ParsedChunk result = freeChunks.poll();
+        if (result == null) { result = new ParsedChunk(); }
+        result.reset(rows.size());
+        result.file = file;
+        result.firstLineNum = firstLineNum;
+        if (rollupFileName != null) { result.steps.reset(rows.size()); }
+        boolean quarantine = onError.equals(BadLines.QUARANTINE);
+        int fieldsNeeded = fieldsNeeded(colIndexMap);
+
+        // Parsed and then encoded in two passes, so each can be timed per chunk.
+        int i = 0;
+        try {
+            for (i = 0; i < rows.size(); i++) {
+                String[] st = rows.get(i);
+                int error = parseLine(st, colIndexMap, fieldsNeeded, result.lines, i);
+                if (error == BadLines.OK) {
+                    setSkillKey(result, i);
+                } else {
+                    result.reject(i, error, quarantine ? st : null);
+                }
+            }
+            if (buildingCache) { result.cacheBlock = encodeCacheBlock(rows, colIndexMap, result.errors); }
+            long encodeStart = metrics.parse.recordSince(startNanos);
+
+            for (i = 0; i < rows.size(); i++) {
+                encodeRow(result, i);
+            }
+            result.lines.clear();
+            metrics.encode.recordSince(encodeStart);
+        } catch (Exception e) {
+            System.err.println("Failed to process line (" + (firstLineNum + i) + ") of " + file + ": "
+                               + rows.get(i));
+            e.printStackTrace();
+            throw e;
+        }
+
+        return result;
+    }
+
+    /**
+     * Parse and encode a block of lines read from the cache, like parseChunk().
+     * @param block the lines
+     * @param file the cache, for error reporting
+     * @param firstLineNum line number of the first row in the cache, for error reporting
+     * @param startNanos when work on the block started
+     * @return ParsedChunk
+     */
+    private ParsedChunk parseCachedChunk(ColumnCache.Block block, File file, long firstLineNum,
+                                         long startNanos)
+        throws Exception
+    {
+        ParsedChunk result = freeChunks.poll();
+        if (result == null) { result = new ParsedChunk(); }
+        result.reset(block.rows);
+        result.file = file;
+        result.firstLineNum = firstLineNum;
+        if (rollupFileName != null) { result.steps.reset(block.rows); }
+
+        int i = 0;
+        try {
+            for (i = 0; i < block.rows; i++) {
+                int error = parseCachedLine(block, i, result.lines);
+                if (error == BadLines.OK) {
+                    setSkillKey(result, i);
+                } else {
+                    // The cache only has the columns that are used, so there is no line to quarantine.
+                    result.reject(i, error, null);
+                }
+            }
+            long encodeStart = metrics.parse.recordSince(startNanos);
+
+            for (i = 0; i < block.rows; i++) {
+                encodeRow(result, i);
+            }
+            result.lines.clear();
+            metrics.encode.recordSince(encodeStart);
+        } catch (Exception e) {
+            System.err.println("Failed to process line (" + (firstLineNum + i) + ") of cache " + file);
+            e.printStackTrace();
+            throw e;
+        }
+
+        return result;
+    }
+
+    /**
+     * Set the skill index key and skill of a parsed line, for the writer.
+     */
+    private void setSkillKey(ParsedChunk chunk, int i) {
+        TransactionBatch lines = chunk.lines;
+        long key = SkillIndex.pack(lines.sectionCodes[i], lines.problemCodes[i], lines.stepCodes[i]);
+        chunk.skillKeys[i] = key;
+        if (key == SkillIndex.UNCODED) {
+            chunk.uncodedSkillKeys[i] = new SkillIndex.Tuple(decode(sections, lines.sectionCodes[i], lines.sections[i]),
+                                                             decode(problems, lines.problemCodes[i], lines.problems[i]),
+                                                             decode(goals, lines.stepCodes[i], lines.steps[i]));
+        }
+        String skill = decode(skills, lines.skillCodes[i], lines.skills[i]);
+        chunk.skills[i] = ((skill != null) && !skill.trim().equals("")) ? skill : null;
+    }
+
+    /**
+     * Encode a parsed line, leaving out the "MATHia New" skill, and find
+     * its partition, time and keys for dropping duplicates.
+     */
+    private void encodeRow(ParsedChunk chunk, int i) {
+        RowEncoder encoder = chunk.encoder;
+        TransactionBatch lines = chunk.lines;
+        if (chunk.errors[i] != BadLines.OK) {
+            // Left empty, and dropped by the writer.
+            chunk.skillAt[i] = chunk.rowEnd[i] = encoder.position();
+            return;
+        }
+        encodeOutputHead(lines, i, encoder);
+        chunk.skillAt[i] = encoder.position();
+        encodeOutputTail(lines, i, encoder);
+        chunk.rowEnd[i] = encoder.position();
+        if (partitionBy != null) { chunk.partitions[i] = getPartition(lines, i); }
+        if (sessionGapMillis > 0) {
+            long time = lines.times[i];
+            chunk.times[i] = (time == TransactionBatch.NO_TIME) ? 0L : time;
+        }
+        if (dedupe && (lines.eventIds[i] != null)) {
+            chunk.eventKeys[i] = DuplicateFilter.finish(DuplicateFilter.hash(DuplicateFilter.SEED, lines.eventIds[i]));
+            chunk.rowKeys[i] = fingerprint(lines, i);
+        }
+        if ((rollupFileName != null) && (lines.times[i] != TransactionBatch.NO_TIME)) {
+            setStep(chunk.steps, lines, i);
+        }
+    }
+
+    /**
+     * Take down what the rollup needs of a parsed line, for the writer.
+     */
+    private static void setStep(StepRollup.Lines steps, TransactionBatch lines, int i) {
+        steps.setName(i, StepRollup.STUDENT, lines.studentCodes[i], lines.students[i]);
+        steps.setName(i, StepRollup.ASSIGNMENT, lines.assignmentCodes[i], lines.assignments[i]);
+        steps.setName(i, StepRollup.SECTION, lines.sectionCodes[i], lines.sections[i]);
+        steps.setName(i, StepRollup.PROBLEM, lines.problemCodes[i], lines.problems[i]);
+        steps.setName(i, StepRollup.STEP, lines.stepCodes[i], lines.steps[i]);
+        steps.set(i, lines.times[i], StepRollup.outcome(lines.outcomes[i]),
+                  lines.hasPreviousPKnown(i) ? lines.previousPKnown[i] : Double.NaN,
+                  lines.hasNewPKnown(i) ? lines.newPKnown[i] : Double.NaN);
+    }
+
+    /**
+     * @param lines parsed lines
+     * @param i the line
+     * @return a hash of everything written for the line but its session, so
+     *         lines that only share a semanticeventid aren't duplicates
+     */
+    private static long fingerprint(TransactionBatch lines, int i) {
+        long h = DuplicateFilter.SEED;
+        h = hashCoded(h, lines.studentCodes[i], lines.students[i]);
+        // NO_TIME is Long.MIN_VALUE.
+        h = DuplicateFilter.hash(h, lines.times[i]);
+        h = hashCoded(h, lines.assignmentCodes[i], lines.assignments[i]);
+        h = hashCoded(h, lines.sectionCodes[i], lines.sections[i]);
+        h = hashCoded(h, lines.problemCodes[i], lines.problems[i]);
+        h = hashCoded(h, lines.stepCodes[i], lines.steps[i]);
+        h = DuplicateFilter.hash(h, lines.actions[i]);
+        h = DuplicateFilter.hash(h, lines.inputs[i]);
+        h = DuplicateFilter.hash(h, lines.outcomes[i]);
+        h = hashCoded(h, lines.skillCodes[i], lines.skills[i]);
+        h = hashCoded(h, lines.ruleCodes[i], lines.rules[i]);
+        h = DuplicateFilter.hash(h, lines.hasPreviousPKnown(i)
+                                 ? Double.doubleToLongBits(lines.previousPKnown[i]) : Long.MIN_VALUE);
+        h = DuplicateFilter.hash(h, lines.hasNewPKnown(i) ? Double.doubleToLongBits(lines.newPKnown[i]) : Long.MIN_VALUE);
+        h = DuplicateFilter.hash(h, lines.progressStatuses[i]);
+        h = DuplicateFilter.hash(h, lines.schoolIds[i]);
+        h = DuplicateFilter.hash(h, lines.attempts[i]);
+        h = DuplicateFilter.hash(h, lines.helpLevels[i]);
+        return DuplicateFilter.finish(h);
+    }
 
-    // Include ProblemStartTime. Don't do this. It's the same as the TransactionTime
-    // so it results in zero student hours being computed.
-    private static Boolean includePST = false;
+    /**
+     * Add a dictionary-coded value to a hash: its code, which is cheaper,
+     * or the String if it has none. A value always has a code or never
+     * does, so the same value always hashes the same.
+     */
+    private static long hashCoded(long h, int code, String value) {
+        return (code == ColumnDictionary.NO_CODE) ? DuplicateFilter.hash(h, value) : DuplicateFilter.hash(h, code);
+    }
 
-    private static Set<String> badIds = new TreeSet<String>();
+    /**
+     * @param lines parsed lines
+     * @param i the line
+     * @return the value to partition the output on, null if the line has none
+     */
+    private String getPartition(TransactionBatch lines, int i) {
+        if (partitionBy.equals(SCHOOL_ID)) {
+            return lines.schoolIds[i];
+        } else if (partitionBy.equals(ASSIGNMENT_ID)) {
+            return decode(assignments, lines.assignmentCodes[i], lines.assignments[i]);
+        }
+        String student = decode(studentIds, lines.studentCodes[i], lines.students[i]);
+        if (student == null) { return null; }
+        // String.hashCode() is the same in every JVM, so students stay in the same file from run to run.
+        return "student-" + Math.floorMod(student.hashCode(), studentBuckets);
+    }
 
-    // Keep track of skill mappings:
-    // key: (section, problem, goal)-tuple, value: skill
-    private static Map<String, String> skillMap = new HashMap<String, String>();
+    /**
+     * Encode input lines as a cache block: the number of fields of each
+     * line, then its values, typed as parseLine() reads them.
+     * @param rows the input lines
+     * @param colIndexMap map of column names to indices
+     * @param errors per line, why it is bad, or BadLines.OK
+     * @return the block
+     */
+    private static byte[] encodeCacheBlock(List<String[]> rows, Map<String, Integer> colIndexMap, int[] errors) {
+        int[] index = new int[CACHE_COLUMNS.size()];
+        for (int c = 1; c < index.length; c++) {
+            Integer i = colIndexMap.get(CACHE_COLUMNS.get(c).name);
+            index[c] = (i == null) ? -1 : i;
+        }
 
-    public static void main(String[] args) {
+        ColumnCache.Block.Builder block = new ColumnCache.Block.Builder(CACHE_COLUMNS);
+        for (int r = 0; r < rows.size(); r++) {
+            String[] st = rows.get(r);
+            // A bad line is cached as minus the reason, with no values.
+            block.setInt(CACHE_FIELDS, (errors[r] == BadLines.OK) ? st.length : -errors[r]);
+            if (errors[r] == BadLines.OK) {
+                for (int c = 1; c < index.length; c++) {
+                    if ((index[c] < 0) || (index[c] >= st.length)) { continue; }
+                    String value = st[index[c]];
+                    switch (CACHE_COLUMNS.get(c).type) {
+                    case LONG:
+                        block.setLong(c, Long.parseLong(value));
+                        break;
+                    case DOUBLE:
+                        block.setDouble(c, getPKnown(value));
+                        break;
+                    default:
+                        block.setString(c, value);
+                        break;
+                    }
+                }
+            }
+            block.endRow();
+        }
+        return block.toBytes();
+    }
 
-        for (int i = 0; i < args.length; i++) {
-            String arg = args[i].trim().toLowerCase();
-            
-            if (arg.equals("-i") || arg.equals("-input")) {
-                if (++i < args.length) {
-                    inputFileName = args[i];
-                } else {
-                    System.err.println("A file name must be specified with this arg.");
-                    System.exit(-1);
+    /**
+     * Writer stage: take the parsed chunks of each file in input order,
+     * fill in the "MATHia New" skill and write them to the output file.
+     * @param inputs the input files, in the order to write them
+     * @param fileCount number of input files, including any done before resuming
+     * @param sink the output file, null if partitioned
+     * @param partitions the partition files, null for a single output file
+     * @param sessions where to sort lines, to write them with their sessions at the end, null to write them as they come
+     * @param duplicates the events written so far, to drop lines already written, null to keep them
+     * @param rollup where to add up the lines by student and step, to write at the end, null for no rollup
+     * @param badLines where to hand bad lines, which aren't written
+     * @param rowsWritten number of lines already in the output file, without the header
+     * @param checkpointFile where to save checkpoints, null for none
+     * @param cache where to save the chunks' cache blocks, null for none
+     * @param lastRun the last -incremental run's manifest, to copy output from, null for none
+     * @param manifest where to add the chunks of an -incremental run, null if it isn't one
+     * @return number of lines in the output file
+     */
+    private Long writeChunks(List<InputFile> inputs, int fileCount, OutputSink sink,
+                             PartitionedOutput partitions, SessionSorter sessions,
+                             DuplicateFilter duplicates, StepRollup rollup, BadLines badLines,
+                             long rowsWritten, File checkpointFile, ColumnCache.Writer cache,
+                             ChunkManifest lastRun, ChunkManifest.Writer manifest)
+        throws Exception
+    {
+        long total = rowsWritten;
+        long linesSeen = 0L;
+        long sinceLastDebug = 0;
+        long fileStart = System.nanoTime();
+
+        for (InputFile input : inputs) {
+            input.startNanos = fileStart;
+            while (true) {
+                ParsedChunk chunk = input.chunks.take().get();
+                if (chunk == null) { break; }
+
+                long start = System.nanoTime();
+                ChunkManifest.Chunk reused = null;
+                if (chunk.reusable != null) {
+                    reused = ChunkManifest.match(chunk.reusable, skillIndex.getDigest());
+                    if (reused == null) {
+                        // The lines before it left the skill index as it wasn't in the last run, so
+                        // this chunk and the rest of the input are converted again.
+                        lastRun.stopReusing();
+                        ParsedChunk unconverted = chunk;
+                        chunk = unconverted.convert.call();
+                        freeChunks.add(unconverted);
+                        start = System.nanoTime();
+                    }
                 }
-            } else if (arg.equals("-o") || arg.equals("-output")) {
-                if (++i < args.length) {
-                    outputFileName = args[i];
+                long outputStart = (manifest == null) ? 0L : sink.getBytesWritten();
+                long skillDigest = skillIndex.getDigest();
+                long rows;
+                int dropped = 0;
+                if (reused != null) {
+                    lastRun.copy(reused, sink);
+                    reused.redoSkillChanges(skillIndex);
+                    linesSeen += reused.records;
+                    rows = reused.rows;
+                    manifest.add(reused, outputStart);
+                    metrics.addReused(rows, reused.outputLength);
                 } else {
-                    System.err.println("A file name must be specified with this arg.");
-                    System.exit(-1);
+                    if (manifest != null) { skillIndex.recordChanges(); }
+                    for (int i = 0; (chunk.rejected > 0) && (i < chunk.size); i++) {
+                        if (chunk.errors[i] != BadLines.OK) {
+                            badLines.add(chunk.file, chunk.firstLineNum + i, chunk.offset(i), chunk.errors[i],
+                                         chunk.rejectFields[i], linesSeen + i + 1);
+                        }
+                    }
+                    linesSeen += chunk.size;
+                    for (int i = 0; (duplicates != null) && (i < chunk.size); i++) {
+                        if ((chunk.eventKeys[i] != NO_EVENT_KEY)
+                            && !duplicates.add(chunk.eventKeys[i], chunk.rowKeys[i])) {
+                            chunk.dropped[i] = true;
+                            dropped++;
+                        }
+                    }
+                    String[] newSkills = chunk.newSkills;
+                    for (int i = 0; i < chunk.size; i++) {
+                        if ((chunk.skillKeys[i] != NO_SKILL_KEY) && !chunk.dropped[i]) {
+                            newSkills[i] = computeMathiaNewSkill(chunk.skillKeys[i], chunk.uncodedSkillKeys[i],
+                                                                chunk.skills[i]);
+                        }
+                    }
+                    start = metrics.skill.recordSince(start);
+
+                    byte[] bytes = chunk.encoder.array();
+                    int rowStart = 0;
+                    for (int i = 0; (sessions != null) && (i < chunk.size); i++) {
+                        if (chunk.dropped[i]) {
+                            rowStart = chunk.rowEnd[i];
+                            continue;
+                        }
+                        sessions.add(chunk.times[i], bytes, rowStart, chunk.skillAt[i], chunk.rowEnd[i],
+                                     newSkills[i]);
+                        newSkills[i] = null;
+                        rowStart = chunk.rowEnd[i];
+                    }
+                    for (int i = 0; (sessions == null) && (i < chunk.size); i++) {
+                        if (chunk.dropped[i]) {
+                            rowStart = chunk.rowEnd[i];
+                            continue;
+                        }
+                        OutputSink out = (partitions == null) ? sink : partitions.get(chunk.partitions[i]);
+                        out.write(bytes, rowStart, chunk.skillAt[i] - rowStart);
+                        if (newSkills[i] != null) {
+                            out.write(newSkills[i]);
+                            newSkills[i] = null;
+                        }
+                        out.write(bytes, chunk.skillAt[i], chunk.rowEnd[i] - chunk.skillAt[i]);
+                        rowStart = chunk.rowEnd[i];
+                    }
+                    for (int i = 0; (rollup != null) && (i < chunk.size); i++) {
+                        if (!chunk.dropped[i]) { rollup.add(chunk.steps, i); }
+                    }
+                    if (rollup != null) { chunk.steps.clear(); }
+                    if (cache != null) { cache.write(chunk.cacheBlock); }
+                    rows = chunk.size - dropped - chunk.rejected;
+                    if (manifest != null) {
+                        Map<SkillIndex.Tuple, String> changes = skillIndex.takeChanges();
+                        // A chunk with bad lines is converted again, so they are counted again.
+                        if (chunk.rejected == 0) {
+                            manifest.add(chunk.source.hash, chunk.size, rows, outputStart,
+                                         sink.getBytesWritten() - outputStart, skillDigest, changes);
+                        }
+                    }
+                }
+                metrics.write.recordSince(start);
+                metrics.addWritten(rows,
+                                   (partitions == null) ? sink.getBytesWritten() : partitions.getBytesWritten(),
+                                   skillIndex.size());
+                metrics.addDuplicates(dropped);
+                metrics.addRejected(chunk.rejected);
+
+                total += rows;
+                input.rowsWritten += rows;
+                sinceLastDebug += rows;
+                CsvChunkReader.Chunk source = chunk.source;
+                if (source != null) { input.csvBytes += source.end - source.start; }
+                input.budget.release(chunk.budgeted);
+                freeChunks.add(chunk);
+                if (sinceLastDebug >= CHECKPOINT_LINES) {
+                    debug("Wrote " + sinceLastDebug + " line(s) to the output file.");
+                    sinceLastDebug = 0;
+                    if ((checkpointFile != null) && (source != null)) {
+                        // The output has to be on disk before the checkpoint that covers it.
+                        sink.sync();
+                        new Checkpoint(input.index, fileCount, input.file,
+                                       source.end, source.firstRecord + source.records, source.linesToEnd,
+                                       sink.getBytesWritten(), total).save(checkpointFile, skillIndex);
+                    }
                 }
-            } else {
-                System.out.println("Unrecognized argument: " + args[i]);
             }
-        }
 
-        if (inputFileName == null) {
-            System.err.println("The input file name must be specified, using the '-i' arg.");
-            System.exit(-1);
+            // OpenCSV doesn't say where lines are, so count all of the file.
+            if (input.csvBytes == 0L) { input.csvBytes = input.file.length(); }
+
+            // All its chunks have been tokenized, so the file can be closed.
+            input.endNanos = fileStart = System.nanoTime();
+            input.close();
         }
-        if (outputFileName == null) {
-            System.out.println("Using outputFileName of 'output.txt'.");
-            outputFileName = "output.txt";
+        if (sinceLastDebug > 0) {
+            debug("Wrote " + sinceLastDebug + " line(s) to the output file.");
         }
 
-        try {
-            debugFile = new File("debug.log");
-        } catch (Exception e) {
-            System.err.println("Failed to create debugging file: " + e.toString());
-            debugFile = null;
+        if (sessions != null) {
+            long start = System.nanoTime();
+            sessions.writeTo(sink, sessionGapMillis);
+            metrics.write.recordSince(start);
+            metrics.addWritten(0L, sink.getBytesWritten(), skillIndex.size());
+            debug("Wrote " + total + " line(s) in " + sessions.getSessions() + " session(s), sorted by student and time"
+                  + " with " + sessions.getRuns() + " run file(s), " + sessions.getBytesSpilled() + " byte(s) spilled.");
         }
 
-        debug("Starting... " + new Date());
-
-        Long numLines = 0L;
-        try {
-            numLines = parseInputFile();
-        } catch (Exception e) {
-            System.err.println("Failed to parse input file: " + e.toString());
-            System.exit(-1);
+        if (rollup != null) {
+            long start = System.nanoTime();
+            int gzipThreads = rollupFileName.toLowerCase().endsWith(GZIP_SUFFIX) ? numThreads : 0;
+            try (OutputSink out = new OutputSink(new File(rollupFileName), 0L, gzipThreads)) {
+                rollup.writeTo(out);
+            }
+            metrics.write.recordSince(start);
+            debug("Wrote " + rollup.getSteps() + " student-step(s) of " + rollup.getLines() + " line(s) to "
+                  + rollupFileName + " with " + rollup.getRuns() + " run file(s), " + rollup.getBytesSpilled()
+                  + " byte(s) spilled.");
         }
 
-        debug("Finished parsing " + numLines + " lines at: " + new Date());
-
-        if (badIds.size() > 0) { debug("Found " + badIds.size() + " bad ID(s):"); }
-        for (String s : badIds) {
-            debug(s);
-        }
+        return total;
     }
 
-    private static final String TAB = "\t";
-    private static final String NEW_LINE = "\r\n";
-
-    // Headers for incoming data
-    private static final String ASSIGNMENT_ID = "assignmentid";
-    private static final String CT_CONTEXT_ID = "ctcontextid";
-    private static final String SEMANTIC_EVENT_ID = "semanticeventid";
-    private static final String SKILL_ID = "skillid";
-    private static final String RULE_ID = "ruleid";
-    private static final String GOAL_NODE_ID = "goalnodeid";
-    private static final String SERVER_TIME = "servertime";
-    private static final String ATTEMPT = "attempt";
-    private static final String ACTION = "action";
-    private static final String TUTOR_OUTCOME = "tutoroutcome";
-    private static final String HELP_LEVEL = "helplevel";
-    private static final String INPUT = "input";
-    private static final String SKILL_PREV_P_KNOWN = "skillpreviouspknown";
-    private static final String SKILL_NEW_P_KNOWN = "skillnewpknown";
-    private static final String SECTION_NAME = "sectionname";
-    private static final String SECTION_PROGRESS_STATUS = "sectionprogressstatus";
-    private static final String PROBLEM_ID = "problemid";
-    private static final String SCHOOL_ID = "schoolid";
-
-    private static final String[] HEADERS = { ASSIGNMENT_ID,
-                                              CT_CONTEXT_ID,
-                                              SEMANTIC_EVENT_ID,
-                                              SKILL_ID,
-                                              RULE_ID,
-                                              GOAL_NODE_ID,
-                                              SERVER_TIME,
-                                              ATTEMPT,
-                                              ACTION,
-                                              TUTOR_OUTCOME,
-                                              HELP_LEVEL,
-                                              INPUT,
-                                              SKILL_PREV_P_KNOWN,
-                                              SKILL_NEW_P_KNOWN,
-                                              SECTION_NAME,
-                                              SECTION_PROGRESS_STATUS,
-                                              PROBLEM_ID,
-                                              SCHOOL_ID};
-
-    // Number of lines to process -- read & write -- at a time.
-    private static final Integer BATCH_SIZE = 100000;
-    
     /**
-     * Parse the input file and create the output file.
+     * One of the input files, with the queue of its parsed chunks for
+     * the writer and its numbers for the run summary.
      */
-    private static Long parseInputFile()
-        throws Exception
-    {
-        CSVReader reader = null;
-        int lineNum = 1;
-        String[] line = null;
-        try {
+    private class InputFile {
+        final int index;
+        final File file;
 
-            File outputFile = new File(outputFileName);
-            writeHeaders(outputFile);
+        // Bounded, so the reader can't get too far ahead of the writer.
+        final BlockingQueue<Future<ParsedChunk>> chunks =
+            new ArrayBlockingQueue<Future<ParsedChunk>>(numThreads * 2);
 
-            File inputFile = new File(inputFileName);
+        // Stays open until the writer is done with the file, since the workers read from it.
+        volatile CsvChunkReader csvReader = null;
 
-            CSVParser parser = new CSVParserBuilder()
-                .withSeparator(',')
-                .withIgnoreQuotations(false)
-                .build();
-            reader = new CSVReaderBuilder(new FileReader(inputFile))
-                .withCSVParser(parser)
-                .build();
+        // Set if this is a cache of the input files rather than one of them.
+        volatile ColumnCache.Reader cache = null;
 
-            //            reader = new CSVReader(new FileReader(inputFile), ',');
-            line = reader.readNext();
-            Map<String, Integer> columnIndexMap = parseHeader(line);
+        volatile long linesRead = 0L;
 
-            List<DataShopTxnData> batch = new ArrayList<DataShopTxnData>();
+        // Only changed by the writer: how many lines it wrote, the bytes of
+        // CSV (decompressed) they came from, and when it
+        // finished the file before and this one. Files are read ahead, so
+        // that is the time the run took for this file.
+        long rowsWritten = 0L;
+        long csvBytes = 0L;
+        long startNanos = 0L;
+        long endNanos = 0L;
 
-            Iterator<String[]> iterator = reader.iterator();
-            while (iterator.hasNext()) {
-                line = iterator.next();
-                lineNum++;
-                if (line != null) { batch.add(parseLine(line, columnIndexMap)); }
-                if (batch.size() == BATCH_SIZE) {
-                    writeToOutputFile(batch, outputFile);
-                    batch = new ArrayList<DataShopTxnData>();
-                }
-            }
-            if (batch.size() > 0) { writeToOutputFile(batch, outputFile); }
+        // Read instead of the file if set, e.g. for convert(InputStream, ...).
+        InputStream stream = null;
 
-        } catch (Exception e) {
-            System.err.println("Failed to process line (" + lineNum + "): " + line);
-            e.printStackTrace();
-            throw e;
-        } finally {
+        // The file's share of the memory budget.
+        ChunkBudget.Account budget = null;
+
+        InputFile(int index, File file) {
+            this.index = index;
+            this.file = file;
+        }
+
+        void close() {
+            CsvChunkReader reader = csvReader;
+            csvReader = null;
             try {
                 if (reader != null) { reader.close(); }
             } catch (IOException exception) {
-                System.err.println("IOException occurred closing BufferedReader" + exception.toString());
+                System.err.println("IOException occurred closing input file" + exception.toString());
             }
         }
 
-        return reader.getLinesRead();
+        /**
+         * @return a line for the run summary: lines and bytes, and how fast
+         * the writer got through them
+         */
+        String getStats() {
+            double seconds = Math.max(endNanos - startNanos, 1L) / 1e9;
+            double megabytes = csvBytes / (1024.0 * 1024.0);
+            return String.format("Converted %s: %d line(s), %.1f MB in %.2f s (%.0f lines/s, %.1f MB/s)",
+                                 file, rowsWritten, megabytes, seconds,
+                                 rowsWritten / seconds, megabytes / seconds);
+        }
+    }
+
+    /**
+     * A chunk of encoded output lines. Each line is split around the
+     * "MATHia New" skill column, which the writer fills in: the line
+     * ends at rowEnd[i] and the skill goes at skillAt[i]. The skill is
+     * looked up with skillKeys[i], and uncodedSkillKeys[i] if that is
+     * SkillIndex.UNCODED; skills[i] is the line's own skill, null if blank.
+     */
+    private static class ParsedChunk {
+        final RowEncoder encoder = new RowEncoder(DATE_FMT);
+        int size = 0;
+        int[] skillAt = new int[0];
+        int[] rowEnd = new int[0];
+        long[] skillKeys = new long[0];
+        SkillIndex.Tuple[] uncodedSkillKeys = new SkillIndex.Tuple[0];
+        String[] skills = new String[0];
+        // The lines, between parsing and encoding them.
+        final TransactionBatch lines = new TransactionBatch();
+        // "MATHia New" skills, between the writer finding and writing them.
+        String[] newSkills = new String[0];
+        // The lines as a cache block, if a cache is being made.
+        byte[] cacheBlock = null;
+        // Per line, the value to partition the output on, if it is partitioned.
+        String[] partitions = new String[0];
+        // Per line, when it happened, if the output is split into sessions.
+        long[] times = new long[0];
+        // Per line, if dropping duplicates, hashes of its semanticeventid and the rest
+        // of it, and whether the writer dropped it.
+        long[] eventKeys = new long[0];
+        long[] rowKeys = new long[0];
+        boolean[] dropped = new boolean[0];
+        // Where the lines are in the input, if known.
+        CsvChunkReader.Chunk source = null;
+        // What the chunk took out of the memory budget.
+        long budgeted = 0L;
+        // If the chunk is in the last -incremental run's manifest: its chunks
+        // there with the same bytes, and how to have it converted if none
+        // of them will do. The chunk has no lines until then.
+        List<ChunkManifest.Chunk> reusable = null;
+        Callable<ParsedChunk> convert = null;
+        // The lines' steps, if the output is rolled up; reset by the worker.
+        final StepRollup.Lines steps = new StepRollup.Lines();
+        // The file and line number of the first line, and per line, why it
+        // is bad, or BadLines.OK, and its fields if it is to be quarantined.
+        File file = null;
+        long firstLineNum = 0L;
+        int[] errors = new int[0];
+        String[][] rejectFields = new String[0][];
+        int rejected = 0;
+
+        void reset(int size) {
+            this.size = size;
+            this.source = null;
+            this.file = null;
+            this.rejected = 0;
+            this.budgeted = 0L;
+            this.reusable = null;
+            this.convert = null;
+            this.cacheBlock = null;
+            encoder.reset();
+            if (skillAt.length < size) {
+                skillAt = new int[size];
+                rowEnd = new int[size];
+                skillKeys = new long[size];
+                uncodedSkillKeys = new SkillIndex.Tuple[size];
+                skills = new String[size];
+                newSkills = new String[size];
+                partitions = new String[size];
+                times = new long[size];
+                eventKeys = new long[size];
+                rowKeys = new long[size];
+                dropped = new boolean[size];
+                errors = new int[size];
+                rejectFields = new String[size][];
+            } else {
+                Arrays.fill(dropped, false);
+                Arrays.fill(errors, BadLines.OK);
+                Arrays.fill(rejectFields, null);
+                Arrays.fill(uncodedSkillKeys, null);
+                Arrays.fill(skills, null);
+                Arrays.fill(partitions, null);
+            }
+            Arrays.fill(skillKeys, NO_SKILL_KEY);
+            Arrays.fill(eventKeys, NO_EVENT_KEY);
+            lines.reset(size);
+        }
+
+        /**
+         * Mark a line as bad, so the writer drops it.
+         * @param fields the line's fields, to quarantine it with, or null
+         */
+        void reject(int i, int error, String[] fields) {
+            errors[i] = error;
+            rejectFields[i] = fields;
+            dropped[i] = true;
+            rejected++;
+        }
+
+        /**
+         * @return where the line starts in the input, uncompressed, or -1 if not known
+         */
+        long offset(int i) {
+            return ((source == null) || (source.recordStarts == null)) ? -1L : source.start + source.recordStarts[i];
+        }
     }
 
     /**
@@ -211,7 +2788,7 @@ public class ParseMATHia {
      * @param String[] headers
      * @return map of column names to indices
      */
-    private static Map<String, Integer> parseHeader(String[] headers) {
+    static Map<String, Integer> parseHeader(String[] headers) {
         Map<String, Integer> result = new HashMap<String, Integer>();
 
         int index = 0;
@@ -230,57 +2807,180 @@ public class ParseMATHia {
     }
 
     /**
-     * Read a single line from the input file and create the
-     * appropriate output line.
+     * @param colIndexMap map of column names to indices, from parseHeader()
+     * @return number of fields a line needs to have all of the columns
+     */
+    static int fieldsNeeded(Map<String, Integer> colIndexMap) {
+        int result = 0;
+        for (Integer index : colIndexMap.values()) {
+            result = Math.max(result, index + 1);
+        }
+        return result;
+    }
+
+    /**
+     * @param colIndexMap map of column names to indices, from parseHeader()
+     * @param eventIds whether semanticeventid is needed, which it is only
+     *        for dropping duplicates and for the cache
+     * @return which fields of a line parseLine() reads, for the tokenizer
+     *         to skip the rest
+     */
+    static boolean[] columnsNeeded(Map<String, Integer> colIndexMap, boolean eventIds) {
+        boolean[] result = new boolean[fieldsNeeded(colIndexMap)];
+        for (Map.Entry<String, Integer> e : colIndexMap.entrySet()) {
+            if (eventIds || !e.getKey().equals(SEMANTIC_EVENT_ID)) { result[e.getValue()] = true; }
+        }
+        return result;
+    }
+
+    /**
+     * Read a single line from the input file into a batch of parsed lines.
+     * @see #parseLine(String[], Map, int, TransactionBatch, int)
+     */
+    int parseLine(String[] st, Map<String, Integer> colIndexMap, TransactionBatch lines, int i) {
+        return parseLine(st, colIndexMap, fieldsNeeded(colIndexMap), lines, i);
+    }
+
+    /**
+     * Read a single line from the input file into a batch of parsed lines.
+     * The line is checked first, without exceptions, and a bad line is
+     * left blank.
      * @param st String[] the input line
      * @param colIndexMap map of column names to indices
-     * @return DataShopTxnData object
+     * @param fieldsNeeded fieldsNeeded(colIndexMap)
+     * @param lines the batch
+     * @param i where in the batch to put the line
+     * @return BadLines.OK, or why the line is bad
      */
-    private static DataShopTxnData parseLine(String[] st, Map<String, Integer> colIndexMap) {
-
-        DataShopTxnData result = new DataShopTxnData();
+    int parseLine(String[] st, Map<String, Integer> colIndexMap, int fieldsNeeded, TransactionBatch lines, int i) {
 
-        // TBD. Compare st.length to colIndexMap.size()....
-        if (st.length < 17) { return result; }
+        if ((st.length < 17) || (st.length < fieldsNeeded)) { return BadLines.TOO_FEW_FIELDS; }
 
         String ctContextId = st[colIndexMap.get(CT_CONTEXT_ID)];
         String assignmentId = st[colIndexMap.get(ASSIGNMENT_ID)];
         String action = st[colIndexMap.get(ACTION)];
         String outcome = st[colIndexMap.get(TUTOR_OUTCOME)];
-        Date timestamp = new Date(new Long(st[colIndexMap.get(SERVER_TIME)]));
-
-        if (origStudentId) {
-            result.setAnonStudentId(parseStudentId(ctContextId, assignmentId));
-        } else {
-            result.setAnonStudentId(ctContextId);
-        }
-        result.setSessionId("session1");
-        result.setTransactionTime(timestamp);
-        result.setAssignmentLevel(assignmentId);
-        result.setSectionLevel(st[colIndexMap.get(SECTION_NAME)]);
-        result.setProblemName(st[colIndexMap.get(PROBLEM_ID)]);
-        result.setSelection(parseSelection(action));
-        result.setAction(action);
-        result.setInput(st[colIndexMap.get(INPUT)]);
+        String serverTime = st[colIndexMap.get(SERVER_TIME)];
+        if (!BadLines.isWholeNumber(serverTime)) { return BadLines.BAD_TIME; }
+        String previousPKnown = st[colIndexMap.get(SKILL_PREV_P_KNOWN)];
+        boolean hasPreviousPKnown = isPKnown(previousPKnown);
+        if (hasPreviousPKnown && !BadLines.isNumber(previousPKnown)) { return BadLines.BAD_PREVIOUS_P_KNOWN; }
+        String newPKnown = st[colIndexMap.get(SKILL_NEW_P_KNOWN)];
+        boolean hasNewPKnown = isPKnown(newPKnown);
+        if (hasNewPKnown && !BadLines.isNumber(newPKnown)) { return BadLines.BAD_NEW_P_KNOWN; }
+        String studentId = origStudentId ? parseStudentId(ctContextId, assignmentId) : ctContextId;
+        if (studentId == null) { return BadLines.BAD_STUDENT_ID; }
+        long timestamp = Long.parseLong(serverTime);
+
+        lines.studentCodes[i] = encode(studentIds, studentId);
+        lines.students[i] = uncoded(lines.studentCodes[i], studentId);
+        lines.sessions[i] = FIRST_SESSION;
+        lines.times[i] = timestamp;
+        lines.assignmentCodes[i] = encode(assignments, assignmentId);
+        lines.assignments[i] = uncoded(lines.assignmentCodes[i], assignmentId);
+        String section = st[colIndexMap.get(SECTION_NAME)];
+        lines.sectionCodes[i] = encode(sections, section);
+        lines.sections[i] = uncoded(lines.sectionCodes[i], section);
+        String problem = st[colIndexMap.get(PROBLEM_ID)];
+        lines.problemCodes[i] = encode(problems, problem);
+        lines.problems[i] = uncoded(lines.problemCodes[i], problem);
+        lines.selections[i] = parseSelection(action);
+        lines.actions[i] = action;
+        lines.inputs[i] = st[colIndexMap.get(INPUT)];
         if (includePST) {
-            result.setProblemStartTime(timestamp);
-        }
-        result.setStepName(st[colIndexMap.get(GOAL_NODE_ID)]);
-        result.setOutcome(parseOutcome(outcome));
-        result.setStudentResponseType(parseStudentResponseType(action));
-        result.setMathiaSkill(st[colIndexMap.get(SKILL_ID)]);
-        result.setMathiaNewSkill(computeMathiaNewSkill(st, colIndexMap));
-        result.setRuleId(st[colIndexMap.get(RULE_ID)]);
-        result.setSkillPreviousPKnown(getPKnown(st[colIndexMap.get(SKILL_PREV_P_KNOWN)]));
-        result.setSkillNewPKnown(getPKnown(st[colIndexMap.get(SKILL_NEW_P_KNOWN)]));
-        result.setSectionProgressStatus(st[colIndexMap.get(SECTION_PROGRESS_STATUS)]);
+            lines.problemStartTimes[i] = timestamp;
+        }
+        String step = st[colIndexMap.get(GOAL_NODE_ID)];
+        lines.stepCodes[i] = encode(goals, step);
+        lines.steps[i] = uncoded(lines.stepCodes[i], step);
+        lines.outcomes[i] = parseOutcome(outcome);
+        lines.studentResponseTypes[i] = parseStudentResponseType(action);
+        String skill = st[colIndexMap.get(SKILL_ID)];
+        lines.skillCodes[i] = encode(skills, skill);
+        lines.skills[i] = uncoded(lines.skillCodes[i], skill);
+        // The "MATHia New" skill depends on the rows before this one,
+        // so it is filled in by the writer; see computeMathiaNewSkill().
+        String rule = st[colIndexMap.get(RULE_ID)];
+        lines.ruleCodes[i] = encode(rules, rule);
+        lines.rules[i] = uncoded(lines.ruleCodes[i], rule);
+        if (hasPreviousPKnown) { lines.setPreviousPKnown(i, Double.parseDouble(previousPKnown)); }
+        if (hasNewPKnown) { lines.setNewPKnown(i, Double.parseDouble(newPKnown)); }
+        lines.progressStatuses[i] = st[colIndexMap.get(SECTION_PROGRESS_STATUS)];
         if (colIndexMap.get(SCHOOL_ID) != null) {
-            result.setSchoolId(st[colIndexMap.get(SCHOOL_ID)]);
+            lines.schoolIds[i] = st[colIndexMap.get(SCHOOL_ID)];
+        }
+        lines.attempts[i] = st[colIndexMap.get(ATTEMPT)];
+        lines.helpLevels[i] = st[colIndexMap.get(HELP_LEVEL)];
+        if (colIndexMap.get(SEMANTIC_EVENT_ID) != null) {
+            lines.eventIds[i] = st[colIndexMap.get(SEMANTIC_EVENT_ID)];
         }
-        result.setAttemptAtStep(st[colIndexMap.get(ATTEMPT)]);
-        result.setHelpLevel(st[colIndexMap.get(HELP_LEVEL)]);
+        return BadLines.OK;
+    }
 
-        return result;
+    /**
+     * Read a single line from the cache, as parseLine() does from the input.
+     * Keep the two in step.
+     * @param block the block of lines
+     * @param i the line in the block, and where to put it in the batch
+     * @param lines the batch
+     * @return BadLines.OK, or why the line is bad
+     */
+    private int parseCachedLine(ColumnCache.Block block, int i, TransactionBatch lines)
+        throws IOException
+    {
+        // Bad lines are cached as minus the reason.
+        int fields = block.ints(CACHE_FIELDS)[i];
+        if (fields < 0) { return -fields; }
+        if (fields < 17) { return BadLines.TOO_FEW_FIELDS; }
+
+        String ctContextId = block.strings(CACHE_INDEX_MAP.get(CT_CONTEXT_ID))[i];
+        String assignmentId = block.strings(CACHE_INDEX_MAP.get(ASSIGNMENT_ID))[i];
+        String action = block.strings(CACHE_INDEX_MAP.get(ACTION))[i];
+        String outcome = block.strings(CACHE_INDEX_MAP.get(TUTOR_OUTCOME))[i];
+        long timestamp = block.longs(CACHE_INDEX_MAP.get(SERVER_TIME))[i];
+
+        String studentId = origStudentId ? parseStudentId(ctContextId, assignmentId) : ctContextId;
+        if (studentId == null) { return BadLines.BAD_STUDENT_ID; }
+        lines.studentCodes[i] = encode(studentIds, studentId);
+        lines.students[i] = uncoded(lines.studentCodes[i], studentId);
+        lines.sessions[i] = FIRST_SESSION;
+        lines.times[i] = timestamp;
+        lines.assignmentCodes[i] = encode(assignments, assignmentId);
+        lines.assignments[i] = uncoded(lines.assignmentCodes[i], assignmentId);
+        String section = block.strings(CACHE_INDEX_MAP.get(SECTION_NAME))[i];
+        lines.sectionCodes[i] = encode(sections, section);
+        lines.sections[i] = uncoded(lines.sectionCodes[i], section);
+        String problem = block.strings(CACHE_INDEX_MAP.get(PROBLEM_ID))[i];
+        lines.problemCodes[i] = encode(problems, problem);
+        lines.problems[i] = uncoded(lines.problemCodes[i], problem);
+        lines.selections[i] = parseSelection(action);
+        lines.actions[i] = action;
+        lines.inputs[i] = block.strings(CACHE_INDEX_MAP.get(INPUT))[i];
+        if (includePST) {
+            lines.problemStartTimes[i] = timestamp;
+        }
+        String step = block.strings(CACHE_INDEX_MAP.get(GOAL_NODE_ID))[i];
+        lines.stepCodes[i] = encode(goals, step);
+        lines.steps[i] = uncoded(lines.stepCodes[i], step);
+        lines.outcomes[i] = parseOutcome(outcome);
+        lines.studentResponseTypes[i] = parseStudentResponseType(action);
+        String skill = block.strings(CACHE_INDEX_MAP.get(SKILL_ID))[i];
+        lines.skillCodes[i] = encode(skills, skill);
+        lines.skills[i] = uncoded(lines.skillCodes[i], skill);
+        String rule = block.strings(CACHE_INDEX_MAP.get(RULE_ID))[i];
+        lines.ruleCodes[i] = encode(rules, rule);
+        lines.rules[i] = uncoded(lines.ruleCodes[i], rule);
+        lines.setPreviousPKnown(i, block.doubles(CACHE_INDEX_MAP.get(SKILL_PREV_P_KNOWN))[i]);
+        lines.setNewPKnown(i, block.doubles(CACHE_INDEX_MAP.get(SKILL_NEW_P_KNOWN))[i]);
+        lines.progressStatuses[i] = block.strings(CACHE_INDEX_MAP.get(SECTION_PROGRESS_STATUS))[i];
+        lines.schoolIds[i] = block.strings(CACHE_INDEX_MAP.get(SCHOOL_ID))[i];
+        lines.attempts[i] = block.strings(CACHE_INDEX_MAP.get(ATTEMPT))[i];
+        lines.helpLevels[i] = block.strings(CACHE_INDEX_MAP.get(HELP_LEVEL))[i];
+        // Only read from the cache when dropping duplicates.
+        if (dedupe) {
+            lines.eventIds[i] = block.strings(CACHE_INDEX_MAP.get(SEMANTIC_EVENT_ID))[i];
+        }
+        return BadLines.OK;
     }
 
     /**
@@ -289,18 +2989,18 @@ public class ParseMATHia {
      *
      * @param ctContextId
      * @param assignmentId
-     * @return String anonymous student id
+     * @return String anonymous student id, null if ctContextId is too short to have one
      */
-    private static String parseStudentId(String ctContextId, String assignmentId) {
+    private String parseStudentId(String ctContextId, String assignmentId) {
 
         int stuIndex = ctContextId.indexOf("-") + 1;
         int assignmentIndex = ctContextId.indexOf(assignmentId) - 1;
 
         // If assignmentId isn't part of ctContextId, hack it?
-        if ((stuIndex < 0) || (assignmentIndex < 0)) { 
+        if ((stuIndex < 0) || (assignmentIndex < 0) || (assignmentIndex < stuIndex)) {
             // Keep track of "bad" IDs...
             badIds.add("ctcontextid = " + ctContextId + ", assignmentid = " + assignmentId);
-            return ctContextId.substring(3, 37);
+            return (ctContextId.length() < 37) ? null : ctContextId.substring(3, 37);
         }
         return ctContextId.substring(stuIndex, assignmentIndex);
     }
@@ -362,31 +3062,30 @@ public class ParseMATHia {
         }
     }
 
+    // Skill key for lines that are too short to have one.
+    private static final long NO_SKILL_KEY = -1L;
+
+    // Event key of a line without a semanticeventid, which is never dropped.
+    private static final long NO_EVENT_KEY = 0L;
+
     /**
      * Determine if an untagged transaction should be tagged with current skill.
-     * @param in String[] the input line
-     * @param colIndexMap map of column names to indices
+     * Must be called on the lines in input order.
+     * @param key the (section, problem, goal)-tuple, from SkillIndex.pack()
+     * @param uncodedKey the tuple, if key is SkillIndex.UNCODED
+     * @param existingSkill the skillid of the line, null if blank
      * @return String the skill, empty string if not tagged
      */
-    private static String computeMathiaNewSkill(String[] in, Map<String, Integer> colIndexMap) {
+    String computeMathiaNewSkill(long key, SkillIndex.Tuple uncodedKey, String existingSkill) {
 
         String result = "";
 
-        String existingSkill = in[colIndexMap.get(SKILL_ID)];
-
-        StringBuffer sb = new StringBuffer();
-        sb.append(in[colIndexMap.get(SECTION_NAME)]).append("_");
-        sb.append(in[colIndexMap.get(PROBLEM_ID)]).append("_");
-        sb.append(in[colIndexMap.get(GOAL_NODE_ID)]);
-        String key = sb.toString();
-
-        String hashedSkill = skillMap.get(key);
-
-        if ((existingSkill != null) && (!existingSkill.trim().equals(""))) {
+        if (existingSkill != null) {
             result = existingSkill;
-            skillMap.put(key, existingSkill);
-        } else if (hashedSkill != null) {
-            result = hashedSkill;
+            skillIndex.put(key, uncodedKey, existingSkill);
+        } else {
+            String hashedSkill = skillIndex.get(key, uncodedKey);
+            if (hashedSkill != null) { result = hashedSkill; }
         }
         
         return result;
@@ -397,11 +3096,18 @@ public class ParseMATHia {
      * empty, null or "NA" cases.
      */
     private static Double getPKnown(String in) {
-        if (in == null) { return null; }
-        if (in.trim().equalsIgnoreCase("NA")) { return null; }
-        if (in.trim().equalsIgnoreCase("null")) { return null; }
-        if (in.trim().equals("")) { return null; }
-        return new Double(in);
+        return isPKnown(in) ? new Double(in) : null;
+    }
+
+    /**
+     * @return whether a p-known value is a number rather than empty, null or "NA"
+     */
+    private static boolean isPKnown(String in) {
+        if (in == null) { return false; }
+        if (in.trim().equalsIgnoreCase("NA")) { return false; }
+        if (in.trim().equalsIgnoreCase("null")) { return false; }
+        if (in.trim().equals("")) { return false; }
+        return true;
     }
 
     private static final String CORRECT = "CORRECT";
@@ -430,69 +3136,16 @@ public class ParseMATHia {
 
     /**
      * Write the headers to the output file.
-     * @param outputFile the output file
-     */
-    public static void writeHeaders(File outputFile) {
-
-        // Setup the writer.
-        BufferedWriter bw = null;
-        try {
-            // Append to existing file.
-            FileWriter fw = new FileWriter(outputFile, true);
-            bw = new BufferedWriter(fw);
-
-            String headers = getHeaders();
-            bw.write(headers);
-            bw.write(NEW_LINE);
-
-            bw.close();
-        } catch (IOException e) {
-            System.err.println("IOException while writing output file.");
-        } finally {
-            if (bw != null) {
-                try {
-                    bw.close();
-                } catch (IOException e) { }
-            }
-        }
-    }
-
-    /**
-     * Write the list of lines to the output file.
-     * @param outputLines List of String representing output
-     * @param outputFile the output file
+     * @param sink the output file
      */
-    public static void writeToOutputFile(List<DataShopTxnData> outputLines, File outputFile) {
-
-        // Setup the writer.
-        BufferedWriter bw = null;
-        try {
-            // Append to existing file.
-            FileWriter fw = new FileWriter(outputFile, true);
-            bw = new BufferedWriter(fw);
-
-            int count = 1;
-            for (DataShopTxnData o : outputLines) {
-                bw.write(formatOutput(o));
-                bw.write(NEW_LINE);
-                count++;
-            }
-
-            bw.close();
-        } catch (IOException e) {
-            System.err.println("IOException while writing output file.");
-        } finally {
-            if (bw != null) {
-                try {
-                    bw.close();
-                } catch (IOException e) { }
-            }
-        }
-
-        debug("Wrote " + outputLines.size() + " line(s) to the output file.");
+    public void writeHeaders(OutputSink sink)
+        throws IOException
+    {
+        sink.write(getHeaders());
+        sink.write(NEW_LINE);
     }
 
-    private static String getHeaders() {
+    private String getHeaders() {
         StringBuffer sb = new StringBuffer();
 
         sb.append("Anon Student Id").append(TAB);
@@ -522,83 +3175,186 @@ public class ParseMATHia {
         return sb.toString();
     }
 
-    private static String formatOutput(DataShopTxnData output) {
-        StringBuffer sb = new StringBuffer();
-
-        sb.append(output.getAnonStudentId()).append(TAB);
-        sb.append(output.getSessionId()).append(TAB);
-        sb.append(DATE_FMT.format(output.getTransactionTime())).append(TAB);
-        sb.append(output.getAssignmentLevel()).append(TAB);
-        sb.append(output.getSectionLevel()).append(TAB);
-        sb.append(output.getProblemName()).append(TAB);
-        sb.append(output.getStepName()).append(TAB);
-        sb.append(output.getSelection()).append(TAB);
-        sb.append(output.getAction()).append(TAB);
-        sb.append(output.getInput()).append(TAB);
+    /**
+     * Encode the output line up to, and including the tab after, the "KC Model(MATHia)" column.
+     * @param lines parsed lines
+     * @param i the line to encode
+     * @param encoder where to encode the line
+     */
+    void encodeOutputHead(TransactionBatch lines, int i, RowEncoder encoder) {
+        encodeCoded(encoder, studentIds, lines.studentCodes[i], lines.students[i]);
+        encoder.append(TAB_CHAR);
+        encoder.append(lines.sessions[i]); encoder.append(TAB_CHAR);
+        encodeTime(encoder, lines.times[i]); encoder.append(TAB_CHAR);
+        encodeCoded(encoder, assignments, lines.assignmentCodes[i], lines.assignments[i]);
+        encoder.append(TAB_CHAR);
+        encodeCoded(encoder, sections, lines.sectionCodes[i], lines.sections[i]);
+        encoder.append(TAB_CHAR);
+        encodeCoded(encoder, problems, lines.problemCodes[i], lines.problems[i]);
+        encoder.append(TAB_CHAR);
+        encodeCoded(encoder, goals, lines.stepCodes[i], lines.steps[i]);
+        encoder.append(TAB_CHAR);
+        encoder.append(lines.selections[i]); encoder.append(TAB_CHAR);
+        encoder.append(lines.actions[i]); encoder.append(TAB_CHAR);
+        encoder.append(lines.inputs[i]); encoder.append(TAB_CHAR);
         if (includePST) {
-            sb.append(DATE_FMT.format(output.getProblemStartTime())).append(TAB);
-        }
-        sb.append(output.getOutcome()).append(TAB);
-        sb.append(output.getMathiaSkill()).append(TAB);
-        sb.append(output.getMathiaNewSkill()).append(TAB);        
-        sb.append(output.getRuleId()).append(TAB);
-        sb.append(output.getSkillPreviousPKnown()).append(TAB);
-        sb.append(output.getSkillNewPKnown()).append(TAB);
-        sb.append(output.getSectionProgressStatus()).append(TAB);
-        sb.append(output.getSchoolId()).append(TAB);
-        sb.append(output.getAttemptAtStep()).append(TAB);
-        sb.append(output.getHelpLevel());
+            encodeTime(encoder, lines.problemStartTimes[i]); encoder.append(TAB_CHAR);
+        }
+        encoder.append(lines.outcomes[i]); encoder.append(TAB_CHAR);
+        encodeCoded(encoder, skills, lines.skillCodes[i], lines.skills[i]);
+        encoder.append(TAB_CHAR);
+    }
 
-        return sb.toString();
+    /**
+     * Encode the rest of the output line, starting with the tab after
+     * the "KC Model(MATHia New)" column, and ending with the line break.
+     * @param lines parsed lines
+     * @param i the line to encode
+     * @param encoder where to encode the line
+     */
+    void encodeOutputTail(TransactionBatch lines, int i, RowEncoder encoder) {
+        encoder.append(TAB_CHAR);
+        encodeCoded(encoder, rules, lines.ruleCodes[i], lines.rules[i]);
+        encoder.append(TAB_CHAR);
+        if (lines.hasPreviousPKnown(i)) {
+            encoder.append(lines.previousPKnown[i]);
+        } else {
+            encoder.append((Double)null);
+        }
+        encoder.append(TAB_CHAR);
+        if (lines.hasNewPKnown(i)) {
+            encoder.append(lines.newPKnown[i]);
+        } else {
+            encoder.append((Double)null);
+        }
+        encoder.append(TAB_CHAR);
+        encoder.append(lines.progressStatuses[i]); encoder.append(TAB_CHAR);
+        encoder.append(lines.schoolIds[i]); encoder.append(TAB_CHAR);
+        encoder.append(lines.attempts[i]); encoder.append(TAB_CHAR);
+        encoder.append(lines.helpLevels[i]);
+        encoder.append(NEW_LINE_BYTES);
     }
 
     /**
-     * Helper method to write message to debugging file.
-     * @param msg Message to write
+     * Encode a time. Every line must have one.
+     */
+    private static void encodeTime(RowEncoder encoder, long time) {
+        if (time == TransactionBatch.NO_TIME) {
+            throw new IllegalArgumentException("The line has no time; it has fewer than 17 fields.");
+        }
+        encoder.appendTime(time);
+    }
+
+    /**
+     * @return the code of a value of a dictionary-coded column, NO_CODE if it has none
+     */
+    private static int encode(ColumnDictionary dictionary, String value) {
+        return (value == null) ? ColumnDictionary.NO_CODE : dictionary.code(value);
+    }
+
+    /**
+     * @return the value to keep alongside a code: only kept if there is no code
+     */
+    private static String uncoded(int code, String value) {
+        return (code == ColumnDictionary.NO_CODE) ? value : null;
+    }
+
+    /**
+     * @return the value of a dictionary-coded column, from its code or as kept
+     */
+    private static String decode(ColumnDictionary dictionary, int code, String value) {
+        return (code == ColumnDictionary.NO_CODE) ? value : dictionary.value(code);
+    }
+
+    /**
+     * Encode the value of a dictionary-coded column: the dictionary's
+     * bytes for the code, or the String itself if it has no code.
      */
-    private static void debug(String msg) {
+    private void encodeCoded(RowEncoder encoder, ColumnDictionary dictionary, int code, String value) {
+        if (code == ColumnDictionary.NO_CODE) {
+            encoder.append(value);
+        } else {
+            encoder.append(dictionary.bytes(code));
+        }
+    }
 
-        // Setup the writer.
-        BufferedWriter bw = null;
+    /**
+     * Parse a size, in bytes or with a k, m or g suffix, e.g. "512m".
+     * @param size the size
+     * @return the number of bytes, -1 if it isn't a size
+     */
+    private static long parseSize(String size) {
+        String s = size.trim().toLowerCase();
+        long unit = 1L;
+        if (s.endsWith("k")) {
+            unit = 1L << 10;
+        } else if (s.endsWith("m")) {
+            unit = 1L << 20;
+        } else if (s.endsWith("g")) {
+            unit = 1L << 30;
+        }
+        if (unit > 1L) { s = s.substring(0, s.length() - 1); }
         try {
-            // Append to existing file.
-            FileWriter fw = new FileWriter(debugFile, true);
-            bw = new BufferedWriter(fw);
+            long n = Long.parseLong(s);
+            return ((n < 0) || (n > Long.MAX_VALUE / unit)) ? -1L : n * unit;
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
 
-            bw.write(msg);
-            bw.write(NEW_LINE);
+    /**
+     * Helper method to write message to debugging file.
+     * @param msg Message to write
+     */
+    private void debug(String msg) {
+        if (debugLog != null) { debugLog.log(msg); }
+    }
 
-            bw.close();
+    /**
+     * Write any pending debugging messages and close the debugging file.
+     */
+    private void closeDebugLog() {
+        if (debugLog == null) { return; }
+        try {
+            debugLog.close();
         } catch (IOException e) {
-            System.err.println("IOException while writing output file.");
-        } finally {
-            if (bw != null) {
-                try {
-                    bw.close();
-                } catch (IOException e) { }
-            }
+            System.err.println(e.getMessage());
         }
+        debugLog = null;
     }
 
-    private static class DataShopTxnData {
+    /**
+     * One output line. Its dictionary-coded columns are decoded with the
+     * dictionaries of the converter it was parsed by.
+     */
+    public class DataShopTxnData {
         public DataShopTxnData() {} 
 
+        // Values of the dictionary-coded columns are kept as codes. The
+        // String field is only set if the value has no code.
+        private int anonStudentIdCode = ColumnDictionary.NO_CODE;
         private String anonStudentId;
         private String sessionId;
         private Date transactionTime;
+        private int assignmentLevelCode = ColumnDictionary.NO_CODE;
         private String assignmentLevel;
+        private int sectionLevelCode = ColumnDictionary.NO_CODE;
         private String sectionLevel;
+        private int problemNameCode = ColumnDictionary.NO_CODE;
         private String problemName;
         private String selection;
         private String action;
         private String input;
         private Date problemStartTime;
+        private int stepNameCode = ColumnDictionary.NO_CODE;
         private String stepName;
         private String outcome;
         private String studentResponseType;
         private String tutorResponseType;
+        private int mathiaSkillCode = ColumnDictionary.NO_CODE;
         private String mathiaSkill;
         private String mathiaNewSkill;
+        private int ruleIdCode = ColumnDictionary.NO_CODE;
         private String ruleId;
         private Double skillPreviousPKnown;
         private Double skillNewPKnown;
@@ -606,19 +3362,37 @@ public class ParseMATHia {
         private String schoolId;
         private String attemptAtStep;
         private String helpLevel;
-
-        public String getAnonStudentId() { return anonStudentId; }
-        public void setAnonStudentId(String anonStudentId) { this.anonStudentId = anonStudentId; }
+        // Not written; only used to find duplicates.
+        private String semanticEventId;
+
+        public String getAnonStudentId() { return decode(studentIds, anonStudentIdCode, anonStudentId); }
+        public int getAnonStudentIdCode() { return anonStudentIdCode; }
+        public void setAnonStudentId(String anonStudentId) {
+            this.anonStudentIdCode = encode(studentIds, anonStudentId);
+            this.anonStudentId = uncoded(anonStudentIdCode, anonStudentId);
+        }
         public String getSessionId() { return sessionId; }
         public void setSessionId(String sessionId) { this.sessionId = sessionId; }
         public Date getTransactionTime() { return transactionTime; }
         public void setTransactionTime(Date transactionTime) { this.transactionTime = transactionTime; }
-        public String getAssignmentLevel() { return assignmentLevel; }
-        public void setAssignmentLevel(String assignmentLevel) { this.assignmentLevel = assignmentLevel; }
-        public String getSectionLevel() { return sectionLevel; }
-        public void setSectionLevel(String sectionLevel) { this.sectionLevel = sectionLevel; }
-        public String getProblemName() { return problemName; }
-        public void setProblemName(String problemName) { this.problemName = problemName; }
+        public String getAssignmentLevel() { return decode(assignments, assignmentLevelCode, assignmentLevel); }
+        public int getAssignmentLevelCode() { return assignmentLevelCode; }
+        public void setAssignmentLevel(String assignmentLevel) {
+            this.assignmentLevelCode = encode(assignments, assignmentLevel);
+            this.assignmentLevel = uncoded(assignmentLevelCode, assignmentLevel);
+        }
+        public String getSectionLevel() { return decode(sections, sectionLevelCode, sectionLevel); }
+        public int getSectionLevelCode() { return sectionLevelCode; }
+        public void setSectionLevel(String sectionLevel) {
+            this.sectionLevelCode = encode(sections, sectionLevel);
+            this.sectionLevel = uncoded(sectionLevelCode, sectionLevel);
+        }
+        public String getProblemName() { return decode(problems, problemNameCode, problemName); }
+        public int getProblemNameCode() { return problemNameCode; }
+        public void setProblemName(String problemName) {
+            this.problemNameCode = encode(problems, problemName);
+            this.problemName = uncoded(problemNameCode, problemName);
+        }
         public String getSelection() { return selection; }
         public void setSelection(String selection) { this.selection = selection; }
         public String getAction() { return action; }
@@ -627,20 +3401,32 @@ public class ParseMATHia {
         public void setInput(String input) { this.input = input; }
         public Date getProblemStartTime() { return problemStartTime; }
         public void setProblemStartTime(Date problemStartTime) { this.problemStartTime = problemStartTime; }
-        public String getStepName() { return stepName; }
-        public void setStepName(String stepName) { this.stepName = stepName; }
+        public String getStepName() { return decode(goals, stepNameCode, stepName); }
+        public int getStepNameCode() { return stepNameCode; }
+        public void setStepName(String stepName) {
+            this.stepNameCode = encode(goals, stepName);
+            this.stepName = uncoded(stepNameCode, stepName);
+        }
         public String getOutcome() { return outcome; }
         public void setOutcome(String outcome) { this.outcome = outcome; }
         public String getStudentResponseType() { return studentResponseType; }
         public void setStudentResponseType(String studentResponseType) { this.studentResponseType = studentResponseType; }
         public String getTutorResponseType() { return tutorResponseType; }
         public void setTutorResponseType(String tutorResponseType) { this.tutorResponseType = tutorResponseType; }
-        public String getMathiaSkill() { return mathiaSkill; }
-        public void setMathiaSkill(String mathiaSkill) { this.mathiaSkill = mathiaSkill; }
+        public String getMathiaSkill() { return decode(skills, mathiaSkillCode, mathiaSkill); }
+        public int getMathiaSkillCode() { return mathiaSkillCode; }
+        public void setMathiaSkill(String mathiaSkill) {
+            this.mathiaSkillCode = encode(skills, mathiaSkill);
+            this.mathiaSkill = uncoded(mathiaSkillCode, mathiaSkill);
+        }
         public String getMathiaNewSkill() { return mathiaNewSkill; }
         public void setMathiaNewSkill(String mathiaNewSkill) { this.mathiaNewSkill = mathiaNewSkill; }
-        public String getRuleId() { return ruleId; }
-        public void setRuleId(String ruleId) { this.ruleId = ruleId; }
+        public String getRuleId() { return decode(rules, ruleIdCode, ruleId); }
+        public int getRuleIdCode() { return ruleIdCode; }
+        public void setRuleId(String ruleId) {
+            this.ruleIdCode = encode(rules, ruleId);
+            this.ruleId = uncoded(ruleIdCode, ruleId);
+        }
         public Double getSkillPreviousPKnown() { return skillPreviousPKnown; }
         public void setSkillPreviousPKnown(Double skillPreviousPKnown) { this.skillPreviousPKnown = skillPreviousPKnown; }
         public Double getSkillNewPKnown() { return skillNewPKnown; }
@@ -653,6 +3439,8 @@ public class ParseMATHia {
         public void setAttemptAtStep(String attemptAtStep) { this.attemptAtStep = attemptAtStep; }
         public String getHelpLevel() { return helpLevel; }
         public void setHelpLevel(String helpLevel) { this.helpLevel = helpLevel; }
+        public String getSemanticEventId() { return semanticEventId; }
+        public void setSemanticEventId(String semanticEventId) { this.semanticEventId = semanticEventId; }
 
         public String toString() {
             StringBuffer sb = new StringBuffer("DataShopTxnData [");
@@ -0,0 +1,493 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A long-running converter that takes jobs over HTTP on the loopback
+ * interface, so that a box converting many small files pays for JVM
+ * startup and JIT warm-up once rather than per file.
+ *
+ *   POST /jobs         the body is a job's ParseMATHia args, one per line;
+ *                      answers 202 with the job, 400 for bad args, 415 if
+ *                      not application/x-parse-args, or 503 if the queue
+ *                      is full
+ *   GET /jobs          the queued, running and finished jobs
+ *   GET /jobs/N        job N: its state, times, error and metrics
+ *   DELETE /jobs/N     cancel job N, if it is still queued
+ *
+ * At most -jobs jobs run at once, each on its own converter with its
+ * own worker threads; up to -queue more wait their turn.
+ *
+ * Jobs read and write files as the server's user, so listening on the
+ * loopback interface isn't enough: a web page in a local browser can
+ * reach it too. Every request must carry the token the server writes at
+ * startup to -token-file, readable only by its owner, as "Authorization:
+ * Bearer <token>", and name the server as localhost in its Host header,
+ * which a page that rebinds its own name to 127.0.0.1 can't. Requests
+ * with an Origin header come from a browser and are refused. A job is
+ * posted as application/x-parse-args, which a page can't send without
+ * the CORS preflight this server never answers.
+ */
+public class ParseServer {
+
+    private static final int DEFAULT_PORT = 8642;
+
+    // Finished jobs to keep the status of; the oldest are forgotten first.
+    private static final int MAX_FINISHED_JOBS = 1000;
+
+    private static final String JOBS_PATH = "/jobs";
+
+    static final String JOB_CONTENT_TYPE = "application/x-parse-args";
+
+    private static final String DEFAULT_TOKEN_FILE = ".parse_server_token";
+
+    // The names the server may be reached by, before the ":port".
+    private static final Set<String> LOCAL_HOSTS = Set.of("localhost", "127.0.0.1", "[::1]");
+
+    enum State { QUEUED, RUNNING, DONE, FAILED, CANCELLED }
+
+    /**
+     * A conversion submitted to the server.
+     */
+    private static class Job implements Runnable {
+        final long id;
+        final List<String> args;
+        final ParseMATHia converter;
+        final Date submitted = new Date();
+        volatile Date started = null;
+        volatile Date finished = null;
+        volatile State state = State.QUEUED;
+        volatile long linesRead = 0L;
+        volatile String error = null;
+        volatile Future<?> future = null;
+
+        Job(long id, List<String> args, ParseMATHia converter) {
+            this.id = id;
+            this.args = args;
+            this.converter = converter;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (state != State.QUEUED) { return; }
+                state = State.RUNNING;
+                started = new Date();
+            }
+            State result = State.FAILED;
+            try {
+                linesRead = converter.convert();
+                result = State.DONE;
+            } catch (Exception e) {
+                error = e.getMessage();
+            } catch (Error e) {
+                // E.g. out of memory: this job has failed, but others may be fine.
+                error = e.toString();
+                throw e;
+            } finally {
+                finished = new Date();
+                state = result;
+            }
+        }
+
+        /**
+         * @return whether the job was still queued, and now won't run
+         */
+        synchronized boolean cancel() {
+            if (state != State.QUEUED) { return false; }
+            state = State.CANCELLED;
+            finished = new Date();
+            if (future != null) { future.cancel(false); }
+            return true;
+        }
+
+        boolean isFinished() {
+            return (state == State.DONE) || (state == State.FAILED) || (state == State.CANCELLED);
+        }
+
+        String toJson() {
+            StringBuilder sb = new StringBuilder(4096);
+            sb.append("{\n");
+            sb.append("\"id\": ").append(id).append(",\n");
+            sb.append("\"state\": ").append(Metrics.quote(state.name().toLowerCase())).append(",\n");
+            sb.append("\"args\": [");
+            for (int i = 0; i < args.size(); i++) {
+                sb.append((i == 0) ? "" : ", ").append(Metrics.quote(args.get(i)));
+            }
+            sb.append("],\n");
+            sb.append("\"submitted\": ").append(time(submitted)).append(",\n");
+            sb.append("\"started\": ").append(time(started)).append(",\n");
+            sb.append("\"finished\": ").append(time(finished)).append(",\n");
+            sb.append("\"linesRead\": ").append(linesRead).append(",\n");
+            sb.append("\"error\": ").append((error == null) ? "null" : Metrics.quote(error));
+            // Before it starts, the converter's numbers are all 0.
+            if (started != null) {
+                sb.append(",\n\"metrics\": ").append(converter.getMetricsJson().trim());
+            }
+            sb.append("\n}");
+            return sb.toString();
+        }
+
+        private static String time(Date date) {
+            if (date == null) { return "null"; }
+            synchronized (ParseMATHia.DATE_FMT) {
+                return Metrics.quote(ParseMATHia.DATE_FMT.format(date));
+            }
+        }
+    }
+
+    private final HttpServer server;
+    private final ThreadPoolExecutor runners;
+    private final int threadsPerJob;
+    private final byte[] token;
+    // All jobs by ID, oldest first, and the ID of the next. Access must be synchronized on jobs.
+    private final LinkedHashMap<Long, Job> jobs = new LinkedHashMap<Long, Job>();
+    private long nextId = 1L;
+
+    /**
+     * @param port port to listen on, on the loopback interface
+     * @param maxJobs most jobs to run at once
+     * @param queueSize most jobs to have waiting
+     * @param token what requests must send as "Authorization: Bearer <token>"
+     */
+    ParseServer(int port, int maxJobs, int queueSize, String token)
+        throws IOException
+    {
+        this.token = ("Bearer " + token).getBytes(StandardCharsets.UTF_8);
+        this.runners = new ThreadPoolExecutor(maxJobs, maxJobs, 0L, TimeUnit.MILLISECONDS,
+                                              new ArrayBlockingQueue<Runnable>(queueSize),
+                                              r -> new Thread(r, "conversion-job"));
+        // Jobs share the processors, unless they say otherwise with -threads.
+        this.threadsPerJob = Math.max(1, Runtime.getRuntime().availableProcessors() / maxJobs);
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.createContext(JOBS_PATH, this::handle);
+        // Requests are small; the jobs run on the runners.
+        this.server.setExecutor(Executors.newFixedThreadPool(2, r -> {
+                Thread t = new Thread(r, "http");
+                t.setDaemon(true);
+                return t;
+            }));
+    }
+
+    public static void main(String[] args) {
+        int port = DEFAULT_PORT;
+        int maxJobs = 2;
+        int queueSize = 100;
+        Path tokenFile = Paths.get(System.getProperty("user.home"), DEFAULT_TOKEN_FILE);
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i].trim().toLowerCase();
+            int value = -1;
+            if (arg.equals("-token-file")) {
+                if (++i >= args.length) {
+                    System.err.println("A file name must be specified with the '-token-file' arg.");
+                    System.exit(-1);
+                }
+                tokenFile = Paths.get(args[i].trim());
+                continue;
+            }
+            if (arg.equals("-port") || arg.equals("-jobs") || arg.equals("-queue")) {
+                if (++i < args.length) {
+                    try {
+                        value = Integer.parseInt(args[i].trim());
+                    } catch (NumberFormatException e) {
+                        value = -1;
+                    }
+                }
+                if (value < 1) {
+                    System.err.println("A positive integer must be specified with the '" + arg + "' arg.");
+                    System.exit(-1);
+                }
+            }
+            if (arg.equals("-port")) {
+                port = value;
+            } else if (arg.equals("-jobs")) {
+                maxJobs = value;
+            } else if (arg.equals("-queue")) {
+                queueSize = value;
+            } else {
+                System.out.println("Unrecognized argument: " + args[i]);
+            }
+        }
+
+        String token = newToken();
+        try {
+            writeToken(tokenFile, token);
+        } catch (IOException e) {
+            System.err.println("Failed to write the token to " + tokenFile + ": " + e.toString());
+            System.exit(-1);
+        }
+
+        ParseServer server = null;
+        try {
+            server = new ParseServer(port, maxJobs, queueSize, token);
+        } catch (IOException e) {
+            System.err.println("Failed to listen on port " + port + ": " + e.toString());
+            System.exit(-1);
+        }
+        final ParseServer stopping = server;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> stopping.stop()));
+        server.start();
+        System.out.println("Taking conversion jobs at http://localhost:" + server.getPort() + JOBS_PATH
+                           + ", " + maxJobs + " at a time, with the token in " + tokenFile + ".");
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder sb = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Write the token to a new file that only its owner can read, replacing
+     * any left from an earlier run.
+     */
+    private static void writeToken(Path file, String token)
+        throws IOException
+    {
+        Files.deleteIfExists(file);
+        try {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system; the file gets its directory's permissions.
+            Files.createFile(file);
+        }
+        Files.write(file, (token + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    void start() {
+        server.start();
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stop taking jobs, cancel the queued ones and wait for the running ones.
+     */
+    void stop() {
+        server.stop(0);
+        synchronized (jobs) {
+            for (Job job : jobs.values()) { job.cancel(); }
+        }
+        runners.shutdown();
+        try {
+            runners.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handle(HttpExchange exchange)
+        throws IOException
+    {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            String refusal = checkRequest(exchange);
+            if (refusal != null) {
+                respond(exchange, 403, error(refusal));
+                return;
+            }
+            if (path.equals(JOBS_PATH) || path.equals(JOBS_PATH + "/")) {
+                if (method.equals("POST")) {
+                    submit(exchange);
+                } else if (method.equals("GET")) {
+                    respond(exchange, 200, listJobs());
+                } else {
+                    respond(exchange, 405, error("Use GET or POST."));
+                }
+                return;
+            }
+
+            Job job = null;
+            try {
+                long id = Long.parseLong(path.substring(JOBS_PATH.length() + 1));
+                synchronized (jobs) { job = jobs.get(id); }
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                job = null;
+            }
+            if (job == null) {
+                respond(exchange, 404, error("No such job: " + path));
+            } else if (method.equals("GET")) {
+                respond(exchange, 200, job.toJson());
+            } else if (method.equals("DELETE")) {
+                if (job.cancel()) {
+                    // Make room in the queue.
+                    runners.purge();
+                    respond(exchange, 200, job.toJson());
+                } else {
+                    respond(exchange, 409, error("Job " + job.id + " is " + job.state.name().toLowerCase()
+                                                  + "; only queued jobs can be cancelled."));
+                }
+            } else {
+                respond(exchange, 405, error("Use GET or DELETE."));
+            }
+        } catch (RuntimeException e) {
+            respond(exchange, 500, error(e.toString()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @return why the request is refused, or null if it may go ahead
+     */
+    private String checkRequest(HttpExchange exchange) {
+        if (exchange.getRequestHeaders().containsKey("Origin")) {
+            return "Requests from web pages are not accepted.";
+        }
+        String host = exchange.getRequestHeaders().getFirst("Host");
+        String port = ":" + getPort();
+        if ((host == null) || !host.endsWith(port)
+            || !LOCAL_HOSTS.contains(host.substring(0, host.length() - port.length()).toLowerCase())) {
+            return "The Host must be localhost" + port + ", 127.0.0.1" + port + " or [::1]" + port + ".";
+        }
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if ((authorization == null)
+            || !MessageDigest.isEqual(token, authorization.trim().getBytes(StandardCharsets.UTF_8))) {
+            return "The token from the server's token file must be sent as 'Authorization: Bearer <token>'.";
+        }
+        return null;
+    }
+
+    private void submit(HttpExchange exchange)
+        throws IOException
+    {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if ((contentType == null)
+            || !contentType.split(";")[0].trim().equalsIgnoreCase(JOB_CONTENT_TYPE)) {
+            respond(exchange, 415, error("Jobs must be posted as " + JOB_CONTENT_TYPE + "."));
+            return;
+        }
+        List<String> args = new ArrayList<String>();
+        for (String line : readBody(exchange).split("\r?\n")) {
+            if (!line.trim().isEmpty()) { args.add(line.trim()); }
+        }
+
+        ParseMATHia.Builder builder = ParseMATHia.builder().threads(threadsPerJob);
+        ParseMATHia converter;
+        try {
+            List<String> unrecognized = new ArrayList<String>();
+            ParseMATHia.parseArgs(builder, args.toArray(new String[0]), unrecognized);
+            if (!unrecognized.isEmpty()) {
+                throw new IllegalArgumentException("Unrecognized argument: " + unrecognized.get(0));
+            }
+            converter = builder.build();
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, error(e.getMessage()));
+            return;
+        }
+        if ((converter.getInputFileName() == null) || (converter.getOutputFileName() == null)) {
+            respond(exchange, 400, error("The input and output file names must be specified, using '-i' and '-o'."));
+            return;
+        }
+
+        Job job;
+        synchronized (jobs) {
+            // Each job's numbers can be watched over JMX while it runs.
+            long id = nextId;
+            job = new Job(id, args, builder.jmxName(Metrics.OBJECT_NAME + ",job=" + id).build());
+            try {
+                job.future = runners.submit(job);
+            } catch (RejectedExecutionException e) {
+                respond(exchange, 503, error("The queue is full; try again later."));
+                return;
+            }
+            nextId++;
+            jobs.put(id, job);
+            forgetFinishedJobs();
+        }
+        exchange.getResponseHeaders().set("Location", JOBS_PATH + "/" + job.id);
+        respond(exchange, 202, job.toJson());
+    }
+
+    private String listJobs() {
+        StringBuilder sb = new StringBuilder();
+        int queued = runners.getQueue().size();
+        synchronized (jobs) {
+            sb.append("{\n\"running\": ").append(runners.getActiveCount())
+                .append(",\n\"queued\": ").append(queued)
+                .append(",\n\"jobs\": [");
+            String separator = "\n";
+            for (Job job : jobs.values()) {
+                sb.append(separator).append(job.toJson());
+                separator = ",\n";
+            }
+        }
+        return sb.append("\n]\n}").toString();
+    }
+
+    /**
+     * Drop the oldest finished jobs beyond MAX_FINISHED_JOBS.
+     */
+    private void forgetFinishedJobs() {
+        int finished = 0;
+        for (Job job : jobs.values()) {
+            if (job.isFinished()) { finished++; }
+        }
+        Iterator<Job> i = jobs.values().iterator();
+        while ((finished > MAX_FINISHED_JOBS) && i.hasNext()) {
+            if (i.next().isFinished()) {
+                i.remove();
+                finished--;
+            }
+        }
+    }
+
+    private static String readBody(HttpExchange exchange)
+        throws IOException
+    {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = exchange.getRequestBody()) {
+            in.transferTo(body);
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String error(String message) {
+        return "{\"error\": " + Metrics.quote(message) + "}";
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json)
+        throws IOException
+    {
+        byte[] bytes = (json + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Output split into a file per partition (school, assignment, ...),
+ * each with its own header. "out.txt" gets "out_school1.txt" and so on;
+ * a ".gz" name gets gzipped files, compressed on one pool of threads.
+ *
+ * There can be many more partitions than it is sensible to have files
+ * open, so at most maxOpen are, with small buffers; the least recently
+ * written one is closed to make room, and opened again, to append to,
+ * when it gets more lines. Only used by the writer stage.
+ */
+class PartitionedOutput implements Closeable {
+
+    // Buffer per open file; small, since there can be many open.
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    // File name part for lines without a value to partition on.
+    private static final String NO_PARTITION = "unknown";
+
+    private static final String GZIP_SUFFIX = ".gz";
+
+    private final String prefix;
+    private final String suffix;
+    private final String header;
+    private final int maxOpen;
+    private final ExecutorService compressors;
+    private final int maxMembers;
+
+    // Open files, least recently used first.
+    private final LinkedHashMap<String, OutputSink> open = new LinkedHashMap<String, OutputSink>(16, 0.75f, true);
+    // Length of every partition's file, as of when it was last closed.
+    private final Map<String, Long> lengths = new HashMap<String, Long>();
+    // Lengths of the files that aren't open, added up.
+    private long closedBytes = 0L;
+    private long reopened = 0L;
+
+    /**
+     * @param output the output file name, which the partitions' names are made from
+     * @param header first line of every file, with its line ending
+     * @param maxOpen most files to have open at once
+     * @param gzipThreads number of threads to compress on, if the output name ends in ".gz"
+     */
+    PartitionedOutput(String output, String header, int maxOpen, int gzipThreads) {
+        String name = output;
+        String gzip = "";
+        if (name.toLowerCase().endsWith(GZIP_SUFFIX)) {
+            gzip = name.substring(name.length() - GZIP_SUFFIX.length());
+            name = name.substring(0, name.length() - GZIP_SUFFIX.length());
+        }
+        int dot = name.lastIndexOf('.');
+        if (dot <= name.lastIndexOf(File.separatorChar) + 1) { dot = name.length(); }
+        this.prefix = name.substring(0, dot) + "_";
+        this.suffix = name.substring(dot) + gzip;
+
+        this.header = header;
+        this.maxOpen = maxOpen;
+        this.compressors = gzip.isEmpty() ? null : OutputSink.newCompressors(gzipThreads);
+        this.maxMembers = gzipThreads * 2;
+    }
+
+    /**
+     * @param partition the value to partition on, null if the line has none
+     * @return the open file for the partition
+     */
+    OutputSink get(String partition)
+        throws IOException
+    {
+        String key = (partition == null) ? NO_PARTITION : partition;
+        OutputSink sink = open.get(key);
+        if (sink != null) { return sink; }
+
+        if (open.size() >= maxOpen) {
+            Iterator<Map.Entry<String, OutputSink>> eldest = open.entrySet().iterator();
+            Map.Entry<String, OutputSink> e = eldest.next();
+            eldest.remove();
+            close(e.getKey(), e.getValue());
+        }
+
+        Long length = lengths.get(key);
+        File file = getFile(key);
+        if (length == null) {
+            sink = new OutputSink(file, 0L, BUFFER_SIZE, compressors, maxMembers);
+            open.put(key, sink);
+            lengths.put(key, 0L);
+            sink.write(header);
+        } else {
+            sink = new OutputSink(file, length, BUFFER_SIZE, compressors, maxMembers);
+            open.put(key, sink);
+            closedBytes -= length;
+            reopened++;
+        }
+        return sink;
+    }
+
+    /**
+     * @param partition the value partitioned on
+     * @return the partition's file
+     */
+    File getFile(String partition) {
+        return new File(prefix + fileNamePart(partition) + suffix);
+    }
+
+    /**
+     * @return number of bytes in all of the files so far
+     */
+    long getBytesWritten() {
+        long result = closedBytes;
+        for (OutputSink sink : open.values()) { result += sink.getBytesWritten(); }
+        return result;
+    }
+
+    /**
+     * @return number of partitions so far
+     */
+    int getPartitions() {
+        return lengths.size();
+    }
+
+    /**
+     * @return number of times a file was closed to make room and opened again
+     */
+    long getReopened() {
+        return reopened;
+    }
+
+    /**
+     * Flush and close all of the files.
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        IOException failure = null;
+        Iterator<Map.Entry<String, OutputSink>> i = open.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<String, OutputSink> e = i.next();
+            i.remove();
+            try {
+                close(e.getKey(), e.getValue());
+            } catch (IOException exception) {
+                if (failure == null) { failure = exception; }
+            }
+        }
+        if (compressors != null) { compressors.shutdownNow(); }
+        if (failure != null) { throw failure; }
+    }
+
+    private void close(String key, OutputSink sink)
+        throws IOException
+    {
+        sink.close();
+        long length = sink.getBytesWritten();
+        lengths.put(key, length);
+        closedBytes += length;
+    }
+
+    /**
+     * The value, made safe to use in a file name. Values that had to be
+     * changed get a hash of the original, so they can't clash.
+     */
+    private static String fileNamePart(String value) {
+        if (value.isEmpty()) { return NO_PARTITION; }
+        StringBuilder sb = new StringBuilder(value.length());
+        boolean changed = false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) || ((c >= '0') && (c <= '9'))
+                || (c == '-') || (c == '_') || ((c == '.') && (i > 0))) {
+                sb.append(c);
+            } else {
+                sb.append('_');
+                changed = true;
+            }
+        }
+        if (changed || value.equals(NO_PARTITION)) {
+            sb.append('-').append(Integer.toHexString(value.hashCode()));
+        }
+        return sb.toString();
+    }
+}
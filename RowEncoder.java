@@ -0,0 +1,262 @@
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * Encodes output rows as UTF-8 straight into a growable byte buffer,
+ * which is reused from one chunk of rows to the next.
+ *
+ * Produces exactly the bytes that appending the same values to a
+ * StringBuilder, formatting dates with the given SimpleDateFormat,
+ * and encoding the result as UTF-8 would.
+ */
+class RowEncoder {
+
+    private static final int INITIAL_SIZE = 1024 * 1024;
+
+    private static final byte[] NULL = { 'n', 'u', 'l', 'l' };
+
+    // Dates before this go through the SimpleDateFormat, which
+    // handles the switch from the Julian calendar.
+    private static final long MIN_FAST_MILLIS = -11676096000000L;   // 1600-01-01
+
+    // Dates after this go through the SimpleDateFormat too, as the year has more than 4 digits.
+    private static final long MAX_FAST_MILLIS = 253402214400000L;   // 9999-12-31
+
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    // Number of p-known values to remember the formatted bytes of.
+    private static final int DOUBLE_CACHE_SIZE = 1024;
+
+    private byte[] buf;
+    private int pos = 0;
+
+    // Used for dates the fast path doesn't handle.
+    private final SimpleDateFormat dateFmt;
+    private final TimeZone timeZone;
+    private final boolean fastDates;
+
+    // MATHia events are close together in time, so keep the last
+    // formatted second: "yyyy-MM-dd HH:mm:ss".
+    private long cachedSecond = Long.MIN_VALUE;
+    private final byte[] cachedDate = new byte[19];
+
+    // Direct-mapped cache of Double.toString() results, keyed on the bits of the value.
+    private final long[] doubleKeys = new long[DOUBLE_CACHE_SIZE];
+    private final byte[][] doubleValues = new byte[DOUBLE_CACHE_SIZE][];
+
+    /**
+     * @param dateFmt format the dates are to match, "yyyy-MM-dd HH:mm:ss"
+     */
+    RowEncoder(SimpleDateFormat dateFmt) {
+        this(dateFmt, INITIAL_SIZE);
+    }
+
+    /**
+     * @param dateFmt format the dates are to match, "yyyy-MM-dd HH:mm:ss"
+     * @param initialSize size of the buffer to start with, e.g. smaller for a single line
+     */
+    RowEncoder(SimpleDateFormat dateFmt, int initialSize) {
+        this.buf = new byte[initialSize];
+        this.dateFmt = (SimpleDateFormat)dateFmt.clone();
+        this.timeZone = this.dateFmt.getTimeZone();
+
+        // Only do the arithmetic ourselves if the format would produce
+        // plain Gregorian dates with ASCII digits.
+        NumberFormat digits = this.dateFmt.getNumberFormat();
+        this.fastDates = (this.dateFmt.getCalendar().getClass() == GregorianCalendar.class)
+            && (digits instanceof DecimalFormat)
+            && (((DecimalFormat)digits).getDecimalFormatSymbols().getZeroDigit() == '0');
+    }
+
+    /**
+     * Forget the rows encoded so far; the buffer is kept.
+     */
+    void reset() {
+        pos = 0;
+    }
+
+    /**
+     * @return the buffer; valid up to position()
+     */
+    byte[] array() {
+        return buf;
+    }
+
+    /**
+     * @return number of bytes encoded since the last reset()
+     */
+    int position() {
+        return pos;
+    }
+
+    /**
+     * Append a String, encoded as UTF-8. Unpaired surrogates are written as '?'.
+     * @param s the String, written as "null" if null
+     */
+    void append(String s) {
+        if (s == null) {
+            append(NULL);
+            return;
+        }
+
+        int len = s.length();
+        ensureCapacity(len * 3);
+        byte[] b = buf;
+        int p = pos;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                b[p++] = (byte)c;
+            } else if (c < 0x800) {
+                b[p++] = (byte)(0xc0 | (c >> 6));
+                b[p++] = (byte)(0x80 | (c & 0x3f));
+            } else if (!Character.isSurrogate(c)) {
+                b[p++] = (byte)(0xe0 | (c >> 12));
+                b[p++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+                b[p++] = (byte)(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && (i + 1 < len)
+                       && Character.isLowSurrogate(s.charAt(i + 1))) {
+                // Two chars in, four bytes out: within the len * 3 reserved.
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                b[p++] = (byte)(0xf0 | (cp >> 18));
+                b[p++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+                b[p++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+                b[p++] = (byte)(0x80 | (cp & 0x3f));
+            } else {
+                b[p++] = (byte)'?';
+            }
+        }
+        pos = p;
+    }
+
+    /**
+     * Append a single ASCII character.
+     * @param c the character
+     */
+    void append(char c) {
+        ensureCapacity(1);
+        buf[pos++] = (byte)c;
+    }
+
+    /**
+     * Append raw bytes.
+     * @param bytes the bytes
+     */
+    void append(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    /**
+     * Append a p-known value, as Double.toString() would.
+     * @param d the value, written as "null" if null
+     */
+    void append(Double d) {
+        if (d == null) {
+            append(NULL);
+        } else {
+            append(d.doubleValue());
+        }
+    }
+
+    /**
+     * Append a p-known value, as Double.toString() would.
+     * @param d the value
+     */
+    void append(double d) {
+        long bits = Double.doubleToRawLongBits(d);
+        int slot = (int)(bits ^ (bits >>> 32)) & (DOUBLE_CACHE_SIZE - 1);
+        byte[] formatted = doubleValues[slot];
+        if ((formatted == null) || (doubleKeys[slot] != bits)) {
+            // Double.toString() only ever produces ASCII.
+            String s = Double.toString(d);
+            formatted = new byte[s.length()];
+            for (int i = 0; i < formatted.length; i++) { formatted[i] = (byte)s.charAt(i); }
+            doubleKeys[slot] = bits;
+            doubleValues[slot] = formatted;
+        }
+        append(formatted);
+    }
+
+    /**
+     * Append a date as "yyyy-MM-dd HH:mm:ss".
+     * @param date the date
+     */
+    void append(Date date) {
+        appendTime(date.getTime());
+    }
+
+    /**
+     * Append a time as "yyyy-MM-dd HH:mm:ss".
+     * @param millis the time, in milliseconds since 1970
+     */
+    void appendTime(long millis) {
+        if (!fastDates || (millis < MIN_FAST_MILLIS) || (millis >= MAX_FAST_MILLIS)) {
+            append(dateFmt.format(new Date(millis)));
+            return;
+        }
+
+        long second = Math.floorDiv(millis, 1000L);
+        if (second != cachedSecond) {
+            formatDate(millis, cachedDate);
+            cachedSecond = second;
+        }
+        append(cachedDate);
+    }
+
+    /**
+     * Format local "yyyy-MM-dd HH:mm:ss" for a time between 1600 and 9999.
+     */
+    private void formatDate(long millis, byte[] out) {
+        long local = millis + timeZone.getOffset(millis);
+        long days = Math.floorDiv(local, MILLIS_PER_DAY);
+        int secondOfDay = (int)(Math.floorMod(local, MILLIS_PER_DAY) / 1000L);
+
+        // Civil date from days since 1970-01-01, in the proleptic Gregorian calendar.
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int)(dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int)(mp < 10 ? mp + 3 : mp - 9);
+        int year = (int)(yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+        int hour = secondOfDay / 3600;
+        int minute = (secondOfDay / 60) % 60;
+        int sec = secondOfDay % 60;
+
+        out[0] = (byte)('0' + year / 1000);
+        out[1] = (byte)('0' + (year / 100) % 10);
+        out[2] = (byte)('0' + (year / 10) % 10);
+        out[3] = (byte)('0' + year % 10);
+        out[4] = '-';
+        twoDigits(out, 5, month);
+        out[7] = '-';
+        twoDigits(out, 8, day);
+        out[10] = ' ';
+        twoDigits(out, 11, hour);
+        out[13] = ':';
+        twoDigits(out, 14, minute);
+        out[16] = ':';
+        twoDigits(out, 17, sec);
+    }
+
+    private static void twoDigits(byte[] out, int at, int value) {
+        out[at] = (byte)('0' + value / 10);
+        out[at + 1] = (byte)('0' + value % 10);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (pos + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + extra));
+        }
+    }
+}
@@ -0,0 +1,509 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Output lines, sorted by student and time so they can be split into
+ * sessions: a student's session ends when they are idle for longer than
+ * the gap. Exports are much bigger than the heap, so this is an external
+ * merge sort. Lines are copied into pages until they would take more than
+ * the memory budget, then sorted and spilled to a temporary run file;
+ * at the end the runs are merged, on a heap, straight into the output,
+ * with each line's session ID filled in on the way. If there are too many
+ * runs to have open at once, some are merged into bigger runs first.
+ *
+ * A line's student is everything before its first tab, and its session
+ * ID, which is replaced, the field after that. Lines with the same
+ * student and time stay in the order they were added. Only used by the
+ * writer stage.
+ */
+class SessionSorter implements Closeable {
+
+    // Size of the pages lines are copied into. Longer lines get a page of their own.
+    private static final int PAGE_SIZE = 4 * 1024 * 1024;
+
+    // Before each line: its time, its number, its length and the length of its student.
+    private static final int RECORD_HEADER = 8 + 8 + 4 + 4;
+
+    // Most runs to merge at once.
+    private static final int MAX_FAN_IN = 64;
+
+    // Buffer per run file.
+    private static final int RUN_BUFFER_SIZE = 256 * 1024;
+
+    // Smallest memory budget: a few pages, and the buffers to merge with,
+    // in whole megabytes so that the minimum is what the message says.
+    static final long MIN_MEMORY = 32L * 1024 * 1024;
+
+    private static final byte TAB = '\t';
+    private static final String SESSION = "session";
+    private static final byte[] NO_BYTES = new byte[0];
+
+    private final long memoryBudget;
+    private final File tempDir;
+
+    // Pages of lines, and the pointers to the lines (page << 32 | offset).
+    private final List<byte[]> pages = new ArrayList<byte[]>();
+    private final ArrayDeque<byte[]> freePages = new ArrayDeque<byte[]>();
+    private byte[] page = null;
+    private int pageOffset = 0;
+    private long allocated = 0L;
+    private long[] records = new long[1024];
+    private int count = 0;
+
+    private long sequence = 0L;
+    private final List<Run> runs = new ArrayList<Run>();
+    private int runsWritten = 0;
+    private long bytesSpilled = 0L;
+    private long sessions = 0L;
+
+    /**
+     * @param memoryBudget most bytes to hold lines in before spilling them
+     * @param tempDir where to spill runs, null for the system's temporary directory
+     */
+    SessionSorter(long memoryBudget, File tempDir) {
+        this.memoryBudget = memoryBudget;
+        this.tempDir = tempDir;
+    }
+
+    /**
+     * Add a line, which is written as the bytes from start to end, with
+     * skill, if any, inserted at skillAt.
+     * @param time when the line's event happened
+     * @param bytes the encoded line
+     * @param start where the line starts in bytes
+     * @param skillAt where to insert the skill
+     * @param end where the line ends
+     * @param skill the String to insert, null for none
+     */
+    void add(long time, byte[] bytes, int start, int skillAt, int end, String skill)
+        throws IOException
+    {
+        byte[] skillBytes = (skill == null) ? NO_BYTES : skill.getBytes(StandardCharsets.UTF_8);
+        int length = (end - start) + skillBytes.length;
+        int needed = RECORD_HEADER + length;
+        if ((page == null) || (page.length - pageOffset < needed)) { nextPage(needed); }
+        if (count == records.length) {
+            if (allocated + 2L * records.length * 8 > memoryBudget) {
+                spill();
+                nextPage(needed);
+            } else {
+                records = Arrays.copyOf(records, records.length * 2);
+            }
+        }
+
+        int keyLength = 0;
+        while ((start + keyLength < skillAt) && (bytes[start + keyLength] != TAB)) { keyLength++; }
+
+        records[count++] = ((long)(pages.size() - 1) << 32) | pageOffset;
+        putLong(page, pageOffset, time);
+        putLong(page, pageOffset + 8, sequence++);
+        putInt(page, pageOffset + 16, length);
+        putInt(page, pageOffset + 20, keyLength);
+        int at = pageOffset + RECORD_HEADER;
+        System.arraycopy(bytes, start, page, at, skillAt - start);
+        at += skillAt - start;
+        System.arraycopy(skillBytes, 0, page, at, skillBytes.length);
+        at += skillBytes.length;
+        System.arraycopy(bytes, skillAt, page, at, end - skillAt);
+        pageOffset = at + (end - skillAt);
+    }
+
+    /**
+     * Write all of the lines, in order, with their session IDs: "session1",
+     * "session2" and so on for each student.
+     * @param out where to write them
+     * @param gapMillis longest time between a student's events in the same session
+     */
+    void writeTo(OutputSink out, long gapMillis)
+        throws IOException
+    {
+        List<Cursor> cursors = new ArrayList<Cursor>();
+        if (runs.isEmpty()) {
+            sort(0, count - 1);
+            cursors.add(new MemoryCursor());
+        } else {
+            if (count > 0) { spill(); }
+            releasePages();
+            // Merge the oldest, smallest runs first, into runs at the end.
+            while (runs.size() > MAX_FAN_IN) {
+                List<Run> some = new ArrayList<Run>(runs.subList(0, MAX_FAN_IN));
+                runs.subList(0, MAX_FAN_IN).clear();
+                mergeRuns(some);
+            }
+            for (Run run : runs) { cursors.add(new FileCursor(run)); }
+        }
+
+        byte[] student = new byte[64];
+        int studentLength = -1;
+        long lastTime = 0L;
+        int session = 0;
+        PriorityQueue<Cursor> heap = open(cursors);
+        try {
+            while (!heap.isEmpty()) {
+                Cursor c = heap.poll();
+                byte[] b = c.buf;
+                int keyLength = c.keyLength();
+                long time = c.time();
+                if ((keyLength != studentLength)
+                    || !Arrays.equals(b, RECORD_HEADER, RECORD_HEADER + keyLength, student, 0, keyLength)) {
+                    if (student.length < keyLength) { student = new byte[keyLength * 2]; }
+                    System.arraycopy(b, RECORD_HEADER, student, 0, keyLength);
+                    studentLength = keyLength;
+                    session = 1;
+                    sessions++;
+                } else if (time - lastTime > gapMillis) {
+                    session++;
+                    sessions++;
+                }
+                lastTime = time;
+
+                int end = RECORD_HEADER + c.length();
+                int field = RECORD_HEADER + keyLength + 1;
+                int rest = field;
+                while ((rest < end) && (b[rest] != TAB)) { rest++; }
+                if (field > end) {
+                    // No tab, so no session ID to fill in.
+                    out.write(b, RECORD_HEADER, end - RECORD_HEADER);
+                } else {
+                    out.write(b, RECORD_HEADER, field - RECORD_HEADER);
+                    out.write(SESSION);
+                    out.write(Integer.toString(session));
+                    out.write(b, rest, end - rest);
+                }
+
+                if (c.next()) { heap.add(c); }
+            }
+        } finally {
+            for (Cursor c : cursors) { c.close(); }
+        }
+        close();
+    }
+
+    /**
+     * @return number of run files written
+     */
+    int getRuns() {
+        return runsWritten;
+    }
+
+    /**
+     * @return number of bytes written to run files
+     */
+    long getBytesSpilled() {
+        return bytesSpilled;
+    }
+
+    /**
+     * @return number of sessions, once written
+     */
+    long getSessions() {
+        return sessions;
+    }
+
+    /**
+     * Delete any run files left.
+     */
+    @Override
+    public void close() {
+        for (Run run : runs) { run.file.delete(); }
+        runs.clear();
+        releasePages();
+    }
+
+    private void nextPage(int needed)
+        throws IOException
+    {
+        if ((needed <= PAGE_SIZE) && !freePages.isEmpty()) {
+            page = freePages.pop();
+        } else {
+            int size = Math.max(PAGE_SIZE, needed);
+            if ((count > 0) && (allocated + size + (long)records.length * 8 > memoryBudget)) {
+                spill();
+                nextPage(needed);
+                return;
+            }
+            page = new byte[size];
+            allocated += size;
+        }
+        pages.add(page);
+        pageOffset = 0;
+    }
+
+    /**
+     * Sort the lines in memory and write them to a new run.
+     */
+    private void spill()
+        throws IOException
+    {
+        sort(0, count - 1);
+        Run run = newRun(count);
+        try (DataOutputStream out = run.openForWrite()) {
+            for (int i = 0; i < count; i++) {
+                byte[] p = pages.get((int)(records[i] >>> 32));
+                int offset = (int)records[i];
+                out.write(p, offset, RECORD_HEADER + getInt(p, offset + 16));
+            }
+            bytesSpilled += out.size();
+        }
+        runs.add(run);
+
+        for (byte[] p : pages) {
+            if (p.length == PAGE_SIZE) {
+                freePages.push(p);
+            } else {
+                allocated -= p.length;
+            }
+        }
+        pages.clear();
+        page = null;
+        count = 0;
+    }
+
+    /**
+     * Merge some runs into one, added to the end of the list.
+     */
+    private void mergeRuns(List<Run> some)
+        throws IOException
+    {
+        long lines = 0L;
+        for (Run run : some) { lines += run.lines; }
+        Run merged = newRun(lines);
+        List<Cursor> cursors = new ArrayList<Cursor>();
+        for (Run run : some) { cursors.add(new FileCursor(run)); }
+        try (DataOutputStream out = merged.openForWrite()) {
+            PriorityQueue<Cursor> heap = open(cursors);
+            while (!heap.isEmpty()) {
+                Cursor c = heap.poll();
+                out.write(c.buf, 0, RECORD_HEADER + c.length());
+                if (c.next()) { heap.add(c); }
+            }
+            bytesSpilled += out.size();
+        } finally {
+            for (Cursor c : cursors) { c.close(); }
+        }
+        for (Run run : some) { run.file.delete(); }
+        runs.add(merged);
+    }
+
+    private Run newRun(long lines)
+        throws IOException
+    {
+        File file = File.createTempFile("sessions", ".run", tempDir);
+        file.deleteOnExit();
+        runsWritten++;
+        return new Run(file, lines);
+    }
+
+    private void releasePages() {
+        pages.clear();
+        freePages.clear();
+        page = null;
+        count = 0;
+        allocated = 0L;
+    }
+
+    private static PriorityQueue<Cursor> open(List<Cursor> cursors)
+        throws IOException
+    {
+        PriorityQueue<Cursor> heap = new PriorityQueue<Cursor>(Math.max(1, cursors.size()),
+            (a, b) -> compare(a.buf, 0, b.buf, 0));
+        for (Cursor c : cursors) {
+            if (c.next()) { heap.add(c); }
+        }
+        return heap;
+    }
+
+    /**
+     * Order two lines, at the given offsets, by student, time and then
+     * the order they were added in.
+     */
+    private static int compare(byte[] a, int aOffset, byte[] b, int bOffset) {
+        int aKey = aOffset + RECORD_HEADER;
+        int bKey = bOffset + RECORD_HEADER;
+        int result = Arrays.compareUnsigned(a, aKey, aKey + getInt(a, aOffset + 20),
+                                            b, bKey, bKey + getInt(b, bOffset + 20));
+        if (result == 0) { result = Long.compare(getLong(a, aOffset), getLong(b, bOffset)); }
+        if (result == 0) { result = Long.compare(getLong(a, aOffset + 8), getLong(b, bOffset + 8)); }
+        return result;
+    }
+
+    private int compareRecords(long x, long y) {
+        return compare(pages.get((int)(x >>> 32)), (int)x, pages.get((int)(y >>> 32)), (int)y);
+    }
+
+    /**
+     * Quicksort the pointers from lo to hi, inclusive. No two lines are
+     * equal, since each has its own number.
+     */
+    private void sort(int lo, int hi) {
+        while (hi - lo > 16) {
+            int mid = (lo + hi) >>> 1;
+            // Median of three, so sorted input, which is common, isn't the worst case.
+            if (compareRecords(records[mid], records[lo]) < 0) { swap(mid, lo); }
+            if (compareRecords(records[hi], records[lo]) < 0) { swap(hi, lo); }
+            if (compareRecords(records[hi], records[mid]) < 0) { swap(hi, mid); }
+            long pivot = records[mid];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (compareRecords(records[i], pivot) < 0) { i++; }
+                while (compareRecords(records[j], pivot) > 0) { j--; }
+                if (i <= j) { swap(i++, j--); }
+            }
+            // Recurse on the smaller side, loop on the larger.
+            if (j - lo < hi - i) {
+                sort(lo, j);
+                lo = i;
+            } else {
+                sort(i, hi);
+                hi = j;
+            }
+        }
+        for (int i = lo + 1; i <= hi; i++) {
+            long r = records[i];
+            int j = i - 1;
+            while ((j >= lo) && (compareRecords(records[j], r) > 0)) {
+                records[j + 1] = records[j];
+                j--;
+            }
+            records[j + 1] = r;
+        }
+    }
+
+    private void swap(int i, int j) {
+        long r = records[i];
+        records[i] = records[j];
+        records[j] = r;
+    }
+
+    private static void putLong(byte[] b, int at, long v) {
+        putInt(b, at, (int)(v >>> 32));
+        putInt(b, at + 4, (int)v);
+    }
+
+    private static void putInt(byte[] b, int at, int v) {
+        b[at] = (byte)(v >>> 24);
+        b[at + 1] = (byte)(v >>> 16);
+        b[at + 2] = (byte)(v >>> 8);
+        b[at + 3] = (byte)v;
+    }
+
+    private static long getLong(byte[] b, int at) {
+        return ((long)getInt(b, at) << 32) | (getInt(b, at + 4) & 0xffffffffL);
+    }
+
+    private static int getInt(byte[] b, int at) {
+        return ((b[at] & 0xff) << 24) | ((b[at + 1] & 0xff) << 16) | ((b[at + 2] & 0xff) << 8) | (b[at + 3] & 0xff);
+    }
+
+    /**
+     * A sorted run file: its line count, then the lines, each as it is in a page.
+     */
+    private static class Run {
+        final File file;
+        final long lines;
+
+        Run(File file, long lines) {
+            this.file = file;
+            this.lines = lines;
+        }
+
+        DataOutputStream openForWrite()
+            throws IOException
+        {
+            DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), RUN_BUFFER_SIZE));
+            out.writeLong(lines);
+            return out;
+        }
+    }
+
+    /**
+     * The next line of a sorted sequence, in buf, laid out as in a page.
+     */
+    private abstract static class Cursor implements Closeable {
+        byte[] buf = new byte[1024];
+
+        /**
+         * @return false if there are no more lines
+         */
+        abstract boolean next() throws IOException;
+
+        long time() { return getLong(buf, 0); }
+
+        int length() { return getInt(buf, 16); }
+
+        int keyLength() { return getInt(buf, 20); }
+
+        void ensure(int size) {
+            if (buf.length < size) { buf = new byte[Math.max(size, buf.length * 2)]; }
+        }
+
+        @Override
+        public void close() throws IOException { }
+    }
+
+    private class MemoryCursor extends Cursor {
+        private int i = 0;
+
+        @Override
+        boolean next() {
+            if (i >= count) { return false; }
+            byte[] p = pages.get((int)(records[i] >>> 32));
+            int offset = (int)records[i++];
+            int size = RECORD_HEADER + getInt(p, offset + 16);
+            ensure(size);
+            System.arraycopy(p, offset, buf, 0, size);
+            return true;
+        }
+    }
+
+    private static class FileCursor extends Cursor {
+        private final DataInputStream in;
+        private long remaining;
+
+        FileCursor(Run run)
+            throws IOException
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file), RUN_BUFFER_SIZE));
+            remaining = in.readLong();
+        }
+
+        @Override
+        boolean next()
+            throws IOException
+        {
+            if (remaining == 0) { return false; }
+            remaining--;
+            in.readFully(buf, 0, RECORD_HEADER);
+            int size = RECORD_HEADER + length();
+            if (buf.length < size) {
+                byte[] header = Arrays.copyOf(buf, RECORD_HEADER);
+                ensure(size);
+                System.arraycopy(header, 0, buf, 0, RECORD_HEADER);
+            }
+            in.readFully(buf, RECORD_HEADER, size - RECORD_HEADER);
+            return true;
+        }
+
+        @Override
+        public void close()
+            throws IOException
+        {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,452 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The last skill seen for each (section, problem, goal)-tuple, used to
+ * tag untagged steps.
+ *
+ * Tuples are keyed on the dictionary codes of their three values, packed
+ * into a long and kept in an open-addressing table. A tuple with a value
+ * that has no code (its dictionary was full) goes in a HashMap keyed on
+ * a Tuple of the three Strings instead.
+ *
+ * The index can be saved to a binary snapshot at the end of a run and
+ * loaded at the start of the next, so steps are tagged with skills seen
+ * in earlier input files. Not safe to use from several threads.
+ *
+ * For -incremental, the index can also keep a digest of its entries,
+ * the sum of a hash of each (tuple, skill), which doesn't depend on
+ * dictionary codes or the order they were put in, so two runs can tell
+ * whether they had the same index at the same point of the input. It
+ * can record the changes made to it as well, to be made again later
+ * without the lines that made them.
+ */
+class SkillIndex {
+
+    // Key for tuples that have to go in the uncoded map.
+    static final long UNCODED = -2L;
+
+    // Bits given to each of section, problem and goal in a packed key.
+    private static final int KEY_BITS = 21;
+    private static final int MAX_CODE = (1 << KEY_BITS) - 1;
+
+    // Marks a free slot in the table; packed keys are never negative.
+    private static final long FREE = -1L;
+
+    // Snapshot format: "PL2S", version, the distinct strings, then
+    // (section, problem, goal, skill) string indices per entry, then a
+    // CRC32 of all of it.
+    private static final int SNAPSHOT_MAGIC = 0x504c3253;
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private final ColumnDictionary sections;
+    private final ColumnDictionary problems;
+    private final ColumnDictionary goals;
+
+    private long[] keys = newKeys(1024);
+    private String[] skills = new String[1024];
+    private int codedSize = 0;
+
+    private final Map<Tuple, String> uncoded = new HashMap<Tuple, String>();
+
+    // Whether to keep the digest, and the changes since recordChanges(), if recording.
+    private boolean tracking = false;
+    private long digest = 0L;
+    private Map<Tuple, String> changes = null;
+
+    /**
+     * @param sections dictionary of the section values
+     * @param problems dictionary of the problem values
+     * @param goals dictionary of the goal values
+     */
+    SkillIndex(ColumnDictionary sections, ColumnDictionary problems, ColumnDictionary goals) {
+        this.sections = sections;
+        this.problems = problems;
+        this.goals = goals;
+    }
+
+    /**
+     * Pack the codes of a (section, problem, goal)-tuple into a key.
+     * @return the key, or UNCODED if one of the values has no code
+     */
+    static long pack(int section, int problem, int goal) {
+        if ((section < 0) || (problem < 0) || (goal < 0)
+            || (section > MAX_CODE) || (problem > MAX_CODE) || (goal > MAX_CODE)) {
+            return UNCODED;
+        }
+        return ((long)section << (2 * KEY_BITS)) | ((long)problem << KEY_BITS) | goal;
+    }
+
+    /**
+     * @param key the packed tuple, or UNCODED
+     * @param tuple the tuple, if key is UNCODED
+     * @return the skill for the tuple, null if none
+     */
+    String get(long key, Tuple tuple) {
+        if (key == UNCODED) { return uncoded.get(tuple); }
+        return skills[slot(key)];
+    }
+
+    /**
+     * Set the skill for a tuple.
+     * @param key the packed tuple, or UNCODED
+     * @param tuple the tuple, if key is UNCODED
+     * @param skill the skill
+     */
+    void put(long key, Tuple tuple, String skill) {
+        if (tracking) { track(key, tuple, skill); }
+        if (key == UNCODED) {
+            uncoded.put(tuple, skill);
+            return;
+        }
+        int slot = slot(key);
+        if (keys[slot] == FREE) {
+            keys[slot] = key;
+            if (++codedSize * 2 > keys.length) {
+                skills[slot] = skill;
+                grow();
+                return;
+            }
+        }
+        skills[slot] = skill;
+    }
+
+    /**
+     * Set the skill for a tuple given as Strings, coding it if possible.
+     */
+    void put(String section, String problem, String goal, String skill) {
+        long key = pack(sections.code(section), problems.code(problem), goals.code(goal));
+        put(key, (key == UNCODED) ? new Tuple(section, problem, goal) : null, skill);
+    }
+
+    /**
+     * Set the skill for a tuple given as Strings, coding it if possible,
+     * unless it already has one.
+     * @return whether the skill was set
+     */
+    boolean putIfAbsent(String section, String problem, String goal, String skill) {
+        long key = pack(sections.code(section), problems.code(problem), goals.code(goal));
+        Tuple tuple = (key == UNCODED) ? new Tuple(section, problem, goal) : null;
+        if (get(key, tuple) != null) { return false; }
+        put(key, tuple, skill);
+        return true;
+    }
+
+    /**
+     * Keep a digest of the entries from now on; call before anything is put.
+     */
+    void trackChanges() {
+        tracking = true;
+    }
+
+    /**
+     * @return the sum of a hash of each entry, if trackChanges() was called
+     */
+    long getDigest() {
+        return digest;
+    }
+
+    /**
+     * Start recording the changes made to the index, after trackChanges().
+     */
+    void recordChanges() {
+        changes = new LinkedHashMap<Tuple, String>();
+    }
+
+    /**
+     * Stop recording changes.
+     * @return the tuples whose skills changed since recordChanges(), with
+     *         their new skills, in the order they first changed
+     */
+    Map<Tuple, String> takeChanges() {
+        Map<Tuple, String> result = changes;
+        changes = null;
+        return result;
+    }
+
+    /**
+     * Update the digest, and the changes if recording, for a put().
+     */
+    private void track(long key, Tuple tuple, String skill) {
+        String old = get(key, tuple);
+        if (skill.equals(old)) { return; }
+        Tuple t = (key == UNCODED) ? tuple
+            : new Tuple(sections.value((int)(key >>> (2 * KEY_BITS))),
+                        problems.value((int)(key >>> KEY_BITS) & MAX_CODE),
+                        goals.value((int)key & MAX_CODE));
+        if (old != null) { digest -= hash(t, old); }
+        digest += hash(t, skill);
+        if (changes != null) { changes.put(t, skill); }
+    }
+
+    private static long hash(Tuple t, String skill) {
+        long h = DuplicateFilter.hash(DuplicateFilter.hash(0L, t.section), t.problem);
+        return DuplicateFilter.finish(DuplicateFilter.hash(DuplicateFilter.hash(h, t.goal), skill));
+    }
+
+    /**
+     * @return number of tuples with a skill
+     */
+    int size() {
+        return codedSize + uncoded.size();
+    }
+
+    /**
+     * Add the entries of a snapshot written by save(). Entries already
+     * in the index are replaced.
+     * @param file the snapshot
+     */
+    void load(File file)
+        throws IOException
+    {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            read(in, file.length(), "Skill index snapshot " + file);
+        }
+    }
+
+    /**
+     * Add the entries of a snapshot written by write(). Reads just the
+     * snapshot, so other data can follow it in the stream.
+     * @param in the stream
+     * @param maxLength most bytes the snapshot can take, to reject bad counts early
+     * @param source the snapshot, for error messages
+     */
+    void read(InputStream in, long maxLength, String source)
+        throws IOException
+    {
+        CRC32 crc = new CRC32();
+        DataInputStream data = new DataInputStream(new CheckedInputStream(in, crc));
+        try {
+            if (data.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException(source + " is corrupt: not in snapshot format.");
+            }
+            int version = data.readInt();
+            if (version != SNAPSHOT_VERSION) {
+                throw new IOException(source + " has version " + version
+                                      + "; expected " + SNAPSHOT_VERSION + ".");
+            }
+
+            String[] strings = new String[readCount(data, maxLength, source)];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[readCount(data, maxLength, source)];
+                data.readFully(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            int entries = readCount(data, maxLength, source);
+            String[][] read = new String[entries][];
+            for (int i = 0; i < entries; i++) {
+                read[i] = new String[] { readString(data, strings, source), readString(data, strings, source),
+                                         readString(data, strings, source), readString(data, strings, source) };
+            }
+
+            long expected = crc.getValue();
+            if ((data.readInt() & 0xffffffffL) != expected) {
+                throw new IOException(source + " is corrupt: checksum mismatch.");
+            }
+
+            // Only added once the whole snapshot checks out.
+            for (String[] e : read) {
+                put(e[0], e[1], e[2], e[3]);
+            }
+        } catch (EOFException e) {
+            throw new IOException(source + " is truncated.");
+        }
+    }
+
+    /**
+     * Write the index to a snapshot. The file is replaced only once the
+     * snapshot is complete.
+     * @param file the snapshot
+     */
+    void save(File file)
+        throws IOException
+    {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+            write(out);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Write the index to a stream as a snapshot. The stream is flushed
+     * but not closed.
+     * @param out the stream
+     */
+    void write(OutputStream out)
+        throws IOException
+    {
+        // Each distinct string is written once and entries refer to it by index.
+        Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+        int[] entries = new int[size() * 4];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            long key = keys[i];
+            if (key == FREE) { continue; }
+            n = addEntry(entries, n, strings,
+                         sections.value((int)(key >>> (2 * KEY_BITS))),
+                         problems.value((int)(key >>> KEY_BITS) & MAX_CODE),
+                         goals.value((int)key & MAX_CODE), skills[i]);
+        }
+        for (Map.Entry<Tuple, String> e : uncoded.entrySet()) {
+            Tuple t = e.getKey();
+            n = addEntry(entries, n, strings, t.section, t.problem, t.goal, e.getValue());
+        }
+
+        CRC32 crc = new CRC32();
+        DataOutputStream data = new DataOutputStream(new CheckedOutputStream(out, crc));
+        data.writeInt(SNAPSHOT_MAGIC);
+        data.writeInt(SNAPSHOT_VERSION);
+
+        writeVarInt(data, strings.size());
+        for (String s : strings.keySet()) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(data, bytes.length);
+            data.write(bytes);
+        }
+
+        writeVarInt(data, n / 4);
+        for (int i = 0; i < n; i++) {
+            writeVarInt(data, entries[i]);
+        }
+
+        data.flush();
+        data.writeInt((int)crc.getValue());
+        data.flush();
+    }
+
+    private static int addEntry(int[] entries, int n, Map<String, Integer> strings, String... values) {
+        for (String v : values) {
+            Integer index = strings.get(v);
+            if (index == null) {
+                index = strings.size();
+                strings.put(v, index);
+            }
+            entries[n++] = index;
+        }
+        return n;
+    }
+
+    private int slot(long key) {
+        int mask = keys.length - 1;
+        // Murmur3 finalizer, to spread the packed codes over the table.
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        int slot = (int)h & mask;
+        while ((keys[slot] != FREE) && (keys[slot] != key)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        String[] oldSkills = skills;
+        keys = newKeys(oldKeys.length * 2);
+        skills = new String[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == FREE) { continue; }
+            int slot = slot(oldKeys[i]);
+            keys[slot] = oldKeys[i];
+            skills[slot] = oldSkills[i];
+        }
+    }
+
+    private static long[] newKeys(int size) {
+        long[] result = new long[size];
+        Arrays.fill(result, FREE);
+        return result;
+    }
+
+    static void writeVarInt(DataOutputStream out, int value)
+        throws IOException
+    {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInputStream in, String source)
+        throws IOException
+    {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) { return value; }
+        }
+        throw new IOException(source + " is corrupt: bad number.");
+    }
+
+    private static int readCount(DataInputStream in, long maxLength, String source)
+        throws IOException
+    {
+        int count = readVarInt(in, source);
+        // Every string and entry takes at least a byte.
+        if ((count < 0) || (count > maxLength)) {
+            throw new IOException(source + " is corrupt: bad count.");
+        }
+        return count;
+    }
+
+    private static String readString(DataInputStream in, String[] strings, String source)
+        throws IOException
+    {
+        int index = readVarInt(in, source);
+        if ((index < 0) || (index >= strings.length)) {
+            throw new IOException(source + " is corrupt: bad string index.");
+        }
+        return strings[index];
+    }
+
+    /**
+     * A (section, problem, goal)-tuple that couldn't be packed.
+     */
+    static final class Tuple {
+        final String section;
+        final String problem;
+        final String goal;
+
+        Tuple(String section, String problem, String goal) {
+            this.section = section;
+            this.problem = problem;
+            this.goal = goal;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Tuple)) { return false; }
+            Tuple t = (Tuple)o;
+            return section.equals(t.section) && problem.equals(t.problem) && goal.equals(t.goal);
+        }
+
+        @Override
+        public int hashCode() {
+            return (section.hashCode() * 31 + problem.hashCode()) * 31 + goal.hashCode();
+        }
+    }
+}
@@ -0,0 +1,887 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * A student-step rollup of the output, like DataShop's: per student,
+ * assignment, section, problem and step, when the step started and
+ * ended, the outcome of the first attempt at it, its numbers of
+ * incorrects, hints and corrects, and the first and last p-known. It is
+ * added up as the lines are written, rather than in a second pass over
+ * the output.
+ *
+ * Each step is a set of counters in a hash table of primitive arrays,
+ * keyed on the codes of its names in the column dictionaries. When the
+ * table would take more than the memory budget, its steps are sorted by
+ * name and spilled to a temporary run file; at the end the runs are
+ * merged, and the parts of a step that were spilled separately are
+ * added together. Steps are written in order of student, assignment,
+ * section, problem and step.
+ *
+ * "First" and "last" are by time; lines at the same time count in the
+ * order they were added. Only used by the writer stage.
+ */
+class StepRollup implements Closeable {
+
+    // The columns of a step's key, in the order steps are sorted on.
+    static final int STUDENT = 0;
+    static final int ASSIGNMENT = 1;
+    static final int SECTION = 2;
+    static final int PROBLEM = 3;
+    static final int STEP = 4;
+    static final int KEY_COLUMNS = 5;
+
+    // A line's outcome.
+    static final byte NO_OUTCOME = 0;
+    static final byte CORRECT = 1;
+    static final byte INCORRECT = 2;
+    static final byte HINT = 3;
+
+    // "First Attempt" for each outcome.
+    private static final String[] FIRST_ATTEMPTS = { "", "correct", "incorrect", "hint" };
+
+    static final String HEADERS = "Anon Student Id\tLevel (Assignment)\tLevel (Section)\tProblem Name\tStep Name"
+        + "\tStep Start Time\tStep End Time\tStep Duration (sec)\tFirst Attempt\tIncorrects\tHints\tCorrects"
+        + "\tTransactions\tFirst p-Known\tLast p-Known";
+
+    private static final byte[] NEW_LINE = { '\r', '\n' };
+
+    // Time of a line that has none.
+    static final long NO_TIME = Long.MIN_VALUE;
+
+    // Memory per step: its key, times, outcome, counts and p-knowns, two
+    // slots in the hash table, and its place and the ranks of its names
+    // when sorted.
+    private static final int STEP_BYTES = KEY_COLUMNS * 4 + 4 * 8 + 1 + 4 * 4 + 2 * 8 + 2 * 4 + 4 + KEY_COLUMNS * 4;
+
+    // Memory per name kept for a value that has no dictionary code, besides its chars.
+    private static final int NAME_BYTES = 64;
+
+    // Steps to make room for at first.
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Most runs to merge at once.
+    private static final int MAX_FAN_IN = 64;
+
+    // Buffer per run file.
+    private static final int RUN_BUFFER_SIZE = 256 * 1024;
+
+    // Smallest memory budget: some steps, and the buffers to merge with,
+    // in whole megabytes so that the minimum is what the message says.
+    static final long MIN_MEMORY = 32L * 1024 * 1024;
+
+    private final long memoryBudget;
+    private final File tempDir;
+    // The dictionary of each key column.
+    private final ColumnDictionary[] dictionaries;
+    private final RowEncoder encoder;
+
+    // The steps in memory, by index.
+    private int count = 0;
+    private int capacity = 0;
+    private int[] keys;
+    private long[] firstTimes;
+    private long[] lastTimes;
+    private byte[] firstOutcomes;
+    private int[] incorrects;
+    private int[] hints;
+    private int[] corrects;
+    private int[] transactions;
+    private long[] firstPKnownTimes;
+    private double[] firstPKnowns;
+    private long[] lastPKnownTimes;
+    private double[] lastPKnowns;
+
+    // Open addressing: the index of a step, plus 1, or 0 for none.
+    private int[] slots;
+
+    // Names that have no dictionary code, given codes of their own from -2 down.
+    private final Map<String, Integer> localCodes = new HashMap<String, Integer>();
+    private final List<String> localNames = new ArrayList<String>();
+    private long localBytes = 0L;
+
+    private final int[] key = new int[KEY_COLUMNS];
+    // The rank of each name of each step in memory, while sorting.
+    private int[] ranks;
+
+    private final List<Run> runs = new ArrayList<Run>();
+    private int runsWritten = 0;
+    private long bytesSpilled = 0L;
+    private long linesAdded = 0L;
+    private long stepsWritten = 0L;
+
+    /**
+     * @param memoryBudget most bytes to hold steps in before spilling them
+     * @param tempDir where to spill runs, null for the system's temporary directory
+     * @param dictionaries the dictionary of each key column, by STUDENT, ASSIGNMENT and so on
+     * @param dateFmt format of the step's times
+     */
+    StepRollup(long memoryBudget, File tempDir, ColumnDictionary[] dictionaries, SimpleDateFormat dateFmt) {
+        this.memoryBudget = memoryBudget;
+        this.tempDir = tempDir;
+        this.dictionaries = dictionaries;
+        this.encoder = new RowEncoder(dateFmt, 4096);
+        grow(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param outcome a line's Outcome
+     * @return CORRECT, INCORRECT, HINT, or NO_OUTCOME for anything else
+     */
+    static byte outcome(String outcome) {
+        if ("CORRECT".equals(outcome)) { return CORRECT; }
+        if ("INCORRECT".equals(outcome)) { return INCORRECT; }
+        if ("HINT".equals(outcome)) { return HINT; }
+        return NO_OUTCOME;
+    }
+
+    /**
+     * Add a line to its step.
+     * @param lines a chunk's lines
+     * @param i the line; skipped if it has no time
+     */
+    void add(Lines lines, int i)
+        throws IOException
+    {
+        long time = lines.times[i];
+        if (time == NO_TIME) { return; }
+
+        // Before the key is made, as spilling forgets the codes of names that have none.
+        if ((count == capacity) && !canGrow()) { spill(); }
+
+        int at = i * KEY_COLUMNS;
+        for (int c = 0; c < KEY_COLUMNS; c++) {
+            int code = lines.codes[at + c];
+            key[c] = (code == ColumnDictionary.NO_CODE) ? localCode(lines.names[at + c]) : code;
+        }
+
+        int step = find(key);
+        if (step < 0) { step = insert(key); }
+
+        if (time < firstTimes[step]) {
+            firstTimes[step] = time;
+            firstOutcomes[step] = lines.outcomes[i];
+        }
+        if (time >= lastTimes[step]) { lastTimes[step] = time; }
+        switch (lines.outcomes[i]) {
+        case CORRECT: corrects[step]++; break;
+        case INCORRECT: incorrects[step]++; break;
+        case HINT: hints[step]++; break;
+        default: break;
+        }
+        transactions[step]++;
+        double previous = lines.previousPKnowns[i];
+        if (!Double.isNaN(previous) && (time < firstPKnownTimes[step])) {
+            firstPKnownTimes[step] = time;
+            firstPKnowns[step] = previous;
+        }
+        double next = lines.newPKnowns[i];
+        if (!Double.isNaN(next) && (time >= lastPKnownTimes[step])) {
+            lastPKnownTimes[step] = time;
+            lastPKnowns[step] = next;
+        }
+        linesAdded++;
+    }
+
+    /**
+     * Write the header and all of the steps, in order.
+     * @param out where to write them
+     */
+    void writeTo(OutputSink out)
+        throws IOException
+    {
+        out.write(HEADERS);
+        out.write(NEW_LINE, 0, NEW_LINE.length);
+
+        Step step = new Step();
+        if (runs.isEmpty()) {
+            for (int s : sortedSteps()) {
+                load(s, step);
+                write(step, out);
+            }
+        } else {
+            if (count > 0) { spill(); }
+            // Merge the oldest runs first, into a run that takes their place, so
+            // the runs stay in the order their lines were added.
+            while (runs.size() > MAX_FAN_IN) {
+                List<Run> some = new ArrayList<Run>(runs.subList(0, MAX_FAN_IN));
+                runs.subList(0, MAX_FAN_IN).clear();
+                runs.add(0, mergeRuns(some));
+            }
+            List<Cursor> cursors = new ArrayList<Cursor>();
+            try {
+                for (int r = 0; r < runs.size(); r++) { cursors.add(new Cursor(runs.get(r), r)); }
+                merge(cursors, s -> write(s, out));
+            } finally {
+                for (Cursor c : cursors) { c.close(); }
+            }
+        }
+        close();
+    }
+
+    /**
+     * @return number of lines added up
+     */
+    long getLines() {
+        return linesAdded;
+    }
+
+    /**
+     * @return number of steps, once written
+     */
+    long getSteps() {
+        return stepsWritten;
+    }
+
+    /**
+     * @return number of run files written
+     */
+    int getRuns() {
+        return runsWritten;
+    }
+
+    /**
+     * @return number of bytes written to run files
+     */
+    long getBytesSpilled() {
+        return bytesSpilled;
+    }
+
+    /**
+     * Delete any run files left.
+     */
+    @Override
+    public void close() {
+        for (Run run : runs) { run.file.delete(); }
+        runs.clear();
+    }
+
+    /**
+     * @return whether the table can double without going over the budget
+     */
+    private boolean canGrow() {
+        return (2L * capacity * STEP_BYTES + localBytes <= memoryBudget) || (count == 0);
+    }
+
+    private void grow(int newCapacity) {
+        keys = (keys == null) ? new int[newCapacity * KEY_COLUMNS] : Arrays.copyOf(keys, newCapacity * KEY_COLUMNS);
+        firstTimes = copy(firstTimes, newCapacity);
+        lastTimes = copy(lastTimes, newCapacity);
+        firstOutcomes = (firstOutcomes == null) ? new byte[newCapacity] : Arrays.copyOf(firstOutcomes, newCapacity);
+        incorrects = copy(incorrects, newCapacity);
+        hints = copy(hints, newCapacity);
+        corrects = copy(corrects, newCapacity);
+        transactions = copy(transactions, newCapacity);
+        firstPKnownTimes = copy(firstPKnownTimes, newCapacity);
+        firstPKnowns = copy(firstPKnowns, newCapacity);
+        lastPKnownTimes = copy(lastPKnownTimes, newCapacity);
+        lastPKnowns = copy(lastPKnowns, newCapacity);
+        capacity = newCapacity;
+
+        slots = new int[newCapacity * 2];
+        for (int s = 0; s < count; s++) {
+            int slot = hash(keys, s * KEY_COLUMNS) & (slots.length - 1);
+            while (slots[slot] != 0) { slot = (slot + 1) & (slots.length - 1); }
+            slots[slot] = s + 1;
+        }
+    }
+
+    private static long[] copy(long[] a, int length) {
+        return (a == null) ? new long[length] : Arrays.copyOf(a, length);
+    }
+
+    private static int[] copy(int[] a, int length) {
+        return (a == null) ? new int[length] : Arrays.copyOf(a, length);
+    }
+
+    private static double[] copy(double[] a, int length) {
+        return (a == null) ? new double[length] : Arrays.copyOf(a, length);
+    }
+
+    /**
+     * @return the step with the key, -1 if there is none
+     */
+    private int find(int[] key) {
+        int mask = slots.length - 1;
+        int slot = hash(key, 0) & mask;
+        while (slots[slot] != 0) {
+            int s = slots[slot] - 1;
+            if (Arrays.equals(keys, s * KEY_COLUMNS, (s + 1) * KEY_COLUMNS, key, 0, KEY_COLUMNS)) { return s; }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Add a step with nothing in it yet; there must be room for it or
+     * room to grow.
+     */
+    private int insert(int[] key) {
+        if (count == capacity) { grow(capacity * 2); }
+        int s = count++;
+        System.arraycopy(key, 0, keys, s * KEY_COLUMNS, KEY_COLUMNS);
+        firstTimes[s] = Long.MAX_VALUE;
+        lastTimes[s] = Long.MIN_VALUE;
+        firstOutcomes[s] = NO_OUTCOME;
+        incorrects[s] = 0;
+        hints[s] = 0;
+        corrects[s] = 0;
+        transactions[s] = 0;
+        firstPKnownTimes[s] = Long.MAX_VALUE;
+        lastPKnownTimes[s] = Long.MIN_VALUE;
+
+        int mask = slots.length - 1;
+        int slot = hash(key, 0) & mask;
+        while (slots[slot] != 0) { slot = (slot + 1) & mask; }
+        slots[slot] = s + 1;
+        return s;
+    }
+
+    private static int hash(int[] key, int at) {
+        int h = 0;
+        for (int c = 0; c < KEY_COLUMNS; c++) {
+            h = (h + key[at + c]) * 0x9e3779b1;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return a code for a name that has no dictionary code
+     */
+    private int localCode(String name) {
+        if (name == null) { name = ""; }
+        Integer code = localCodes.get(name);
+        if (code == null) {
+            code = -2 - localNames.size();
+            localCodes.put(name, code);
+            localNames.add(name);
+            localBytes += NAME_BYTES + 2L * name.length();
+        }
+        return code.intValue();
+    }
+
+    private String name(int column, int code) {
+        String name = (code >= 0) ? dictionaries[column].value(code) : localNames.get(-2 - code);
+        return (name == null) ? "" : name;
+    }
+
+    /**
+     * Sort the steps in memory and write them to a new run, leaving the
+     * table empty.
+     */
+    private void spill()
+        throws IOException
+    {
+        Run run = newRun(count);
+        try (DataOutputStream out = run.openForWrite()) {
+            Step step = new Step();
+            for (int s : sortedSteps()) {
+                load(s, step);
+                step.write(out);
+            }
+            bytesSpilled += out.size();
+        }
+        runs.add(run);
+
+        count = 0;
+        Arrays.fill(slots, 0);
+        localCodes.clear();
+        localNames.clear();
+        localBytes = 0L;
+    }
+
+    /**
+     * Merge some runs into one.
+     * @return the merged run
+     */
+    private Run mergeRuns(List<Run> some)
+        throws IOException
+    {
+        long steps = 0L;
+        for (Run run : some) { steps += run.steps; }
+        Run merged = newRun(steps);
+        List<Cursor> cursors = new ArrayList<Cursor>();
+        long written;
+        try (DataOutputStream out = merged.openForWrite()) {
+            for (int r = 0; r < some.size(); r++) { cursors.add(new Cursor(some.get(r), r)); }
+            written = merge(cursors, s -> s.write(out));
+            bytesSpilled += out.size();
+        } finally {
+            for (Cursor c : cursors) { c.close(); }
+        }
+        for (Run run : some) { run.file.delete(); }
+        // Fewer steps than counted, if some were in more than one run.
+        return merged.withSteps(written);
+    }
+
+    /**
+     * Merge sorted runs, adding up the parts of each step.
+     * @param cursors the runs, each at its start
+     * @param out what to do with each step
+     * @return number of steps
+     */
+    private static long merge(List<Cursor> cursors, StepWriter out)
+        throws IOException
+    {
+        // By step, and then by run, so the parts of a step are added up in order.
+        PriorityQueue<Cursor> heap = new PriorityQueue<Cursor>(Math.max(1, cursors.size()), (a, b) -> {
+                int result = a.step.compareTo(b.step);
+                return (result != 0) ? result : Integer.compare(a.index, b.index);
+            });
+        for (Cursor c : cursors) {
+            if (c.next()) { heap.add(c); }
+        }
+
+        long steps = 0L;
+        Step step = null;
+        while (!heap.isEmpty()) {
+            Cursor c = heap.poll();
+            if ((step != null) && (step.compareTo(c.step) == 0)) {
+                step.add(c.step);
+            } else {
+                if (step != null) {
+                    out.write(step);
+                    steps++;
+                } else {
+                    step = new Step();
+                }
+                step.set(c.step);
+            }
+            if (c.next()) { heap.add(c); }
+        }
+        if (step != null) {
+            out.write(step);
+            steps++;
+        }
+        return steps;
+    }
+
+    /**
+     * @return the indices of the steps in memory, in order
+     */
+    private int[] sortedSteps() {
+        // Rank the names of each column once, so sorting compares ints
+        // rather than Strings.
+        ranks = new int[count * KEY_COLUMNS];
+        for (int c = 0; c < KEY_COLUMNS; c++) { rank(c); }
+        int[] order = new int[count];
+        for (int s = 0; s < count; s++) { order[s] = s; }
+        sort(order, 0, count - 1);
+        ranks = null;
+        return order;
+    }
+
+    /**
+     * Set the ranks of the steps' names in a column, in order of name.
+     * Codes with the same name get the same rank.
+     */
+    private void rank(int column) {
+        // Local codes go from -2 down, dictionary codes from 0 up.
+        int min = -1 - localNames.size();
+        int max = -1;
+        for (int s = 0; s < count; s++) { max = Math.max(max, keys[s * KEY_COLUMNS + column]); }
+        boolean[] used = new boolean[max - min + 1];
+        int distinct = 0;
+        for (int s = 0; s < count; s++) {
+            int at = keys[s * KEY_COLUMNS + column] - min;
+            if (!used[at]) {
+                used[at] = true;
+                distinct++;
+            }
+        }
+
+        Integer[] codes = new Integer[distinct];
+        int n = 0;
+        for (int at = 0; at < used.length; at++) {
+            if (used[at]) { codes[n++] = at + min; }
+        }
+        Arrays.sort(codes, (a, b) -> name(column, a).compareTo(name(column, b)));
+
+        int[] byCode = new int[used.length];
+        int rank = 0;
+        for (int i = 0; i < distinct; i++) {
+            if ((i > 0) && !name(column, codes[i]).equals(name(column, codes[i - 1]))) { rank++; }
+            byCode[codes[i] - min] = rank;
+        }
+        for (int s = 0; s < count; s++) {
+            ranks[s * KEY_COLUMNS + column] = byCode[keys[s * KEY_COLUMNS + column] - min];
+        }
+    }
+
+    /**
+     * Quicksort steps from lo to hi, inclusive. No two steps are equal.
+     */
+    private void sort(int[] order, int lo, int hi) {
+        while (hi - lo > 16) {
+            int mid = (lo + hi) >>> 1;
+            // Median of three, as steps are often added in order.
+            if (compareSteps(order[mid], order[lo]) < 0) { swap(order, mid, lo); }
+            if (compareSteps(order[hi], order[lo]) < 0) { swap(order, hi, lo); }
+            if (compareSteps(order[hi], order[mid]) < 0) { swap(order, hi, mid); }
+            int pivot = order[mid];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (compareSteps(order[i], pivot) < 0) { i++; }
+                while (compareSteps(order[j], pivot) > 0) { j--; }
+                if (i <= j) { swap(order, i++, j--); }
+            }
+            // Recurse on the smaller side, loop on the larger.
+            if (j - lo < hi - i) {
+                sort(order, lo, j);
+                lo = i;
+            } else {
+                sort(order, i, hi);
+                hi = j;
+            }
+        }
+        for (int i = lo + 1; i <= hi; i++) {
+            int s = order[i];
+            int j = i - 1;
+            while ((j >= lo) && (compareSteps(order[j], s) > 0)) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = s;
+        }
+    }
+
+    private static void swap(int[] order, int i, int j) {
+        int s = order[i];
+        order[i] = order[j];
+        order[j] = s;
+    }
+
+    private int compareSteps(int a, int b) {
+        for (int c = 0; c < KEY_COLUMNS; c++) {
+            int result = Integer.compare(ranks[a * KEY_COLUMNS + c], ranks[b * KEY_COLUMNS + c]);
+            if (result != 0) { return result; }
+        }
+        return 0;
+    }
+
+    private void load(int s, Step step) {
+        for (int c = 0; c < KEY_COLUMNS; c++) {
+            step.names[c] = name(c, keys[s * KEY_COLUMNS + c]);
+        }
+        step.firstTime = firstTimes[s];
+        step.lastTime = lastTimes[s];
+        step.firstOutcome = firstOutcomes[s];
+        step.incorrects = incorrects[s];
+        step.hints = hints[s];
+        step.corrects = corrects[s];
+        step.transactions = transactions[s];
+        step.firstPKnownTime = firstPKnownTimes[s];
+        step.firstPKnown = firstPKnowns[s];
+        step.lastPKnownTime = lastPKnownTimes[s];
+        step.lastPKnown = lastPKnowns[s];
+    }
+
+    /**
+     * Write a step as a line of the rollup.
+     */
+    private void write(Step step, OutputSink out)
+        throws IOException
+    {
+        encoder.reset();
+        for (int c = 0; c < KEY_COLUMNS; c++) {
+            encoder.append(step.names[c]);
+            encoder.append('\t');
+        }
+        encoder.appendTime(step.firstTime);
+        encoder.append('\t');
+        encoder.appendTime(step.lastTime);
+        encoder.append('\t');
+        long millis = step.lastTime - step.firstTime;
+        encoder.append(Long.toString(millis / 1000));
+        encoder.append('.');
+        long fraction = millis % 1000;
+        if (fraction < 100) { encoder.append('0'); }
+        if (fraction < 10) { encoder.append('0'); }
+        encoder.append(Long.toString(fraction));
+        encoder.append('\t');
+        encoder.append(FIRST_ATTEMPTS[step.firstOutcome]);
+        encoder.append('\t');
+        encoder.append(Integer.toString(step.incorrects));
+        encoder.append('\t');
+        encoder.append(Integer.toString(step.hints));
+        encoder.append('\t');
+        encoder.append(Integer.toString(step.corrects));
+        encoder.append('\t');
+        encoder.append(Integer.toString(step.transactions));
+        encoder.append('\t');
+        if (step.firstPKnownTime != Long.MAX_VALUE) { encoder.append(step.firstPKnown); }
+        encoder.append('\t');
+        if (step.lastPKnownTime != Long.MIN_VALUE) { encoder.append(step.lastPKnown); }
+        encoder.append(NEW_LINE);
+        out.write(encoder.array(), 0, encoder.position());
+        stepsWritten++;
+    }
+
+    private Run newRun(long steps)
+        throws IOException
+    {
+        File file = File.createTempFile("steps", ".run", tempDir);
+        file.deleteOnExit();
+        runsWritten++;
+        return new Run(file, steps);
+    }
+
+    /**
+     * What the rollup needs of a chunk's lines, taken down by a worker
+     * while it has them parsed, for the writer to add.
+     */
+    static class Lines {
+        // KEY_COLUMNS per line: the dictionary code of each name, and the
+        // name itself if it has no code.
+        int[] codes = new int[0];
+        String[] names = new String[0];
+        long[] times = new long[0];
+        byte[] outcomes = new byte[0];
+        // NaN for none.
+        double[] previousPKnowns = new double[0];
+        double[] newPKnowns = new double[0];
+
+        void reset(int size) {
+            if (times.length < size) {
+                codes = new int[size * KEY_COLUMNS];
+                names = new String[size * KEY_COLUMNS];
+                times = new long[size];
+                outcomes = new byte[size];
+                previousPKnowns = new double[size];
+                newPKnowns = new double[size];
+            }
+            Arrays.fill(times, 0, size, NO_TIME);
+        }
+
+        /**
+         * Let go of the names, so a chunk waiting to be reused doesn't keep them.
+         */
+        void clear() {
+            Arrays.fill(names, null);
+        }
+
+        /**
+         * @param i the line
+         * @param column STUDENT, ASSIGNMENT and so on
+         * @param code the name's dictionary code, or NO_CODE
+         * @param name the name, if it has no code
+         */
+        void setName(int i, int column, int code, String name) {
+            codes[i * KEY_COLUMNS + column] = code;
+            names[i * KEY_COLUMNS + column] = (code == ColumnDictionary.NO_CODE) ? name : null;
+        }
+
+        /**
+         * @param i the line
+         * @param time when it happened
+         * @param outcome CORRECT, INCORRECT, HINT or NO_OUTCOME
+         * @param previousPKnown its Skill Previous p-Known, NaN for none
+         * @param newPKnown its Skill New p-Known, NaN for none
+         */
+        void set(int i, long time, byte outcome, double previousPKnown, double newPKnown) {
+            times[i] = time;
+            outcomes[i] = outcome;
+            previousPKnowns[i] = previousPKnown;
+            newPKnowns[i] = newPKnown;
+        }
+    }
+
+    /**
+     * A step, as spilled, merged and written.
+     */
+    private static class Step implements Comparable<Step> {
+        final String[] names = new String[KEY_COLUMNS];
+        long firstTime;
+        long lastTime;
+        byte firstOutcome;
+        int incorrects;
+        int hints;
+        int corrects;
+        int transactions;
+        long firstPKnownTime;
+        double firstPKnown;
+        long lastPKnownTime;
+        double lastPKnown;
+
+        void set(Step other) {
+            System.arraycopy(other.names, 0, names, 0, KEY_COLUMNS);
+            firstTime = other.firstTime;
+            lastTime = other.lastTime;
+            firstOutcome = other.firstOutcome;
+            incorrects = other.incorrects;
+            hints = other.hints;
+            corrects = other.corrects;
+            transactions = other.transactions;
+            firstPKnownTime = other.firstPKnownTime;
+            firstPKnown = other.firstPKnown;
+            lastPKnownTime = other.lastPKnownTime;
+            lastPKnown = other.lastPKnown;
+        }
+
+        /**
+         * Add the part of the same step from lines added after this part's.
+         */
+        void add(Step later) {
+            if (later.firstTime < firstTime) {
+                firstTime = later.firstTime;
+                firstOutcome = later.firstOutcome;
+            }
+            if (later.lastTime >= lastTime) { lastTime = later.lastTime; }
+            incorrects += later.incorrects;
+            hints += later.hints;
+            corrects += later.corrects;
+            transactions += later.transactions;
+            if (later.firstPKnownTime < firstPKnownTime) {
+                firstPKnownTime = later.firstPKnownTime;
+                firstPKnown = later.firstPKnown;
+            }
+            if ((later.lastPKnownTime != Long.MIN_VALUE) && (later.lastPKnownTime >= lastPKnownTime)) {
+                lastPKnownTime = later.lastPKnownTime;
+                lastPKnown = later.lastPKnown;
+            }
+        }
+
+        @Override
+        public int compareTo(Step other) {
+            for (int c = 0; c < KEY_COLUMNS; c++) {
+                int result = names[c].compareTo(other.names[c]);
+                if (result != 0) { return result; }
+            }
+            return 0;
+        }
+
+        void write(DataOutputStream out)
+            throws IOException
+        {
+            for (String name : names) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.writeLong(firstTime);
+            out.writeLong(lastTime);
+            out.writeByte(firstOutcome);
+            out.writeInt(incorrects);
+            out.writeInt(hints);
+            out.writeInt(corrects);
+            out.writeInt(transactions);
+            out.writeLong(firstPKnownTime);
+            out.writeDouble(firstPKnown);
+            out.writeLong(lastPKnownTime);
+            out.writeDouble(lastPKnown);
+        }
+
+        void read(DataInputStream in)
+            throws IOException
+        {
+            for (int c = 0; c < KEY_COLUMNS; c++) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                names[c] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            firstTime = in.readLong();
+            lastTime = in.readLong();
+            firstOutcome = in.readByte();
+            incorrects = in.readInt();
+            hints = in.readInt();
+            corrects = in.readInt();
+            transactions = in.readInt();
+            firstPKnownTime = in.readLong();
+            firstPKnown = in.readDouble();
+            lastPKnownTime = in.readLong();
+            lastPKnown = in.readDouble();
+        }
+    }
+
+    private interface StepWriter {
+        void write(Step step) throws IOException;
+    }
+
+    /**
+     * A sorted run file: its step count, then the steps.
+     */
+    private static class Run {
+        final File file;
+        final long steps;
+
+        Run(File file, long steps) {
+            this.file = file;
+            this.steps = steps;
+        }
+
+        /**
+         * @return the run, with its count of steps corrected once written
+         */
+        Run withSteps(long steps)
+            throws IOException
+        {
+            try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+                out.writeLong(steps);
+            }
+            return new Run(file, steps);
+        }
+
+        DataOutputStream openForWrite()
+            throws IOException
+        {
+            DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), RUN_BUFFER_SIZE));
+            out.writeLong(steps);
+            return out;
+        }
+    }
+
+    /**
+     * The next step of a run.
+     */
+    private static class Cursor implements Closeable {
+        final Step step = new Step();
+        // The run's place in the order lines were added.
+        final int index;
+        private final DataInputStream in;
+        private long remaining;
+
+        Cursor(Run run, int index)
+            throws IOException
+        {
+            this.index = index;
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file), RUN_BUFFER_SIZE));
+            remaining = in.readLong();
+        }
+
+        /**
+         * @return false if there are no more steps
+         */
+        boolean next()
+            throws IOException
+        {
+            if (remaining == 0) { return false; }
+            remaining--;
+            step.read(in);
+            return true;
+        }
+
+        @Override
+        public void close()
+            throws IOException
+        {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+import java.util.Arrays;
+
+/**
+ * The parsed lines of a chunk, stored as a column per field rather than
+ * an object per line. A batch is allocated with its chunk and reused for
+ * every chunk after, so parsing a line allocates nothing beyond what
+ * tokenizing it did: times are millis, p-known values are doubles, and
+ * the rest are codes or references to the tokenizer's Strings and to
+ * constants.
+ *
+ * A dictionary-coded column has the value's code, and the value itself
+ * only if it has no code, as DataShopTxnData does.
+ */
+class TransactionBatch {
+
+    // Time of a line that has none.
+    static final long NO_TIME = Long.MIN_VALUE;
+
+    int size = 0;
+    int capacity = 0;
+
+    int[] studentCodes;
+    String[] students;
+    String[] sessions;
+    long[] times;
+    int[] assignmentCodes;
+    String[] assignments;
+    int[] sectionCodes;
+    String[] sections;
+    int[] problemCodes;
+    String[] problems;
+    String[] selections;
+    String[] actions;
+    String[] inputs;
+    long[] problemStartTimes;
+    int[] stepCodes;
+    String[] steps;
+    String[] outcomes;
+    String[] studentResponseTypes;
+    int[] skillCodes;
+    String[] skills;
+    int[] ruleCodes;
+    String[] rules;
+    double[] previousPKnown;
+    double[] newPKnown;
+    String[] progressStatuses;
+    String[] schoolIds;
+    String[] attempts;
+    String[] helpLevels;
+    String[] eventIds;
+
+    // A bit per line for each p-known column, set if it has no value.
+    private long[] noPreviousPKnown;
+    private long[] noNewPKnown;
+
+    // All of the String columns, to clear.
+    private String[][] stringColumns;
+
+    TransactionBatch() {
+        grow(0);
+    }
+
+    /**
+     * Make room for, and clear, size lines. The arrays are only
+     * reallocated if the batch has never been that large.
+     */
+    void reset(int size) {
+        if (size > capacity) {
+            grow(size);
+        } else {
+            clear();
+        }
+        this.size = size;
+    }
+
+    /**
+     * Let go of the Strings of the lines, so a batch waiting to be reused
+     * doesn't keep them from being collected.
+     */
+    void clear() {
+        int n = size;
+        Arrays.fill(studentCodes, 0, n, ColumnDictionary.NO_CODE);
+        Arrays.fill(assignmentCodes, 0, n, ColumnDictionary.NO_CODE);
+        Arrays.fill(sectionCodes, 0, n, ColumnDictionary.NO_CODE);
+        Arrays.fill(problemCodes, 0, n, ColumnDictionary.NO_CODE);
+        Arrays.fill(stepCodes, 0, n, ColumnDictionary.NO_CODE);
+        Arrays.fill(skillCodes, 0, n, ColumnDictionary.NO_CODE);
+        Arrays.fill(ruleCodes, 0, n, ColumnDictionary.NO_CODE);
+        Arrays.fill(times, 0, n, NO_TIME);
+        Arrays.fill(problemStartTimes, 0, n, NO_TIME);
+        for (String[] column : stringColumns) {
+            Arrays.fill(column, 0, n, null);
+        }
+        // Unset p-knowns are null.
+        Arrays.fill(noPreviousPKnown, -1L);
+        Arrays.fill(noNewPKnown, -1L);
+        size = 0;
+    }
+
+    /**
+     * @return the line's Skill Previous p-Known, null if it has none
+     */
+    Double getPreviousPKnown(int i) {
+        return isSet(noPreviousPKnown, i) ? null : Double.valueOf(previousPKnown[i]);
+    }
+
+    /**
+     * @return the line's Skill New p-Known, null if it has none
+     */
+    Double getNewPKnown(int i) {
+        return isSet(noNewPKnown, i) ? null : Double.valueOf(newPKnown[i]);
+    }
+
+    boolean hasPreviousPKnown(int i) {
+        return !isSet(noPreviousPKnown, i);
+    }
+
+    boolean hasNewPKnown(int i) {
+        return !isSet(noNewPKnown, i);
+    }
+
+    /**
+     * @param value the value, null for none
+     */
+    void setPreviousPKnown(int i, Double value) {
+        set(noPreviousPKnown, i, value == null);
+        previousPKnown[i] = (value == null) ? 0.0 : value.doubleValue();
+    }
+
+    /**
+     * @param value the value, null for none
+     */
+    void setNewPKnown(int i, Double value) {
+        set(noNewPKnown, i, value == null);
+        newPKnown[i] = (value == null) ? 0.0 : value.doubleValue();
+    }
+
+    void setPreviousPKnown(int i, double value) {
+        set(noPreviousPKnown, i, false);
+        previousPKnown[i] = value;
+    }
+
+    void setNewPKnown(int i, double value) {
+        set(noNewPKnown, i, false);
+        newPKnown[i] = value;
+    }
+
+    private static boolean isSet(long[] bits, int i) {
+        return (bits[i >>> 6] & (1L << i)) != 0;
+    }
+
+    private static void set(long[] bits, int i, boolean value) {
+        if (value) {
+            bits[i >>> 6] |= 1L << i;
+        } else {
+            bits[i >>> 6] &= ~(1L << i);
+        }
+    }
+
+    private void grow(int size) {
+        capacity = size;
+        studentCodes = new int[size];
+        students = new String[size];
+        sessions = new String[size];
+        times = new long[size];
+        assignmentCodes = new int[size];
+        assignments = new String[size];
+        sectionCodes = new int[size];
+        sections = new String[size];
+        problemCodes = new int[size];
+        problems = new String[size];
+        selections = new String[size];
+        actions = new String[size];
+        inputs = new String[size];
+        problemStartTimes = new long[size];
+        stepCodes = new int[size];
+        steps = new String[size];
+        outcomes = new String[size];
+        studentResponseTypes = new String[size];
+        skillCodes = new int[size];
+        skills = new String[size];
+        ruleCodes = new int[size];
+        rules = new String[size];
+        previousPKnown = new double[size];
+        newPKnown = new double[size];
+        progressStatuses = new String[size];
+        schoolIds = new String[size];
+        attempts = new String[size];
+        helpLevels = new String[size];
+        eventIds = new String[size];
+        noPreviousPKnown = new long[(size + 63) >>> 6];
+        noNewPKnown = new long[(size + 63) >>> 6];
+        stringColumns = new String[][] { students, sessions, assignments, sections, problems, selections, actions,
+                                         inputs, steps, outcomes, studentResponseTypes, skills, rules,
+                                         progressStatuses, schoolIds, attempts, helpLevels, eventIds };
+        this.size = size;
+        clear();
+    }
+}
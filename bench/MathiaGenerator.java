@@ -0,0 +1,273 @@
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Writes a synthetic MATHia export with the columns ParseMATHia reads,
+ * for benchmarks. The same seed and options always give the same file.
+ *
+ * Students work through problems one step (goal node) at a time: some
+ * steps get hint requests, wrong attempts come before the right one,
+ * and a share of the rows have no skill, so the skill back-fill has
+ * work to do. Some inputs need quoting (commas, quotes, line breaks).
+ * -extra-columns adds columns ParseMATHia doesn't read after those it
+ * does, as wide exports have.
+ *
+ * Usage: java MathiaGenerator -o file.csv -size 100m [-seed N] [-students N]
+ *        [-sections N] [-problems N] [-hint-rate R] [-error-rate R]
+ *        [-quoted-rate R] [-untagged-rate R] [-schools N] [-extra-columns N]
+ */
+public class MathiaGenerator {
+
+    private static final String HEADER =
+        "assignmentid,ctcontextid,semanticeventid,skillid,ruleid,goalnodeid,servertime,attempt,action,"
+        + "tutoroutcome,helplevel,input,skillpreviouspknown,skillnewpknown,sectionname,"
+        + "sectionprogressstatus,problemid,schoolid";
+
+    // Inputs that need quoting in the CSV.
+    private static final String[] AWKWARD_INPUTS = {
+        "a, b", "say \"hi\"", "line1\nline2", "3,5", "x = \"y\"", "\u00fcn\u00efcode, too", "1\r\n2"
+    };
+
+    private static final String[] PLAIN_INPUTS = {
+        "5", "x=3", "3.14", "-2", "NA", "", "12/5", "y=2x+1", "0.75", "true"
+    };
+
+    private long seed = 1L;
+    private long targetBytes = 1024L * 1024;
+    private int students = 200;
+    private int sections = 20;
+    private int problems = 40;
+    private int schools = 10;
+    private double hintRate = 0.1;
+    private double errorRate = 0.25;
+    private double quotedRate = 0.05;
+    private double untaggedRate = 0.4;
+    private int extraColumns = 0;
+
+    public static void main(String[] args) throws IOException {
+        MathiaGenerator generator = new MathiaGenerator();
+        String outputFileName = null;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i].trim().toLowerCase(Locale.ROOT);
+            if (i + 1 >= args.length) { usage("A value must be specified with " + args[i]); }
+            String value = args[++i];
+            try {
+                if (arg.equals("-o")) {
+                    outputFileName = value;
+                } else if (arg.equals("-size")) {
+                    generator.targetBytes = parseSize(value);
+                } else if (arg.equals("-seed")) {
+                    generator.seed = Long.parseLong(value);
+                } else if (arg.equals("-students")) {
+                    generator.students = positive(value);
+                } else if (arg.equals("-sections")) {
+                    generator.sections = positive(value);
+                } else if (arg.equals("-problems")) {
+                    generator.problems = positive(value);
+                } else if (arg.equals("-schools")) {
+                    generator.schools = positive(value);
+                } else if (arg.equals("-hint-rate")) {
+                    generator.hintRate = rate(value);
+                } else if (arg.equals("-error-rate")) {
+                    generator.errorRate = rate(value);
+                } else if (arg.equals("-quoted-rate")) {
+                    generator.quotedRate = rate(value);
+                } else if (arg.equals("-untagged-rate")) {
+                    generator.untaggedRate = rate(value);
+                } else if (arg.equals("-extra-columns")) {
+                    generator.extraColumns = Integer.parseInt(value);
+                    if (generator.extraColumns < 0) { throw new NumberFormatException(value); }
+                } else {
+                    usage("Unrecognized argument: " + args[i - 1]);
+                }
+            } catch (NumberFormatException e) {
+                usage("Bad value for " + args[i - 1] + ": " + value);
+            }
+        }
+        if (outputFileName == null) { usage("The output file must be specified, using the '-o' arg."); }
+
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFileName), 1024 * 1024)) {
+            long rows = generator.write(out);
+            System.out.println("Wrote " + rows + " row(s) to " + outputFileName);
+        }
+    }
+
+    /**
+     * Write the export.
+     * @param out where to write it
+     * @return number of rows written
+     */
+    long write(OutputStream out)
+        throws IOException
+    {
+        Random random = new Random(seed);
+        StringBuilder row = new StringBuilder(256);
+        StringBuilder header = new StringBuilder(HEADER);
+        for (int c = 1; c <= extraColumns; c++) { header.append(",extra").append(c); }
+        long bytes = write(out, header.append('\n').toString());
+        long rows = 0;
+        long time = 1568000000000L;
+
+        // Per student: where they are, so each works through problems in order.
+        String[] studentIds = new String[students];
+        int[] section = new int[students];
+        int[] problem = new int[students];
+        for (int s = 0; s < students; s++) {
+            studentIds[s] = String.format("%016x%016x", random.nextLong(), random.nextLong());
+            section[s] = random.nextInt(sections);
+            problem[s] = random.nextInt(problems);
+        }
+
+        while (bytes < targetBytes) {
+            // One student does one problem: a few steps, each to the right answer.
+            int s = random.nextInt(students);
+            String assignment = "asg" + (section[s] / 4 + 1);
+            String context = "mx_" + studentIds[s] + "-" + assignment + "-x";
+            String sectionName = "section_" + section[s];
+            String problemId = "prob_" + section[s] + "_" + problem[s];
+            String school = "school" + (s % schools + 1);
+            double pKnown = random.nextDouble() * 0.5;
+
+            int steps = 3 + random.nextInt(6);
+            for (int g = 1; (g <= steps) && (bytes < targetBytes); g++) {
+                String goal = "g" + g;
+                // The same (section, problem, goal) always has the same skill.
+                String skill = "skill_" + ((section[s] * 31 + problem[s] * 7 + g) % 97);
+                int attempt = 1;
+                int helpLevel = 0;
+
+                while (bytes < targetBytes) {
+                    String action;
+                    String outcome;
+                    if (random.nextDouble() < hintRate) {
+                        action = (helpLevel == 0) ? "Hint Request" : "Hint Level Change";
+                        outcome = (helpLevel == 0) ? "INITIAL_HINT" : "HINT_LEVEL_CHANGE";
+                        helpLevel++;
+                    } else if (random.nextDouble() < errorRate) {
+                        action = "Attempt";
+                        outcome = "ERROR";
+                    } else {
+                        action = "Attempt";
+                        outcome = (helpLevel > 0) ? "JIT" : "OK";
+                    }
+                    time += random.nextInt(20000);
+
+                    double newPKnown = Math.min(0.99, pKnown + random.nextDouble() * 0.05);
+                    row.setLength(0);
+                    row.append(assignment).append(',');
+                    row.append(context).append(',');
+                    row.append("se").append(rows).append(',');
+                    row.append((random.nextDouble() < untaggedRate) ? "" : skill).append(',');
+                    row.append("rule").append(g % 9 + 1).append(',');
+                    row.append(goal).append(',');
+                    row.append(time).append(',');
+                    row.append(attempt).append(',');
+                    row.append(action).append(',');
+                    row.append(outcome).append(',');
+                    row.append(helpLevel).append(',');
+                    appendCsv(row, nextInput(random)).append(',');
+                    row.append(pKnown).append(',');
+                    row.append(newPKnown).append(',');
+                    row.append(sectionName).append(',');
+                    row.append((g == steps) && outcome.equals("OK") ? "in_progress" : "").append(',');
+                    row.append(problemId).append(',');
+                    row.append(school);
+                    for (int c = 1; c <= extraColumns; c++) {
+                        row.append(',');
+                        appendCsv(row, (random.nextDouble() < quotedRate) ? "note, \"" + c + "\"" : "value" + c);
+                    }
+                    row.append('\n');
+                    bytes += write(out, row.toString());
+                    rows++;
+                    pKnown = newPKnown;
+
+                    if (action.equals("Attempt")) {
+                        if (!outcome.equals("ERROR")) { break; }
+                        attempt++;
+                    }
+                }
+            }
+
+            // On to the next problem, and now and then the next section.
+            if (++problem[s] == problems) {
+                problem[s] = 0;
+                section[s] = (section[s] + 1) % sections;
+            }
+        }
+        return rows;
+    }
+
+    private String nextInput(Random random) {
+        if (random.nextDouble() < quotedRate) {
+            return AWKWARD_INPUTS[random.nextInt(AWKWARD_INPUTS.length)];
+        }
+        return PLAIN_INPUTS[random.nextInt(PLAIN_INPUTS.length)];
+    }
+
+    private static StringBuilder appendCsv(StringBuilder sb, String value) {
+        boolean quote = false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c == ',') || (c == '"') || (c == '\n') || (c == '\r')) {
+                quote = true;
+                break;
+            }
+        }
+        if (!quote) { return sb.append(value); }
+        return sb.append('"').append(value.replace("\"", "\"\"")).append('"');
+    }
+
+    private static long write(OutputStream out, String s)
+        throws IOException
+    {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes);
+        return bytes.length;
+    }
+
+    /**
+     * @param value a size such as "500k", "100m" or "10g"
+     * @return the size in bytes
+     */
+    private static long parseSize(String value) {
+        String v = value.trim().toLowerCase(Locale.ROOT);
+        long unit = 1L;
+        if (v.endsWith("k")) {
+            unit = 1024L;
+        } else if (v.endsWith("m")) {
+            unit = 1024L * 1024;
+        } else if (v.endsWith("g")) {
+            unit = 1024L * 1024 * 1024;
+        }
+        if (unit > 1) { v = v.substring(0, v.length() - 1); }
+        long size = Long.parseLong(v) * unit;
+        if (size <= 0) { throw new NumberFormatException(value); }
+        return size;
+    }
+
+    private static int positive(String value) {
+        int n = Integer.parseInt(value);
+        if (n < 1) { throw new NumberFormatException(value); }
+        return n;
+    }
+
+    private static double rate(String value) {
+        double r = Double.parseDouble(value);
+        if ((r < 0.0) || (r > 1.0)) { throw new NumberFormatException(value); }
+        return r;
+    }
+
+    private static void usage(String message) {
+        System.err.println(message);
+        System.err.println("Usage: java MathiaGenerator -o file.csv -size 100m [-seed N] [-students N]"
+                           + " [-sections N] [-problems N] [-hint-rate R] [-error-rate R]"
+                           + " [-quoted-rate R] [-untagged-rate R] [-schools N] [-extra-columns N]");
+        System.exit(-1);
+    }
+}
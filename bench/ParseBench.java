@@ -0,0 +1,387 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Micro and end-to-end benchmarks for ParseMATHia: tokenizing, parseLine(),
+ * the skill back-fill, row formatting, the -skill-prescan pass over the
+ * whole input, and a whole conversion. Each is run
+ * a few times to warm up, then measured; throughput and bytes allocated
+ * per row are reported for each.
+ *
+ * The micro benchmarks work on the first -rows records of the input, held
+ * in memory. The end-to-end one converts all of it, in this JVM, so the
+ * dictionaries and skill index are warm after the first run.
+ *
+ * Usage: java ParseBench -i file.csv [-bench tokenize,parse,skill,format,prescan,end-to-end]
+ *        [-warmup N] [-iterations N] [-rows N] [-threads N]
+ */
+public class ParseBench {
+
+    private static final String[] ALL_BENCHMARKS = { "tokenize", "parse", "skill", "format", "prescan", "end-to-end" };
+
+    private static final int CHUNK_SIZE = 5000;
+
+    // Sink for results, so the JIT can't drop the work.
+    static volatile long blackhole;
+
+    private final File input;
+    private final int maxRows;
+    private final String threads;
+
+    // For the stages, outside of a conversion; it keeps the dictionaries and skill index.
+    private final ParseMATHia converter = ParseMATHia.builder().build();
+
+    // Reused for every chunk of the parse benchmark.
+    private final TransactionBatch batch = new TransactionBatch();
+
+    private Map<String, Integer> colIndexMap;
+    // The fields the converter decodes; the rest are skipped, as it skips them.
+    private boolean[] columns;
+    private List<String[]> rows;
+    private long rowBytes;
+    private long fileRows;
+
+    private ParseBench(File input, int maxRows, String threads) {
+        this.input = input;
+        this.maxRows = maxRows;
+        this.threads = threads;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String inputFileName = null;
+        List<String> benchmarks = Arrays.asList(ALL_BENCHMARKS);
+        int warmup = 2;
+        int iterations = 5;
+        int maxRows = 200000;
+        String threads = null;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i].trim().toLowerCase(Locale.ROOT);
+            if (i + 1 >= args.length) { usage("A value must be specified with " + args[i]); }
+            String value = args[++i];
+            try {
+                if (arg.equals("-i")) {
+                    inputFileName = value;
+                } else if (arg.equals("-bench")) {
+                    benchmarks = Arrays.asList(value.split(","));
+                    for (String b : benchmarks) {
+                        if (!Arrays.asList(ALL_BENCHMARKS).contains(b)) { usage("Unknown benchmark: " + b); }
+                    }
+                } else if (arg.equals("-warmup")) {
+                    warmup = Integer.parseInt(value);
+                } else if (arg.equals("-iterations")) {
+                    iterations = Integer.parseInt(value);
+                } else if (arg.equals("-rows")) {
+                    maxRows = Integer.parseInt(value);
+                } else if (arg.equals("-threads")) {
+                    threads = value;
+                } else {
+                    usage("Unrecognized argument: " + args[i - 1]);
+                }
+            } catch (NumberFormatException e) {
+                usage("Bad value for " + args[i - 1] + ": " + value);
+            }
+        }
+        if (inputFileName == null) { usage("The input file must be specified, using the '-i' arg."); }
+        if ((warmup < 0) || (iterations < 1) || (maxRows < 1)) { usage("Counts must be positive."); }
+
+        ParseBench bench = new ParseBench(new File(inputFileName), maxRows, threads);
+        bench.load();
+        System.out.printf("%s: %d row(s), %.1f MB; micro benchmarks on %d row(s)%n",
+                          inputFileName, bench.fileRows, bench.input.length() / 1e6, bench.rows.size());
+        System.out.printf("%-12s %10s %10s %12s %8s %10s%n",
+                          "benchmark", "ms/op", "min ms", "rows/s", "MB/s", "B/row");
+
+        for (String name : benchmarks) {
+            Benchmark b = bench.benchmark(name);
+            for (int i = 0; i < warmup; i++) { b.run(); }
+            b.report(name, iterations);
+        }
+    }
+
+    /**
+     * Read the header and the first maxRows records, and count all of them.
+     */
+    private void load()
+        throws IOException
+    {
+        rows = new ArrayList<String[]>();
+        try (CsvChunkReader reader = CsvChunkReader.open(input)) {
+            CsvChunkReader.Chunk header = reader.nextChunk(1);
+            if (header == null) { throw new IOException(input + " is empty."); }
+            colIndexMap = ParseMATHia.parseHeader(header.tokenize().get(0));
+            columns = ParseMATHia.columnsNeeded(colIndexMap, false);
+
+            CsvChunkReader.Chunk chunk;
+            while ((chunk = reader.nextChunk(CHUNK_SIZE)) != null) {
+                fileRows += chunk.records;
+                if (rows.size() >= maxRows) { continue; }
+                List<String[]> lines = chunk.tokenize(columns);
+                int keep = Math.min(lines.size(), maxRows - rows.size());
+                rows.addAll(lines.subList(0, keep));
+                // Only part of the last chunk may be kept.
+                rowBytes += (chunk.end - chunk.start) * keep / lines.size();
+            }
+        }
+        if (rows.isEmpty()) { throw new IOException(input + " has no rows."); }
+    }
+
+    private Benchmark benchmark(String name) {
+        switch (name) {
+        case "tokenize":
+            return new Benchmark(fileRows, input.length(), false) {
+                long op() throws Exception { return tokenize(); }
+            };
+        case "parse":
+            return new Benchmark(rows.size(), rowBytes, false) {
+                long op() { return parse(); }
+            };
+        case "skill":
+            return skill();
+        case "format":
+            return format();
+        case "prescan":
+            return new Benchmark(fileRows, input.length(), true) {
+                long op() throws Exception { return prescan(); }
+            };
+        default:
+            return new Benchmark(fileRows, input.length(), true) {
+                long op() throws Exception { return endToEnd(); }
+            };
+        }
+    }
+
+    private long tokenize()
+        throws IOException
+    {
+        long sum = 0;
+        try (CsvChunkReader reader = CsvChunkReader.open(input)) {
+            CsvChunkReader.Chunk chunk;
+            while ((chunk = reader.nextChunk(CHUNK_SIZE)) != null) {
+                for (String[] line : chunk.tokenize(columns)) { sum += line.length; }
+            }
+        }
+        return sum;
+    }
+
+    private long parse() {
+        long sum = 0;
+        // A chunk at a time, into one batch, as the workers do.
+        for (int start = 0; start < rows.size(); start += CHUNK_SIZE) {
+            int n = Math.min(CHUNK_SIZE, rows.size() - start);
+            batch.reset(n);
+            for (int i = 0; i < n; i++) {
+                converter.parseLine(rows.get(start + i), colIndexMap, batch, i);
+                sum += batch.stepCodes[i];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @return all of the rows, parsed
+     */
+    private TransactionBatch parseAll() {
+        TransactionBatch all = new TransactionBatch();
+        all.reset(rows.size());
+        for (int i = 0; i < rows.size(); i++) { converter.parseLine(rows.get(i), colIndexMap, all, i); }
+        return all;
+    }
+
+    /**
+     * The writer's part of the skill back-fill, on keys made the way
+     * parseChunk() makes them.
+     */
+    private Benchmark skill() {
+        int n = 0;
+        long[] keys = new long[rows.size()];
+        SkillIndex.Tuple[] tuples = new SkillIndex.Tuple[rows.size()];
+        String[] skills = new String[rows.size()];
+        TransactionBatch all = parseAll();
+        for (int i = 0; i < rows.size(); i++) {
+            if (rows.get(i).length < 17) { continue; }
+            ParseMATHia.DataShopTxnData o = converter.toTransaction(all, i);
+            keys[n] = SkillIndex.pack(o.getSectionLevelCode(), o.getProblemNameCode(), o.getStepNameCode());
+            if (keys[n] == SkillIndex.UNCODED) {
+                tuples[n] = new SkillIndex.Tuple(o.getSectionLevel(), o.getProblemName(), o.getStepName());
+            }
+            String skill = o.getMathiaSkill();
+            skills[n++] = ((skill != null) && !skill.trim().equals("")) ? skill : null;
+        }
+
+        final int count = n;
+        return new Benchmark(count, rowBytes, false) {
+            long op() {
+                long sum = 0;
+                for (int i = 0; i < count; i++) {
+                    sum += converter.computeMathiaNewSkill(keys[i], tuples[i], skills[i]).length();
+                }
+                return sum;
+            }
+        };
+    }
+
+    private Benchmark format() {
+        TransactionBatch parsed = parseAll();
+        RowEncoder encoder = new RowEncoder(ParseMATHia.DATE_FMT);
+
+        return new Benchmark(parsed.size, rowBytes, false) {
+            long op() {
+                long sum = 0;
+                for (int i = 0; i < parsed.size; i++) {
+                    if (i % CHUNK_SIZE == 0) {
+                        sum += encoder.position();
+                        encoder.reset();
+                    }
+                    converter.encodeOutputHead(parsed, i, encoder);
+                    converter.encodeOutputTail(parsed, i, encoder);
+                }
+                return sum + encoder.position();
+            }
+        };
+    }
+
+    /**
+     * The first pass of -skill-prescan, into an empty skill index.
+     */
+    private long prescan()
+        throws Exception
+    {
+        ParseMATHia.Builder builder = ParseMATHia.builder();
+        if (threads != null) { builder.threads(Integer.parseInt(threads)); }
+        return builder.build().prescanSkills(Collections.singletonList(input));
+    }
+
+    private long endToEnd()
+        throws IOException
+    {
+        File output = File.createTempFile("parsebench", ".txt");
+        try {
+            List<String> args = new ArrayList<String>(Arrays.asList("-i", input.getPath(), "-o", output.getPath()));
+            if (threads != null) { args.addAll(Arrays.asList("-threads", threads)); }
+            ParseMATHia.main(args.toArray(new String[0]));
+            return output.length();
+        } finally {
+            output.delete();
+        }
+    }
+
+    private static void usage(String message) {
+        System.err.println(message);
+        System.err.println("Usage: java ParseBench -i file.csv [-bench " + String.join(",", ALL_BENCHMARKS) + "]"
+                           + " [-warmup N] [-iterations N] [-rows N] [-threads N]");
+        System.exit(-1);
+    }
+
+    /**
+     * One benchmark: an operation over a known number of rows and bytes.
+     */
+    private abstract static class Benchmark {
+        private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+        private final long rowsPerOp;
+        private final long bytesPerOp;
+        // Whether the operation uses other threads, whose allocation has to be counted too.
+        private final boolean multiThreaded;
+
+        Benchmark(long rowsPerOp, long bytesPerOp, boolean multiThreaded) {
+            this.rowsPerOp = rowsPerOp;
+            this.bytesPerOp = bytesPerOp;
+            this.multiThreaded = multiThreaded;
+        }
+
+        abstract long op() throws Exception;
+
+        void run() throws Exception {
+            blackhole += op();
+        }
+
+        void report(String name, int iterations) throws Exception {
+            long totalNanos = 0;
+            long minNanos = Long.MAX_VALUE;
+            long allocated = 0;
+            for (int i = 0; i < iterations; i++) {
+                AllocationSampler sampler = multiThreaded ? new AllocationSampler(THREADS) : null;
+                long before = THREADS.getCurrentThreadAllocatedBytes();
+                long start = System.nanoTime();
+                run();
+                long nanos = System.nanoTime() - start;
+                allocated += (sampler != null) ? sampler.finish() : THREADS.getCurrentThreadAllocatedBytes() - before;
+                totalNanos += nanos;
+                minNanos = Math.min(minNanos, nanos);
+            }
+
+            double seconds = totalNanos / 1e9 / iterations;
+            System.out.printf("%-12s %10.1f %10.1f %12.0f %8.1f %10.0f%s%n",
+                              name, seconds * 1e3, minNanos / 1e6,
+                              rowsPerOp / seconds, bytesPerOp / 1e6 / seconds,
+                              (double)allocated / iterations / Math.max(1, rowsPerOp),
+                              multiThreaded ? " (approx.)" : "");
+        }
+    }
+
+    /**
+     * Allocation of all threads while it runs. Threads can start and end
+     * during the run, so their counters are polled; what a thread
+     * allocates after the last poll before it ends is missed.
+     */
+    private static class AllocationSampler extends Thread {
+        private final com.sun.management.ThreadMXBean threads;
+        private final Map<Long, Long> initial = new HashMap<Long, Long>();
+        private final Map<Long, Long> latest = new LinkedHashMap<Long, Long>();
+        private volatile boolean done = false;
+
+        AllocationSampler(com.sun.management.ThreadMXBean threads) {
+            this.threads = threads;
+            setDaemon(true);
+            poll(initial);
+            start();
+        }
+
+        @Override
+        public void run() {
+            while (!done) {
+                synchronized (latest) { poll(latest); }
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return bytes allocated since the sampler started, except by itself
+         */
+        long finish() throws InterruptedException {
+            done = true;
+            join();
+            poll(latest);
+            latest.remove(getId());
+            long total = 0;
+            for (Map.Entry<Long, Long> e : latest.entrySet()) {
+                Long before = initial.get(e.getKey());
+                total += e.getValue() - ((before == null) ? 0L : before);
+            }
+            return total;
+        }
+
+        private void poll(Map<Long, Long> into) {
+            long[] ids = threads.getAllThreadIds();
+            long[] bytes = threads.getThreadAllocatedBytes(ids);
+            for (int i = 0; i < ids.length; i++) {
+                if (bytes[i] >= 0) { into.put(ids[i], bytes[i]); }
+            }
+        }
+    }
+}
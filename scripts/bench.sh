@@ -0,0 +1,30 @@
+#!/bin/sh
+#
+# Build ParseMATHia with the benchmark harness and run it. Generates a
+# synthetic input of the given size first, unless one is given.
+#
+# Usage: scripts/bench.sh [-size 100m | -i input.csv] [ParseBench args...]
+# Run from the top of the source tree. Sizes from 1m to 10g are useful;
+# the generator takes a -seed, so the same size gives the same file.
+
+SIZE=100m
+INPUT=""
+case "$1" in
+    -size) SIZE=$2; shift 2 ;;
+    -i) INPUT=$2; shift 2 ;;
+esac
+
+LIBS="./lib/opencsv-4.5.jar:./lib/common-lang3.jar"
+BUILD=$(mktemp -d)
+trap 'rm -rf "$BUILD"' EXIT
+
+javac -Xlint:-removal -d "$BUILD" -cp ".:$LIBS" ParseMATHia.java bench/*.java || exit 1
+
+if [ -z "$INPUT" ]; then
+    INPUT="bench_$SIZE.csv"
+    if [ ! -f "$INPUT" ]; then
+        java -cp "$BUILD" MathiaGenerator -o "$INPUT" -size "$SIZE" -seed 1 || exit 1
+    fi
+fi
+
+java -cp "$BUILD:$LIBS" ParseBench -i "$INPUT" "$@"
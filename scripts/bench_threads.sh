@@ -0,0 +1,39 @@
+#!/bin/sh
+#
+# Scaling benchmark for ParseMATHia: convert the same input with an
+# increasing number of worker threads, report the wall-clock time of
+# each run and check that every output is identical to the 1-thread run.
+#
+# Usage: scripts/bench_threads.sh input_file.csv [thread counts...]
+# Run from the directory containing the compiled ParseMATHia classes.
+
+if [ $# -lt 1 ]; then
+    echo "Usage: $0 input_file.csv [thread counts...]" >&2
+    exit 1
+fi
+
+INPUT=$1
+shift
+THREADS=${*:-"1 2 4 8"}
+CP=".:./lib/opencsv-4.5.jar:./lib/common-lang3.jar"
+TMP=$(mktemp -d)
+trap 'rm -rf "$TMP"' EXIT
+
+BASELINE=""
+for t in $THREADS; do
+    OUT="$TMP/output_$t.txt"
+    START=$(date +%s.%N)
+    java -classpath "$CP" ParseMATHia -i "$INPUT" -o "$OUT" -threads "$t" > /dev/null || exit 1
+    END=$(date +%s.%N)
+    SECS=$(awk "BEGIN { print $END - $START }")
+
+    if [ -z "$BASELINE" ]; then
+        BASELINE=$OUT
+        SAME="baseline"
+    elif cmp -s "$BASELINE" "$OUT"; then
+        SAME="identical"
+    else
+        SAME="DIFFERS"
+    fi
+    printf "threads=%-3s %8.2f s  %s\n" "$t" "$SECS" "$SAME"
+done
@@ -0,0 +1,39 @@
+#!/bin/sh
+#
+# Golden-file check for ParseMATHia: convert an input file and compare
+# the result byte-for-byte with an output file from a known-good build.
+#
+# Usage: scripts/golden_check.sh [input_file.csv golden_output.txt] [ParseMATHia args...]
+# Run from the directory containing the compiled ParseMATHia classes.
+#
+# Without files, it checks scripts/golden/mathia_sample.csv against
+# mathia_sample.txt, the output of the original converter, in UTC. The
+# sample has quoted, escaped and multi-line fields, non-ASCII text, empty
+# and blank skills, steps untagged before and after their skill, a skill
+# that changes, p-knowns that are NA, null, empty or in E notation, and
+# times in one second, across midnight and outside 1600-9999.
+
+GOLDEN_DIR=$(dirname "$0")/golden
+
+if [ $# -ge 2 ] && [ "${1#-}" = "$1" ]; then
+    INPUT=$1
+    GOLDEN=$2
+    shift 2
+else
+    INPUT=$GOLDEN_DIR/mathia_sample.csv
+    GOLDEN=$GOLDEN_DIR/mathia_sample.txt
+    # The golden times are in UTC.
+    TZ=UTC
+    export TZ
+fi
+CP=".:./lib/opencsv-4.5.jar:./lib/common-lang3.jar"
+TMP=$(mktemp -d)
+trap 'rm -rf "$TMP"' EXIT
+
+java -classpath "$CP" ParseMATHia -i "$INPUT" -o "$TMP/output.txt" "$@" > /dev/null || exit 1
+
+if cmp "$GOLDEN" "$TMP/output.txt"; then
+    echo "Output matches $GOLDEN"
+else
+    exit 1
+fi
@@ -1,8 +1,18 @@
 
-import pandas as pd
+# Convert a MATHia export to DataShop tab-delimited format, the same way
+# ParseMATHia does: scripts/python_parity.sh checks that the two give the
+# same file. The export is read a chunk of lines at a time, so memory use
+# depends on -chunkRows, not on the size of the file. Only the standard
+# library is needed.
+
 import argparse
-import datetime as dt
-from dateutil.parser import parse
+import datetime
+import functools
+import re
+import sys
+import time
+import unicodedata
+from decimal import Context, Decimal, ROUND_HALF_EVEN
 
 inFile = ""
 outFile = ""
@@ -10,9 +20,12 @@ outFile = ""
 parser = argparse.ArgumentParser(description='Parser for MATHia-to-DataShop transform')
 parser.add_argument('-inFile', type=str, help='input file', required=True)
 parser.add_argument('-outFile', type=str, help='output file', required=True)
+parser.add_argument('-chunkRows', type=int, default=20000,
+                    help='number of input lines to convert at a time')
 args, option_file_index_args = parser.parse_known_args()
 inFile = args.inFile
 outFile = args.outFile
+chunkRows = max(args.chunkRows, 1)
 
 # input file column headers
 ASSIGNMENT_ID = "assignmentid"
@@ -44,26 +57,6 @@ ACTION_DONE = "Done"
 ACTION_HINT_REQUEST = "Hint Request"
 ACTION_HINT_LEVEL_CHANGE = "Hint Level Change"
 
-# input file columns that we'll eventually drop
-dropColumns = [ASSIGNMENT_ID,
-               CT_CONTEXT_ID,
-               SEMANTIC_EVENT_ID,
-               SKILL_ID,
-               RULE_ID,
-               GOAL_NODE_ID,
-               SERVER_TIME,
-               ATTEMPT,
-               ACTION_IN,
-               TUTOR_OUTCOME,
-               HELP_LEVEL_IN,
-               INPUT_IN,
-               SKILL_PREV_P_KNOWN,
-               SKILL_NEW_P_KNOWN,
-               SECTION_NAME,
-               SECTION_PROGRESS_STATUS,
-               PROBLEM_ID,
-               SCHOOL_ID]
-
 # output file column headers
 ANON_STUDENT_ID = "Anon Student Id"
 SESSION_ID = "Session Id"
@@ -108,78 +101,296 @@ orderedColumns = [ANON_STUDENT_ID,
                   ATTEMPT_AT_STEP,
                   HELP_LEVEL_OUT]
 
+# Input columns every line must have; schoolid may be missing, and is
+# then written as "null", as ParseMATHia writes it.
+inputColumns = [ASSIGNMENT_ID, CT_CONTEXT_ID, SKILL_ID, RULE_ID, GOAL_NODE_ID, SERVER_TIME, ATTEMPT,
+                ACTION_IN, TUTOR_OUTCOME, HELP_LEVEL_IN, INPUT_IN, SKILL_PREV_P_KNOWN, SKILL_NEW_P_KNOWN,
+                SECTION_NAME, SECTION_PROGRESS_STATUS, PROBLEM_ID]
+knownColumns = set(inputColumns + [SCHOOL_ID, SEMANTIC_EVENT_ID])
 
-def handleSimpleColumns(x):
-    x[ANON_STUDENT_ID] = x[CT_CONTEXT_ID]
-    x[SESSION_ID] = "session1"
-    x[LEVEL_ASSIGNMENT] = x[ASSIGNMENT_ID]
-    x[LEVEL_SECTION] = x[SECTION_NAME]
-    x[PROBLEM_NAME] = x[PROBLEM_ID]
-    x[ACTION_OUT] = x[ACTION_IN]
-    x[INPUT_OUT] = x[INPUT_IN]
-    x[STEP_NAME] = x[GOAL_NODE_ID]
-    x[KCM_MATHIA] = x[SKILL_ID]
-    x[CF_RULE_ID] = x[RULE_ID]
-    x[CF_SKILL_P_KNOWN] = x[SKILL_PREV_P_KNOWN]
-    x[CF_SKILL_NEW_P_KNOWN] = x[SKILL_NEW_P_KNOWN]
-    x[CF_SECTION_PROGRESS_STATUS] = x[SECTION_PROGRESS_STATUS]
-    x[CF_SCHOOL_ID] = x[SCHOOL_ID]
-    x[ATTEMPT_AT_STEP] = x[ATTEMPT]
-    x[HELP_LEVEL_OUT] = x[HELP_LEVEL_IN]
-    return x
-
-def handleOtherColumns(x):
-    x[TIME] = dt.datetime.fromtimestamp(float(x[SERVER_TIME]) / 1000).strftime('%Y-%m-%d %H:%M:%S')
-    x[SELECTION] = parseSelection(x[ACTION_IN])
-    x[OUTCOME] = parseOutcome(x[TUTOR_OUTCOME])
-    x[KCM_MATHIA_NEW] = computeMathiaNewSkill(x[SKILL_ID], x[SECTION_NAME], x[PROBLEM_ID], x[GOAL_NODE_ID])
-    return x
-
-def parseSelection(y):
-   result = y if y == 'Attempt' else ('Done Button' if y == 'Done' else 'Hint Request dummy')
-   return result
-
-def parseOutcome(y):
-    result = CORRECT if y == 'OK' else (INCORRECT if y == 'JIT' or y == 'ERROR' else HINT)
-    return result
+# Lines with fewer fields than this are bad, whatever the header says.
+MIN_FIELDS = 17
 
-kcmDict = {}
+# Characters Java's String.trim() removes.
+JAVA_BLANKS = ''.join(chr(c) for c in range(ord(' ') + 1))
 
-def computeMathiaNewSkill(skillId, section, problemId, goalNodeId):
-    result = ''
-    key = section + '_' + problemId
+# Values ParseMATHia takes as a servertime, and as a p-known: see
+# BadLines.isWholeNumber() and BadLines.isNumber().
+WHOLE_NUMBER = re.compile(r'[-+]?[0-9]{1,18}')
+NUMBER = re.compile(r'[-+]?(?:NaN|Infinity|(?:[0-9]+\.?[0-9]*|\.[0-9]+)(?:[eE][-+]?[0-9]+)?[fFdD]?)')
 
-    if goalNodeId and pd.notna(goalNodeId):
-        key = key + '_' + goalNodeId
 
-    hashedSkill = ''
-    if key in kcmDict:
-        hashedSkill = kcmDict[key]
+class BadInput(Exception):
+    pass
 
-    if skillId and pd.notna(skillId):
-        result = skillId
-        kcmDict[key] = skillId
-    elif hashedSkill and pd.notna(hashedSkill) and hashedSkill != '':
-        result = hashedSkill
 
-    return result
+def isJavaWhitespace(c):
+    """Whether Java's Character.isWhitespace() is true of a character."""
+    if c in ' \t\n\x0b\x0c\r\x1c\x1d\x1e\x1f':
+        return True
+    return (unicodedata.category(c) in ('Zs', 'Zl', 'Zp')) and (c not in '\u00a0\u2007\u202f')
+
+def tokenize(text):
+    """
+    Split one record into fields, as CsvChunkReader does, following
+    OpenCSV: ',' separator, '"' quotes, '\\' escape, and line breaks
+    inside quotes read as "\\n". Keep the two in step.
+    Returns the fields, or None if text ends inside quotes, so the record
+    goes on to the next line.
+    """
+    fields = []
+    field = []
+    inQuotes = False
+    inField = False
+    # Index of the current char in its line, as OpenCSV counts it.
+    lineIndex = 0
+    p = 0
+    n = len(text)
+    while p < n:
+        c = text[p]
+        if c == '\n' or c == '\r':
+            if not inQuotes:
+                break
+            p += 2 if (c == '\r' and p + 1 < n and text[p + 1] == '\n') else 1
+            field.append('\n')
+            lineIndex = 0
+            continue
+
+        nxt = text[p + 1] if p + 1 < n else ''
+        nextInLine = nxt not in ('', '\n', '\r')
+
+        if c == '\\':
+            # A '\' before a quote or '\' is dropped, as is one before anything else.
+            if (inQuotes or inField) and nxt in ('"', '\\'):
+                field.append(nxt)
+                p += 2
+                lineIndex += 2
+            else:
+                p += 1
+                lineIndex += 1
+            continue
+
+        if c == '"':
+            if (inQuotes or inField) and nxt == '"':
+                field.append(nxt)
+                p += 2
+                lineIndex += 2
+            else:
+                inQuotes = not inQuotes
+                if lineIndex > 2 and text[p - 1] != ',' and nextInLine and nxt != ',':
+                    # Quote in the middle of a field.
+                    if field and all(isJavaWhitespace(f) for f in field):
+                        field = []
+                    else:
+                        field.append(c)
+                p += 1
+                lineIndex += 1
+            inField = not inField
+            continue
+
+        if c == ',' and not inQuotes:
+            fields.append(''.join(field))
+            field = []
+            inField = False
+        else:
+            field.append(c)
+            inField = True
+        p += 1
+        # Java counts a character outside the BMP as two.
+        lineIndex += 2 if ord(c) > 0xffff else 1
+
+    if inQuotes:
+        return None
+    fields.append(''.join(field))
+    return fields
+
+def readRecords(f):
+    """
+    The records of a file opened with newline='', as lists of fields.
+    Lines without quotes or escapes, most of them, are just split.
+    """
+    pending = None
+    for line in f:
+        if pending is None and '"' not in line and '\\' not in line:
+            yield line.rstrip('\r\n').split(',')
+            continue
+        pending = line if pending is None else pending + line
+        fields = tokenize(pending)
+        if fields is not None:
+            pending = None
+            yield fields
+    if pending is not None:
+        raise BadInput('Unterminated quoted field at end of ' + inFile)
+
+def readChunks(records):
+    chunk = []
+    for record in records:
+        chunk.append(record)
+        if len(chunk) >= chunkRows:
+            yield chunk
+            chunk = []
+    if chunk:
+        yield chunk
 
-# Read the input file and handle anything that should be "NA".
-df = pd.read_csv(inFile, dtype=str, na_values = ['NA', 'null'])
 
-# Some of the columns are a simple copy...
-df = df.apply(handleSimpleColumns, axis=1)
+# Java's calendar is Julian before this day, and Gregorian from it on.
+GREGORIAN_CUTOVER = (1582, 10, 15)
+
+# Java's time zones start in 1900; before then it uses the zone's
+# standard offset of today, not local mean time.
+JAVA_ZONES_START = -2208988800
+
+def julianDate(ordinal):
+    """The Julian (year, month, day) of a day numbered as date.toordinal() numbers it."""
+    c = ordinal + 1721425 + 32082
+    d = (4 * c + 3) // 1461
+    e = c - 1461 * d // 4
+    m = (5 * e + 2) // 153
+    return (d - 4800 + m // 10, m + 3 - 12 * (m // 10), e - (153 * m + 2) // 5 + 1)
+
+@functools.lru_cache(maxsize=65536)
+def formatSeconds(seconds):
+    # Times are written in the local time zone, as ParseMATHia writes them.
+    # Both use the tz database, but Java has its own copy, so zones whose
+    # history the two copies tell differently, e.g. Amsterdam before 1940,
+    # can give other times for those years.
+    if seconds < JAVA_ZONES_START:
+        t = time.gmtime(seconds - time.timezone)
+    else:
+        t = time.localtime(seconds)
+    date = (t.tm_year, t.tm_mon, t.tm_mday)
+    if (1, 1, 1) <= date < GREGORIAN_CUTOVER:
+        date = julianDate(datetime.date(*date).toordinal())
+    return '%04d-%02d-%02d %02d:%02d:%02d' % (date + (t.tm_hour, t.tm_min, t.tm_sec))
+
+def parseTime(serverTime):
+    return formatSeconds(int(serverTime) // 1000)
+
+TWO_DIGITS = Context(prec=2, rounding=ROUND_HALF_EVEN)
+
+SELECTIONS = {ACTION_ATTEMPT: ACTION_ATTEMPT, ACTION_DONE: 'Done Button'}
+OUTCOMES = {'OK': CORRECT, 'JIT': INCORRECT, 'ERROR': INCORRECT}
+
+def formatDouble(d):
+    """
+    A double the way Java's Double.toString() writes it, in Java 19 and
+    later: the fewest digits that read back as d, but at least two, the
+    closest to d. Earlier versions write some values over 1e16 or under
+    1e-318 with other digits; p-knowns are never either.
+    """
+    if d != d:
+        return 'NaN'
+    if d in (float('inf'), float('-inf')):
+        return 'Infinity' if d > 0 else '-Infinity'
+    if d == 0 or 1e-3 <= abs(d) < 1e7:
+        return repr(d)
+    shortest = Decimal(repr(d))
+    if len(shortest.as_tuple().digits) == 1:
+        # E.g. 4.9E-324, not 5.0E-324, for the smallest subnormal.
+        shortest = TWO_DIGITS.plus(Decimal(d))
+    sign, digits, exponent = shortest.as_tuple()
+    significand = ''.join(map(str, digits)).rstrip('0') or '0'
+    return (('-' if sign else '') + significand[0] + '.' + (significand[1:] or '0')
+            + 'E' + str(len(digits) + exponent - 1))
+
+@functools.lru_cache(maxsize=65536)
+def formatPKnown(value):
+    """A p-known as ParseMATHia writes it, or None if it isn't a number."""
+    value = value.strip(JAVA_BLANKS)
+    if value == '' or value.lower() in ('na', 'null'):
+        return 'null'
+    if not NUMBER.fullmatch(value):
+        return None
+    if value[-1] in 'fFdD' and not value.endswith('Infinity'):
+        value = value[:-1]
+    return formatDouble(float(value))
+
+# Last skill seen for each (section, problem, step), kept from one chunk
+# to the next.
+kcmDict = {}
+
+def computeMathiaNewSkills(sections, problems, steps, skills):
+    """
+    Each line's skill, or if it has none, the last skill of an earlier
+    line for the same step, in this chunk or an earlier one.
+    """
+    result = []
+    for key in zip(sections, problems, steps, skills):
+        skill = key[3]
+        if skill.strip(JAVA_BLANKS) != '':
+            kcmDict[key[:3]] = skill
+            result.append(skill)
+        else:
+            result.append(kcmDict.get(key[:3], ''))
+    return result
 
-# ... others require a bit of processing.
-df = df.apply(handleOtherColumns, axis=1)
+def checkLines(chunk, firstLine):
+    """Fail at the first bad line, as ParseMATHia does by default."""
+    for i, row in enumerate(chunk):
+        reason = None
+        if len(row) < fieldsNeeded:
+            reason = 'too few fields'
+        elif not WHOLE_NUMBER.fullmatch(row[col[SERVER_TIME]]):
+            reason = 'servertime is not a whole number'
+        elif formatPKnown(row[col[SKILL_PREV_P_KNOWN]]) is None:
+            reason = 'skillpreviouspknown is not a number'
+        elif formatPKnown(row[col[SKILL_NEW_P_KNOWN]]) is None:
+            reason = 'skillnewpknown is not a number'
+        if reason is not None:
+            raise BadInput('Bad input at record ' + str(firstLine + i) + ' of ' + inFile + ': ' + reason + '.')
 
-# Now drop the columns from the original file.
-df.drop(dropColumns, axis=1, inplace=True)
+def convertChunk(chunk):
+    """The output lines of a chunk of input lines, converted a column at a time."""
+    def column(name):
+        return [row[col[name]] for row in chunk] if name in col else ['null'] * len(chunk)
 
-# Likely not necessary, but order the output columns for DataShop.
-df = df.reindex(columns = orderedColumns)
+    actions = column(ACTION_IN)
+    sections = column(SECTION_NAME)
+    problems = column(PROBLEM_ID)
+    steps = column(GOAL_NODE_ID)
+    skills = column(SKILL_ID)
+    out = [column(CT_CONTEXT_ID),
+           ['session1'] * len(chunk),
+           list(map(parseTime, column(SERVER_TIME))),
+           column(ASSIGNMENT_ID),
+           sections,
+           problems,
+           steps,
+           [SELECTIONS.get(a, 'Hint Request dummy') for a in actions],
+           actions,
+           column(INPUT_IN),
+           [OUTCOMES.get(o, HINT) for o in column(TUTOR_OUTCOME)],
+           skills,
+           computeMathiaNewSkills(sections, problems, steps, skills),
+           column(RULE_ID),
+           list(map(formatPKnown, column(SKILL_PREV_P_KNOWN))),
+           list(map(formatPKnown, column(SKILL_NEW_P_KNOWN))),
+           column(SECTION_PROGRESS_STATUS),
+           column(SCHOOL_ID),
+           column(ATTEMPT),
+           column(HELP_LEVEL_IN)]
+    # Fields are written as they are, without quoting, and lines end with
+    # "\r\n", as ParseMATHia writes them.
+    return ''.join('\t'.join(line) + '\r\n' for line in zip(*out))
 
-# Finally! Write the output file, using empty string for NA values.
-df.to_csv(outFile, sep='\t', index=False, na_rep = '')
 
+try:
+    with open(inFile, 'r', encoding='utf-8', errors='replace', newline='') as f, \
+         open(outFile, 'w', encoding='utf-8', newline='') as out:
+        records = readRecords(f)
+        headers = next(records, [])
+        # The last column of each name is the one read, as in ParseMATHia.
+        col = dict((h, i) for i, h in enumerate(headers) if h in knownColumns)
+        missing = [c for c in inputColumns if c not in col]
+        if missing:
+            raise BadInput('The header of ' + inFile + ' has no ' + ', '.join(missing) + ' column.')
+        fieldsNeeded = max([MIN_FIELDS] + [i + 1 for i in col.values()])
 
+        out.write('\t'.join(orderedColumns) + '\r\n')
+        line = 2
+        for chunk in readChunks(records):
+            checkLines(chunk, line)
+            out.write(convertChunk(chunk))
+            line += len(chunk)
+except BadInput as e:
+    sys.exit(str(e))
@@ -0,0 +1,48 @@
+#!/bin/sh
+#
+# Parity check between the two converters: generate exports of a few
+# shapes, convert each with ParseMATHia and with scripts/parse_mathia.py,
+# and compare the results byte for byte. The Python script converts in
+# small chunks here, so skill back-fill is checked across chunks too.
+#
+# Usage: scripts/python_parity.sh [more_input_files.csv...]
+# Run from the top of the source tree; needs python3 (or set PYTHON).
+# Any files given are converted both ways and compared too. ParseMATHia
+# runs in the temporary directory, so its debug.log goes there too.
+
+PYTHON=${PYTHON:-python3}
+LIBS="$PWD/lib/opencsv-4.5.jar:$PWD/lib/common-lang3.jar"
+TMP=$(mktemp -d)
+trap 'rm -rf "$TMP"' EXIT
+
+javac -Xlint:-removal -d "$TMP/classes" -cp ".:$LIBS" ParseMATHia.java bench/*.java || exit 1
+
+generate() {
+    NAME=$1
+    shift
+    java -cp "$TMP/classes" MathiaGenerator -o "$TMP/$NAME.csv" "$@" > /dev/null || exit 1
+}
+
+generate plain -size 2m -seed 1
+generate quoted -size 2m -seed 2 -quoted-rate 0.3
+generate untagged -size 2m -seed 3 -untagged-rate 0.6 -students 20
+generate many_steps -size 4m -seed 4 -sections 40 -problems 60 -untagged-rate 0.3
+
+STATUS=0
+for INPUT in "$TMP"/*.csv "$@"; do
+    case "$INPUT" in
+        /*) ;;
+        *) INPUT="$PWD/$INPUT" ;;
+    esac
+    (cd "$TMP" && java -cp "$TMP/classes:$LIBS" ParseMATHia -i "$INPUT" -o "$TMP/java.txt" > /dev/null) || exit 1
+    "$PYTHON" scripts/parse_mathia.py -inFile "$INPUT" -outFile "$TMP/python.txt" -chunkRows 1000 || exit 1
+    if cmp -s "$TMP/java.txt" "$TMP/python.txt"; then
+        echo "identical: $INPUT"
+    else
+        echo "DIFFERENT: $INPUT"
+        diff "$TMP/java.txt" "$TMP/python.txt" | head -6
+        STATUS=1
+    fi
+    rm -f "$TMP/java.txt" "$TMP/python.txt"
+done
+exit $STATUS
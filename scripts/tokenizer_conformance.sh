@@ -0,0 +1,60 @@
+#!/bin/sh
+#
+# Conformance check for the memory-mapped tokenizer: build an export
+# whose "input" column holds the awkward values MATHia produces (commas,
+# quotes, line breaks, backslashes, non-ASCII text), convert it with
+# both -tokenizer mapped and -tokenizer opencsv, and compare the results.
+#
+# Usage: scripts/tokenizer_conformance.sh [more_input_files.csv...]
+# Run from the directory containing the compiled ParseMATHia classes.
+# Any files given are converted both ways and compared too.
+
+CP=".:./lib/opencsv-4.5.jar:./lib/common-lang3.jar"
+TMP=$(mktemp -d)
+trap 'rm -rf "$TMP"' EXIT
+
+SAMPLE="$TMP/tricky.csv"
+printf 'assignmentid,ctcontextid,semanticeventid,skillid,ruleid,goalnodeid,servertime,attempt,action,tutoroutcome,helplevel,input,skillpreviouspknown,skillnewpknown,sectionname,sectionprogressstatus,problemid,schoolid\r\n' > "$SAMPLE"
+
+n=0
+row() {
+    n=$((n + 1))
+    printf 'a1,mx_s%d-a1-x,e%d,sk1,r1,g1,%d,1,Attempt,OK,0,' $n $n $((1568000000000 + n * 1000)) >> "$SAMPLE"
+    printf "$1" >> "$SAMPLE"
+    printf ',0.5,NA,"sec, 1",,p1,school1\r\n' >> "$SAMPLE"
+}
+
+row 'plain'
+row '"quoted"'
+row '"a, b, c"'
+row '"say ""hi"""'
+row '""'
+row '"line1\nline2"'
+row '"line1\r\nline2\r\n"'
+row '"bare\rreturn"'
+row '"back\\\\slash"'
+row '"escaped \\"quote\\""'
+row 'back\\slash outside quotes'
+row 'mid"field"quote'
+row 'ab""cd'
+row '   "padded"'
+row '"  leading space"'
+row '"caf\303\251 \342\210\232x \360\237\230\200"'
+row '"trailing comma,"'
+row '"\n"'
+row '"multi\n\nblank\n\nlines"'
+printf 'a1,mx_last-a1-x,e0,,r1,g1,1568000100000,1,Done,OK,0,"no final line break",,,sec1,,p1,school1' >> "$SAMPLE"
+
+STATUS=0
+for INPUT in "$SAMPLE" "$@"; do
+    java -classpath "$CP" ParseMATHia -i "$INPUT" -o "$TMP/mapped.txt" -tokenizer mapped > /dev/null || exit 1
+    java -classpath "$CP" ParseMATHia -i "$INPUT" -o "$TMP/opencsv.txt" -tokenizer opencsv > /dev/null || exit 1
+    if cmp -s "$TMP/mapped.txt" "$TMP/opencsv.txt"; then
+        echo "identical: $INPUT"
+    else
+        echo "DIFFERENT: $INPUT"
+        STATUS=1
+    fi
+    rm -f "$TMP/mapped.txt" "$TMP/opencsv.txt"
+done
+exit $STATUS